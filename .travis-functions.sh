@@ -76,10 +76,11 @@ function travis_build_java
 	javac -version
 	javac -cp "$JAVAC_CP" $JAVAC_OPTS de/mpg/cbs/core/*/*.java || return
 	javac -cp "$JAVAC_CP" $JAVAC_OPTS de/mpg/cbs/*/*.java || return
+	javac -cp "$JAVAC_CP" $JAVAC_OPTS ca/concordia/qpi/*/*.java || return
 	#javac -cp "$JAVAC_CP" $JAVAC_OPTS de/mpg/cbs/jist/*/*.java || return
 	#javac -cp "$JAVAC_CP" $JAVAC_OPTS edu/jhu/ece/iacl/jist/*/*.java || return
 
-	jar cvf cbstools.jar de/mpg/cbs/core/*/*.class || return
+	jar cvf cbstools.jar de/mpg/cbs/core/*/*.class ca/concordia/qpi/*/*.class || return
 	jar cvf cbstools-lib.jar de/mpg/cbs/*/*.class || return
 }
 
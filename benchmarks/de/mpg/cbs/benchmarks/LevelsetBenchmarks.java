@@ -0,0 +1,125 @@
+package de.mpg.cbs.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import de.mpg.cbs.libraries.*;
+import de.mpg.cbs.methods.*;
+import de.mpg.cbs.structures.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *
+ *  JMH benchmarks for the level set and image kernels shared by most modules:
+ *	fast marching, separable convolution, marching cubes, simple point
+ *	look-up and the binary heap used by the fast marching and MGDM algorithms.
+ *	<p>
+ *	All benchmarks run on the brain phantom or on nested spheres, at the given
+ *	resolutions (in mm, in a 192 mm field of view). The level set is the white matter
+ *	boundary, or the exact distance to the innermost sphere. See
+ *	build-scripts/run-cbstools-benchmarks-linux.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+@Fork(1)
+public class LevelsetBenchmarks {
+
+	@Param({"2.0", "1.0"})
+	public float resolution;
+
+	@Param({"brain", "spheres"})
+	public String phantom;
+
+	private int n;
+	private byte[] label;
+	private float[] levelset;
+	private float[] image;
+	private float[][] kernel;
+	private byte[][][] object;
+	private CriticalPointLUT lut;
+	private float[] heapvalues;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		n = Phantoms.dimension(resolution);
+		if (phantom.equals("spheres")) {
+			// labels 0 to 3 from the outside, with the innermost sphere as white matter
+			label = Phantoms.nestedSpheres(n, Phantoms.WM);
+			levelset = Phantoms.sphereLevelset(n, 0.3f);
+		} else {
+			label = Phantoms.brainPhantom(n, 0.04f);
+			// white matter level set (signed distance approximated by the smoothed boundary)
+			boolean[] wm = new boolean[n*n*n];
+			for (int xyz=0;xyz<n*n*n;xyz++) wm[xyz] = (label[xyz]==Phantoms.WM);
+			levelset = ObjectTransforms.fastMarchingDistanceFunction(wm, n, n, n);
+		}
+		image = Phantoms.brainIntensity(label, 0.05f, 1234L);
+
+		kernel = ImageFilters.separableGaussianKernel(2.0f/resolution, 2.0f/resolution, 2.0f/resolution);
+
+		object = new byte[n][n][n];
+		for (int x=0;x<n;x++) for (int y=0;y<n;y++) for (int z=0;z<n;z++) {
+			object[x][y][z] = (byte)(label[x+n*y+n*n*z]==Phantoms.WM ? 1 : 0);
+		}
+		lut = new CriticalPointLUT("critical266LUT.raw.gz",200);
+		if (!lut.loadCompressedPattern()) throw new RuntimeException("cannot load the simple point LUT");
+
+		heapvalues = new float[n*n*n];
+		java.util.Random rand = new java.util.Random(5678L);
+		for (int xyz=0;xyz<n*n*n;xyz++) heapvalues[xyz] = rand.nextFloat();
+	}
+
+	@Benchmark
+	public float[] fastMarchingDistanceFunction() {
+		// the algorithm modifies its input
+		return ObjectTransforms.fastMarchingDistanceFunction(levelset.clone(), n, n, n);
+	}
+
+	@Benchmark
+	public float[] separableConvolution() {
+		return ImageFilters.separableConvolution(image, n, n, n, kernel);
+	}
+
+	@Benchmark
+	public float[] separableConvolutionAllThreads() {
+		return ImageFilters.separableConvolution(image, n, n, n, kernel, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Benchmark
+	public MarchingCubes computeMarchingCubes() {
+		// the algorithm modifies its input
+		MarchingCubes mc = new MarchingCubes(levelset.clone(), n, n, n);
+		mc.computeMarchingCubes(MarchingCubes.CONNECT_26_6, 0.0f, true, 0.001f);
+		return mc;
+	}
+
+	/** simple point test over the whole white matter boundary */
+	@Benchmark
+	public void keyFromPattern(Blackhole bh) {
+		for (int x=1;x<n-1;x++) for (int y=1;y<n-1;y++) for (int z=1;z<n-1;z++) {
+			int xyz = x+n*y+n*n*z;
+			if (levelset[xyz]>-1.5f && levelset[xyz]<1.5f) {
+				bh.consume(lut.get(lut.keyFromPattern(object, x, y, z)));
+			}
+		}
+	}
+
+	/** fill and empty a heap of the size of the image */
+	@Benchmark
+	public int binaryHeap() {
+		BinaryHeap2D heap = new BinaryHeap2D(n*n+n*n+n*n, BinaryHeap2D.MINTREE);
+		int count = 0;
+		for (int xyz=0;xyz<heapvalues.length;xyz++) heap.addValue(heapvalues[xyz], xyz, (byte)1);
+		while (heap.isNotEmpty()) {
+			count += heap.getFirstId()&1;
+			heap.removeFirst();
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,100 @@
+package de.mpg.cbs.benchmarks;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import de.mpg.cbs.methods.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *
+ *  JMH benchmark for the MGDM narrow band evolution on the brain phantom.
+ *	<p>
+ *	The segmentation starts from a phantom with shallower folds than the target
+ *	and evolves toward it under fixed gain functions, with or without topology
+ *	constraints. Each run needs a fresh MGDM object, built outside of the timing,
+ *	so the benchmark is run in single shot mode. Each run also reports the number
+ *	of values allocated for the MGDM functions and labels, relative to dense storage
+ *	(secondary result "allocatedRatio").
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2)
+@Measurement(iterations=5)
+@Fork(1)
+public class MgdmBenchmarks {
+
+	@Param({"2.0", "1.0"})
+	public float resolution;
+
+	@Param({"no", "26/6"})
+	public String topology;
+
+	@Param({"1"})
+	public int threads;
+
+	@Param({"50"})
+	public int iterations;
+
+	@Param({"false", "true"})
+	public boolean sparse;
+
+	private static final int NMGDM = 3;
+
+	private int n;
+	private SimpleShapeAtlas2 atlas;
+	private float[][] image;
+	private byte[] init;
+	private float[][] gain;
+	private byte[][] gainlabel;
+
+	private MgdmFastSegmentation2 mgdm;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		n = Phantoms.dimension(resolution);
+		atlas = new SimpleShapeAtlas2(Phantoms.writeBrainAtlas(Phantoms.temporaryDirectory(), n, resolution));
+
+		byte[] target = Phantoms.brainPhantom(n, 0.04f);
+		image = new float[][]{Phantoms.brainIntensity(target, 0.05f, 1234L)};
+		init = Phantoms.brainPhantom(n, 0.02f);
+		gain = new float[2][n*n*n];
+		gainlabel = new byte[2][n*n*n];
+		Phantoms.gainFunctions(target, Phantoms.NAMES.length, gain, gainlabel, 5678L);
+	}
+
+	@Setup(Level.Invocation)
+	public void buildMgdm() {
+		mgdm = new MgdmFastSegmentation2(image, new String[]{"T1map7T"}, new float[]{0.0f, 5000.0f}, 1,
+											n, n, n, resolution, resolution, resolution,
+											atlas, null, init, NMGDM, 1, 0.5f, 0.1f, 0.0f, 2.0f,
+											topology, null);
+		mgdm.setNumberOfThreads(threads);
+		mgdm.setSparseStorage(sparse);
+		mgdm.importBestGainFunctions(gain, gainlabel);
+	}
+
+	/** memory use of the MGDM representation, reported with the timings */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Storage {
+		public double allocatedRatio;
+	}
+
+	@Benchmark
+	public MgdmFastSegmentation2 evolveNarrowBand(Storage storage) {
+		mgdm.evolveNarrowBand(iterations, 0.001f);
+		// dense storage: nmgdm functions and nmgdm+1 labels per voxel
+		storage.allocatedRatio = mgdm.getAllocatedValues()/((2.0*NMGDM+1.0)*n*n*n);
+		return mgdm;
+	}
+
+	@TearDown(Level.Invocation)
+	public void releaseMgdm() {
+		mgdm = null;
+	}
+
+}
@@ -0,0 +1,102 @@
+package de.mpg.cbs.benchmarks;
+
+import java.io.*;
+
+import de.mpg.cbs.methods.*;
+import de.mpg.cbs.utilities.*;
+
+/**
+ *
+ *  Checks that sparse MGDM storage gives the same posterior memberships as dense storage,
+ *	with less memory.
+ *	<p>
+ *	The brain phantom of MgdmBenchmarks is evolved with dense and sparse storage,
+ *	then the approximate partial volumes are computed as in BrainMgdmMultiSegmentation2
+ *	and the membership and label outputs are compared: they must be equal where the sparse storage
+ *	holds all the label distances, and within the posterior of the sparse extent elsewhere.
+ *	The allocated storage of both runs is reported, and the sparse storage must be at most
+ *	half of the dense one: the default 1 mm resolution keeps the narrow band thin compared
+ *	to the phantom (at 1 mm, about 43% of the dense values; at 3 mm the band covers most
+ *	of the phantom). Runs without the JMH libraries:
+ *	java -classpath $BENCH:$CODE:$CODE/lib/* de.mpg.cbs.benchmarks.MgdmStorageCheck [resolution] [iterations]
+ */
+
+public class MgdmStorageCheck {
+
+	private static final int NMGDM = 3;
+	private static final int NGAIN = 1;
+	private static final float TOLERANCE = 1e-3f;
+	// narrow band and margin kept by the sparse storage of MgdmFastSegmentation2, in voxels
+	private static final float EXTENT = 12.6f;
+	// largest allowed ratio of sparse to dense storage
+	private static final double MAXRATIO = 0.5;
+
+	public static void main(String[] args) throws IOException {
+		float resolution = (args.length>0) ? Float.parseFloat(args[0]) : 1.0f;
+		int iterations = (args.length>1) ? Integer.parseInt(args[1]) : 20;
+
+		int n = Phantoms.dimension(resolution);
+		SimpleShapeAtlas2 atlas = new SimpleShapeAtlas2(Phantoms.writeBrainAtlas(Phantoms.temporaryDirectory(), n, resolution));
+		byte[] target = Phantoms.brainPhantom(n, 0.04f);
+		float[][] image = new float[][]{Phantoms.brainIntensity(target, 0.05f, 1234L)};
+		byte[] init = Phantoms.brainPhantom(n, 0.02f);
+
+		MgdmFastSegmentation2 dense = evolve(atlas, image, init, target, n, resolution, iterations, false);
+		MgdmFastSegmentation2 sparse = evolve(atlas, image, init, target, n, resolution, iterations, true);
+
+		float[] densemems = dense.exportBestGainFunctions1D(0, NGAIN, false);
+		float[] sparsemems = sparse.exportBestGainFunctions1D(0, NGAIN, false);
+		byte[] denselabels = dense.exportBestGainLabelsByte1D(0, NGAIN);
+		byte[] sparselabels = sparse.exportBestGainLabelsByte1D(0, NGAIN);
+		// points where the sparse storage holds all the label distances
+		byte[] lastlabel = sparse.getLabel(NMGDM);
+		// posterior of the labels beyond the sparse extent
+		float pvscale = 2.0f/resolution;
+		float bound = 1.0f/(1.0f + EXTENT*EXTENT/(pvscale*pvscale));
+
+		int nxyz = n*n*n;
+		float maxdiff = 0.0f, maxfardiff = 0.0f;
+		int nlabeldiff = 0;
+		for (int xyzn=0;xyzn<densemems.length;xyzn++) {
+			float diff = Numerics.abs(densemems[xyzn]-sparsemems[xyzn]);
+			boolean complete = (lastlabel[xyzn%nxyz]!=-1);
+			float tolerance = complete ? TOLERANCE : bound+TOLERANCE;
+			if (complete) maxdiff = Numerics.max(maxdiff, diff);
+			else maxfardiff = Numerics.max(maxfardiff, diff);
+			// labels may differ only where the memberships are within tolerance
+			if (diff>tolerance || (complete && denselabels[xyzn]!=sparselabels[xyzn] && diff>TOLERANCE)) nlabeldiff++;
+		}
+		double denseratio = dense.getAllocatedValues()/((2.0*NMGDM+1.0)*nxyz);
+		double sparseratio = sparse.getAllocatedValues()/((2.0*NMGDM+1.0)*nxyz);
+		System.out.println("maximum membership difference (complete label distances): "+maxdiff);
+		System.out.println("maximum membership difference (beyond the sparse extent): "+maxfardiff+" (bound: "+bound+")");
+		System.out.println("differences over tolerance: "+nlabeldiff);
+		System.out.println("allocated storage (fraction of dense arrays): dense "+denseratio+", sparse "+sparseratio);
+		if (nlabeldiff>0) {
+			System.out.println("sparse and dense memberships differ");
+			System.exit(1);
+		}
+		if (sparseratio>MAXRATIO*denseratio) {
+			System.out.println("sparse storage does not reduce the memory");
+			System.exit(1);
+		}
+		System.out.println("sparse and dense memberships agree");
+	}
+
+	private static MgdmFastSegmentation2 evolve(SimpleShapeAtlas2 atlas, float[][] image, byte[] init, byte[] target,
+												int n, float resolution, int iterations, boolean sparse) {
+		float[][] gain = new float[NGAIN+1][n*n*n];
+		byte[][] gainlabel = new byte[NGAIN+1][n*n*n];
+		Phantoms.gainFunctions(target, Phantoms.NAMES.length, gain, gainlabel, 5678L);
+
+		MgdmFastSegmentation2 mgdm = new MgdmFastSegmentation2(image, new String[]{"T1map7T"}, new float[]{0.0f, 5000.0f}, 1,
+											n, n, n, resolution, resolution, resolution,
+											atlas, null, init, NMGDM, NGAIN, 0.5f, 0.1f, 0.0f, 2.0f,
+											"no", null);
+		mgdm.setSparseStorage(sparse);
+		mgdm.importBestGainFunctions(gain, gainlabel);
+		mgdm.evolveNarrowBand(iterations, 0.001f);
+		mgdm.computeApproxPartialVolumes(2.0f/resolution, false);
+		return mgdm;
+	}
+}
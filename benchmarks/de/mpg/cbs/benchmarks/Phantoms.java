@@ -0,0 +1,213 @@
+package de.mpg.cbs.benchmarks;
+
+import java.io.*;
+import java.util.*;
+
+import de.mpg.cbs.libraries.*;
+import de.mpg.cbs.utilities.*;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ *
+ *  This class generates synthetic phantoms for the benchmarks.
+ *	<p>
+ *	Two phantoms are available: a set of nested spheres, and a simple
+ *	digital brain phantom (background, sulcal CSF, folded grey matter,
+ *	white matter and ventricles) inside an ellipsoidal head. Both are defined
+ *	in a fixed field of view of 192 mm, so that the resolution sets the image size.
+ *	A matching MGDM atlas (text format, with raw shape and topology images)
+ *	can be written to a temporary directory.
+ */
+
+public class Phantoms {
+
+	/** field of view, in mm */
+	public static final float FOV = 192.0f;
+
+	/** brain phantom labels */
+	public static final byte BG = 0;
+	public static final byte CSF = 1;
+	public static final byte GM = 2;
+	public static final byte WM = 3;
+	public static final String[] NAMES = {"Background", "CSF", "GM", "WM"};
+	public static final String[] TYPES = {"mask", "csf", "gm", "wm"};
+	public static final byte[] ATLASLABELS = {1, 10, 20, 47};
+
+	/** image size for a given resolution */
+	public static final int dimension(float res) {
+		return Numerics.max(8, Numerics.round(FOV/res));
+	}
+
+	/**
+	 *	nested spheres: label k for radii in [k*R/(nlb+1), (k+1)*R/(nlb+1)),
+	 *	with the outside labeled 0 and the innermost sphere labeled nlb
+	 */
+	public static final byte[] nestedSpheres(int n, int nlb) {
+		byte[] label = new byte[n*n*n];
+		float c = 0.5f*(n-1);
+		float r0 = 0.45f*n/nlb;
+		for (int x=0;x<n;x++) for (int y=0;y<n;y++) for (int z=0;z<n;z++) {
+			float r = (float)FastMath.sqrt((x-c)*(x-c)+(y-c)*(y-c)+(z-c)*(z-c));
+			label[x+n*y+n*n*z] = (byte)Numerics.max(0, nlb-Numerics.floor(r/r0));
+		}
+		return label;
+	}
+
+	/**
+	 *	signed distance to the surface of a sphere of radius ratio in [0,1] of the half field of view
+	 */
+	public static final float[] sphereLevelset(int n, float ratio) {
+		float[] levelset = new float[n*n*n];
+		float c = 0.5f*(n-1);
+		float r0 = ratio*0.5f*n;
+		for (int x=0;x<n;x++) for (int y=0;y<n;y++) for (int z=0;z<n;z++) {
+			levelset[x+n*y+n*n*z] = (float)FastMath.sqrt((x-c)*(x-c)+(y-c)*(y-c)+(z-c)*(z-c)) - r0;
+		}
+		return levelset;
+	}
+
+	/**
+	 *	digital brain phantom: the cortical surface is folded by spherical harmonic-like
+	 *	undulations of given depth (relative to the brain radius); shifting the depth
+	 *	gives a slightly different segmentation, used as initialization
+	 */
+	public static final byte[] brainPhantom(int n, float folding) {
+		byte[] label = new byte[n*n*n];
+		float c = 0.5f*(n-1);
+		float h = 0.5f*n;
+		for (int x=0;x<n;x++) for (int y=0;y<n;y++) for (int z=0;z<n;z++) {
+			// normalized ellipsoidal coordinates
+			float px = (x-c)/(0.80f*h);
+			float py = (y-c)/(0.92f*h);
+			float pz = (z-c)/(0.78f*h);
+			float r = (float)FastMath.sqrt(px*px+py*py+pz*pz);
+			byte lb = BG;
+			if (r<1.0f) {
+				float theta = (float)FastMath.atan2(py, px);
+				float phi = (float)FastMath.acos(pz/Numerics.max(r,1e-6f));
+				float fold = folding*(float)(FastMath.sin(9.0*theta)*FastMath.sin(7.0*phi));
+				float cortex = 0.90f + fold;
+				float white = 0.72f + 0.6f*fold;
+				if (r<white) lb = WM;
+				else if (r<cortex) lb = GM;
+				else lb = CSF;
+				// ventricles
+				float vx = (Numerics.abs(px)-0.12f)/0.08f;
+				float vy = py/0.30f;
+				float vz = (pz-0.08f)/0.12f;
+				if (vx*vx+vy*vy+vz*vz<1.0f) lb = CSF;
+			}
+			label[x+n*y+n*n*z] = lb;
+		}
+		return label;
+	}
+
+	/** 7T T1 map-like intensities (in ms) for the brain phantom, with gaussian noise of given relative level */
+	public static final float[] brainIntensity(byte[] label, float noise, long seed) {
+		float[] mean = {0.0f, 3800.0f, 1900.0f, 1200.0f};
+		Random rand = new Random(seed);
+		float[] img = new float[label.length];
+		for (int xyz=0;xyz<label.length;xyz++) {
+			img[xyz] = mean[label[xyz]]*(1.0f + noise*(float)rand.nextGaussian());
+		}
+		return img;
+	}
+
+	/**
+	 *	MGDM gain functions for a target segmentation: the best gain toward the true label,
+	 *	the second best toward the next label
+	 */
+	public static final void gainFunctions(byte[] label, int nlb, float[][] gain, byte[][] gainlabel, long seed) {
+		Random rand = new Random(seed);
+		for (int xyz=0;xyz<label.length;xyz++) {
+			gainlabel[0][xyz] = label[xyz];
+			gainlabel[1][xyz] = (byte)((label[xyz]+1)%nlb);
+			gain[0][xyz] = 0.5f + 0.3f*rand.nextFloat();
+			gain[1][xyz] = -0.2f;
+		}
+	}
+
+	/**
+	 *	write a text atlas for the brain phantom in the given directory,
+	 *	with smoothed label shapes at the given resolution;
+	 *	returns the atlas file name
+	 */
+	public static final String writeBrainAtlas(File dir, int n, float res) throws IOException {
+		byte[] label = brainPhantom(n, 0.04f);
+		int nlb = NAMES.length;
+
+		// topology template: labels, reduced to the atlas values
+		byte[] template = new byte[n*n*n];
+		for (int xyz=0;xyz<n*n*n;xyz++) template[xyz] = ATLASLABELS[label[xyz]];
+		writeRaw(new File(dir, "topo.raw"), template);
+
+		// shapes: smoothed indicator functions
+		float[][] kernel = ImageFilters.separableGaussianKernel(1.5f, 1.5f, 1.5f);
+		for (int k=0;k<nlb;k++) {
+			float[] ind = new float[n*n*n];
+			for (int xyz=0;xyz<n*n*n;xyz++) if (label[xyz]==k) ind[xyz] = 1.0f;
+			ind = ImageFilters.separableConvolution(ind, n, n, n, kernel);
+			writeRaw(new File(dir, NAMES[k]+".raw"), ind);
+		}
+
+		File atlas = new File(dir, "atlas.txt");
+		PrintWriter pw = new PrintWriter(new FileWriter(atlas));
+		pw.print("Structure Atlas File (edit at your own risks)\n \n");
+		pw.print("Structures:\t"+nlb+"\n");
+		for (int k=0;k<nlb;k++) pw.print(NAMES[k]+"\t\t"+ATLASLABELS[k]+"\t"+TYPES[k]+"\n");
+		pw.print(" \nTopology Atlas: \n");
+		pw.print("File:\ttopo.raw\n");
+		pw.print("Dimensions:\t"+n+"\t"+n+"\t"+n+"\n");
+		pw.print("Resolutions:\t"+res+"\t"+res+"\t"+res+"\n");
+		pw.print(" \nShape Atlas:\t"+(6*nlb)+"\n");
+		pw.print("Dimensions:\t"+n+"\t"+n+"\t"+n+"\n");
+		pw.print("Resolutions:\t"+res+"\t"+res+"\t"+res+"\n");
+		for (int k=0;k<nlb;k++) pw.print("Structure:\t"+NAMES[k]+"\nFile:\t"+NAMES[k]+".raw\n");
+		pw.print(" \nRegistered Shapes:\n");
+		for (int k=0;k<nlb;k++) pw.print((k==0 ? "0" : "1")+(k<nlb-1 ? "\t" : "\n"));
+		pw.print(" \nRegularization Factor:\n");
+		for (int k=0;k<nlb;k++) pw.print(NAMES[k]+(k<nlb-1 ? "\t" : "\n"));
+		for (int k=0;k<nlb;k++) pw.print((k==0 ? "1.0" : "0.5")+(k<nlb-1 ? "\t" : "\n"));
+		pw.print(" \nIntensity Prior Lists:\t1\n");
+		pw.print(" \nIntensity Prior:\tT1map7T\n");
+		float[] mean = {0.0f, 3800.0f, 1900.0f, 1200.0f};
+		for (int k=0;k<nlb;k++) pw.print(NAMES[k]+"\t"+mean[k]+"\t400.0\t1.0\n");
+		pw.print(" \n \n");
+		pw.close();
+
+		return atlas.getAbsolutePath();
+	}
+
+	/** create a temporary directory for phantom atlases, removed on exit */
+	public static final File temporaryDirectory() throws IOException {
+		File dir = File.createTempFile("cbstools-phantom", "");
+		if (!dir.delete() || !dir.mkdir()) throw new IOException("cannot create "+dir);
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static final void writeRaw(File file, byte[] data) throws IOException {
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** raw float images are little endian, as expected by the atlas */
+	private static final void writeRaw(File file, float[] data) throws IOException {
+		byte[] buffer = new byte[4*data.length];
+		for (int xyz=0;xyz<data.length;xyz++) {
+			int bits = Float.floatToIntBits(data[xyz]);
+			buffer[4*xyz+0] = (byte)(bits);
+			buffer[4*xyz+1] = (byte)(bits>>>8);
+			buffer[4*xyz+2] = (byte)(bits>>>16);
+			buffer[4*xyz+3] = (byte)(bits>>>24);
+		}
+		writeRaw(file, buffer);
+	}
+
+}
@@ -43,6 +43,7 @@ public class MultiscaleVesselFilter {
 	private float factorParam = 0.5f;
 	private float diffParam = 0.001f;
 	private int iterParam = 100;
+	private int nthreadsParam = 1;
 		
 	private float scaleStepParam =  1.0f;
 	private int nbrScaleParam = 4;
@@ -119,6 +120,7 @@ public class MultiscaleVesselFilter {
 	public final void setMaxItr(int val) {iterParam = val;}
 	public final void setPriorImage(float[] val) {locationImage = val;}
 	public final void setInvertPrior(boolean val) {InvertParam = val;}
+	public final void setNumberOfThreads(int val) {nthreadsParam = Numerics.max(1,val);}
 	
 	// set generic inputs	
 	public final void setDimensions(int x, int y, int z) { nx=x; ny=y; nz=z; nxyz=nx*ny*nz; }
@@ -210,7 +212,7 @@ public class MultiscaleVesselFilter {
 				int gz = (G[2].length-1)/2;
 				
 				// smoothed image
-				smoothed = ImageFilters.separableConvolution(image,nx,ny,nz,G,gx,gy,gz); 
+				smoothed = ImageFilters.separableConvolution(image,nx,ny,nz,G,gx,gy,gz,nthreadsParam); 
 			}
 			
 			//Begin Filter
@@ -1649,191 +1651,16 @@ public class MultiscaleVesselFilter {
 	
 	private final float[] beliefPropagation(float[] proba, float[] similarity1, float[] similarity2, byte[] ngb1, byte[] ngb2, boolean[] mask, int nxyz, int iter, float maxdiff) {
 		
-		float[] message1fg = new float[nxyz];
-		float[] message2fg = new float[nxyz];
-		float[] message1bg = new float[nxyz];
-		float[] message2bg = new float[nxyz];
-		
-		float[] newmsg1fg = new float[nxyz];
-		float[] newmsg2fg = new float[nxyz];
-		float[] newmsg1bg = new float[nxyz];
-		float[] newmsg2bg = new float[nxyz];
-		
-		// init
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			message1fg[xyz] = 1.0f;
-			message2fg[xyz] = 1.0f;
-			message1bg[xyz] = 1.0f;
-			message2bg[xyz] = 1.0f;
-			newmsg1fg[xyz] = 1.0f;
-			newmsg2fg[xyz] = 1.0f;
-			newmsg1bg[xyz] = 1.0f;
-			newmsg2bg[xyz] = 1.0f;
-		}
-		
-		// min value for probas, similarities
-		float minp = 0.00f;
-		float mins = 0.00f;
-		
-		// message passing
-		for (int t=0;t<iter;t++) {
-			System.out.println("iteration "+(t+1)+": ");
-			float diff = 0.0f;
-			//float prev;
-			int ngb;
-			for (int xyz=0;xyz<nxyz;xyz++) if (mask[xyz]) if (proba[xyz]>0 && proba[xyz]<1) {
-				float simfgfg1 = similarity1[xyz];
-				float simbgfg1 = 0.0f; //(1.0f-similarity1[xyz]); //similarity1[xyz];
-				float simfgbg1 = (1.0f-similarity1[xyz]); // good results
-				float simbgbg1 = 1.0f; //(1.0f-similarity1[xyz]); //1.0f; //similarity1[xyz];
-				
-				float simfgfg2 = similarity2[xyz];
-				float simbgfg2 = 0.0f;//(1.0f-similarity2[xyz]); //similarity2[xyz];
-				float simfgbg2 = (1.0f-similarity2[xyz]); // good results
-				float simbgbg2 = 1.0f; //(1.0f-similarity2[xyz]); //1.0f; //similarity2[xyz];
-				
-				// first neighbor message, fg label
-				ngb = neighborIndex(ngb1[xyz],xyz);
-				float mfgfg1 = Numerics.max(mins,simfgfg1)*Numerics.max(minp,proba[ngb]);
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1fg[ngb]>0) mfgfg1 *= message1fg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2fg[ngb]>0) mfgfg1 *= message2fg[ngb];
-				
-				float mfgbg1 = Numerics.max(mins,simfgbg1)*Numerics.max(minp,(1.0f-proba[ngb]));
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1bg[ngb]>0) mfgbg1 *= message1bg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2bg[ngb]>0) mfgbg1 *= message2bg[ngb];
-				
-				newmsg1fg[xyz] = Numerics.max(mfgfg1, mfgbg1);
-				diff = Numerics.max(diff, Numerics.abs(newmsg1fg[xyz]-message1fg[xyz]));
-				
-				// first neighbor message, bg label
-				ngb = neighborIndex(ngb1[xyz],xyz);
-				float mbgbg1 = Numerics.max(mins,simbgbg1)*Numerics.max(minp,(1.0f-proba[ngb]));
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1bg[ngb]>0) mbgbg1 *= message1bg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2bg[ngb]>0) mbgbg1 *= message2bg[ngb];
-				
-				float mbgfg1 = Numerics.max(mins,simbgfg1)*Numerics.max(minp,proba[ngb]);
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1fg[ngb]>0) mbgfg1 *= message1fg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2fg[ngb]>0) mbgfg1 *= message2fg[ngb];
-				
-				newmsg1bg[xyz] = Numerics.max(mbgbg1, mbgfg1);
-				diff = Numerics.max(diff, Numerics.abs(newmsg1bg[xyz]-message1bg[xyz]));
-				
-				// second neighbor message, fg label
-				ngb = neighborIndex(ngb2[xyz],xyz);
-				float mfgfg2 = Numerics.max(mins,simfgfg2)*Numerics.max(minp,proba[ngb]);
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1fg[ngb]>0) mfgfg2 *= message1fg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2fg[ngb]>0) mfgfg2 *= message2fg[ngb];
-				
-				float mfgbg2 = Numerics.max(mins,simfgbg2)*Numerics.max(minp,(1.0f-proba[ngb]));
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1bg[ngb]>0) mfgbg2 *= message1bg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2bg[ngb]>0) mfgbg2 *= message2bg[ngb];
-				
-				newmsg2fg[xyz] = Numerics.max(mfgfg2, mfgbg2);
-				diff = Numerics.max(diff, Numerics.abs(newmsg2fg[xyz]-message2fg[xyz]));
-				
-				// second neighbor message, bg label
-				ngb = neighborIndex(ngb2[xyz],xyz);
-				float mbgbg2 = Numerics.max(mins,simbgbg2)*Numerics.max(minp,(1.0f-proba[ngb]));
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1bg[ngb]>0) mbgbg2 *= message1bg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2bg[ngb]>0) mbgbg2 *= message2bg[ngb];
-				
-				float mbgfg2 = Numerics.max(mins,simbgfg2)*Numerics.max(minp,proba[ngb]);
-				if (neighborIndex(ngb1[ngb],ngb)!=xyz && message1fg[ngb]>0) mbgfg2 *= message1fg[ngb];
-				if (neighborIndex(ngb2[ngb],ngb)!=xyz && message2fg[ngb]>0) mbgfg2 *= message2fg[ngb];
-				
-				newmsg2bg[xyz] = Numerics.max(mbgbg2, mbgfg2);
-				diff = Numerics.max(diff, Numerics.abs(newmsg2bg[xyz]-message2bg[xyz]));
-			}
-			// copy new messages onto older ones
-			for (int xyz=0;xyz<nxyz;xyz++) if (mask[xyz]) if (proba[xyz]>0 && proba[xyz]<1){
-				message1fg[xyz] = newmsg1fg[xyz];
-				message1bg[xyz] = newmsg1bg[xyz];
-				message2fg[xyz] = newmsg2fg[xyz];
-				message2bg[xyz] = newmsg2bg[xyz];
-			}
-			System.out.println("diff "+diff+"\n");
-			if (diff < maxdiff) t = iter;
-		}
-		
-		// compute final belief
-		float[] belief = new float[nxyz];
-		float 	bgbelief;
-		
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			belief[xyz] = proba[xyz];
-			
-			if (mask[xyz]) if (proba[xyz]>0 && proba[xyz]<1) {
-				if (message1fg[xyz]>0) belief[xyz] *= message1fg[xyz];
-				if (message2fg[xyz]>0) belief[xyz] *= message2fg[xyz];
-			}
-			
-			bgbelief = (1.0f-proba[xyz]);
-			if (mask[xyz]) if (proba[xyz]>0 && proba[xyz]<1) {
-				if (message1bg[xyz]>0) bgbelief *= message1bg[xyz];
-				if (message2bg[xyz]>0) bgbelief *= message2bg[xyz];
-			}
-			// normalize
-			//belief[xyz] = belief[xyz]/Numerics.max(1e-9f,belief[xyz]+bgbelief);
-			belief[xyz] = belief[xyz]/(belief[xyz]+bgbelief);
-		}
-		return belief;
+		// synchronous message passing over the two neighbors, by slabs
+		return ParallelPropagation.beliefPropagation(proba, new float[][]{similarity1, similarity2}, new byte[][]{ngb1, ngb2}, neighborOffsets(), 2,
+														mask, false, nxyz, iter, maxdiff, nthreadsParam);
 	}
 	
 	private final float[] probaDiffusion(float[] proba, float[] similarity1, float[] similarity2, byte[] neighbor1, byte[] neighbor2, boolean[] mask, int nxyz, int maxiter, float maxdiff, float factor) {
 		
-		float[] diffused = new float[nxyz];
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			diffused[xyz] = (float)FastMath.log(1.0f + proba[xyz]);
-		}
-		
-		for (int t=0;t<maxiter;t++) {
-			System.out.println("iteration "+(t+1)+": ");
-			float diff = 0.0f;
-			/*
-			float globalw = 0.0f;
-			float den = 0.0f;
-			float ratio = 1.0f;
-			for (int xyz=0;xyz<nxyz;xyz++) if (mask[xyz]) {
-				float ngb1 = diffused[neighborIndex(neighbor1[xyz],xyz)];
-				float ngb2 = diffused[neighborIndex(neighbor2[xyz],xyz)];
-				float w1 = similarity1[xyz]*probaWeight(ngb1);
-				float w2 = similarity2[xyz]*probaWeight(ngb2);
-				globalw += w1+w2;
-				den += 1.0f;
-			}
-			ratio = globalw/den;
-			*/
-			for (int xyz=0;xyz<nxyz;xyz++) if (mask[xyz]) {
-				float prev = diffused[xyz];
-				// weight with distance to 0 or 1
-				float ngb1 = diffused[neighborIndex(neighbor1[xyz],xyz)];
-				float ngb2 = diffused[neighborIndex(neighbor2[xyz],xyz)];
-				//float w1 = similarity1[xyz]*probaWeight(ngb1);
-				//float w2 = similarity2[xyz]*probaWeight(ngb2);
-				
-				// remap neighbors?
-				ngb1 = (float)FastMath.exp(ngb1)-1.0f;
-				ngb2 = (float)FastMath.exp(ngb2)-1.0f;
-				
-				// now this depends on similarity choices
-				// value more neighbors that are well aligned and have strong tubular response
-				//float w1 = similarity1[xyz]*proba[neighborIndex(neighbor1[xyz],xyz)];
-				//float w2 = similarity2[xyz]*proba[neighborIndex(neighbor2[xyz],xyz)];
-				float w1 = similarity1[xyz];
-				float w2 = similarity2[xyz];
-				
-				// stable normalization	 (works OK, but not much different from the raw filter?)			 
-				//diffused[xyz] = Numerics.bounded((proba[xyz] + factor*w1*ngb1 + factor*w2*ngb2)/(1.0f + factor*globalw), 0, 1);
-				// integration over the whole vessel (log version is more stable (??) )
-				diffused[xyz] = (float)FastMath.log(1.0f + proba[xyz] + factor*w1*ngb1 + factor*w2*ngb2);
-				//diffused[xyz] = proba[xyz] + factor*w1*ngb1 + factor*w2*ngb2;
-				
-				if (Numerics.abs(prev-diffused[xyz])>diff) diff = Numerics.abs(prev-diffused[xyz]);
-			}
-			
-			System.out.println("diff "+diff+"\n");
-			if (diff<maxdiff) t=maxiter;
-		}
+		// synchronous diffusion over the two neighbors, by slabs
+		float[] diffused = ParallelPropagation.probabilisticDiffusion(proba, new float[][]{similarity1, similarity2}, new byte[][]{neighbor1, neighbor2}, neighborOffsets(), 2,
+																		mask, factor, false, nxyz, maxiter, maxdiff, nthreadsParam);
 		
 		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
 			int id = x + nx*y + nx*ny*z;
@@ -1930,6 +1757,12 @@ public class MultiscaleVesselFilter {
 
 		return idn;
 	}
+	/** index offsets of the 26 neighbor directions, as given by neighborIndex() */
+	private final int[] neighborOffsets() {
+		int[] offset = new int[NC2];
+		for (byte d=0;d<NC2;d++) offset[d] = neighborIndex(d, 0);
+		return offset;
+	}
 	private final float directionProduct(int dir, int id, float[][] imdir) {
 		float dv=0.0f;
 			
@@ -1965,6 +1798,8 @@ public class MultiscaleVesselFilter {
 	
 	private final void directionFromHessian(float[] img, boolean[] mask, float[] shape, byte[] direction) {
 		double[][] hessian = new double[3][3];
+		double[] vals = new double[3];
+		double[] dirs = new double[9];
 			   
 		for (int x=2;x<nx-2;x++) for (int y=2;y<ny-2;y++) for (int z=2;z<nz-2;z++) {
 			int id = x + nx*y + nx*ny*z;
@@ -1972,8 +1807,7 @@ public class MultiscaleVesselFilter {
 				ImageGeometry.computeHessianOrder2At(img, id, hessian, nx, ny, nz);
 				
 				// compute eigenvalues
-				double[] vals = Matrix3D.eigenvalues(hessian);
-				double[][] dirs = Matrix3D.eigenvectors(hessian, vals);
+				SymmetricEigenAnalysis.decompose(hessian, vals, dirs);
 				
 				// shape: basic score is not good enough (too much background noise)
 				if (vals[0]!=0) shape[id] = (float)(-vals[0]*(Numerics.abs(vals[0])-Numerics.abs(vals[2]))/Numerics.abs(vals[0]));
@@ -1983,7 +1817,7 @@ public class MultiscaleVesselFilter {
 				byte maxd = -1;
 				for (byte d=0;d<NC;d++) {
 					float[] dird = directionVector(d);
-					double corr = Numerics.abs(dirs[X][2]*dird[X]+dirs[Y][2]*dird[Y]+dirs[Z][2]*dird[Z]);
+					double corr = Numerics.abs(dirs[6+X]*dird[X]+dirs[6+Y]*dird[Y]+dirs[6+Z]*dird[Z]);
 					if (corr>maxcorr) {
 						maxcorr = corr;
 						maxd = d;
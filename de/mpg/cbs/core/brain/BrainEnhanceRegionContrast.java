@@ -89,7 +89,7 @@ public class BrainEnhanceRegionContrast {
 		// load mask and build boolean signature for each region
 		BasicInfo.displayMessage("Load atlas\n");
 	
-		SimpleShapeAtlas2 atlas = new SimpleShapeAtlas2(atlasParam);
+		SimpleShapeAtlas2 atlas = SimpleShapeAtlas2.load(atlasParam);
 
 		int maxlb = 0;
 		for (int nobj=0;nobj<atlas.getNumber();nobj++) {
@@ -1,6 +1,9 @@
 package de.mpg.cbs.core.brain;
 
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 import de.mpg.cbs.utilities.*;
 import de.mpg.cbs.structures.*;
@@ -93,6 +96,16 @@ public class BrainMgdmMultiSegmentation2 {
 	//private static final String[] outputTypes = {"segmentation","memberships","cortex"};
 	private boolean	normalizeQuantitative	=	false;
 	
+	private int		nthreadsParam	=	1;
+	private boolean	sparseParam		=	false;
+	private String	distanceParam	=	"fast_marching";
+	public static final String[] distanceTypes = {"fast_marching","fast_sweeping"};
+	
+	// coarse-to-fine mode: registration and MGDM on images subsampled by this factor, then a few full resolution iterations
+	private int		pyramidParam	=	1;
+	public static final String[] pyramidTypes = {"1","2","4"};
+	private int		refineParam		=	20;
+	
 	
 	// outputs
 	private int[] segmentImage;
@@ -103,6 +116,14 @@ public class BrainMgdmMultiSegmentation2 {
 	private byte[] labelImage;
 	private int output4Dlength;
 	
+	// outputs written into direct buffers owned by this object (for python bridges)
+	private boolean directOutputs = false;
+	private IntBuffer segmentBuffer;
+	private FloatBuffer mgdmBuffer;
+	private ByteBuffer idBuffer;
+	private FloatBuffer membershipBuffer;
+	private ByteBuffer labelBuffer;
+	
 	// create inputs
 	public final void setContrastImage1(float[] val) { input1Image = val; }
 	public final void setContrastType1(String val) { type1Param = val; }
@@ -113,6 +134,12 @@ public class BrainMgdmMultiSegmentation2 {
 	public final void setContrastImage4(float[] val) { input4Image = val; }
 	public final void setContrastType4(String val) { type4Param = val; }
 	
+	// buffer inputs (for python bridges): direct buffers are copied once in bulk
+	public final void setContrastImage1(FloatBuffer val) { input1Image = DirectBuffers.toFloatArray(val); }
+	public final void setContrastImage2(FloatBuffer val) { input2Image = DirectBuffers.toFloatArray(val); }
+	public final void setContrastImage3(FloatBuffer val) { input3Image = DirectBuffers.toFloatArray(val); }
+	public final void setContrastImage4(FloatBuffer val) { input4Image = DirectBuffers.toFloatArray(val); }
+	
 	public final void setDimensions(int x, int y, int z) { nx=x; ny=y; nz=z; nxyz=nx*ny*nz; }
 	public final void setDimensions(int[] dim) { nx=dim[0]; ny=dim[1]; nz=dim[2]; nxyz=nx*ny*nz; }
 	
@@ -144,6 +171,19 @@ public class BrainMgdmMultiSegmentation2 {
 
 	public final void setNormalizeQuantitativeMaps(boolean val) { normalizeQuantitative = val; }
 	
+	/** 
+	 *	write the outputs into direct buffers owned by this object, returned as is by the buffer getters
+	 *	and reused by the next execution (the array getters then copy them). Outputs over 2 GB stay arrays.
+	 */
+	public final void setDirectBufferOutputs(boolean val) { directOutputs = val; }
+	
+	public final void setNumberOfThreads(int val) { nthreadsParam = val; }
+	public final void setSparseStorage(boolean val) { sparseParam = val; }
+	public final void setDistanceEngine(String val) { distanceParam = val; }
+	
+	public final void setPyramidFactor(int val) { pyramidParam = Numerics.max(1, val); }
+	public final void setRefinementIterations(int val) { refineParam = val; }
+	
 	// to be used for JIST definitions, generic info / help
 	public static final String getPackage() { return "CBS Tools"; }
 	public static final String getCategory() { return "Brain Processing.devel"; }
@@ -158,13 +198,51 @@ public class BrainMgdmMultiSegmentation2 {
 	public static final String getVersion() { return "3.1.0"; };
 
 	// create outputs
-	public final int[] getSegmentedBrainImage() { return segmentImage; }
-	public final float[] getLevelsetBoundaryImage() { return mgdmImage; }
-	public final byte[] getSegmentedIdsImage() { return idImage; }
+	public final int[] getSegmentedBrainImage() { 
+		if (segmentImage==null) segmentImage = DirectBuffers.toIntArray(segmentBuffer);
+		return segmentImage; 
+	}
+	public final float[] getLevelsetBoundaryImage() { 
+		if (mgdmImage==null) mgdmImage = DirectBuffers.toFloatArray(mgdmBuffer);
+		return mgdmImage; 
+	}
+	public final byte[] getSegmentedIdsImage() { 
+		if (idImage==null) idImage = DirectBuffers.toByteArray(idBuffer);
+		return idImage; 
+	}
 
 	public final int getOutput4Dlength() { return output4Dlength; }
-	public final float[] getPosteriorMaximumMemberships4D() { return membershipImage; }
-	public final byte[] getPosteriorMaximumLabels4D() { return labelImage; }
+	public final float[] getPosteriorMaximumMemberships4D() { 
+		if (membershipImage==null) membershipImage = DirectBuffers.toFloatArray(membershipBuffer);
+		return membershipImage; 
+	}
+	public final byte[] getPosteriorMaximumLabels4D() { 
+		if (labelImage==null) labelImage = DirectBuffers.toByteArray(labelBuffer);
+		return labelImage; 
+	}
+
+	// buffer outputs (for python bridges): direct buffers in native order, owned by this object
+	// (filled by execute() with setDirectBufferOutputs(true), or once from the arrays otherwise)
+	public final IntBuffer getSegmentedBrainBuffer() { 
+		if (segmentBuffer==null) segmentBuffer = DirectBuffers.toIntBuffer(segmentImage, null);
+		return segmentBuffer; 
+	}
+	public final FloatBuffer getLevelsetBoundaryBuffer() { 
+		if (mgdmBuffer==null) mgdmBuffer = DirectBuffers.toFloatBuffer(mgdmImage, null);
+		return mgdmBuffer; 
+	}
+	public final ByteBuffer getSegmentedIdsBuffer() { 
+		if (idBuffer==null) idBuffer = DirectBuffers.toByteBuffer(idImage, null);
+		return idBuffer; 
+	}
+	public final FloatBuffer getPosteriorMaximumMemberships4DBuffer() { 
+		if (membershipBuffer==null) membershipBuffer = DirectBuffers.toFloatBuffer(membershipImage, null);
+		return membershipBuffer; 
+	}
+	public final ByteBuffer getPosteriorMaximumLabels4DBuffer() { 
+		if (labelBuffer==null) labelBuffer = DirectBuffers.toByteBuffer(labelImage, null);
+		return labelBuffer; 
+	}
 
 	public void execute(){
 		// import the image data into 1D arrays
@@ -212,10 +290,26 @@ public class BrainMgdmMultiSegmentation2 {
 		}	
 		input4Image = null;		
 		
+		// coarse-to-fine: all the steps up to the last MGDM are run on subsampled images
+		int nsx = nx, nsy = ny, nsz = nz;
+		float rsx = rx, rsy = ry, rsz = rz;
+		float[][] simage = image;
+		if (pyramidParam>1) {
+			BasicInfo.displayMessage("Subsample images (factor "+pyramidParam+")\n");
+			nsx = Numerics.floor(nx/(float)pyramidParam);
+			nsy = Numerics.floor(ny/(float)pyramidParam);
+			nsz = Numerics.floor(nz/(float)pyramidParam);
+			rsx = pyramidParam*rx;
+			rsy = pyramidParam*ry;
+			rsz = pyramidParam*rz;
+			simage = new float[nimg][];
+			for (n=0;n<nimg;n++) simage[n] = ImageInterpolation.subsample(image[n], nx, ny, nz, pyramidParam);
+		}
+		
 		// main algorithm
 		BasicInfo.displayMessage("Load atlas\n");
 
-		SimpleShapeAtlas2 atlas = new SimpleShapeAtlas2(atlasParam);
+		SimpleShapeAtlas2 atlas = SimpleShapeAtlas2.load(atlasParam);
 		
 		//adjust modalities to canonical names
 		BasicInfo.displayMessage("Image contrasts:\n");
@@ -224,16 +318,16 @@ public class BrainMgdmMultiSegmentation2 {
 			BasicInfo.displayMessage(modality[n]+"\n");
 		}
 		
-		atlas.setImageInfo(nx, ny, nz, rx, ry, rz, orient, orx, ory, orz);
-		atlas.adjustAtlasScale(image, nimg);
+		atlas.setImageInfo(nsx, nsy, nsz, rsx, rsy, rsz, orient, orx, ory, orz);
+		atlas.adjustAtlasScale(simage, nimg);
 		atlas.setQuantitativeNormalization(normalizeQuantitative);
 		
 		atlas.initShapeMapping();
 		
 		BasicInfo.displayMessage("Compute tissue classification\n");
 
-		ShapeAtlasClassification2 classif = new ShapeAtlasClassification2(image, modality, 
-																		  nimg, nx,ny,nz, rx,ry,rz, atlas);
+		ShapeAtlasClassification2 classif = new ShapeAtlasClassification2(simage, modality, 
+																		  nimg, nsx,nsy,nsz, rsx,rsy,rsz, atlas);
 		classif.initialAtlasTissueCentroids();
 		classif.computeMemberships();
 		
@@ -261,6 +355,7 @@ public class BrainMgdmMultiSegmentation2 {
 																	atlas.getShapeDim()[0],atlas.getShapeDim()[1],atlas.getShapeDim()[2],
 																	atlas.getShapeRes()[0],atlas.getShapeRes()[1],atlas.getShapeRes()[2],
 																	50, 0.0f, 1);
+		rigid.setNumberOfThreads(nthreadsParam);
 		
 		rigid.register();
 		atlas.updateRigidTransform(rigid.getTransform());
@@ -326,17 +421,17 @@ public class BrainMgdmMultiSegmentation2 {
 		int ngain = 5;
 		
 		// scale the force with regard to the final level
-		float factor = 1.0f/(Numerics.max(rx/atlas.getShapeRes()[0],ry/atlas.getShapeRes()[1],rz/atlas.getShapeRes()[2]));
+		float factor = 1.0f/(Numerics.max(rsx/atlas.getShapeRes()[0],rsy/atlas.getShapeRes()[1],rsz/atlas.getShapeRes()[2]));
 		BasicInfo.displayMessage("atlas scale: "+factor+"\n");
 			
 		// constant scale for the distance (=> multiplied by scaling factor)
-		float distanceScale = scaleParam/rx;
+		float distanceScale = scaleParam/rsx;
 			
 		// count the number of pre-processing MGDMs already done: skip the lowest smoothness steps in the following ones
 		int nprocessed = 0;
 			
-		MgdmFastAtlasSegmentation2 mgdma = new MgdmFastAtlasSegmentation2(image, modality, classif.getImageRanges(), nimg,
-																		nx,ny,nz, rx,ry,rz, 
+		MgdmFastAtlasSegmentation2 mgdma = new MgdmFastAtlasSegmentation2(simage, modality, classif.getImageRanges(), nimg,
+																		nsx,nsy,nsz, rsx,rsy,rsz, 
 																		atlas,
 																		nmgdm, ngain,
 																		forceParam*factor,
@@ -344,6 +439,7 @@ public class BrainMgdmMultiSegmentation2 {
 																		0.0f, 0.0f,
 																		distanceScale,
 																		"wcs", lutdir);
+		mgdma.setFastSweeping(distanceParam.equals("fast_sweeping"), nthreadsParam);
 				
 		BasicInfo.displayMessage("gain...\n");
 		
@@ -362,7 +458,7 @@ public class BrainMgdmMultiSegmentation2 {
 		atlas.setTemplate(mgdma.getLabeledSegmentation());
 		
 		// minimum scale?
-		factor = 1.0f/((float)Math.sqrt(3.0)*Numerics.max(rx/atlas.getShapeRes()[0],ry/atlas.getShapeRes()[1],rz/atlas.getShapeRes()[2]));
+		factor = 1.0f/((float)Math.sqrt(3.0)*Numerics.max(rsx/atlas.getShapeRes()[0],rsy/atlas.getShapeRes()[1],rsz/atlas.getShapeRes()[2]));
 		BasicInfo.displayMessage("minimum scale: "+factor+"\n");
 		
 		//short[] counter = mgdma.exportFrozenPointCounter();
@@ -372,8 +468,8 @@ public class BrainMgdmMultiSegmentation2 {
 		MgdmFastScaledSegmentation2 mgdms = null;
 		// make a progressive scale increase/decrease
 		for (int nscale=0;nscale<10 && factor>1.75f;nscale++) {
-			mgdms = new MgdmFastScaledSegmentation2(image, modality, classif.getImageRanges(), nimg,
-																			nx,ny,nz, rx,ry,rz, 
+			mgdms = new MgdmFastScaledSegmentation2(simage, modality, classif.getImageRanges(), nimg,
+																			nsx,nsy,nsz, rsx,rsy,rsz, 
 																			atlas, atlasseg, initseg,
 																			nmgdm, ngain, factor,
 																			forceParam*factor, 
@@ -400,8 +496,9 @@ public class BrainMgdmMultiSegmentation2 {
 			BasicInfo.displayMessage("additional scaling? (new factor: "+factor+")\n");
 		}
 
-		MgdmFastSegmentation2 mgdm = new MgdmFastSegmentation2(image, modality, classif.getImageRanges(), nimg,
-																nx,ny,nz, rx,ry,rz, 
+		float[] ranges = classif.getImageRanges();
+		MgdmFastSegmentation2 mgdm = new MgdmFastSegmentation2(simage, modality, ranges, nimg,
+																nsx,nsy,nsz, rsx,rsy,rsz, 
 																atlas, atlasseg, initseg,
 																nmgdm, ngain,
 																forceParam, 
@@ -409,6 +506,8 @@ public class BrainMgdmMultiSegmentation2 {
 																0.0f,
 																distanceScale,
 																topologyParam, lutdir);
+		mgdm.setSparseStorage(sparseParam);
+		mgdm.setFastSweeping(distanceParam.equals("fast_sweeping"));
 		
 		// clean-up
 		classif.finalize();
@@ -423,9 +522,49 @@ public class BrainMgdmMultiSegmentation2 {
 			
 		if (nprocessed<stepParam) {
 			BasicInfo.displayMessage("full scale levelset evolution...\n");
+			mgdm.setNumberOfThreads(nthreadsParam);
 			mgdm.evolveNarrowBand(iterationParam,changeParam);
 		}
 		
+		if (pyramidParam>1) {
+			BasicInfo.displayMessage("upsampling to full resolution...\n");
+			
+			initseg = mgdm.exportUpsampledSegmentation(pyramidParam, nx, ny, nz);
+			mgdm.finalize();
+			mgdm = null;
+			simage = null;
+			
+			// same transforms, full resolution image grid
+			atlas.refineImageSampling(pyramidParam, nx, ny, nz);
+			distanceScale = scaleParam/rx;
+			
+			BasicInfo.displayMessage("full resolution gain...\n");
+			
+			mgdma.setImages(image, nx,ny,nz, rx,ry,rz);
+			mgdma.computeAtlasBestGainFunction();
+			if (diffuseProbabilities)
+				mgdma.diffuseBestGainFunctions(20, 0.5f, diffuseParam);
+			
+			mgdm = new MgdmFastSegmentation2(image, modality, ranges, nimg,
+												nx,ny,nz, rx,ry,rz, 
+												atlas, atlasseg, initseg,
+												nmgdm, ngain,
+												forceParam, 
+												curvParam,
+												0.0f,
+												distanceScale,
+												topologyParam, lutdir);
+			mgdm.setSparseStorage(sparseParam);
+			mgdm.setFastSweeping(distanceParam.equals("fast_sweeping"));
+			mgdm.importBestGainFunctions(mgdma.getBestGainFunctionHD(), mgdma.getBestGainLabelHD());
+			
+			if (nprocessed<stepParam) {
+				BasicInfo.displayMessage("full resolution refinement...\n");
+				mgdm.setNumberOfThreads(nthreadsParam);
+				mgdm.evolveNarrowBand(refineParam,changeParam);
+			}
+		}
+		
 		//float[][][] evolmems = mgdm.exportBestGainFunction();
 		
 		BasicInfo.displayMessage("partial volume estimates...\n");
@@ -437,39 +576,65 @@ public class BrainMgdmMultiSegmentation2 {
 		// outputs
 		BasicInfo.displayMessage("generating outputs...\n");
 			
+		// buffers of the previous execution are reused when writing directly into them, released otherwise
+		if (!directOutputs) releaseOutputBuffers();
+		membershipImage = null;
+		labelImage = null;
+		// outputs over 2 GB cannot be held in a buffer
+		boolean direct3D = directOutputs && DirectBuffers.fits(4L*nxyz);
+		boolean direct4D = directOutputs && DirectBuffers.fits(4L*nxyz*(ngain+1));
+		
 		segmentImage = mgdm.labelSegmentation();
+		if (direct3D) {
+			segmentBuffer = DirectBuffers.toIntBuffer(segmentImage, segmentBuffer);
+			segmentImage = null;
+		}
 		BasicInfo.displayMessage("segmentation");
 		
-		mgdmImage = mgdm.getFunctions()[0];
+		mgdmImage = mgdm.getFunction(0);
+		if (direct3D) {
+			mgdmBuffer = DirectBuffers.toFloatBuffer(mgdmImage, mgdmBuffer);
+			mgdmImage = null;
+		}
 		BasicInfo.displayMessage(".. boundaries");
 		
 		idImage = mgdm.getSegmentation();
+		if (direct3D) {
+			idBuffer = DirectBuffers.toByteBuffer(idImage, idBuffer);
+			idImage = null;
+		}
 		BasicInfo.displayMessage("segmentation ids");
 		
 		if (outputParam.equals("label_memberships")) {		
 			output4Dlength = ngain+1;
 			
-			membershipImage = mgdm.exportBestGainFunctions1D(0, ngain, !computePosteriors);
+			if (direct4D) membershipBuffer = mgdm.exportBestGainFunctions1D(0, ngain, !computePosteriors, membershipBuffer);
+			else membershipImage = mgdm.exportBestGainFunctions1D(0, ngain, !computePosteriors);
 			BasicInfo.displayMessage(".. memberships(4d)");
 			
-			labelImage = mgdm.exportBestGainLabelsByte1D(0, ngain);
+			if (direct4D) labelBuffer = mgdm.exportBestGainLabelsByte1D(0, ngain, labelBuffer);
+			else labelImage = mgdm.exportBestGainLabelsByte1D(0, ngain);
 			BasicInfo.displayMessage(".. labels(4d)");
 		} else if (outputParam.equals("raw_memberships")) {		
 			output4Dlength = ngain+1;
 			
-			membershipImage = mgdm.exportBestGainFunctions1D(0, ngain, !computePosteriors);
+			if (direct4D) membershipBuffer = mgdm.exportBestGainFunctions1D(0, ngain, !computePosteriors, membershipBuffer);
+			else membershipImage = mgdm.exportBestGainFunctions1D(0, ngain, !computePosteriors);
 			BasicInfo.displayMessage(".. memberships(4d)");
 			
-			labelImage = mgdm.exportBestGainsByte1D(0, ngain);
+			if (direct4D) labelBuffer = mgdm.exportBestGainsByte1D(0, ngain, labelBuffer);
+			else labelImage = mgdm.exportBestGainsByte1D(0, ngain);
 			BasicInfo.displayMessage(".. labels(4d)");
 		} else if (outputParam.equals("segmentation")) {		
 			output4Dlength = 1;
 			
 			// get the best label map and probabilities by default
-			membershipImage = mgdm.exportBestGainFunctions1D(0, 0, !computePosteriors);
+			if (direct3D) membershipBuffer = mgdm.exportBestGainFunctions1D(0, 0, !computePosteriors, membershipBuffer);
+			else membershipImage = mgdm.exportBestGainFunctions1D(0, 0, !computePosteriors);
 			BasicInfo.displayMessage(".. best membership");
 			
-			labelImage = mgdm.exportBestGainsByte1D(0, 0);
+			if (direct3D) labelBuffer = mgdm.exportBestGainsByte1D(0, 0, labelBuffer);
+			else labelImage = mgdm.exportBestGainsByte1D(0, 0);
 			BasicInfo.displayMessage(".. best label");
 		} else if (outputParam.equals("debug")) {			
 			output4Dlength = 3;
@@ -482,13 +647,30 @@ public class BrainMgdmMultiSegmentation2 {
 			byte[][][] gain = mgdm.exportBestGainByte();
 			for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
 				int xyz = x+nx*y+nx*ny*z;
-				labelImage[xyz] = tissueseg[x][y][z];
-				labelImage[xyz+nxyz] = target[xyz];
+				int xs = Numerics.min(x/pyramidParam, nsx-1);
+				int ys = Numerics.min(y/pyramidParam, nsy-1);
+				int zs = Numerics.min(z/pyramidParam, nsz-1);
+				labelImage[xyz] = tissueseg[xs][ys][zs];
+				labelImage[xyz+nxyz] = target[xs+nsx*ys+nsx*nsy*zs];
 				labelImage[xyz+2*nxyz] = gain[x][y][z];
 			}
 			BasicInfo.displayMessage(".. debug(4d)");
 		}
+		// outputs kept as arrays
+		if (segmentImage!=null) segmentBuffer = null;
+		if (mgdmImage!=null) mgdmBuffer = null;
+		if (idImage!=null) idBuffer = null;
+		if (membershipImage!=null) membershipBuffer = null;
+		if (labelImage!=null) labelBuffer = null;
 		return;
 	}
+	
+	private final void releaseOutputBuffers() {
+		segmentBuffer = null;
+		mgdmBuffer = null;
+		idBuffer = null;
+		membershipBuffer = null;
+		labelBuffer = null;
+	}
 
 }
@@ -1,5 +1,8 @@
 package de.mpg.cbs.core.brain;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
 import de.mpg.cbs.utilities.*;
 import de.mpg.cbs.structures.*;
 import de.mpg.cbs.libraries.*;
@@ -30,11 +33,23 @@ public class BrainMp2rageSkullStripping {
 	private float[] isomaskImage;
 	private float[] inv2maskImage;
 	
+	// outputs written into direct buffers owned by this object (for python bridges)
+	private boolean		directOutputs = false;
+	private ByteBuffer	brainmaskBuffer;
+	private FloatBuffer	t1maskBuffer;
+	private FloatBuffer	isomaskBuffer;
+	private FloatBuffer	inv2maskBuffer;
+	
 	// create inputs
 	public final void setSecondInversionImage(float[] val) { inv2Image = val; }
 	public final void setT1MapImage(float[] val) { t1mapImage = val; }
 	public final void setT1weightedImage(float[] val) { isoImage = val; }
 	
+	// buffer inputs (for python bridges): direct buffers are copied once in bulk
+	public final void setSecondInversionImage(FloatBuffer val) { inv2Image = DirectBuffers.toFloatArray(val); }
+	public final void setT1MapImage(FloatBuffer val) { t1mapImage = DirectBuffers.toFloatArray(val); }
+	public final void setT1weightedImage(FloatBuffer val) { isoImage = DirectBuffers.toFloatArray(val); }
+	
 	public final void setDimensions(int x, int y, int z) { nx=x; ny=y; nz=z; nxyz=nx*ny*nz; }
 	public final void setDimensions(int[] dim) { nx=dim[0]; ny=dim[1]; nz=dim[2]; nxyz=nx*ny*nz; }
 	
@@ -43,6 +58,11 @@ public class BrainMp2rageSkullStripping {
 
 	public final void setSkipZeroValues(boolean val) { skip0Param = val; }
 	public final void setTopologyLUTdirectory(String val) { lutdir = val; }
+	/** 
+	 *	write the outputs into direct buffers owned by this object, returned as is by the buffer getters
+	 *	and reused by the next execution (the array getters then copy them)
+	 */
+	public final void setDirectBufferOutputs(boolean val) { directOutputs = val; }
 
 	// to be used for JIST definitions, generic info / help
 	public static final String getPackage() { return "CBS Tools"; }
@@ -57,10 +77,41 @@ public class BrainMp2rageSkullStripping {
 	public static final String getVersion() { return "3.1"; }
 
 	// create outputs
-	public final byte[] getBrainMaskImage() { return brainmaskImage; }
-	public final float[] getMaskedT1MapImage() { return t1maskImage; }
-	public final float[] getMaskedT1weightedImage() { return isomaskImage; }
-	public final float[] getMaskedSecondInversionImage() { return inv2maskImage; }
+	public final byte[] getBrainMaskImage() { 
+		if (brainmaskImage==null) brainmaskImage = DirectBuffers.toByteArray(brainmaskBuffer);
+		return brainmaskImage; 
+	}
+	public final float[] getMaskedT1MapImage() { 
+		if (t1maskImage==null) t1maskImage = DirectBuffers.toFloatArray(t1maskBuffer);
+		return t1maskImage; 
+	}
+	public final float[] getMaskedT1weightedImage() { 
+		if (isomaskImage==null) isomaskImage = DirectBuffers.toFloatArray(isomaskBuffer);
+		return isomaskImage; 
+	}
+	public final float[] getMaskedSecondInversionImage() { 
+		if (inv2maskImage==null) inv2maskImage = DirectBuffers.toFloatArray(inv2maskBuffer);
+		return inv2maskImage; 
+	}
+
+	// buffer outputs (for python bridges): direct buffers in native order, owned by this object
+	// (filled by execute() with setDirectBufferOutputs(true), or once from the arrays otherwise)
+	public final ByteBuffer getBrainMaskBuffer() { 
+		if (brainmaskBuffer==null) brainmaskBuffer = DirectBuffers.toByteBuffer(brainmaskImage, null);
+		return brainmaskBuffer; 
+	}
+	public final FloatBuffer getMaskedT1MapBuffer() { 
+		if (t1maskBuffer==null) t1maskBuffer = DirectBuffers.toFloatBuffer(t1maskImage, null);
+		return t1maskBuffer; 
+	}
+	public final FloatBuffer getMaskedT1weightedBuffer() { 
+		if (isomaskBuffer==null) isomaskBuffer = DirectBuffers.toFloatBuffer(isomaskImage, null);
+		return isomaskBuffer; 
+	}
+	public final FloatBuffer getMaskedSecondInversionBuffer() { 
+		if (inv2maskBuffer==null) inv2maskBuffer = DirectBuffers.toFloatBuffer(inv2maskImage, null);
+		return inv2maskBuffer; 
+	}
 		
 	public void execute(){
 		
@@ -217,5 +268,22 @@ public class BrainMp2rageSkullStripping {
 			}
 			isomaskImage = isoImage;
 		}
+		
+		// outputs: into the owned buffers (reused from the previous execution), or kept as arrays
+		if (directOutputs && DirectBuffers.fits(4L*nxyz)) {
+			brainmaskBuffer = DirectBuffers.toByteBuffer(brainmaskImage, brainmaskBuffer);
+			inv2maskBuffer = DirectBuffers.toFloatBuffer(inv2maskImage, inv2maskBuffer);
+			t1maskBuffer = DirectBuffers.toFloatBuffer(t1maskImage, t1maskBuffer);
+			isomaskBuffer = DirectBuffers.toFloatBuffer(isomaskImage, isomaskBuffer);
+			brainmaskImage = null;
+			inv2maskImage = null;
+			t1maskImage = null;
+			isomaskImage = null;
+		} else {
+			brainmaskBuffer = null;
+			inv2maskBuffer = null;
+			t1maskBuffer = null;
+			isomaskBuffer = null;
+		}
 	}
 }
@@ -3,10 +3,12 @@ package de.mpg.cbs.core.filter;
 import de.mpg.cbs.utilities.Ngb;
 import de.mpg.cbs.utilities.Numerics;
 import de.mpg.cbs.utilities.BasicInfo;
+import de.mpg.cbs.utilities.ParallelLoops;
 import de.mpg.cbs.libraries.ImageFilters;
 import de.mpg.cbs.libraries.ImageStatistics;
 import de.mpg.cbs.libraries.ObjectExtraction;
 import de.mpg.cbs.libraries.ObjectLabeling;
+import de.mpg.cbs.libraries.ParallelPropagation;
 import de.mpg.cbs.structures.BinaryHeap2D;
 
 import org.apache.commons.math3.util.FastMath;
@@ -15,6 +17,7 @@ import org.apache.commons.math3.special.Erf;
 //import org.apache.commons.math3.analysis.*;
 
 import java.util.BitSet;
+import java.util.HashMap;
 
 public class FilterRecursiveRidgeDiffusion {
 	
@@ -45,6 +48,8 @@ public class FilterRecursiveRidgeDiffusion {
 	
 	private float detectionThreshold = 0.5f;
 	
+	private int nthreadsParam = 1;
+	
 	private float[] pvImage;
 	private float[] filterImage;
 	private float[] probaImage;
@@ -100,6 +105,10 @@ public class FilterRecursiveRidgeDiffusion {
 	
 	private static final boolean debug=true;
 	
+	// direction weight tables, shared for each angular factor
+	private static final HashMap<Float,float[][]> parallelWeights = new HashMap<Float,float[][]>();
+	private static final HashMap<Float,float[][]> orthogonalWeights = new HashMap<Float,float[][]>();
+	
 	//set inputs
 	public final void setInputImage(float[] val) { inputImage = val; }
 	public final void setRidgeIntensities(String val) { brightParam = val; }
@@ -121,6 +130,8 @@ public class FilterRecursiveRidgeDiffusion {
 	public final void setMaxDifference(float val) { maxdiffParam = val; }
 		
 	public final void setDetectionThreshold(float val) { detectionThreshold = val; }
+	
+	public final void setNumberOfThreads(int val) { nthreadsParam = Numerics.max(1,val); }
 		
 	// set generic inputs	
 	public final void setDimensions(int x, int y, int z) { nx=x; ny=y; nz=z; nxyz=nx*ny*nz; }
@@ -230,7 +241,7 @@ public class FilterRecursiveRidgeDiffusion {
 			int gz = (G[2].length-1)/2;
 				
 			// smoothed inputImage
-			smoothed = ImageFilters.separableConvolution(inputImage,nx,ny,nz,G,gx,gy,gz); 
+			smoothed = ImageFilters.separableConvolution(inputImage,nx,ny,nz,G,gx,gy,gz,nthreadsParam); 
 
 			byte[] direction = new byte[nxyz];
 			float[] response = new float[nxyz];
@@ -1676,38 +1687,10 @@ public class FilterRecursiveRidgeDiffusion {
 		byte[][] neighbor = new byte[ngbParam][nxyz];
     	estimateSimpleDiffusionSimilarity1D(dir, proba, ngbParam, neighbor, similarity, angle);
 		
-		// run the diffusion process
-		float[] diffused = new float[nxyz];
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			diffused[xyz] = (float)FastMath.log(1.0f + proba[xyz]);
-		}
-
+		// run the diffusion process (synchronous updates)
 		factor /= (float)ngbParam;
-		for (int t=0;t<iterParam;t++) {
-			BasicInfo.displayMessage("iteration "+(t+1)+": ");
-			float diff = 0.0f;
-			for (int xyz=0;xyz<nxyz;xyz++) if (proba[xyz]>0) {
-				float prev = diffused[xyz];
-				diffused[xyz] = proba[xyz];
-				// weight with distance to 0 or 1
-				for (int n=0;n<ngbParam;n++) {
-					float ngb = diffused[neighborIndex(neighbor[n][xyz],xyz)];
-					// remap neighbors?
-					ngb = (float)FastMath.exp(ngb)-1.0f;
-				
-					// integration over the whole vessel (log version is more stable (??) )
-					diffused[xyz] += factor*similarity[n][xyz]*ngb;
-				}
-				diffused[xyz] = (float)FastMath.log(1.0f + diffused[xyz]);
-				
-				if (diffused[xyz]+prev>0) {
-					if (Numerics.abs(prev-diffused[xyz])/(prev+diffused[xyz])>diff) diff = Numerics.abs(prev-diffused[xyz])/(prev+diffused[xyz]);
-				}
-			}
-			
-			BasicInfo.displayMessage("diff "+diff+"\n");
-			if (diff<maxdiffParam) t=iterParam;
-		}
+		float[] diffused = ParallelPropagation.probabilisticDiffusion(proba, similarity, neighbor, neighborOffsets(), ngbParam, null, factor, true,
+																		nxyz, iterParam, maxdiffParam, nthreadsParam);
 		
 		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
 			int id = x + nx*y + nx*ny*z;
@@ -1826,41 +1809,40 @@ public class FilterRecursiveRidgeDiffusion {
 		return count;
 	}
 
-    private final void estimateSimpleDiffusionSimilarity1D(byte[] dir, float[] proba, int ngbParam, byte[][] neighbor, float[][] similarity, float factor) {
+    private final void estimateSimpleDiffusionSimilarity1D(final byte[] dir, final float[] proba, final int ngbParam, final byte[][] neighbor, final float[][] similarity, float factor) {
     	
-    	float[][] parallelweight = new float[26][26];
-		for (int d1=0;d1<26;d1++) for (int d2=0;d2<26;d2++) {
-			float[] dir1 = directionVector(d1);
-			float[] dir2 = directionVector(d2);
-			parallelweight[d1][d2] = (float)FastMath.pow(2.0f*FastMath.asin(Numerics.abs(dir1[X]*dir2[X] + dir1[Y]*dir2[Y] + dir1[Z]*dir2[Z]))/FastMath.PI,factor);
-		}
-		float[] weight = new float[26];
-		for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=1;z<nz-1;z++) {
-			int id = x+nx*y+nx*ny*z;
-			if (proba[id]>0) {
-				// find the N best aligned discrete directions
-				for (byte d=0;d<NC2;d++) {
-					int idn = neighborIndex(d,id);
-					
-					if (proba[idn]>0) {
-						if (ngbParam==2) weight[d] = parallelweight[d][dir[id]];
-						else weight[d] = parallelweight[d][dir[id]]*proba[idn];
-					} else {
-						weight[d] = 0.0f;
-					}
-				}
-				byte[] ngb = Numerics.argmax(weight, ngbParam);
-				for (int n=0;n<ngbParam;n++) {
-					neighbor[n][id] = ngb[n];
-					int idn = neighborIndex(ngb[n],id);
-					if (proba[idn]>0) {
-						similarity[n][id] = parallelweight[dir[id]][dir[idn]];
-					} else {
-						similarity[n][id] = 0.0f;
+    	final float[][] parallelweight = directionWeights(factor, true);
+		ParallelLoops.forEachSlab(1, nz-1, nthreadsParam, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float[] weight = new float[26];
+				for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=start;z<end;z++) {
+					int id = x+nx*y+nx*ny*z;
+					if (proba[id]>0) {
+						// find the N best aligned discrete directions
+						for (byte d=0;d<NC2;d++) {
+							int idn = neighborIndex(d,id);
+							
+							if (proba[idn]>0) {
+								if (ngbParam==2) weight[d] = parallelweight[d][dir[id]];
+								else weight[d] = parallelweight[d][dir[id]]*proba[idn];
+							} else {
+								weight[d] = 0.0f;
+							}
+						}
+						byte[] ngb = Numerics.argmax(weight, ngbParam);
+						for (int n=0;n<ngbParam;n++) {
+							neighbor[n][id] = ngb[n];
+							int idn = neighborIndex(ngb[n],id);
+							if (proba[idn]>0) {
+								similarity[n][id] = parallelweight[dir[id]][dir[idn]];
+							} else {
+								similarity[n][id] = 0.0f;
+							}
+						}
 					}
 				}
 			}
-		}
+		});
 		
 		return;
     }
@@ -1877,36 +1859,10 @@ public class FilterRecursiveRidgeDiffusion {
 		byte[][] neighbor = new byte[ngbParam][nxyz];
     	estimateSimpleDiffusionSimilarity2D(dir, proba, ngbParam, neighbor, similarity, angle);
 		
-		// run the diffusion process
-		float[] diffused = new float[nxyz];
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			diffused[xyz] = (float)FastMath.log(1.0f + proba[xyz]);
-		}
-
+		// run the diffusion process (synchronous updates)
 		factor /= (float)ngbParam;
-		for (int t=0;t<iterParam;t++) {
-			BasicInfo.displayMessage("iteration "+(t+1)+": ");
-			float diff = 0.0f;
-			for (int xyz=0;xyz<nxyz;xyz++) if (proba[xyz]>0) {
-				float prev = diffused[xyz];
-				diffused[xyz] = proba[xyz];
-				// weight with distance to 0 or 1
-				for (int n=0;n<ngbParam;n++) {
-					float ngb = diffused[neighborIndex(neighbor[n][xyz],xyz)];
-					// remap neighbors?
-					ngb = (float)FastMath.exp(ngb)-1.0f;
-				
-					// integration over the whole vessel (log version is more stable (??) )
-					diffused[xyz] += factor*similarity[n][xyz]*ngb;
-				}
-				diffused[xyz] = (float)FastMath.log(1.0f + diffused[xyz]);
-				
-				if (Numerics.abs(prev-diffused[xyz])>diff) diff = Numerics.abs(prev-diffused[xyz]);
-			}
-			
-			BasicInfo.displayMessage("diff "+diff+"\n");
-			if (diff<maxdiffParam) t=iterParam;
-		}
+		float[] diffused = ParallelPropagation.probabilisticDiffusion(proba, similarity, neighbor, neighborOffsets(), ngbParam, null, factor, false,
+																		nxyz, iterParam, maxdiffParam, nthreadsParam);
 		
 		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
 			int id = x + nx*y + nx*ny*z;
@@ -2210,48 +2166,72 @@ public class FilterRecursiveRidgeDiffusion {
 		return label;
 	}
 
-	private final void estimateSimpleDiffusionSimilarity2D(byte[] dir, float[] proba, int ngbParam, byte[][] neighbor, float[][] similarity, float factor) {
+	private final void estimateSimpleDiffusionSimilarity2D(final byte[] dir, final float[] proba, final int ngbParam, final byte[][] neighbor, final float[][] similarity, float factor) {
     	
-    	float[][] parallelweight = new float[26][26];
-		float[][] orthogonalweight = new float[26][26];
-		for (int d1=0;d1<26;d1++) for (int d2=0;d2<26;d2++) {
-			float[] dir1 = directionVector(d1);
-			float[] dir2 = directionVector(d2);
-			parallelweight[d1][d2] = (float)FastMath.pow(2.0f*FastMath.asin(Numerics.abs(dir1[X]*dir2[X] + dir1[Y]*dir2[Y] + dir1[Z]*dir2[Z]))/FastMath.PI,factor);
-			orthogonalweight[d1][d2] = (float)FastMath.pow(2.0f*FastMath.acos(Numerics.abs(dir1[X]*dir2[X] + dir1[Y]*dir2[Y] + dir1[Z]*dir2[Z]))/FastMath.PI,factor);
-		}
-		float[] weight = new float[26];
-		for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=1;z<nz-1;z++) {
-			int id = x+nx*y+nx*ny*z;
-			if (proba[id]>0) {
-				// find the N best planar discrete directions
-				for (byte d=0;d<NC2;d++) {
-					int idn = neighborIndex(d,id);
-					
-					if (proba[idn]>0) {
-						if (ngbParam==2) weight[d] = orthogonalweight[d][dir[id]];
-						else weight[d] = orthogonalweight[d][dir[id]]*proba[idn];
-					} else {
-						weight[d] = 0.0f;
-					}
-				}
-				byte[] ngb = Numerics.argmax(weight, ngbParam);
-				for (int n=0;n<ngbParam;n++) {
-					neighbor[n][id] = ngb[n];
-					int idn = neighborIndex(ngb[n],id);
-					if (proba[idn]>0) {
-						// similarity comes from the normal direction
-						similarity[n][id] = parallelweight[dir[id]][dir[idn]];
-					} else {
-						similarity[n][id] = 0.0f;
+    	final float[][] parallelweight = directionWeights(factor, true);
+		final float[][] orthogonalweight = directionWeights(factor, false);
+		ParallelLoops.forEachSlab(1, nz-1, nthreadsParam, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float[] weight = new float[26];
+				for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=start;z<end;z++) {
+					int id = x+nx*y+nx*ny*z;
+					if (proba[id]>0) {
+						// find the N best planar discrete directions
+						for (byte d=0;d<NC2;d++) {
+							int idn = neighborIndex(d,id);
+							
+							if (proba[idn]>0) {
+								if (ngbParam==2) weight[d] = orthogonalweight[d][dir[id]];
+								else weight[d] = orthogonalweight[d][dir[id]]*proba[idn];
+							} else {
+								weight[d] = 0.0f;
+							}
+						}
+						byte[] ngb = Numerics.argmax(weight, ngbParam);
+						for (int n=0;n<ngbParam;n++) {
+							neighbor[n][id] = ngb[n];
+							int idn = neighborIndex(ngb[n],id);
+							if (proba[idn]>0) {
+								// similarity comes from the normal direction
+								similarity[n][id] = parallelweight[dir[id]][dir[idn]];
+							} else {
+								similarity[n][id] = 0.0f;
+							}
+						}
 					}
 				}
 			}
-		}
+		});
 		
 		return;
     }
     
+    /** 26x26 weights between aligned (parallel) or orthogonal directions, computed once for each factor */
+    private final float[][] directionWeights(float factor, boolean parallel) {
+    	HashMap<Float,float[][]> tables = parallel ? parallelWeights : orthogonalWeights;
+    	synchronized (tables) {
+    		float[][] weight = tables.get(factor);
+    		if (weight==null) {
+    			weight = new float[26][26];
+				for (int d1=0;d1<26;d1++) for (int d2=0;d2<26;d2++) {
+					float[] dir1 = directionVector(d1);
+					float[] dir2 = directionVector(d2);
+					if (parallel) weight[d1][d2] = (float)FastMath.pow(2.0f*FastMath.asin(Numerics.abs(dir1[X]*dir2[X] + dir1[Y]*dir2[Y] + dir1[Z]*dir2[Z]))/FastMath.PI,factor);
+					else weight[d1][d2] = (float)FastMath.pow(2.0f*FastMath.acos(Numerics.abs(dir1[X]*dir2[X] + dir1[Y]*dir2[Y] + dir1[Z]*dir2[Z]))/FastMath.PI,factor);
+				}
+				tables.put(factor, weight);
+			}
+			return weight;
+		}
+	}
+	
+	/** index offsets of the 26 neighbor directions, as given by neighborIndex() */
+	private final int[] neighborOffsets() {
+		int[] offset = new int[NC2];
+		for (byte d=0;d<NC2;d++) offset[d] = neighborIndex(d, 0);
+		return offset;
+	}
+    
     private final float[] beliefPropagation1D(float[] proba, byte[] dir, int ngbParam, float angle, int iterParam, float maxdiffParam) {
 		// mask out inputImage boundaries
 		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
@@ -2264,102 +2244,9 @@ public class FilterRecursiveRidgeDiffusion {
 		byte[][] neighbor = new byte[ngbParam][nxyz];
     		estimateSimpleDiffusionSimilarity1D(dir, proba, ngbParam, neighbor, similarity, angle);
 		
-		float[][] messagefg = new float[ngbParam][nxyz];
-		float[][] messagebg = new float[ngbParam][nxyz];
-		
-		float[][] newmsgfg = new float[ngbParam][nxyz];
-		float[][] newmsgbg = new float[ngbParam][nxyz];
-		
-		// init
-		for (int xyz=0;xyz<nxyz;xyz++) for (int n=0;n<ngbParam;n++) {
-			messagefg[n][xyz] = 1.0f;
-			messagebg[n][xyz] = 1.0f;
-			newmsgfg[n][xyz] = 1.0f;
-			newmsgbg[n][xyz] = 1.0f;
-		}
-		
-		// min value for probas, similarities
-		float minp = 0.00f;
-		float mins = 0.00f;
-		
-		// message passing
-		for (int t=0;t<iterParam;t++) {
-			BasicInfo.displayMessage("iteration "+(t+1)+": ");
-			float diff = 0.0f;
-			//float prev;
-			int ngb;
-			for (int xyz=0;xyz<nxyz;xyz++) if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					float simfgfg = similarity[n][xyz];
-					float simbgfg = 0.0f; //(1.0f-similarity1[xyz]); //similarity1[xyz];
-					float simfgbg = (1.0f-similarity[n][xyz]); // good results
-					float simbgbg = 1.0f; //(1.0f-similarity1[xyz]); //1.0f; //similarity1[xyz];
-				
-					ngb = neighborIndex(neighbor[n][xyz],xyz);
-					if (proba[ngb]>0) {
-						// neighbor message, fg label
-						float mfgfg = Numerics.max(mins,simfgfg)*Numerics.max(minp,proba[ngb]);
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagefg[m][ngb]>0) mfgfg *= messagefg[m][ngb];
-						}
-						
-						float mfgbg = Numerics.max(mins,simfgbg)*Numerics.max(minp,(1.0f-proba[ngb]));
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagebg[m][ngb]>0) mfgbg *= messagebg[m][ngb];
-						}
-						newmsgfg[n][xyz] = Numerics.max(mfgfg, mfgbg);
-						diff = Numerics.max(diff, Numerics.abs(newmsgfg[n][xyz]-messagefg[n][xyz]));
-					
-						// neighbor message, bg label
-						float mbgbg = Numerics.max(mins,simbgbg)*Numerics.max(minp,(1.0f-proba[ngb]));
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagebg[m][ngb]>0) mbgbg *= messagebg[m][ngb];
-						}
-					
-						float mbgfg = Numerics.max(mins,simbgfg)*Numerics.max(minp,proba[ngb]);
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagefg[m][ngb]>0) mbgfg *= messagefg[m][ngb];
-						}
-						newmsgbg[n][xyz] = Numerics.max(mbgbg, mbgfg);
-						diff = Numerics.max(diff, Numerics.abs(newmsgbg[n][xyz]-messagebg[n][xyz]));
-					}
-				}
-			}
-			// copy new messages onto older ones
-			for (int xyz=0;xyz<nxyz;xyz++) if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					messagefg[n][xyz] = newmsgfg[n][xyz];
-					messagebg[n][xyz] = newmsgbg[n][xyz];
-				}
-			}
-			BasicInfo.displayMessage("diff "+diff+"\n");
-			if (diff < maxdiffParam) t = iterParam;
-		}
-		
-		// compute final belief
-		float[] belief = new float[nxyz];
-		float 	bgbelief;
-		
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			belief[xyz] = proba[xyz];
-			
-			if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					if (messagefg[n][xyz]>0) belief[xyz] *= messagefg[n][xyz];
-				}
-			}
-			
-			bgbelief = (1.0f-proba[xyz]);
-			if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					if (messagebg[n][xyz]>0) bgbelief *= messagebg[n][xyz];
-				}
-			}
-			// normalize
-			//belief[xyz] = belief[xyz]/Numerics.max(1e-9f,belief[xyz]+bgbelief);
-			belief[xyz] = belief[xyz]/(belief[xyz]+bgbelief);
-		}
-		return belief;
+		// synchronous message passing, by slabs
+		return ParallelPropagation.beliefPropagation(proba, similarity, neighbor, neighborOffsets(), ngbParam, null, true,
+														nxyz, iterParam, maxdiffParam, nthreadsParam);
 	}
 	
     private final float[] beliefPropagation2D(float[] proba, byte[] dir, int ngbParam, float angle, int iterParam, float maxdiffParam) {
@@ -2374,103 +2261,9 @@ public class FilterRecursiveRidgeDiffusion {
 		byte[][] neighbor = new byte[ngbParam][nxyz];
     		estimateSimpleDiffusionSimilarity2D(dir, proba, ngbParam, neighbor, similarity, angle);
 		
-		float[][] messagefg = new float[ngbParam][nxyz];
-		float[][] messagebg = new float[ngbParam][nxyz];
-		
-		float[][] newmsgfg = new float[ngbParam][nxyz];
-		float[][] newmsgbg = new float[ngbParam][nxyz];
-		
-		// init
-		for (int xyz=0;xyz<nxyz;xyz++) for (int n=0;n<ngbParam;n++) {
-			messagefg[n][xyz] = 1.0f;
-			messagebg[n][xyz] = 1.0f;
-			newmsgfg[n][xyz] = 1.0f;
-			newmsgbg[n][xyz] = 1.0f;
-		}
-		
-		// min value for probas, similarities
-		float minp = 0.00f;
-		float mins = 0.00f;
-		
-		// message passing
-		for (int t=0;t<iterParam;t++) {
-			BasicInfo.displayMessage("iteration "+(t+1)+": ");
-			float diff = 0.0f;
-			//float prev;
-			int ngb;
-			for (int xyz=0;xyz<nxyz;xyz++) if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					float simfgfg = similarity[n][xyz];
-					float simbgfg = 0.0f; //(1.0f-similarity1[xyz]); //similarity1[xyz];
-					float simfgbg = (1.0f-similarity[n][xyz]); // good results
-					float simbgbg = 1.0f; //(1.0f-similarity1[xyz]); //1.0f; //similarity1[xyz];
-				
-					ngb = neighborIndex(neighbor[n][xyz],xyz);
-					
-					if (proba[ngb]>0) {
-						// neighbor message, fg label
-						float mfgfg = Numerics.max(mins,simfgfg)*Numerics.max(minp,proba[ngb]);
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagefg[m][ngb]>0) mfgfg *= messagefg[m][ngb];
-						}
-						
-						float mfgbg = Numerics.max(mins,simfgbg)*Numerics.max(minp,(1.0f-proba[ngb]));
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagebg[m][ngb]>0) mfgbg *= messagebg[m][ngb];
-						}
-						newmsgfg[n][xyz] = Numerics.max(mfgfg, mfgbg);
-						diff = Numerics.max(diff, Numerics.abs(newmsgfg[n][xyz]-messagefg[n][xyz]));
-					
-						// neighbor message, bg label
-						float mbgbg = Numerics.max(mins,simbgbg)*Numerics.max(minp,(1.0f-proba[ngb]));
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagebg[m][ngb]>0) mbgbg *= messagebg[m][ngb];
-						}
-					
-						float mbgfg = Numerics.max(mins,simbgfg)*Numerics.max(minp,proba[ngb]);
-						for (int m=0;m<ngbParam;m++) {
-							if (neighborIndex(neighbor[m][ngb],ngb)!=xyz && messagefg[m][ngb]>0) mbgfg *= messagefg[m][ngb];
-						}
-						newmsgbg[n][xyz] = Numerics.max(mbgbg, mbgfg);
-						diff = Numerics.max(diff, Numerics.abs(newmsgbg[n][xyz]-messagebg[n][xyz]));
-					}
-				}
-			}
-			// copy new messages onto older ones
-			for (int xyz=0;xyz<nxyz;xyz++) if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					messagefg[n][xyz] = newmsgfg[n][xyz];
-					messagebg[n][xyz] = newmsgbg[n][xyz];
-				}
-			}
-			BasicInfo.displayMessage("diff "+diff+"\n");
-			if (diff < maxdiffParam) t = iterParam;
-		}
-		
-		// compute final belief
-		float[] belief = new float[nxyz];
-		float 	bgbelief;
-		
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			belief[xyz] = proba[xyz];
-			
-			if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					if (messagefg[n][xyz]>0) belief[xyz] *= messagefg[n][xyz];
-				}
-			}
-			
-			bgbelief = (1.0f-proba[xyz]);
-			if (proba[xyz]>0 && proba[xyz]<1) {
-				for (int n=0;n<ngbParam;n++) {
-					if (messagebg[n][xyz]>0) bgbelief *= messagebg[n][xyz];
-				}
-			}
-			// normalize
-			//belief[xyz] = belief[xyz]/Numerics.max(1e-9f,belief[xyz]+bgbelief);
-			belief[xyz] = belief[xyz]/(belief[xyz]+bgbelief);
-		}
-		return belief;
+		// synchronous message passing, by slabs
+		return ParallelPropagation.beliefPropagation(proba, similarity, neighbor, neighborOffsets(), ngbParam, null, true,
+														nxyz, iterParam, maxdiffParam, nthreadsParam);
 	}
 	
 
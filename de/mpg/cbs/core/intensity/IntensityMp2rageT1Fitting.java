@@ -1,5 +1,14 @@
 package de.mpg.cbs.core.intensity;
 
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
 import de.mpg.cbs.utilities.*;
 import de.mpg.cbs.structures.*;
 import de.mpg.cbs.libraries.*;
@@ -49,15 +58,36 @@ public class IntensityMp2rageT1Fitting {
 	private		float[] r1map = null;
 	private		float[] snr = null;
 	
+	// outputs written into direct buffers owned by this object (for python bridges)
+	private		boolean		directOutputs = false;
+	private		FloatBuffer	uniBuffer = null;
+	private		FloatBuffer	t1mapBuffer = null;
+	private		FloatBuffer	r1mapBuffer = null;
+	private		FloatBuffer	snrBuffer = null;
+	
 	private		double[][] T1lookup = null;
 	private 	double[][] unilookup = null;
 	
+	private		int			nthreads = 1;
+	private		boolean		cacheLookup = true;
+	
+	// lookup tables shared across instances with the same sequence parameters, and cached on disk
+	// (in the directory given by the cbstools.lutcache system property, or .cbstools/lutcache in the user's home directory)
+	private static final HashMap<String,SoftReference<double[][][]>> registry = new HashMap<String,SoftReference<double[][][]>>();
+	private static final int	CACHEMAGIC = 0x4d505432;	// "MPT2"
+	
 	// set inputs
 	public final void setFirstInversionImage(float[] in) { inv1 = in; }
 	public final void setSecondInversionImage(float[] in) { inv2 = in; }
 	public final void setB1mapImage(float[] in) { b1map = in; }
 	public final void setUniformImage(float[] in) { uni = in; }
 	
+	// buffer inputs (for python bridges): direct buffers are copied once in bulk
+	public final void setFirstInversionImage(FloatBuffer in) { inv1 = DirectBuffers.toFloatArray(in); }
+	public final void setSecondInversionImage(FloatBuffer in) { inv2 = DirectBuffers.toFloatArray(in); }
+	public final void setB1mapImage(FloatBuffer in) { b1map = DirectBuffers.toFloatArray(in); }
+	public final void setUniformImage(FloatBuffer in) { uni = DirectBuffers.toFloatArray(in); }
+	
 	public final void setFirstInversionMagnitude(float[] in) {
 	    if (inv1==null) {
 	        System.out.print("build combined image\n");
@@ -100,6 +130,13 @@ public class IntensityMp2rageT1Fitting {
 	public final void setCorrectB1inhomogeneities(boolean in) { useB1correction = in; }
 	public final void setB1mapScaling(float in) { b1Scaling = in;}
 	public final void setScalePhaseImagess(boolean in) { scalePhase = in; }
+	public final void setNumberOfThreads(int in) { nthreads = Numerics.max(1,in); }
+	public final void setCacheLookupTables(boolean in) { cacheLookup = in; }
+	/** 
+	 *	write the outputs into direct buffers owned by this object, returned as is by the buffer getters
+	 *	and reused by the next execution (the array getters then copy them)
+	 */
+	public final void setDirectBufferOutputs(boolean in) { directOutputs = in; }
 	
 	public final void setDimensions(int x, int y, int z) { nx=x; ny=y; nz=z; nxyz=nx*ny*nz; }
 	public final void setDimensions(int[] dim) { nx=dim[0]; ny=dim[1]; nz=dim[2]; nxyz=nx*ny*nz; }
@@ -119,10 +156,41 @@ public class IntensityMp2rageT1Fitting {
 	public final String getVersion() { return "3.1f"; }
 
 	// get outputs
-	public float[] getUniformT1weightedImage() { return uni; }
-	public float[] getQuantitativeT1mapImage() { return t1map; }
-	public float[] getQuantitativeR1mapImage() { return r1map; }
-	public float[] getRelativeSnrImage() { return snr; }
+	public float[] getUniformT1weightedImage() { 
+		if (uni==null) uni = DirectBuffers.toFloatArray(uniBuffer);
+		return uni; 
+	}
+	public float[] getQuantitativeT1mapImage() { 
+		if (t1map==null) t1map = DirectBuffers.toFloatArray(t1mapBuffer);
+		return t1map; 
+	}
+	public float[] getQuantitativeR1mapImage() { 
+		if (r1map==null) r1map = DirectBuffers.toFloatArray(r1mapBuffer);
+		return r1map; 
+	}
+	public float[] getRelativeSnrImage() { 
+		if (snr==null) snr = DirectBuffers.toFloatArray(snrBuffer);
+		return snr; 
+	}
+
+	// buffer outputs (for python bridges): direct buffers in native order, owned by this object
+	// (filled by execute() with setDirectBufferOutputs(true), or once from the arrays otherwise)
+	public FloatBuffer getUniformT1weightedBuffer() { 
+		if (uniBuffer==null) uniBuffer = DirectBuffers.toFloatBuffer(uni, null);
+		return uniBuffer; 
+	}
+	public FloatBuffer getQuantitativeT1mapBuffer() { 
+		if (t1mapBuffer==null) t1mapBuffer = DirectBuffers.toFloatBuffer(t1map, null);
+		return t1mapBuffer; 
+	}
+	public FloatBuffer getQuantitativeR1mapBuffer() { 
+		if (r1mapBuffer==null) r1mapBuffer = DirectBuffers.toFloatBuffer(r1map, null);
+		return r1mapBuffer; 
+	}
+	public FloatBuffer getRelativeSnrBuffer() { 
+		if (snrBuffer==null) snrBuffer = DirectBuffers.toFloatBuffer(snr, null);
+		return snrBuffer; 
+	}
 	
 	// for debug
 	public float[] generateT1LookupImage() { 
@@ -194,19 +262,25 @@ public class IntensityMp2rageT1Fitting {
             
             uni = new float[nxyz];
             snr = new float[nxyz];
-            for (int xyz=0;xyz<nxyz;xyz++) {
-                double prod = inv1[xyz]*inv2[xyz]*FastMath.cos(inv1[xyz+nxyz]/phscale1-inv2[xyz+nxyz]/phscale2);
-                double norm = inv1[xyz]*inv1[xyz] + inv2[xyz]*inv2[xyz];
-                
-                double diff2 = (inv1[xyz]*inv1[xyz] - inv2[xyz]*inv2[xyz])*(inv1[xyz]*inv1[xyz] - inv2[xyz]*inv2[xyz]);
-                double norm3 = norm*norm*norm;
-                
-                if (intensityScale*norm>prod) uni[xyz] = (float)(prod/norm);
-                else uni[xyz] = 0.0f;
-                
-                if (intensityScale*intensityScale*norm3>diff2) snr[xyz] = (float)FastMath.sqrt(diff2/norm3);
-                else snr[xyz] = 1.0f;
-            }
+            final double phs1 = phscale1;
+            final double phs2 = phscale2;
+            ParallelLoops.forEachSlab(0, nxyz, nthreads, new ParallelLoops.Slab() {
+                public void run(int start, int end, int thread) {
+                    for (int xyz=start;xyz<end;xyz++) {
+                        double prod = inv1[xyz]*inv2[xyz]*FastMath.cos(inv1[xyz+nxyz]/phs1-inv2[xyz+nxyz]/phs2);
+                        double norm = inv1[xyz]*inv1[xyz] + inv2[xyz]*inv2[xyz];
+                        
+                        double diff2 = (inv1[xyz]*inv1[xyz] - inv2[xyz]*inv2[xyz])*(inv1[xyz]*inv1[xyz] - inv2[xyz]*inv2[xyz]);
+                        double norm3 = norm*norm*norm;
+                        
+                        if (intensityScale*norm>prod) uni[xyz] = (float)(prod/norm);
+                        else uni[xyz] = 0.0f;
+                        
+                        if (intensityScale*intensityScale*norm3>diff2) snr[xyz] = (float)FastMath.sqrt(diff2/norm3);
+                        else snr[xyz] = 1.0f;
+                    }
+                }
+            });
             inv1 = null;
             inv2 = null;
             
@@ -226,103 +300,57 @@ public class IntensityMp2rageT1Fitting {
                 
 		if (!useB1correction) b1Samples = 1;	
 		
-		// for the T1 map, more complicated: first estimate the inv1, inv2 you would get for a range of t1 values, then find the fit?
-		T1lookup = new double[b1Samples][t1Samples];
-		
-		double TA = TI1 - Nexcitations/2.0f*TRexcitation1;
-		double TB = TI2 - TI1 - Nexcitations/2.0f*TRexcitation1 - Nexcitations/2.0f*TRexcitation2;
-		double TC = TRinversion - TI2 - Nexcitations/2.0f*TRexcitation2;
-		
-		System.out.print("timings: TA = "+TA+", TB = "+TB+", TC = "+TC+"\n"); 
-		
-		double a1rad = angle1/180.0*FastMath.PI;
-		double a2rad = angle2/180.0*FastMath.PI;
-		
-		for (int b=0;b<b1Samples;b++) {
-		    System.out.print(".");
+		// lookup tables: from the cache if the sequence was already modeled, generated otherwise
+		if (cacheLookup) loadLookupTables();
+		else computeLookupTables();
 		
-			double b1 = b1min + b*(b1max-b1min)/(b1Samples-1.0);
-			if (!useB1correction) b1 = 1.0;
-			double cosA1cosA2n = FastMath.pow( FastMath.cos(b1*a1rad)*FastMath.cos(b1*a2rad), Nexcitations );
-		
-			T1lookup[b][0] = 0.5;
-			for (int t=0;t<t1Samples;t++) {
-				double qt1 = t1Min + t*(t1Max-t1Min)/(t1Samples-1.0);
-			
-                double E1 = FastMath.exp(-TRexcitation1/qt1);
-                double E2 = FastMath.exp(-TRexcitation2/qt1);
-            
-                double EI = FastMath.exp(-TRinversion/qt1);
-            
-                double EA = FastMath.exp(-TA/qt1);
-                double EB = FastMath.exp(-TB/qt1);
-                double EC = FastMath.exp(-TC/qt1);
-            
-                double E1cosA1 = FastMath.cos(b1*a1rad)*E1;
-                double E2cosA2 = FastMath.cos(b1*a2rad)*E2;
-            
-                double E1cosA1n = FastMath.pow( (FastMath.cos(b1*a1rad)*E1), Nexcitations);
-                double E2cosA2n = FastMath.pow( (FastMath.cos(b1*a2rad)*E2), Nexcitations);
-            
-                double E1cosA1n2 = FastMath.pow( (FastMath.cos(b1*a1rad)*E1), Nexcitations/2.0f);
-                double E2cosA2n2 = FastMath.pow( (FastMath.cos(b1*a2rad)*E2), Nexcitations/2.0f);
-            
-                double mza = (1.0f-EA)*E1cosA1n + (1.0f-E1)*(1.0f-E1cosA1n)/(1.0f-E1cosA1);
-                double mzb = ( mza*EB + (1.0f-EB) )*E2cosA2n + (1.0f-E2)*(1.0f-E2cosA2n)/(1.0f-E2cosA2);
-                double mzc = ( mzb*EC + (1.0f-EC) )/(1.0f + inversionEfficiency*cosA1cosA2n*EI);
-                double mzss = ( ( ( ( (1.0f-EA)*E1cosA1n + (1.0f-E1)*(1.0f-E1cosA1n)/(1.0f-E1cosA1) )*EB 
-                                + (1.0f-EB) )*E2cosA2n + (1.0f-E2)*(1.0f-E2cosA2n)/(1.0f-E2cosA2) )*EC 
-                                    + (1.0f-EC) )/(1.0f + inversionEfficiency*cosA1cosA2n*EI);
-            
-                //double gre1 = FastMath.sin(b1*a1rad)*( (-inversionEfficiency*mzss*EA + 1.0f-EA)*E1cosA1n21 + (1.0f-E1)*(1.0f-E1cosA1n21)/(1.0f-E1cosA1) );
-                //double gre2 = FastMath.sin(b1*a2rad)*( (mzss-(1.0f-EC))/(EC*E1cosA2n2) - (1.0f-E1)*(1.0f/E1cosA2n2-1.0f)/(1.0f-E1cosA2) );
-            
-                double factora = ( (-inversionEfficiency*mzss*EA + 1.0-EA)*E1cosA1n2 + (1.0-E1)*(1.0-E1cosA1n2)/(1.0-E1cosA1) );
-                double factorb = factora*E1cosA1n2 + (1.0-E1)*(1.0-E1cosA1n2)/(1.0-E1cosA1n2);
-                double factorc = (factorb*EB + 1.0-EB)*E2cosA2n2 + (1.0-E2)*(1.0-E2cosA2n2)/(1.0-E2cosA2);
-            
-                double gre1 = FastMath.sin(b1*a1rad)*factora;
-                double gre2 = FastMath.sin(b1*a2rad)*factorc;
-            
-                //T1lookup[t] = intensityScale/2.0f + intensityScale*gre1*gre2/(gre1*gre1+gre2*gre2);
-                T1lookup[b][t] = gre1*gre2/(gre1*gre1+gre2*gre2);
+		System.out.print(" compute final maps\n"); 
+		t1map = new float[nxyz];
+		r1map = new float[nxyz];
+		ParallelLoops.forEachSlab(0, nxyz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				fitVoxels(start, end);
 			}
-			/*
-			if (Numerics.abs(gre2)>1 || Numerics.abs(gre1)>1) {
-				System.out.println("gre1 = "+gre1+", gre2 = "+gre2+", mzss = "+mzss+", mzc = "+mzc+", E1 = "+E1);
-				T1lookup[t] = 0.5f;
-			} else {
-				//T1lookup[t] = intensityScale/2.0f + intensityScale*gre1*gre2/(gre1*gre1+gre2*gre2);
-				T1lookup[t] = gre1*gre2/(gre1*gre1+gre2*gre2);
-			}*/
+		});
+		System.out.print(" scale outputs\n"); 
+		
+		// rescale the UNI to [0 4000]
+		for (int xyz=0;xyz<nxyz;xyz++) {
+			uni[xyz] = Numerics.bounded(intensityScale*uni[xyz]+intensityScale/2.0f,0.0f,intensityScale);
+		}
+
+		// rescale the T1 map to milliseconds
+		for (int xyz=0;xyz<nxyz;xyz++) {
+			t1map[xyz] = Numerics.bounded(1000.0f*t1map[xyz],1000.0f*t1Min,1000.0f*t1Max);
 		}
-		// invert the LUT for speed
-		System.out.print("\n invert lookup table\n"); 
-		unilookup = new double[b1Samples][uniSamples];
-		for (int b=0;b<b1Samples;b++) {
-			for (int u=0;u<uniSamples;u++) {
-				//double val = intensityScale*t/(double)lutSamples;
-				double val = -0.5 + 1.0*u/(uniSamples-1.0);
-			
-				int t=0;
-				while (t<t1Samples && T1lookup[b][t]>val) t++;
 			
-				if (t>0 && t<t1Samples) {
-				    // make a linear interpolation between previous and current value
-					double ratio = Numerics.bounded( (T1lookup[b][t-1]-val)/(T1lookup[b][t-1]-T1lookup[b][t]), 0.0, 1.0);
-					unilookup[b][u] = t1Min + ( ratio*t+(1.0-ratio)*(t-1) )*(t1Max-t1Min)/(t1Samples-1.0);
-				} else if (t>=t1Samples) {
-					unilookup[b][u] = t1Max;
-				} else {
-					unilookup[b][u] = t1Min;	
-				}
-			}
+		// rescale the R1 map to mHz
+		for (int xyz=0;xyz<nxyz;xyz++) {
+			r1map[xyz] = Numerics.bounded(1000.0f*r1map[xyz],1000.0f/t1Max,1000.0f/t1Min);
 		}
 		
-		System.out.print(" compute final maps\n"); 
-		t1map = new float[nxyz];
-		r1map = new float[nxyz];
-		for (int xyz=0;xyz<nxyz;xyz++) {
+		// outputs: into the owned buffers (reused from the previous execution), or kept as arrays
+		if (directOutputs && DirectBuffers.fits(4L*nxyz)) {
+			uniBuffer = DirectBuffers.toFloatBuffer(uni, uniBuffer);
+			t1mapBuffer = DirectBuffers.toFloatBuffer(t1map, t1mapBuffer);
+			r1mapBuffer = DirectBuffers.toFloatBuffer(r1map, r1mapBuffer);
+			snrBuffer = DirectBuffers.toFloatBuffer(snr, snrBuffer);
+			uni = null;
+			t1map = null;
+			r1map = null;
+			snr = null;
+		} else {
+			uniBuffer = null;
+			t1mapBuffer = null;
+			r1mapBuffer = null;
+			snrBuffer = null;
+		}
+		return;
+	}
+
+	/** fit the T1 and R1 maps (and correct the uni for B1 if used) for voxels [start,end) */
+	private final void fitVoxels(int start, int end) {
+		for (int xyz=start;xyz<end;xyz++) {
 		    double u = (uni[xyz]+0.5)*(uniSamples-1.0);
 			int u0 = Numerics.bounded(Numerics.floor(u), 0, uniSamples-1);
 			int u1 = Numerics.bounded(Numerics.ceil(u), 0, uniSamples-1);
@@ -365,24 +393,235 @@ public class IntensityMp2rageT1Fitting {
 			    				   +tratio*bratio*T1lookup[b1][t1]);			    
 			}
 		}
-		System.out.print(" scale outputs\n"); 
+	}
+	
+	/** generate the lookup tables from the sequence model (parallel over B1 samples) */
+	private final void computeLookupTables() {
+		// for the T1 map, more complicated: first estimate the inv1, inv2 you would get for a range of t1 values, then find the fit?
+		T1lookup = new double[b1Samples][t1Samples];
 		
-		// rescale the UNI to [0 4000]
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			uni[xyz] = Numerics.bounded(intensityScale*uni[xyz]+intensityScale/2.0f,0.0f,intensityScale);
+		final double TA = TI1 - Nexcitations/2.0f*TRexcitation1;
+		final double TB = TI2 - TI1 - Nexcitations/2.0f*TRexcitation1 - Nexcitations/2.0f*TRexcitation2;
+		final double TC = TRinversion - TI2 - Nexcitations/2.0f*TRexcitation2;
+		
+		System.out.print("timings: TA = "+TA+", TB = "+TB+", TC = "+TC+"\n"); 
+		
+		final double a1rad = angle1/180.0*FastMath.PI;
+		final double a2rad = angle2/180.0*FastMath.PI;
+		
+		ParallelLoops.forEachSlab(0, b1Samples, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int b=start;b<end;b++) {
+				    System.out.print(".");
+		
+					double b1 = b1min + b*(b1max-b1min)/(b1Samples-1.0);
+					if (!useB1correction) b1 = 1.0;
+					double cosA1cosA2n = FastMath.pow( FastMath.cos(b1*a1rad)*FastMath.cos(b1*a2rad), Nexcitations );
+		
+					T1lookup[b][0] = 0.5;
+					for (int t=0;t<t1Samples;t++) {
+						double qt1 = t1Min + t*(t1Max-t1Min)/(t1Samples-1.0);
+			
+		                double E1 = FastMath.exp(-TRexcitation1/qt1);
+		                double E2 = FastMath.exp(-TRexcitation2/qt1);
+            
+		                double EI = FastMath.exp(-TRinversion/qt1);
+            
+		                double EA = FastMath.exp(-TA/qt1);
+		                double EB = FastMath.exp(-TB/qt1);
+		                double EC = FastMath.exp(-TC/qt1);
+            
+		                double E1cosA1 = FastMath.cos(b1*a1rad)*E1;
+		                double E2cosA2 = FastMath.cos(b1*a2rad)*E2;
+            
+		                double E1cosA1n = FastMath.pow( (FastMath.cos(b1*a1rad)*E1), Nexcitations);
+		                double E2cosA2n = FastMath.pow( (FastMath.cos(b1*a2rad)*E2), Nexcitations);
+            
+		                double E1cosA1n2 = FastMath.pow( (FastMath.cos(b1*a1rad)*E1), Nexcitations/2.0f);
+		                double E2cosA2n2 = FastMath.pow( (FastMath.cos(b1*a2rad)*E2), Nexcitations/2.0f);
+            
+		                double mza = (1.0f-EA)*E1cosA1n + (1.0f-E1)*(1.0f-E1cosA1n)/(1.0f-E1cosA1);
+		                double mzb = ( mza*EB + (1.0f-EB) )*E2cosA2n + (1.0f-E2)*(1.0f-E2cosA2n)/(1.0f-E2cosA2);
+		                double mzc = ( mzb*EC + (1.0f-EC) )/(1.0f + inversionEfficiency*cosA1cosA2n*EI);
+		                double mzss = ( ( ( ( (1.0f-EA)*E1cosA1n + (1.0f-E1)*(1.0f-E1cosA1n)/(1.0f-E1cosA1) )*EB 
+		                                + (1.0f-EB) )*E2cosA2n + (1.0f-E2)*(1.0f-E2cosA2n)/(1.0f-E2cosA2) )*EC 
+		                                    + (1.0f-EC) )/(1.0f + inversionEfficiency*cosA1cosA2n*EI);
+            
+		                //double gre1 = FastMath.sin(b1*a1rad)*( (-inversionEfficiency*mzss*EA + 1.0f-EA)*E1cosA1n21 + (1.0f-E1)*(1.0f-E1cosA1n21)/(1.0f-E1cosA1) );
+		                //double gre2 = FastMath.sin(b1*a2rad)*( (mzss-(1.0f-EC))/(EC*E1cosA2n2) - (1.0f-E1)*(1.0f/E1cosA2n2-1.0f)/(1.0f-E1cosA2) );
+            
+		                double factora = ( (-inversionEfficiency*mzss*EA + 1.0-EA)*E1cosA1n2 + (1.0-E1)*(1.0-E1cosA1n2)/(1.0-E1cosA1) );
+		                double factorb = factora*E1cosA1n2 + (1.0-E1)*(1.0-E1cosA1n2)/(1.0-E1cosA1n2);
+		                double factorc = (factorb*EB + 1.0-EB)*E2cosA2n2 + (1.0-E2)*(1.0-E2cosA2n2)/(1.0-E2cosA2);
+            
+		                double gre1 = FastMath.sin(b1*a1rad)*factora;
+		                double gre2 = FastMath.sin(b1*a2rad)*factorc;
+            
+		                //T1lookup[t] = intensityScale/2.0f + intensityScale*gre1*gre2/(gre1*gre1+gre2*gre2);
+		                T1lookup[b][t] = gre1*gre2/(gre1*gre1+gre2*gre2);
+					}
+					/*
+					if (Numerics.abs(gre2)>1 || Numerics.abs(gre1)>1) {
+						System.out.println("gre1 = "+gre1+", gre2 = "+gre2+", mzss = "+mzss+", mzc = "+mzc+", E1 = "+E1);
+						T1lookup[t] = 0.5f;
+					} else {
+						//T1lookup[t] = intensityScale/2.0f + intensityScale*gre1*gre2/(gre1*gre1+gre2*gre2);
+						T1lookup[t] = gre1*gre2/(gre1*gre1+gre2*gre2);
+					}*/
+				}
+			}
+		});
+		// invert the LUT for speed
+		System.out.print("\n invert lookup table\n"); 
+		unilookup = new double[b1Samples][uniSamples];
+		ParallelLoops.forEachSlab(0, b1Samples, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int b=start;b<end;b++) {
+					for (int u=0;u<uniSamples;u++) {
+						//double val = intensityScale*t/(double)lutSamples;
+						double val = -0.5 + 1.0*u/(uniSamples-1.0);
+			
+						int t=0;
+						while (t<t1Samples && T1lookup[b][t]>val) t++;
+			
+						if (t>0 && t<t1Samples) {
+						    // make a linear interpolation between previous and current value
+							double ratio = Numerics.bounded( (T1lookup[b][t-1]-val)/(T1lookup[b][t-1]-T1lookup[b][t]), 0.0, 1.0);
+							unilookup[b][u] = t1Min + ( ratio*t+(1.0-ratio)*(t-1) )*(t1Max-t1Min)/(t1Samples-1.0);
+						} else if (t>=t1Samples) {
+							unilookup[b][u] = t1Max;
+						} else {
+							unilookup[b][u] = t1Min;	
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	/** sequence and sampling parameters the lookup tables depend on */
+	private final String lookupKey() {
+		return "TR="+TRinversion+",TRex1="+TRexcitation1+",TRex2="+TRexcitation2+",TI1="+TI1+",TI2="+TI2
+				+",a1="+angle1+",a2="+angle2+",N="+Nexcitations+",eff="+inversionEfficiency
+				+",t1="+t1Min+":"+t1Max+":"+t1Samples+",uni="+uniSamples
+				+",b1="+useB1correction+":"+b1min+":"+b1max+":"+b1Samples;
+	}
+	
+	/** get the lookup tables from the shared registry or the disk cache, or generate and cache them */
+	private final void loadLookupTables() {
+		String key = lookupKey();
+		synchronized (registry) {
+			SoftReference<double[][][]> ref = registry.get(key);
+			double[][][] tables = (ref!=null) ? ref.get() : null;
+			if (tables!=null) {
+				System.out.print("lookup tables: shared ("+key+")\n");
+				T1lookup = tables[0];
+				unilookup = tables[1];
+				return;
+			}
 		}
-
-		// rescale the T1 map to milliseconds
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			t1map[xyz] = Numerics.bounded(1000.0f*t1map[xyz],1000.0f*t1Min,1000.0f*t1Max);
+		String cachedir = CriticalPointLUT.cacheDirectory();
+		File cache = new File(cachedir, "mp2rage-t1-"+Integer.toHexString(key.hashCode())+".lut");
+		if (!readLookupTables(cache, key)) {
+			computeLookupTables();
+			// write the cache file (through a temporary file, in case other processes do the same)
+			try {
+				File dir = CriticalPointLUT.createCacheDirectory(cachedir);
+				File tmp = File.createTempFile("mp2rage-t1-", ".tmp", dir);
+				writeLookupTables(tmp, key);
+				if (!tmp.renameTo(cache)) tmp.delete();
+			} catch (IOException e) {
+				System.out.println("lookup table cache not available in "+cachedir+": "+e.getMessage());
+			}
+		} else {
+			System.out.print("lookup tables: loaded from "+cache.getPath()+"\n");
 		}
-			
-		// rescale the R1 map to mHz
-		for (int xyz=0;xyz<nxyz;xyz++) {
-			r1map[xyz] = Numerics.bounded(1000.0f*r1map[xyz],1000.0f/t1Max,1000.0f/t1Min);
+		synchronized (registry) {
+			registry.put(key, new SoftReference<double[][][]>(new double[][][]{T1lookup, unilookup}));
+		}
+	}
+	
+	/** 
+	 *	cache file: magic, key, table sizes, CRC32 checksum of the tables, 
+	 *	then the T1 and uni tables as little-endian doubles, row by row 
+	 */
+	private final void writeLookupTables(File file, String key) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		FileChannel channel = fos.getChannel();
+		try {
+			byte[] keybytes = key.getBytes("UTF-8");
+			ByteBuffer window = ByteBuffer.allocateDirect(20+keybytes.length).order(ByteOrder.LITTLE_ENDIAN);
+			window.putInt(CACHEMAGIC).putInt(keybytes.length).put(keybytes);
+			window.putInt(T1lookup.length).putInt(T1lookup[0].length);
+			window.putInt(0);	// checksum, written last
+			window.flip();
+			while (window.hasRemaining()) channel.write(window);
+			CRC32 crc = new CRC32();
+			writeRows(T1lookup, channel, crc);
+			writeRows(unilookup, channel, crc);
+			window.clear();
+			window.putInt((int)crc.getValue());
+			window.flip();
+			while (window.hasRemaining()) channel.write(window, 16+keybytes.length+window.position());
+		} finally {
+			channel.close();
+			fos.close();
+		}
+	}
+	
+	private static final void writeRows(double[][] table, FileChannel channel, CRC32 crc) throws IOException {
+		ByteBuffer row = ByteBuffer.allocateDirect(8*table[0].length).order(ByteOrder.LITTLE_ENDIAN);
+		for (int b=0;b<table.length;b++) {
+			row.clear();
+			row.asDoubleBuffer().put(table[b]);
+			crc.update(row.duplicate());
+			while (row.hasRemaining()) channel.write(row);
+		}
+	}
+	
+	/** read the cache file if it exists, matches the key and its checksum */
+	private final boolean readLookupTables(File file, String key) {
+		if (!file.isFile()) return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			try {
+				byte[] keybytes = key.getBytes("UTF-8");
+				long expected = 20L+keybytes.length+8L*b1Samples*(t1Samples+uniSamples);
+				if (channel.size()!=expected) return false;
+				ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, expected).order(ByteOrder.LITTLE_ENDIAN);
+				if (data.getInt()!=CACHEMAGIC || data.getInt()!=keybytes.length) return false;
+				byte[] stored = new byte[keybytes.length];
+				data.get(stored);
+				if (!java.util.Arrays.equals(stored, keybytes)) return false;
+				if (data.getInt()!=b1Samples || data.getInt()!=t1Samples) return false;
+				int sum = data.getInt();
+				CRC32 crc = new CRC32();
+				crc.update(data.duplicate());
+				if ((int)crc.getValue()!=sum) return false;
+				
+				double[][] t1table = new double[b1Samples][t1Samples];
+				double[][] unitable = new double[b1Samples][uniSamples];
+				for (int b=0;b<b1Samples;b++) {
+					data.asDoubleBuffer().get(t1table[b]);
+					data.position(data.position()+8*t1Samples);
+				}
+				for (int b=0;b<b1Samples;b++) {
+					data.asDoubleBuffer().get(unitable[b]);
+					data.position(data.position()+8*uniSamples);
+				}
+				T1lookup = t1table;
+				unilookup = unitable;
+				return true;
+			} finally {
+				channel.close();
+				raf.close();
+			}
+		} catch (IOException e) {
+			System.out.println("i/o exception:");
+			System.out.println(e.getMessage());
+			return false;
 		}
-			
-		return;
 	}
 
 }
@@ -0,0 +1,373 @@
+package de.mpg.cbs.core.pipeline;
+
+import java.io.*;
+import java.util.*;
+
+import de.mpg.cbs.utilities.*;
+import de.mpg.cbs.methods.*;
+import de.mpg.cbs.core.brain.*;
+import de.mpg.cbs.core.cortex.*;
+
+
+/*
+ * Runs a chain of core modules on all the subjects of a manifest, in a single JVM.
+ *
+ * The manifest is a tab-separated text file: the first line names the columns
+ * ("subject" followed by the input names, e.g. "inv2", "t1map", "t1w"), and each
+ * following line gives a subject id and its NIfTI images (paths relative to the manifest
+ * are allowed, '#' starts a comment). Atlases are loaded once and copied for each subject,
+ * and topology LUTs are shared across subjects (see CriticalPointLUT).
+ * Subjects run one at a time, each with all the threads: several stages keep the image
+ * geometry in static fields (Gdm3d, BinaryTopology, MgdmFastSegmentation2, ...), so two
+ * subjects cannot be processed at once in the same JVM.
+ */
+public class PipelineMultiSubjectBatch {
+
+	private String manifestParam;
+	private String outputParam;
+	private String atlasParam;
+	private String	lutdir = null;
+
+	private String chainParam = "skullstrip,mgdm,extract,cruise";
+	public static final String[] stageTypes = {"skullstrip", "mgdm", "extract", "cruise"};
+
+	private String[] contrastColumns = {"t1map"};
+	private String[] contrastTypes = {"T1MAP7T"};
+	private String regionParam = "left_cerebrum";
+	private String topologyParam = "wcs";
+	private int stepParam = 5;
+	private int iterationParam = 500;
+
+	private int nthreadsParam = ParallelLoops.availableThreads();
+
+	// outputs
+	private String[] processedSubjects;
+	private String[] failedSubjects;
+
+	// create inputs
+	public final void setManifestFile(String val) { manifestParam = val; }
+	public final void setOutputDirectory(String val) { outputParam = val; }
+	public final void setAtlasFile(String val) { atlasParam = val; }
+	public final void setTopologyLUTdirectory(String val) { lutdir = val; }
+
+	/** comma-separated list of stages, among stageTypes */
+	public final void setModuleChain(String val) { chainParam = val; }
+
+	/** manifest columns used as MGDM contrasts, and their atlas contrast types */
+	public final void setMgdmContrasts(String[] columns, String[] types) { contrastColumns = columns; contrastTypes = types; }
+	public final void setMgdmSteps(int val) { stepParam = val; }
+	public final void setMgdmMaxIterations(int val) { iterationParam = val; }
+	public final void setExtractedRegion(String val) { regionParam = val; }
+	public final void setTopology(String val) { topologyParam = val; }
+
+	/** number of threads used for each subject */
+	public final void setNumberOfThreads(int val) { nthreadsParam = val; }
+
+	// to be used for JIST definitions, generic info / help
+	public static final String getPackage() { return "CBS Tools"; }
+	public static final String getCategory() { return "Pipeline"; }
+	public static final String getLabel() { return "Multi-subject Batch Processing"; }
+	public static final String getName() { return "MultiSubjectBatch"; }
+
+	public static final String[] getAlgorithmAuthors() { return new String[]{"Pierre-Louis Bazin"}; }
+	public static final String getAffiliation() { return "Max Planck Institute for Human Cognitive and Brain Sciences"; }
+	public static final String getDescription() { return "Run a chain of processing modules on multiple subjects, sharing atlases and look-up tables."; }
+
+	public static final String getVersion() { return "3.1.0"; };
+
+	// create outputs
+	public final String[] getProcessedSubjects() { return processedSubjects; }
+	public final String[] getFailedSubjects() { return failedSubjects; }
+
+	/** one subject: its input files and the images passed between stages */
+	private static class Subject {
+		String id;
+		HashMap<String,String> files = new HashMap<String,String>();
+		HashMap<String,Object> images = new HashMap<String,Object>();
+		NiftiFile header;
+		int nx, ny, nz;
+		float rx, ry, rz;
+		int nc;
+	}
+
+	public void execute() {
+		final String[] chain = chainParam.split(",");
+		for (int s=0;s<chain.length;s++) {
+			chain[s] = chain[s].trim();
+			if (!Arrays.asList(stageTypes).contains(chain[s])) throw new IllegalArgumentException("unknown stage: "+chain[s]);
+		}
+
+		final List<Subject> subjects;
+		try {
+			subjects = readManifest(manifestParam);
+		} catch (IOException e) {
+			throw new RuntimeException("cannot read manifest "+manifestParam, e);
+		}
+		new File(outputParam).mkdirs();
+		BasicInfo.displayMessage("Batch processing of "+subjects.size()+" subjects: "+chainParam+"\n");
+
+		// shared data: loaded once by the first subject, copied by the others
+		SimpleShapeAtlas2.setSharedAtlases(true);
+		try {
+			runSubjects(subjects, chain);
+		} finally {
+			SimpleShapeAtlas2.setSharedAtlases(false);
+		}
+	}
+
+	private final void runSubjects(List<Subject> subjects, String[] chain) {
+		int threads = Numerics.max(1, nthreadsParam);
+		List<String> done = new ArrayList<String>();
+		List<String> failed = new ArrayList<String>();
+		for (Subject subject : subjects) {
+			try {
+				readGeometry(subject);
+				long start = System.currentTimeMillis();
+				for (int s=0;s<chain.length;s++) runStage(chain[s], subject, threads);
+				BasicInfo.displayMessage(subject.id+": done ("+(System.currentTimeMillis()-start)/1000+" s)\n");
+				done.add(subject.id);
+			} catch (Exception e) {
+				BasicInfo.displayError(subject.id+": failed ("+e+")\n");
+				failed.add(subject.id);
+			} finally {
+				// release the subject images before the next one
+				subject.images.clear();
+			}
+		}
+		processedSubjects = done.toArray(new String[done.size()]);
+		failedSubjects = failed.toArray(new String[failed.size()]);
+		BasicInfo.displayMessage("Batch processing: "+processedSubjects.length+" subjects processed, "+failedSubjects.length+" failed\n");
+	}
+
+	private final void runStage(String stage, Subject subject, int threads) throws IOException {
+		BasicInfo.displayMessage(subject.id+": "+stage+"\n");
+		if (stage.equals("skullstrip")) runSkullStripping(subject);
+		else if (stage.equals("mgdm")) runMgdm(subject, threads);
+		else if (stage.equals("extract")) runExtraction(subject);
+		else if (stage.equals("cruise")) runCruise(subject);
+	}
+
+	private final void runSkullStripping(Subject subject) throws IOException {
+		BrainMp2rageSkullStripping algo = new BrainMp2rageSkullStripping();
+		algo.setSecondInversionImage(floatImage(subject, "inv2"));
+		if (hasImage(subject, "t1map")) algo.setT1MapImage(floatImage(subject, "t1map"));
+		if (hasImage(subject, "t1w")) algo.setT1weightedImage(floatImage(subject, "t1w"));
+		algo.setDimensions(subject.nx, subject.ny, subject.nz);
+		algo.setResolutions(subject.rx, subject.ry, subject.rz);
+		algo.setTopologyLUTdirectory(lutdir);
+		algo.execute();
+
+		// the masked images replace the originals for the following stages
+		subject.images.put("mask", algo.getBrainMaskImage());
+		subject.images.put("inv2", algo.getMaskedSecondInversionImage());
+		if (algo.getMaskedT1MapImage()!=null) subject.images.put("t1map", algo.getMaskedT1MapImage());
+		if (algo.getMaskedT1weightedImage()!=null) subject.images.put("t1w", algo.getMaskedT1weightedImage());
+
+		writeOutput(subject, "strip-mask", algo.getBrainMaskImage(), 1);
+		writeOutput(subject, "strip-inv2", algo.getMaskedSecondInversionImage(), 1);
+		if (algo.getMaskedT1MapImage()!=null) writeOutput(subject, "strip-t1map", algo.getMaskedT1MapImage(), 1);
+		if (algo.getMaskedT1weightedImage()!=null) writeOutput(subject, "strip-t1w", algo.getMaskedT1weightedImage(), 1);
+	}
+
+	private final void runMgdm(Subject subject, int threads) throws IOException {
+		BrainMgdmMultiSegmentation2 algo = new BrainMgdmMultiSegmentation2();
+		if (contrastColumns.length>0) { algo.setContrastImage1(floatImage(subject, contrastColumns[0])); algo.setContrastType1(contrastTypes[0]); }
+		if (contrastColumns.length>1) { algo.setContrastImage2(floatImage(subject, contrastColumns[1])); algo.setContrastType2(contrastTypes[1]); }
+		if (contrastColumns.length>2) { algo.setContrastImage3(floatImage(subject, contrastColumns[2])); algo.setContrastType3(contrastTypes[2]); }
+		if (contrastColumns.length>3) { algo.setContrastImage4(floatImage(subject, contrastColumns[3])); algo.setContrastType4(contrastTypes[3]); }
+		algo.setDimensions(subject.nx, subject.ny, subject.nz);
+		algo.setResolutions(subject.rx, subject.ry, subject.rz);
+		algo.setAtlasFile(atlasParam);
+		algo.setTopologyLUTdirectory(lutdir);
+		algo.setSteps(stepParam);
+		algo.setMaxIterations(iterationParam);
+		algo.setNumberOfThreads(threads);
+		algo.execute();
+
+		subject.nc = algo.getOutput4Dlength();
+		subject.images.put("segmentation", algo.getSegmentedBrainImage());
+		subject.images.put("distance", algo.getLevelsetBoundaryImage());
+		subject.images.put("memberships", algo.getPosteriorMaximumMemberships4D());
+		subject.images.put("labels", algo.getPosteriorMaximumLabels4D());
+
+		writeOutput(subject, "mgdm-seg", algo.getSegmentedBrainImage(), 1);
+		writeOutput(subject, "mgdm-dist", algo.getLevelsetBoundaryImage(), 1);
+		writeOutput(subject, "mgdm-mems", algo.getPosteriorMaximumMemberships4D(), subject.nc);
+		writeOutput(subject, "mgdm-lbls", algo.getPosteriorMaximumLabels4D(), subject.nc);
+	}
+
+	private final void runExtraction(Subject subject) throws IOException {
+		byte[] labels = (byte[])requireImage(subject, "labels");
+		int[] intlabels = new int[labels.length];
+		for (int n=0;n<labels.length;n++) intlabels[n] = labels[n];
+
+		BrainExtractBrainRegion algo = new BrainExtractBrainRegion();
+		algo.setSegmentationImage((int[])requireImage(subject, "segmentation"));
+		algo.setLevelsetBoundaryImage((float[])requireImage(subject, "distance"));
+		algo.setMaximumMembershipImage((float[])requireImage(subject, "memberships"));
+		algo.setMaximumLabelImage(intlabels);
+		algo.setComponents(subject.nc);
+		algo.setDimensions(subject.nx, subject.ny, subject.nz);
+		algo.setResolutions(subject.rx, subject.ry, subject.rz);
+		algo.setAtlasFile(atlasParam);
+		algo.setExtractedRegion(regionParam);
+		algo.execute();
+
+		subject.images.put("wmmask", algo.getInsideWMmask());
+		subject.images.put("wmproba", algo.getInsideWMprobability());
+		subject.images.put("gmproba", algo.getStructureGMprobability());
+		subject.images.put("csfproba", algo.getBackgroundCSFprobability());
+
+		String region = "xmask-"+regionParam.replace("(","").replace(")","")+"-";
+		writeOutput(subject, region+algo.getInsideName(), algo.getInsideWMprobability(), 1);
+		writeOutput(subject, region+algo.getStructureName(), algo.getStructureGMprobability(), 1);
+		writeOutput(subject, region+algo.getBackgroundName(), algo.getBackgroundCSFprobability(), 1);
+	}
+
+	private final void runCruise(Subject subject) throws IOException {
+		CortexOptimCRUISE algo = new CortexOptimCRUISE();
+		algo.setInitialWMSegmentationImage((byte[])requireImage(subject, "wmmask"));
+		algo.setFilledWMProbabilityImage((float[])requireImage(subject, "wmproba"));
+		algo.setGMProbabilityImage((float[])requireImage(subject, "gmproba"));
+		algo.setCSFandBGProbabilityImage((float[])requireImage(subject, "csfproba"));
+		algo.setDimensions(subject.nx, subject.ny, subject.nz);
+		algo.setResolutions(subject.rx, subject.ry, subject.rz);
+		algo.setTopology(topologyParam);
+		algo.setTopologyLUTdirectory(lutdir);
+		algo.execute();
+
+		writeOutput(subject, "cruise-cortex", algo.getCortexMask(), 1);
+		writeOutput(subject, "cruise-gwb", algo.getWMGMLevelset(), 1);
+		writeOutput(subject, "cruise-cgb", algo.getGMCSFLevelset(), 1);
+		writeOutput(subject, "cruise-avg", algo.getCentralLevelset(), 1);
+		writeOutput(subject, "cruise-thick", algo.getCorticalThickness(), 1);
+		writeOutput(subject, "cruise-pwm", algo.getCerebralWMprobability(), 1);
+		writeOutput(subject, "cruise-pgm", algo.getCorticalGMprobability(), 1);
+		writeOutput(subject, "cruise-pcsf", algo.getSulcalCSFprobability(), 1);
+	}
+
+	// subject data
+
+	private static final List<Subject> readManifest(String filename) throws IOException {
+		File manifest = new File(filename);
+		List<Subject> subjects = new ArrayList<Subject>();
+		BufferedReader br = new BufferedReader(new FileReader(manifest));
+		try {
+			String[] columns = null;
+			String line;
+			while ((line=br.readLine())!=null) {
+				int comment = line.indexOf('#');
+				if (comment>=0) line = line.substring(0, comment);
+				line = line.trim();
+				if (line.length()==0) continue;
+				String[] fields = line.split("\t");
+				if (columns==null) {
+					columns = fields;
+					for (int c=0;c<columns.length;c++) columns[c] = columns[c].trim().toLowerCase();
+					continue;
+				}
+				Subject subject = new Subject();
+				subject.id = fields[0].trim();
+				for (int c=1;c<fields.length && c<columns.length;c++) {
+					String name = fields[c].trim();
+					if (name.length()==0) continue;
+					File file = new File(name);
+					if (!file.isAbsolute()) file = new File(manifest.getAbsoluteFile().getParentFile(), name);
+					subject.files.put(columns[c], file.getPath());
+				}
+				subjects.add(subject);
+			}
+		} finally {
+			br.close();
+		}
+		return subjects;
+	}
+
+	/** reads the geometry from the first input image (all inputs must share it) */
+	private static final void readGeometry(Subject subject) throws IOException {
+		if (subject.files.isEmpty()) throw new IOException("no input image");
+		NiftiFile header = new NiftiFile(subject.files.values().iterator().next());
+		subject.header = header;
+		int[] dim = header.getDimensions();
+		float[] res = header.getResolutions();
+		subject.nx = dim[0]; subject.ny = dim[1]; subject.nz = dim[2];
+		subject.rx = res[0]; subject.ry = res[1]; subject.rz = res[2];
+	}
+
+	private static final boolean hasImage(Subject subject, String name) {
+		return subject.images.containsKey(name) || subject.files.containsKey(name);
+	}
+
+	private static final float[] floatImage(Subject subject, String name) throws IOException {
+		Object image = subject.images.get(name);
+		if (image==null) {
+			String file = subject.files.get(name);
+			if (file==null) throw new IOException("missing input: "+name);
+			NiftiFile nifti = new NiftiFile(file);
+			int[] dim = nifti.getDimensions();
+			if (dim[0]!=subject.nx || dim[1]!=subject.ny || dim[2]!=subject.nz) throw new IOException("dimensions of "+file+" do not match");
+			image = nifti.readFloatVolume(0);
+			subject.images.put(name, image);
+		}
+		return (float[])image;
+	}
+
+	private static final Object requireImage(Subject subject, String name) throws IOException {
+		Object image = subject.images.get(name);
+		if (image==null) throw new IOException("missing "+name+" image: check the order of the module chain");
+		return image;
+	}
+
+	private final void writeOutput(Subject subject, String suffix, Object image, int nt) throws IOException {
+		NiftiFile nifti = new NiftiFile(subject.header);
+		if (nt>1) nifti.setDimensions(new int[]{subject.nx, subject.ny, subject.nz, nt});
+		else nifti.setDimensions(new int[]{subject.nx, subject.ny, subject.nz});
+		nifti.setCompression(-1, 1);
+		String filename = outputParam+File.separator+subject.id+"_"+suffix+".nii.gz";
+		if (image instanceof float[]) nifti.writeImage(filename, (float[])image);
+		else if (image instanceof int[]) nifti.writeImage(filename, (int[])image);
+		else if (image instanceof byte[]) nifti.writeImage(filename, (byte[])image);
+	}
+
+	/**
+	 *	command line: PipelineMultiSubjectBatch manifest.txt output_dir atlas.txt [options]
+	 */
+	public static void main(String[] args) {
+		if (args.length<3) {
+			System.out.println("usage: PipelineMultiSubjectBatch manifest.txt output_dir atlas.txt\n"
+								+"\t[-chain skullstrip,mgdm,extract,cruise] [-contrasts t1map:T1MAP7T,...]\n"
+								+"\t[-region left_cerebrum] [-topology wcs] [-lutdir dir] [-steps 5]\n"
+								+"\t[-threads n]");
+			return;
+		}
+		PipelineMultiSubjectBatch batch = new PipelineMultiSubjectBatch();
+		batch.setManifestFile(args[0]);
+		batch.setOutputDirectory(args[1]);
+		batch.setAtlasFile(args[2]);
+		for (int n=3;n+1<args.length;n+=2) {
+			String opt = args[n];
+			String val = args[n+1];
+			if (opt.equals("-chain")) batch.setModuleChain(val);
+			else if (opt.equals("-contrasts")) {
+				String[] pairs = val.split(",");
+				String[] columns = new String[pairs.length];
+				String[] types = new String[pairs.length];
+				for (int c=0;c<pairs.length;c++) {
+					String[] pair = pairs[c].split(":");
+					columns[c] = pair[0].toLowerCase();
+					types[c] = (pair.length>1) ? pair[1] : "none";
+				}
+				batch.setMgdmContrasts(columns, types);
+			}
+			else if (opt.equals("-region")) batch.setExtractedRegion(val);
+			else if (opt.equals("-topology")) batch.setTopology(val);
+			else if (opt.equals("-lutdir")) batch.setTopologyLUTdirectory(val);
+			else if (opt.equals("-steps")) batch.setMgdmSteps(Integer.parseInt(val));
+			else if (opt.equals("-threads")) batch.setNumberOfThreads(Integer.parseInt(val));
+			else System.out.println("unknown option: "+opt);
+		}
+		batch.execute();
+		if (batch.getFailedSubjects().length>0) System.exit(1);
+	}
+
+}
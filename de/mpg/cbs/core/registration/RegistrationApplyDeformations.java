@@ -25,12 +25,22 @@ public class RegistrationApplyDeformations {
 	private String type4Option = "none";
 	private String interpOption = "nearest";
 	private String padOption = "closest";
+	private int nthreadsParam = 1;
+	
+	// optional list of images deformed in the same pass (4D series, label maps, probabilities)
+	private float[][] sourceImages = null;
+	private int[] sourceTimes = null;
+	private String[] interpOptions = null;
 	
 	public static final String[] types = {"none", "deformation(voxels)", "mapping(voxels)", "deformation(mm)", "mapping(mm)"};
-	public static final String[] interp = {"nearest", "linear"};
+	public static final String[] interp = {"nearest", "linear", "cubic"};
 	public static final String[] pads = {"closest", "zero", "min", "max"};
 	
 	private float[] deformedImage;
+	private float[][] deformedImages;
+	
+	// composed mapping and interpolation weights, reused until the deformations change
+	private DeformationResampler resampler = null;
 	
 	private int nsx, nsy, nsz, nst, nsxyz;
 	private float rsx, rsy, rsz;
@@ -55,16 +65,21 @@ public class RegistrationApplyDeformations {
 	// create inputs
 	public final void setImageToDeform(float[] val) { sourceImage = val; }
 	//public final void setReferenceImage(float[] val) { referenceImage = val; }
-	public final void setDeformationMapping1(float[] val) { deformation1Image = val; }
+	public final void setDeformationMapping1(float[] val) { deformation1Image = val; resampler = null; }
 	public final void setDeformationType1(String val) { type1Option = val; }
-	public final void setDeformationMapping2(float[] val) { deformation2Image = val; }
+	public final void setDeformationMapping2(float[] val) { deformation2Image = val; resampler = null; }
 	public final void setDeformationType2(String val) { type2Option = val; }
-	public final void setDeformationMapping3(float[] val) { deformation3Image = val; }
+	public final void setDeformationMapping3(float[] val) { deformation3Image = val; resampler = null; }
 	public final void setDeformationType3(String val) { type3Option = val; }
-	public final void setDeformationMapping4(float[] val) { deformation4Image = val; }
+	public final void setDeformationMapping4(float[] val) { deformation4Image = val; resampler = null; }
 	public final void setDeformationType4(String val) { type4Option = val; }
 	public final void setInterpolationType(String val) { interpOption = val; }
 	public final void setImagePadding(String val) { padOption = val; }
+	public final void setNumberOfThreads(int val) { nthreadsParam = val; }
+	
+	// several images of the same dimensions, with nt[i] volumes each: processed together
+	public final void setImagesToDeform(float[][] val, int[] nt) { sourceImages = val; sourceTimes = nt; }
+	public final void setInterpolationTypes(String[] val) { interpOptions = val; }
 		
 	
 	public final void setImageDimensions(int x, int y, int z) { nsx=x; nsy=y; nsz=z; nst=1; nsxyz=nsx*nsy*nsz; }
@@ -118,359 +133,77 @@ public class RegistrationApplyDeformations {
 	public final String getVersion() { return "3.1.3"; };
 	
 	public final float[] getDeformedImage() { return deformedImage; }
+	public final float[][] getDeformedImages() { return deformedImages; }
 	
 	public void execute() {
+		
+		if (resampler==null) {
+			String[] typeOption = {type1Option, type2Option, type3Option, type4Option};
+			float[][] deformationImage = {deformation1Image, deformation2Image, deformation3Image, deformation4Image};
+			int[][] nd = {{nd1x,nd1y,nd1z},{nd2x,nd2y,nd2z},{nd3x,nd3y,nd3z},{nd4x,nd4y,nd4z}};
+			float[][] rd = {{rd1x,rd1y,rd1z},{rd2x,rd2y,rd2z},{rd3x,rd3y,rd3z},{rd4x,rd4y,rd4z}};
+			
+			// deformation: in reference space
+			float[] deformation = null;
+			for (int n=0;n<4;n++) {
+				if (n>0 && (typeOption[n].equals("none") || deformationImage[n]==null)) break;
 				
-        // deformation: in reference space
-        System.out.println("load deformation 1");
-        // scale to voxels if needed
-        if (type1Option.endsWith("(mm)")) {
-            System.out.println("normalize to resolution ("+rd1x+", "+rd1y+", "+rd1z+")");
-            for (int x=0;x<nd1x;x++) for (int y=0;y<nd1y;y++) for (int z=0;z<nd1z;z++) {
-                int xyz = x + nd1x*y + nd1x*nd1y*z;
-                deformation1Image[xyz + X*nd1xyz] /= rd1x; 	
-                deformation1Image[xyz + Y*nd1xyz] /= rd1y; 	
-                deformation1Image[xyz + Z*nd1xyz] /= rd1z; 	
-            }
-        }
-        // turn into a mapping if needed
-        if (type1Option.startsWith("deformation")) {
-            for (int x=0;x<nd1x;x++) for (int y=0;y<nd1y;y++) for (int z=0;z<nd1z;z++) {
-                int xyz = x + nd1x*y + nd1x*nd1y*z;
-                deformation1Image[xyz + X*nd1xyz] += x;
-                deformation1Image[xyz + Y*nd1xyz] += y;
-                deformation1Image[xyz + Z*nd1xyz] += z;
-            }
-        }
-        // check for bad borders
-        boolean[] boundary = new boolean[nd1x*nd1y*nd1z];
-        boolean growBoundaries = false;
-        for (int x=0;x<nd1x;x++) for (int y=0;y<nd1y;y++) for (int z=0;z<nd1z;z++) {
-            int xyz = x + nd1x*y + nd1x*nd1y*z;
-            if (deformation1Image[xyz + X*nd1xyz]==0 && deformation1Image[xyz + Y*nd1xyz]==0 && deformation1Image[xyz + Z*nd1xyz]==0) {
-                for (byte k=0;k<6;k++) {
-                    if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd1x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd1y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd1z) {
-                        int ngb = Ngb.neighborIndex(k, xyz,nd1x,nd1y,nd1z);
-                        if (deformation1Image[ngb + X*nd1xyz]!=0 || deformation1Image[ngb + Y*nd1xyz]!=0 || deformation1Image[ngb + Z*nd1xyz]!=0) {
-                            growBoundaries = true;
-                            boundary[ngb] = true;
-                            k=6;
-                        }
-                    }
-                }
-            }
-        }
-        while (growBoundaries) {
-            boolean[] changed = new boolean[nd1x*nd1y*nd1z];
-            growBoundaries = false;
-            for (int x=0;x<nd1x;x++) for (int y=0;y<nd1y;y++) for (int z=0;z<nd1z;z++) {
-                int xyz = x + nd1x*y + nd1x*nd1y*z;
-                if (boundary[xyz]) {
-                    for (byte k=0;k<6;k++) {
-                        if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd1x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd1y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd1z) {
-                            int ngb = Ngb.neighborIndex(k, xyz,nd1x,nd1y,nd1z);
-                            if (deformation1Image[ngb + X*nd1xyz]==0 && deformation1Image[ngb + Y*nd1xyz]==0 && deformation1Image[ngb + Z*nd1xyz]==0) {
-                                deformation1Image[ngb + X*nd1xyz] = deformation1Image[xyz + X*nd1xyz];
-                                deformation1Image[ngb + Y*nd1xyz] = deformation1Image[xyz + Y*nd1xyz];
-                                deformation1Image[ngb + Z*nd1xyz] = deformation1Image[xyz + Z*nd1xyz];
-                                growBoundaries = true;
-                                changed[ngb] = true;
-                            }
-                        }
-                    }
-                }
-            }
-            boundary = changed;
-        }
-        
-        // add to final deformation
-        float[] deformation = deformation1Image;
-        
-        nrx = nd1x; nry = nd1y; nrz = nd1z;
-        rrx = rd1x; rry = rd1y; rrz = rd1z;
-        
-        // second deformation if given
-        if (!type2Option.equals("none") && deformation2Image!=null) {
-            System.out.println("load deformation 2");
-            // scale to voxels if needed
-            if (type2Option.endsWith("(mm)")) {
-                System.out.println("normalize to resolution ("+rd2x+", "+rd2y+", "+rd2z+")");
-                for (int x=0;x<nd2x;x++) for (int y=0;y<nd2y;y++) for (int z=0;z<nd2z;z++) {
-                    int xyz = x + nd2x*y + nd2x*nd2y*z;
-                    deformation2Image[xyz + X*nd2xyz] /= rd2x; 	
-                    deformation2Image[xyz + Y*nd2xyz] /= rd2y; 	
-                    deformation2Image[xyz + Z*nd2xyz] /= rd2z; 	
-                }
-            }
-            // turn into a mapping if needed
-            if (type2Option.startsWith("deformation")) {
-                for (int x=0;x<nd2x;x++) for (int y=0;y<nd2y;y++) for (int z=0;z<nd2z;z++) {
-                    int xyz = x + nd2x*y + nd2x*nd2y*z;
-                    deformation2Image[xyz + X*nd2xyz] += x;
-                    deformation2Image[xyz + Y*nd2xyz] += y;
-                    deformation2Image[xyz + Z*nd2xyz] += z;
-                }
-            }
-            // check for bad borders
-            boundary = new boolean[nd2x*nd2y*nd2z];
-            growBoundaries = false;
-            for (int x=0;x<nd2x;x++) for (int y=0;y<nd2y;y++) for (int z=0;z<nd2z;z++) {
-                int xyz = x + nd2x*y + nd2x*nd2y*z;
-                if (deformation2Image[xyz + X*nd2xyz]==0 && deformation2Image[xyz + Y*nd2xyz]==0 && deformation2Image[xyz + Z*nd2xyz]==0) {
-                    for (byte k=0;k<6;k++) {
-                        if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd2x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd2y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd2z) {
-                            int ngb = Ngb.neighborIndex(k, xyz,nd2x,nd2y,nd2z);
-                            if (deformation2Image[ngb + X*nd2xyz]!=0 || deformation2Image[ngb + Y*nd2xyz]!=0 || deformation2Image[ngb + Z*nd2xyz]!=0) {
-                                growBoundaries = true;
-                                boundary[ngb] = true;
-                                k=6;
-                            }
-                        }
-                    }
-                }
-            }
-            while (growBoundaries) {
-                boolean[] changed = new boolean[nd2x*nd2y*nd2z];
-                growBoundaries = false;
-                for (int x=0;x<nd2x;x++) for (int y=0;y<nd2y;y++) for (int z=0;z<nd2z;z++) {
-                    int xyz = x + nd2x*y + nd2x*nd2y*z;
-                    if (boundary[xyz]) {
-                        for (byte k=0;k<6;k++) {
-                            if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd2x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd2y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd2z) {
-                                int ngb = Ngb.neighborIndex(k, xyz,nd2x,nd2y,nd2z);
-                                if (deformation2Image[ngb + X*nd2xyz]==0 && deformation2Image[ngb + Y*nd2xyz]==0 && deformation2Image[ngb + Z*nd2xyz]==0) {
-                                    deformation2Image[ngb + X*nd2xyz] = deformation2Image[xyz + X*nd2xyz];
-                                    deformation2Image[ngb + Y*nd2xyz] = deformation2Image[xyz + Y*nd2xyz];
-                                    deformation2Image[ngb + Z*nd2xyz] = deformation2Image[xyz + Z*nd2xyz];
-                                    growBoundaries = true;
-                                    changed[ngb] = true;
-                                }
-                            }
-                        }
-                    }
-                }
-                boundary = changed;
-            }
-        
-            // compose the deformations: X' = def1(def2(X))
-            System.out.println("compose deformations");
-            float[] composed12 = new float[nd2x*nd2y*nd2z*3];
-            for (int x=0;x<nd2x;x++) for (int y=0;y<nd2y;y++) for (int z=0;z<nd2z;z++) {
-                int xyz = x + nd2x*y + nd2x*nd2y*z;
-                composed12[xyz+X*nd2xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation2Image[xyz+X*nd2xyz], deformation2Image[xyz+Y*nd2xyz], deformation2Image[xyz+Z*nd2xyz], X, nd1x, nd1y, nd1z, 3);
-                composed12[xyz+Y*nd2xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation2Image[xyz+X*nd2xyz], deformation2Image[xyz+Y*nd2xyz], deformation2Image[xyz+Z*nd2xyz], Y, nd1x, nd1y, nd1z, 3);
-                composed12[xyz+Z*nd2xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation2Image[xyz+X*nd2xyz], deformation2Image[xyz+Y*nd2xyz], deformation2Image[xyz+Z*nd2xyz], Z, nd1x, nd1y, nd1z, 3);
-            }
-            deformation = composed12;
-            deformation1Image = null;
-            deformation2Image = null;
-
-            nrx = nd2x; nry = nd2y; nrz = nd2z;
-            rrx = rd2x; rry = rd2y; rrz = rd2z;
-
-            // third deformation if given
-            if (!type3Option.equals("none") && deformation3Image!=null) {
-                System.out.println("load deformation 3");
-                // scale to voxels if needed
-                if (type3Option.endsWith("(mm)")) {
-                    System.out.println("normalize to resolution ("+rd3x+", "+rd3y+", "+rd3z+")");
-                    for (int x=0;x<nd3x;x++) for (int y=0;y<nd3y;y++) for (int z=0;z<nd3z;z++) {
-                        int xyz = x + nd3x*y + nd3x*nd3y*z;
-                        deformation3Image[xyz + X*nd3xyz] /= rd3x; 	
-                        deformation3Image[xyz + Y*nd3xyz] /= rd3y; 	
-                        deformation3Image[xyz + Z*nd3xyz] /= rd3z; 	
-                    }
-                }
-                // turn into a mapping if needed
-                if (type3Option.startsWith("deformation")) {
-                    for (int x=0;x<nd3x;x++) for (int y=0;y<nd3y;y++) for (int z=0;z<nd3z;z++) {
-                        int xyz = x + nd3x*y + nd3x*nd3y*z;
-                        deformation3Image[xyz + X*nd3xyz] += x;
-                        deformation3Image[xyz + Y*nd3xyz] += y;
-                        deformation3Image[xyz + Z*nd3xyz] += z;
-                    }
-                }
-                // check for bad borders
-                boundary = new boolean[nd3x*nd3y*nd3z];
-                growBoundaries = false;
-                for (int x=0;x<nd3x;x++) for (int y=0;y<nd3y;y++) for (int z=0;z<nd3z;z++) {
-                    int xyz = x + nd3x*y + nd3x*nd3y*z;
-                    if (deformation3Image[xyz + X*nd3xyz]==0 && deformation3Image[xyz + Y*nd3xyz]==0 && deformation3Image[xyz + Z*nd3xyz]==0) {
-                        for (byte k=0;k<6;k++) {
-                            if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd3x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd3y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd3z) {
-                                int ngb = Ngb.neighborIndex(k, xyz,nd3x,nd3y,nd3z);
-                                if (deformation3Image[ngb + X*nd3xyz]!=0 || deformation3Image[ngb + Y*nd3xyz]!=0 || deformation3Image[ngb + Z*nd3xyz]!=0) {
-                                    growBoundaries = true;
-                                    boundary[ngb] = true;
-                                    k=6;
-                                }
-                            }
-                        }
-                    }
-                }
-                while (growBoundaries) {
-                    boolean[] changed = new boolean[nd3x*nd3y*nd3z];
-                    growBoundaries = false;
-                    for (int x=0;x<nd3x;x++) for (int y=0;y<nd3y;y++) for (int z=0;z<nd3z;z++) {
-                        int xyz = x + nd3x*y + nd3x*nd3y*z;
-                        if (boundary[xyz]) {
-                            for (byte k=0;k<6;k++) {
-                                if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd3x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd3y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd3z) {
-                                    int ngb = Ngb.neighborIndex(k, xyz,nd3x,nd3y,nd3z);
-                                    if (deformation3Image[ngb + X*nd3xyz]==0 && deformation3Image[ngb + Y*nd3xyz]==0 && deformation3Image[ngb + Z*nd3xyz]==0) {
-                                        deformation3Image[ngb + X*nd3xyz] = deformation3Image[xyz + X*nd3xyz];
-                                        deformation3Image[ngb + Y*nd3xyz] = deformation3Image[xyz + Y*nd3xyz];
-                                        deformation3Image[ngb + Z*nd3xyz] = deformation3Image[xyz + Z*nd3xyz];
-                                        growBoundaries = true;
-                                        changed[ngb] = true;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    boundary = changed;
-                }
-            
-                // compose the deformations: X' = def1(def2(def3(X)))
-                System.out.println("compose deformations");
-                float[] composed123 = new float[nd3x*nd3y*nd3z*3];
-                for (int x=0;x<nd3x;x++) for (int y=0;y<nd3y;y++) for (int z=0;z<nd3z;z++) {
-                    int xyz = x + nd3x*y + nd3x*nd3y*z;
-                    composed123[xyz+X*nd3xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation3Image[xyz+X*nd3xyz], deformation3Image[xyz+Y*nd3xyz], deformation3Image[xyz+Z*nd3xyz], X, nd2x, nd2y, nd2z, 3);
-                    composed123[xyz+Y*nd3xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation3Image[xyz+X*nd3xyz], deformation3Image[xyz+Y*nd3xyz], deformation3Image[xyz+Z*nd3xyz], Y, nd2x, nd2y, nd2z, 3);
-                    composed123[xyz+Z*nd3xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation3Image[xyz+X*nd3xyz], deformation3Image[xyz+Y*nd3xyz], deformation3Image[xyz+Z*nd3xyz], Z, nd2x, nd2y, nd2z, 3);
-                }
-                deformation = composed123;
-                deformation3Image = null;
-                composed12 = null;
-                
-                nrx = nd3x; nry = nd3y; nrz = nd3z;
-                rrx = rd3x; rry = rd3y; rrz = rd3z;
-                
-                if (!type4Option.equals("none") && deformation4Image!=null) {
-                    System.out.println("load deformation 4");
-                    // scale to voxels if needed
-                    if (type4Option.endsWith("(mm)")) {
-                        System.out.println("normalize to resolution ("+rd4x+", "+rd4y+", "+rd4z+")");
-                        for (int x=0;x<nd4x;x++) for (int y=0;y<nd4y;y++) for (int z=0;z<nd4z;z++) {
-                            int xyz = x + nd4x*y + nd4x*nd4y*z;
-                            deformation4Image[xyz + X*nd4xyz] /= rd4x; 	
-                            deformation4Image[xyz + Y*nd4xyz] /= rd4y; 	
-                            deformation4Image[xyz + Z*nd4xyz] /= rd4z; 	
-                        }
-                    }
-                    // turn into a mapping if needed
-                    if (type4Option.startsWith("deformation")) {
-                        for (int x=0;x<nd4x;x++) for (int y=0;y<nd4y;y++) for (int z=0;z<nd4z;z++) {
-                            int xyz = x + nd4x*y + nd4x*nd4y*z;
-                            deformation4Image[xyz + X*nd4xyz] += x;
-                            deformation4Image[xyz + Y*nd4xyz] += y;
-                            deformation4Image[xyz + Z*nd4xyz] += z;
-                        }
-                    }
-                    // check for bad borders
-                    boundary = new boolean[nd4x*nd4y*nd4z];
-                    growBoundaries = false;
-                    for (int x=0;x<nd4x;x++) for (int y=0;y<nd4y;y++) for (int z=0;z<nd4z;z++) {
-                        int xyz = x + nd4x*y + nd4x*nd4y*z;
-                        if (deformation4Image[xyz + X*nd4xyz]==0 && deformation4Image[xyz + Y*nd4xyz]==0 && deformation4Image[xyz + Z*nd4xyz]==0) {
-                            for (byte k=0;k<6;k++) {
-                                if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd4x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd4y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd4z) {
-                                    int ngb = Ngb.neighborIndex(k, xyz,nd4x,nd4y,nd4z);
-                                    if (deformation4Image[ngb + X*nd4xyz]!=0 || deformation4Image[ngb + Y*nd4xyz]!=0 || deformation4Image[ngb + Z*nd4xyz]!=0) {
-                                        growBoundaries = true;
-                                        boundary[ngb] = true;
-                                        k=6;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    while (growBoundaries) {
-                        boolean[] changed = new boolean[nd4x*nd4y*nd4z];
-                        growBoundaries = false;
-                        for (int x=0;x<nd4x;x++) for (int y=0;y<nd4y;y++) for (int z=0;z<nd4z;z++) {
-                            int xyz = x + nd4x*y + nd4x*nd4y*z;
-                            if (boundary[xyz]) {
-                                for (byte k=0;k<6;k++) {
-                                    if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nd4x && y+Ngb.y[k]>=0 && y+Ngb.y[k]<nd4y && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nd4z) {
-                                        int ngb = Ngb.neighborIndex(k, xyz,nd4x,nd4y,nd4z);
-                                        if (deformation4Image[ngb + X*nd4xyz]==0 && deformation4Image[ngb + Y*nd4xyz]==0 && deformation4Image[ngb + Z*nd4xyz]==0) {
-                                            deformation4Image[ngb + X*nd4xyz] = deformation4Image[xyz + X*nd4xyz];
-                                            deformation4Image[ngb + Y*nd4xyz] = deformation4Image[xyz + Y*nd4xyz];
-                                            deformation4Image[ngb + Z*nd4xyz] = deformation4Image[xyz + Z*nd4xyz];
-                                            growBoundaries = true;
-                                            changed[ngb] = true;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        boundary = changed;
-                    }
-                    // compose the deformations: X' = def1(def2(def3(X)))
-                    System.out.println("compose deformations");
-                    float[] composed1234 = new float[nd4x*nd4y*nd4z*3];
-                    for (int x=0;x<nd4x;x++) for (int y=0;y<nd4y;y++) for (int z=0;z<nd4z;z++) {
-                        int xyz = x + nd4x*y + nd4x*nd4y*z;
-                        composed1234[xyz+X*nd4xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation4Image[xyz+X*nd4xyz], deformation4Image[xyz+Y*nd4xyz], deformation4Image[xyz+Z*nd4xyz], X, nd3x, nd3y, nd3z, 3);
-                        composed1234[xyz+Y*nd4xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation4Image[xyz+X*nd4xyz], deformation4Image[xyz+Y*nd4xyz], deformation4Image[xyz+Z*nd4xyz], Y, nd3x, nd3y, nd3z, 3);
-                        composed1234[xyz+Z*nd4xyz] = ImageInterpolation.linearClosestInterpolation(deformation, deformation4Image[xyz+X*nd4xyz], deformation4Image[xyz+Y*nd4xyz], deformation4Image[xyz+Z*nd4xyz], Z, nd3x, nd3y, nd3z, 3);
-                    }
-                    deformation = composed1234;
-                    deformation4Image = null;
-                    composed123 = null;
-                    
-                    nrx = nd4x; nry = nd4y; nrz = nd4z;
-                    rrx = rd4x; rry = rd4y; rrz = rd4z;
-                }
-            }
-        }
-        nrxyz = nrx*nry*nrz;
-        
-        System.out.println("output dimensions: "+nrx+" x "+nry+" x "+nrz+"("+nst+")");
-        
-        // new image
-        System.out.println("deform image");
-        float min = 1e10f, max = -1e10f;
-        if (padOption.equals("min") || padOption.equals("max")) {
-            for (int x=0;x<nsx;x++) for (int y=0;y<nsy;y++) for (int z=0;z<nsz;z++) for (int t=0;t<nst;t++) {
-                int xyzt = x + nsx*y + nsx*nsy*z + nsx*nsy*nsz*t;
-                if (sourceImage[xyzt]<min) min = sourceImage[xyzt];
-                if (sourceImage[xyzt]>max) max = sourceImage[xyzt];
-            }
-        }
-        deformedImage = new float[nrx*nry*nrz*nst];
-        if (interpOption.equals("nearest")) {
-            for (int x=0;x<nrx;x++) for (int y=0;y<nry;y++) for (int z=0;z<nrz;z++) {
-                int xyz = x + nrx*y + nrx*nry*z;
-                for (int t=0;t<nst;t++) {
-                    if (padOption.equals("closest"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.nearestNeighborClosestInterpolation(sourceImage, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst);
-                    else if (padOption.equals("zero"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.nearestNeighborInterpolation(sourceImage, 0.0f, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst);
-                    else if (padOption.equals("min"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.nearestNeighborInterpolation(sourceImage, min, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst);
-                    else if (padOption.equals("max"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.nearestNeighborInterpolation(sourceImage, max, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst); 
-                }
-            }
-        } else if (interpOption.equals("linear")) {
-            for (int x=0;x<nrx;x++) for (int y=0;y<nry;y++) for (int z=0;z<nrz;z++) {
-                int xyz = x + nrx*y + nrx*nry*z;
-                for (int t=0;t<nst;t++) {
-                    if (padOption.equals("closest"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.linearClosestInterpolation(sourceImage, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst);
-                    else if (padOption.equals("zero"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.linearInterpolation(sourceImage, 0.0f, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst);
-                    else if (padOption.equals("min"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.linearInterpolation(sourceImage, min, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst);
-                    else if (padOption.equals("max"))
-                        deformedImage[xyz + nrxyz*t] = ImageInterpolation.linearInterpolation(sourceImage, max, deformation[xyz+X*nrxyz], deformation[xyz+Y*nrxyz], deformation[xyz+Z*nrxyz], t, nsx, nsy, nsz, nst);
-                }
-            }
-        }
-        sourceImage = null;
-        deformation = null;
-    }
+				System.out.println("load deformation "+(n+1));
+				DeformationResampler.toVoxelMapping(deformationImage[n], typeOption[n].startsWith("deformation"), typeOption[n].endsWith("(mm)"),
+														nd[n][X], nd[n][Y], nd[n][Z], rd[n][X], rd[n][Y], rd[n][Z]);
+				if (n==0) {
+					deformation = deformationImage[n];
+				} else {
+					// compose the deformations: X' = def1(def2(...(X)))
+					System.out.println("compose deformations");
+					deformation = DeformationResampler.compose(deformation, nrx, nry, nrz, 
+																deformationImage[n], nd[n][X], nd[n][Y], nd[n][Z], nthreadsParam);
+				}
+				nrx = nd[n][X]; nry = nd[n][Y]; nrz = nd[n][Z];
+				rrx = rd[n][X]; rry = rd[n][Y]; rrz = rd[n][Z];
+			}
+			deformation1Image = null;
+			deformation2Image = null;
+			deformation3Image = null;
+			deformation4Image = null;
+			
+			// the composed mapping is kept for further images
+			resampler = new DeformationResampler(deformation, nrx, nry, nrz, nsx, nsy, nsz);
+		} else if (!resampler.hasImageDimensions(nsx, nsy, nsz)) {
+			// same mapping, new image space: only the interpolation weights change
+			resampler = new DeformationResampler(resampler.getMapping(), nrx, nry, nrz, nsx, nsy, nsz);
+		}
+		resampler.setNumberOfThreads(nthreadsParam);
+		nrxyz = nrx*nry*nrz;
+		
+		System.out.println("output dimensions: "+nrx+" x "+nry+" x "+nrz+"("+nst+")");
+		
+		// new images
+		if (sourceImages==null) {
+			sourceImages = new float[][]{sourceImage};
+			sourceTimes = new int[]{nst};
+		}
+		int nimg = sourceImages.length;
+		int[] interpType = new int[nimg];
+		for (int i=0;i<nimg;i++) {
+			String option = interpOption;
+			if (interpOptions!=null) option = interpOptions[i];
+			
+			if (option.equals("nearest")) interpType[i] = DeformationResampler.NEAREST;
+			else if (option.equals("linear")) interpType[i] = DeformationResampler.LINEAR;
+			else if (option.equals("cubic")) interpType[i] = DeformationResampler.CUBIC;
+		}
+		int padType = DeformationResampler.CLOSEST;
+		if (padOption.equals("zero")) padType = DeformationResampler.ZERO;
+		else if (padOption.equals("min")) padType = DeformationResampler.MIN;
+		else if (padOption.equals("max")) padType = DeformationResampler.MAX;
+		
+		System.out.println("deform image(s)");
+		deformedImages = resampler.resample(sourceImages, sourceTimes, interpType, padType);
+		deformedImage = deformedImages[0];
+		
+		sourceImage = null;
+		sourceImages = null;
+		sourceTimes = null;
+	}
 }
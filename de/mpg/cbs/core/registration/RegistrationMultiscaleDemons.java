@@ -0,0 +1,132 @@
+package de.mpg.cbs.core.registration;
+
+import de.mpg.cbs.utilities.*;
+import de.mpg.cbs.structures.*;
+import de.mpg.cbs.libraries.*;
+import de.mpg.cbs.methods.*;
+
+
+public class RegistrationMultiscaleDemons {
+
+	// inputs
+	private float[] sourceImage;
+	private float[] targetImage;
+
+	private int nsx, nsy, nsz, nsxyz;
+	private float rsx, rsy, rsz;
+	private int ntx, nty, ntz, ntxyz;
+	private float rtx, rty, rtz;
+
+	private float smoothingParam = 1.0f;
+	private float scaleParam = 1.0f;
+	private int gridParam = 2;
+	private int levelsParam = 3;
+	private int iterationParam = 50;
+	private float changeParam = 0.001f;
+	private String forceParam = "symmetric";
+	private String regularizationParam = "fluid";
+	private String preprocessingParam = "normalized";
+	private int nthreadsParam = 1;
+
+	public static final String[] forceTypes = {"fixed", "moving", "symmetric"};
+	public static final String[] regularizationTypes = {"fluid", "diffusion", "mixed"};
+	public static final String[] preprocessingTypes = {"raw", "normalized", "scaled"};
+
+	// outputs
+	private float[] deformedImage = null;
+	private float[] mappingImage = null;
+	private float[] inverseMappingImage = null;
+
+	// create inputs
+	public final void setSourceImage(float[] val) { sourceImage = val; }
+	public final void setTargetImage(float[] val) { targetImage = val; }
+
+	public final void setSourceDimensions(int x, int y, int z) { nsx=x; nsy=y; nsz=z; nsxyz=nsx*nsy*nsz; }
+	public final void setSourceDimensions(int[] dim) { nsx=dim[0]; nsy=dim[1]; nsz=dim[2]; nsxyz=nsx*nsy*nsz; }
+	public final void setSourceResolutions(float x, float y, float z) { rsx=x; rsy=y; rsz=z; }
+	public final void setSourceResolutions(float[] res) { rsx=res[0]; rsy=res[1]; rsz=res[2]; }
+
+	public final void setTargetDimensions(int x, int y, int z) { ntx=x; nty=y; ntz=z; ntxyz=ntx*nty*ntz; }
+	public final void setTargetDimensions(int[] dim) { ntx=dim[0]; nty=dim[1]; ntz=dim[2]; ntxyz=ntx*nty*ntz; }
+	public final void setTargetResolutions(float x, float y, float z) { rtx=x; rty=y; rtz=z; }
+	public final void setTargetResolutions(float[] res) { rtx=res[0]; rty=res[1]; rtz=res[2]; }
+
+	/** regularization kernel of the deformations, in mm */
+	public final void setSmoothingKernel_mm(float val) { smoothingParam = val; }
+	/** scale of the intensity differences in the consistency term */
+	public final void setSpatialScale(float val) { scaleParam = val; }
+	/** sampling of the deformation grid at the finest level, in voxels */
+	public final void setDeformationGridScale(int val) { gridParam = Numerics.max(1, val); }
+	/** number of pyramid levels: images and grids are subsampled by 2^l at level l */
+	public final void setPyramidLevels(int val) { levelsParam = Numerics.max(1, val); }
+	/** maximum number of iterations at each level */
+	public final void setMaxIterations(int val) { iterationParam = val; }
+	/** relative score variation under which a level stops */
+	public final void setMinChange(float val) { changeParam = val; }
+	public final void setForceType(String val) { forceParam = val; }
+	public final void setRegularizationType(String val) { regularizationParam = val; }
+	public final void setPreprocessingType(String val) { preprocessingParam = val; }
+	public final void setNumberOfThreads(int val) { nthreadsParam = val; }
+
+	// to be used for JIST definitions, generic info / help
+	public final String getPackage() { return "CBS Tools"; }
+	public final String getCategory() { return "Registration.devel"; }
+	public final String getLabel() { return "Multiscale Demons Registration"; }
+	public final String getName() { return "MultiscaleDemons"; }
+
+	public final String[] getAlgorithmAuthors() { return new String[]{"Pierre-Louis Bazin"}; }
+	public final String getAffiliation() { return "Max Planck Institute for Human Cognitive and Brain Sciences"; }
+	public final String getDescription() { return "Inverse consistent Demons registration, run coarse to fine on Gaussian pyramids of the images and deformation grids."; }
+	public final String getLongDescription() { return getDescription(); }
+
+	public final String getVersion() { return "3.1.0"; };
+
+	// create outputs
+	/** source image deformed into the target space */
+	public final float[] getDeformedImage() { return deformedImage; }
+	/** source voxel coordinates of each target voxel (3 components) */
+	public final float[] getMappingImage() { return mappingImage; }
+	/** target voxel coordinates of each source voxel (3 components) */
+	public final float[] getInverseMappingImage() { return inverseMappingImage; }
+
+	public void execute() {
+		int force = DemonsScaledConsistentRegistration.SYMMETRIC;
+		if (forceParam.equals("fixed")) force = DemonsScaledConsistentRegistration.FIXED;
+		else if (forceParam.equals("moving")) force = DemonsScaledConsistentRegistration.MOVING;
+
+		int reg = DemonsScaledConsistentRegistration.GAUSS_FLUID;
+		if (regularizationParam.equals("diffusion")) reg = DemonsScaledConsistentRegistration.GAUSS_DIFFUSION;
+		else if (regularizationParam.equals("mixed")) reg = DemonsScaledConsistentRegistration.GAUSS_MIXED;
+
+		int pre = DemonsScaledConsistentRegistration.NORMALIZED;
+		if (preprocessingParam.equals("raw")) pre = DemonsScaledConsistentRegistration.RAW;
+		else if (preprocessingParam.equals("scaled")) pre = DemonsScaledConsistentRegistration.SCALED;
+
+		DemonsScaledConsistentRegistration demons = new DemonsScaledConsistentRegistration(sourceImage, targetImage,
+																nsx, nsy, nsz, rsx, rsy, rsz,
+																ntx, nty, ntz, rtx, rty, rtz,
+																smoothingParam, scaleParam,
+																false, 0.0f,
+																gridParam, iterationParam,
+																reg, force, DemonsScaledConsistentRegistration.COMPOSITIVE,
+																pre, null);
+		if (!demons.isWorking()) throw new RuntimeException("not enough memory for the Demons registration");
+		demons.setNumberOfThreads(nthreadsParam);
+
+		int[] iterations = new int[levelsParam];
+		for (int l=0;l<levelsParam;l++) iterations[l] = iterationParam;
+		demons.runMultiscaleRegistration(levelsParam, iterations, changeParam);
+
+		deformedImage = demons.exportTransformedImage()[0];
+
+		float[][] map = demons.exportTransformMapping();
+		mappingImage = new float[3*ntxyz];
+		for (int d=0;d<3;d++) for (int xyz=0;xyz<ntxyz;xyz++) mappingImage[xyz+d*ntxyz] = map[d][xyz];
+
+		map = demons.exportInverseTransformMapping();
+		inverseMappingImage = new float[3*nsxyz];
+		for (int d=0;d<3;d++) for (int xyz=0;xyz<nsxyz;xyz++) inverseMappingImage[xyz+d*nsxyz] = map[d][xyz];
+
+		demons.finalize();
+	}
+}
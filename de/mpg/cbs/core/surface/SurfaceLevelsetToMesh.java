@@ -8,7 +8,7 @@ import de.mpg.cbs.methods.*;
 
 import org.apache.commons.math3.util.FastMath;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Generates a topologically consistent iso-surface for a levelel set with a
@@ -31,6 +31,8 @@ public class SurfaceLevelsetToMesh {
     
 	private int nx=-1,ny=-1,nz=-1,nxyz=-1;
 	private float rx, ry, rz;
+	
+	private int nthreadsParam = 1;
 
 	// create inputs
 	public final void setLevelsetImage(float[] val) { lvlImage = val; }
@@ -49,6 +51,8 @@ public class SurfaceLevelsetToMesh {
 	public final void setResolutions(float x, float y, float z) { rx=x; ry=y; rz=z; }
 	public final void setResolutions(float[] res) { rx=res[0]; ry=res[1]; rz=res[2]; }
 
+	public final void setNumberOfThreads(int val) { nthreadsParam = val; }
+
 	// to be used for JIST definitions, generic info / help
 	public final String getPackage() { return "CBS Tools"; }
 	public final String getCategory() { return "Surfaces"; }
@@ -81,57 +85,12 @@ public class SurfaceLevelsetToMesh {
 			{ 6, 4, 2, 0, 7, 5, 3, 1 }, { 5, 7, 1, 3, 4, 6, 0, 2 },
 			{ 6, 2, 7, 3, 4, 0, 5, 1 } };
 
-	private static final int HASHBIT = 5;
-
-	private static final int HASHSIZE = (1 << (3 * HASHBIT)); /*
-															 * hash table size
-															 * (32768)
-															 */
-
-	private static final int MASK = ((1 << HASHBIT) - 1);
-
-	public int HASH(int i, int j, int k) {
-		return ((((((k) & MASK) << HASHBIT) | ((j) & MASK)) << HASHBIT) | ((i) & MASK));
-	}
-
 	public static class Corner {
 		public int i, j, k;
 
 		public double value;
 	}
 
-	public static class EdgeIndex {
-		public int i1, j1, k1;
-
-		public int i2, j2, k2;
-
-		public int vid;
-
-		public EdgeIndex next;
-
-		public EdgeIndex(int i1, int j1, int k1, int i2, int j2, int k2,
-				int vid, EdgeIndex next) {
-			this.i1 = i1;
-			this.j1 = j1;
-			this.k1 = k1;
-			this.i2 = i2;
-			this.j2 = j2;
-			this.k2 = k2;
-			this.vid = vid;
-		}
-	}
-
-	public static class TriangleIndex {
-		public int vid1, vid2, vid3;
-	}
-	
-	
-	public static class KdPoint3 {
-	    public float x;
-	    public float y;
-	    public float z;
-	}
-
 	protected static final byte COUNTER_CLOCKWISE = 9;
 	protected static final byte CLOCKWISE = 3;
 	protected byte direction = COUNTER_CLOCKWISE;
@@ -147,69 +106,33 @@ public class SurfaceLevelsetToMesh {
 
 	/* local data containers */
 	private float[] data;
-	
-	private EdgeIndex[] edgelist;
-
-	private ArrayList<KdPoint3> verts;
 
-	private ArrayList<TriangleIndex> trilist;
+	/* mesh of the slab of cubes: vertex coordinates and triangle vertex ids, in growing arrays */
+	private float[] verts;
+	private int nverts;
+	private int[] tris;
+	private int ntris;
 
-	
-	/* Set vertex id for edge */
-	void setedge(EdgeIndex[] table, int i1, int j1, int k1, int i2, int j2, int k2, int vid) {
-		int index;
-		if (i1 > i2 || (i1 == i2 && (j1 > j2 || (j1 == j2 && k1 > k2)))) {
-
-			int t = i1;
-			i1 = i2;
-			i2 = t;
-
-			t = j1;
-			j1 = j2;
-			j2 = t;
-
-			t = k1;
-			k1 = k2;
-			k2 = t;
-		}
-		index = HASH(i1, j1, k1) + HASH(i2, j2, k2);
-		EdgeIndex new1 = new EdgeIndex(i1, j1, k1, i2, j2, k2, vid,
-				table[index]);
-		new1.next = table[index];
-		table[index] = new1;
-	}
-
-	/* Return vertex id for edge; return -1 if not set */
 	/*
-	 * Each vertex is distinguished by the edge it lies on; thus several
-	 * vertices with different ID may have exactly the same coordinates if they
-	 * lie on a same grid point. Hence, function value equals to iso-value is
-	 * intolerable! Although we can remove triangle with two or more vertices of
-	 * same coords, the comparison (of double-type values) will take time.
+	 * Edge-to-vertex map: vertex ids (or -1) of the edges along X,Y,Z starting from each grid point
+	 * of the two planes of the current cubes (z=zcur first, then z=zcur+1). The plane at the bottom
+	 * of the slab and the plane at its top are kept, to stitch the slabs together.
 	 */
-	private int getedge(EdgeIndex[] table, int i1, int j1, int k1, int i2, int j2, int k2)	{
-		EdgeIndex q;
-		if (i1 > i2 || (i1 == i2 && (j1 > j2 || (j1 == j2 && k1 > k2)))) {
-			int t = i1;
-			i1 = i2;
-			i2 = t;
-			t = j1;
-			j1 = j2;
-			j2 = t;
-			t = k1;
-			k1 = k2;
-			k2 = t;
-		}
-		;
-
-		q = table[HASH(i1, j1, k1) + HASH(i2, j2, k2)];
-		for (; q != null; q = q.next) {
-			if (q.i1 == i1 && q.j1 == j1 && q.k1 == k1 && q.i2 == i2
-					&& q.j2 == j2 && q.k2 == k2) {
-				return q.vid;
-			}
-		}
-		return -1;
+	private int[] edges;
+	private int zcur;
+	private int[] bottomEdges;
+	private int[] topEdges;
+
+	/* cube buffers */
+	private Corner[] corners;
+	private int[] stdbuf = new int[1];
+	private int[] revbuf = new int[1];
+
+	/* Return the position of the edge c1-c2 (neighbors along one axis) in the edge map */
+	private final int edgeslot(Corner c1, Corner c2) {
+		Corner c = (c1.i+c1.j+c1.k < c2.i+c2.j+c2.k) ? c1 : c2;
+		int axis = (c1.i!=c2.i) ? 0 : (c1.j!=c2.j) ? 1 : 2;
+		return 3*(c.i+nx*c.j+nx*ny*(c.k-zcur))+axis;
 	}
 
 	private int vertid(Corner c1, Corner c2)
@@ -218,26 +141,12 @@ public class SurfaceLevelsetToMesh {
 	 * different sign return saved index if any; else compute vertex and save
 	 */
 	{
-		KdPoint3 v = new KdPoint3();
-		KdPoint3 a = new KdPoint3(), b = new KdPoint3();
-		int vid = getedge(edgelist, c1.i, c1.j, c1.k, c2.i, c2.j, c2.k);
-		// System.out.printf("getid %d %d %d %d\n",vid,c1.i,c1.j,c1.k);
-		if (vid != -1) {
-			return vid; /* previously computed */
+		int slot = edgeslot(c1, c2);
+		if (edges[slot] != -1) {
+			return edges[slot]; /* previously computed */
 		}
-		a.x = c1.i;
-		a.y = c1.j;
-		a.z = c1.k;
-
-		b.x = c2.i;
-		b.y = c2.j;
-		b.z = c2.k;
-		interpolate(a, b, c1.value, c2.value, v); /* position */
-		// System.out.format("(%6.2f,%6.2f,%6.2f) %6.2f (%6.2f,%6.2f,%6.2f) %6.2f (%6.2f,%6.2f,%6.2f)\n",a.x,a.y,a.z,c1.value,b.x,b.y,b.z,c2.value,v.x,v.y,v.z);
-
-		addtovertices(verts, v); /* save vertex */
-		vid = verts.size() - 1;
-		setedge(edgelist, c1.i, c1.j, c1.k, c2.i, c2.j, c2.k, vid);
+		int vid = directvid(c1, c2);
+		edges[slot] = vid;
 		return vid;
 	}
 
@@ -247,18 +156,9 @@ public class SurfaceLevelsetToMesh {
 	 * list
 	 */
 	{
-		KdPoint3 v = new KdPoint3();
-		KdPoint3 a = new KdPoint3(), b = new KdPoint3();
-		int vid;
-		a.x = c1.i;
-		a.y = c1.j;
-		a.z = c1.k;
-		b.x = c2.i;
-		b.y = c2.j;
-		b.z = c2.k;
-		interpolate(a, b, c1.value, c2.value, v); /* position */
-		vid = directadd(verts, v); /* save vertex */
-		return vid;
+		if (3*nverts+3 > verts.length) verts = Arrays.copyOf(verts, 2*verts.length);
+		interpolate(c1, c2, c1.value, c2.value, verts, 3*nverts); /* position */
+		return nverts++;
 	}
 
 	/* Compute the asymptote on the face formed by c1,c2,c3, and c4 */
@@ -427,17 +327,6 @@ public class SurfaceLevelsetToMesh {
 			return 0;
 	}
 
-	public ArrayList<EdgeIndex> getEdges() {
-		ArrayList<EdgeIndex> edges = new ArrayList<EdgeIndex>();
-		for (EdgeIndex e : edgelist) {
-			while (e != null) {
-				edges.add(e);
-				e = e.next;
-			}
-		}
-		return edges;
-	}
-
 	/**
 	 * Original implementation of iso-surface algorithm
 	 * 
@@ -455,7 +344,6 @@ public class SurfaceLevelsetToMesh {
 	    
 	    System.out.print("\nConnectivity Consistent Iso-Surface Generation");
 	    
-	    verts = new ArrayList<KdPoint3>();
 		for (int xyz=0;xyz<nxyz;xyz++) {
 	        float tmp = lvlImage[xyz] - level;
 	        /* The following is for TGDM purpose */
@@ -476,15 +364,52 @@ public class SurfaceLevelsetToMesh {
         }
         data = lvlImage;
         
-		edgelist = new EdgeIndex[2 * HASHSIZE];
-		trilist = new ArrayList<TriangleIndex>();
-
-	    for (int x=0;x<nx-1;x++) for (int y=0;y<ny-1;y++) for (int z=0;z<nz-1;z++) {
-	         docube(x,y,z);   
-	    }
+        // slabs of cubes along z are meshed on separate threads, then stitched together
+        final SurfaceLevelsetToMesh[] slabs = new SurfaceLevelsetToMesh[ParallelLoops.numberOfSlabs(0, nz-1, nthreadsParam)];
+        ParallelLoops.forEachSlab(0, nz-1, nthreadsParam, new ParallelLoops.Slab() {
+        	public void run(int start, int end, int thread) {
+        		slabs[thread] = new SurfaceLevelsetToMesh();
+        		slabs[thread].meshSlab(data, nx, ny, nz, connectivity, start, end);
+        	}
+        });
 	    
 	    // output
-	    constructMesh();
+	    constructMesh(slabs);
+	}
+	
+	/* Mesh the cubes in [z0,z1), processing the planes in order */
+	private void meshSlab(float[] data_, int nx_, int ny_, int nz_, int connectivity_, int z0, int z1) {
+		data = data_;
+		setDimensions(nx_, ny_, nz_);
+		connectivity = connectivity_;
+		
+		verts = new float[3*1024];
+		nverts = 0;
+		tris = new int[3*1024];
+		ntris = 0;
+		corners = new Corner[8];
+		for (int i = 0; i < corners.length; i++)
+			corners[i] = new Corner();
+		
+		int nplane = 3*nx*ny;
+		edges = new int[2*nplane];
+		Arrays.fill(edges, -1);
+		for (int z=z0;z<z1;z++) {
+			zcur = z;
+			for (int y=0;y<ny-1;y++) for (int x=0;x<nx-1;x++) {
+				docube(x,y,z);
+			}
+			if (z==z0) bottomEdges = Arrays.copyOf(edges, nplane);
+			if (z<z1-1) {
+				// shift up: the edges along Z of the next plane are not set yet
+				System.arraycopy(edges, nplane, edges, 0, nplane);
+				Arrays.fill(edges, nplane, 2*nplane, -1);
+			}
+		}
+		if (bottomEdges==null) bottomEdges = Arrays.copyOf(edges, nplane);
+		topEdges = Arrays.copyOfRange(edges, nplane, 2*nplane);
+		edges = null;
+		data = null;
 	}
 	
 	/*
@@ -499,12 +424,12 @@ public class SurfaceLevelsetToMesh {
 	private void docube(int x, int y, int z) {
 
 		int idx;
-		int[] std = new int[] { 0 }; /* Index and standard index */
+		int[] std = stdbuf; /* Index and standard index */
 		int perm; /* Used permutation */
-		int[] rev = new int[] { 0 }; /*
-									 * Indicates whether <idx> was inverted
-									 * before rotation
-									 */
+		int[] rev = revbuf; /*
+							 * Indicates whether <idx> was inverted
+							 * before rotation
+							 */
 
 		idx = levelindex(x, y, z);
 		if (idx == 0 || idx == 255) /* Inside || Outside */
@@ -762,52 +687,34 @@ public class SurfaceLevelsetToMesh {
 		return (newidx);
 	}
 	
-	/* Add v to the list of vertices */
-	void addtovertices(ArrayList<KdPoint3> vertices, KdPoint3 v) {
-		// System.out.println("ADD 1 "+v);
-		vertices.add(v);
-	}
-
-	/* Directly add a new vertex to the list of vertices */
-	private int directadd(ArrayList<KdPoint3> vertices, KdPoint3 v) {
-		// System.out.println("ADD 2 "+v);
-		vertices.add(v);
-		return vertices.size() - 1;
-	}
-
 	/*
 	 * From two points of differing sign, interpolate to surface crossing;
 	 * linear interpolation is applied
 	 */
-	void interpolate(KdPoint3 p1, KdPoint3 p2, double v1, double v2, KdPoint3 newp) {
-		int i = 0;
-		KdPoint3 pos = new KdPoint3(), neg = new KdPoint3();
+	/* the point is written in newp[offset..offset+2] */
+	void interpolate(Corner p1, Corner p2, double v1, double v2, float[] newp, int offset) {
+		Corner pos, neg;
 		double tmp;
 		if (v1 < 0) {
-			pos.x = p2.x;
-			pos.y = p2.y;
-			pos.z = p2.z;
-			neg.x = p1.x;
-			neg.y = p1.y;
-			neg.z = p1.z;
+			pos = p2;
+			neg = p1;
 		} else {
-			pos.x = p1.x;
-			pos.y = p1.y;
-			pos.z = p1.z;
-			neg.x = p2.x;
-			neg.y = p2.y;
-			neg.z = p2.z;
+			pos = p1;
+			neg = p2;
 			tmp = v1;
 			v1 = v2;
 			v2 = tmp;
 		}
 
+		newp[offset] = 0.0f;
+		newp[offset+1] = 0.0f;
+		newp[offset+2] = 0.0f;
 		tmp = v2 - v1;
 		if (tmp == 0)
 			return;
-		newp.x = (float) ((neg.x * v2 - pos.x * v1) / tmp);
-		newp.y = (float) ((neg.y * v2 - pos.y * v1) / tmp);
-		newp.z = (float) ((neg.z * v2 - pos.z * v1) / tmp);
+		newp[offset] = (float) ((neg.i * v2 - pos.i * v1) / tmp);
+		newp[offset+1] = (float) ((neg.j * v2 - pos.j * v1) / tmp);
+		newp[offset+2] = (float) ((neg.k * v2 - pos.k * v1) / tmp);
 	}
 
 	private static final float EPS = 1E-3f;
@@ -815,20 +722,19 @@ public class SurfaceLevelsetToMesh {
 	/* Add new triangle to the list of triangles */
 	/* If rev is TRUE, the order of the three vertices are reversed */
 	private void addtriangle(int vid1, int vid2, int vid3, int rev)	{
-		int i;
-		TriangleIndex tri = new TriangleIndex(); /* *triangles; */
+		if (3*ntris+3 > tris.length) tris = Arrays.copyOf(tris, 2*tris.length);
 
 		if (rev == 0) {
-			tri.vid1 = vid1;
-			tri.vid2 = vid2;
-			tri.vid3 = vid3;
+			tris[3*ntris] = vid1;
+			tris[3*ntris+1] = vid2;
+			tris[3*ntris+2] = vid3;
 		} else {
-			tri.vid1 = vid3;
-			tri.vid2 = vid2;
-			tri.vid3 = vid1;
+			tris[3*ntris] = vid3;
+			tris[3*ntris+1] = vid2;
+			tris[3*ntris+2] = vid1;
 		}
 		// System.out.format("ADD TRIANGLE %d %d %d\n",vid1,vid2,vid3);
-		trilist.add(tri);
+		ntris++;
 	}
 
 	    
@@ -849,7 +755,6 @@ public class SurfaceLevelsetToMesh {
 																	 * Vertex
 																	 * ID's
 																	 */
-		KdPoint3 V0;
 		// int n;
 		int subcase;
 		int alphab;
@@ -858,9 +763,6 @@ public class SurfaceLevelsetToMesh {
 															 * ambiguous faces
 															 */
 
-		Corner[] corners = new Corner[8];
-		for (int i = 0; i < corners.length; i++)
-			corners[i] = new Corner();
 		corners[0].i = x;
 		corners[0].j = y;
 		corners[0].k = z;
@@ -1689,29 +1591,53 @@ public class SurfaceLevelsetToMesh {
 	}
 
 
-	private void constructMesh() {
-		float[] points = new float[verts.size() * 3];
-		int indices[] = new int[trilist.size() * 3];
+	/*
+	 * Gather the slab meshes: the vertices on the plane shared by two slabs
+	 * are created in both, and only the ones of the lower slab are kept
+	 */
+	private void constructMesh(SurfaceLevelsetToMesh[] slabs) {
 		data = null;
-		int i = 0;
-		for (TriangleIndex tri : trilist) {
-			// System.out.format("%9d %9d %9d\n", tri.vid1, tri.vid2, tri.vid3);
-			if (direction == COUNTER_CLOCKWISE) {
-				indices[i++] = tri.vid3;
-				indices[i++] = tri.vid2;
-				indices[i++] = tri.vid1;
-			} else {
-				indices[i++] = tri.vid1;
-				indices[i++] = tri.vid2;
-				indices[i++] = tri.vid3;
+		int nplane = nx*ny;
+		int[][] vid = new int[slabs.length][];
+		int npt = 0;
+		int ntri = 0;
+		for (int s=0;s<slabs.length;s++) {
+			vid[s] = new int[slabs[s].nverts];
+			Arrays.fill(vid[s], -1);
+			if (s>0) {
+				for (int c=0;c<nplane;c++) for (int a=0;a<2;a++) {
+					int v = slabs[s].bottomEdges[3*c+a];
+					int u = slabs[s-1].topEdges[3*c+a];
+					if (v>-1 && u>-1) vid[s][v] = vid[s-1][u];
+				}
+			}
+			for (int v=0;v<slabs[s].nverts;v++) if (vid[s][v]==-1) {
+				vid[s][v] = npt++;
 			}
+			ntri += slabs[s].ntris;
 		}
-		i = 0;
-		for (KdPoint3 pt : verts) {
-		    points[3*i+0] = pt.x;
-		    points[3*i+1] = pt.y;
-		    points[3*i+2] = pt.z;
-		    i++;
+		float[] points = new float[3*npt];
+		int indices[] = new int[3*ntri];
+		int i = 0;
+		for (int s=0;s<slabs.length;s++) {
+			SurfaceLevelsetToMesh slab = slabs[s];
+			for (int v=0;v<slab.nverts;v++) {
+				points[3*vid[s][v]+0] = slab.verts[3*v+0];
+				points[3*vid[s][v]+1] = slab.verts[3*v+1];
+				points[3*vid[s][v]+2] = slab.verts[3*v+2];
+			}
+			for (int t=0;t<slab.ntris;t++) {
+				if (direction == COUNTER_CLOCKWISE) {
+					indices[i++] = vid[s][slab.tris[3*t+2]];
+					indices[i++] = vid[s][slab.tris[3*t+1]];
+					indices[i++] = vid[s][slab.tris[3*t+0]];
+				} else {
+					indices[i++] = vid[s][slab.tris[3*t+0]];
+					indices[i++] = vid[s][slab.tris[3*t+1]];
+					indices[i++] = vid[s][slab.tris[3*t+2]];
+				}
+			}
+			slabs[s] = null;
 		}
 		pointList = points;
 		triangleList = indices;
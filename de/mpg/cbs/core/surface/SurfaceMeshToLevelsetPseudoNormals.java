@@ -31,8 +31,14 @@ public class SurfaceMeshToLevelsetPseudoNormals {
 	private static final float PADDING = 100.0f;
 	private static final int narrowbandDist = 0;
 	
+	private String distanceParam = "fast_marching";
+	public static final String[] distanceTypes = {"fast_marching","fast_sweeping"};
+	private int nthreadsParam = 1;
+	
 	public final void setSurfacePoints(float[] val) { pointList = val; }
 	public final void setSurfaceTriangles(int[] val) { triangleList = val; }
+	public final void setDistanceEngine(String val) { distanceParam = val; }
+	public final void setNumberOfThreads(int val) { nthreadsParam = val; }
 
 	public final void setDimensions(int x, int y, int z) { nx=x; ny=y; nz=z; nxyz=nx*ny*nz; }
 	public final void setDimensions(int[] dim) { nx=dim[0]; ny=dim[1]; nz=dim[2]; nxyz=nx*ny*nz; }
@@ -338,6 +344,7 @@ public class SurfaceMeshToLevelsetPseudoNormals {
 		
 		System.out.print("Evolving narrow band.\n");
 		InflateGdm gdm = new InflateGdm(sdf, nx, ny, nz, rx, ry, rz, bgmask, 0.4f, 0.4f, "no",null);
+		gdm.setFastSweeping(distanceParam.equals("fast_sweeping"), nthreadsParam);
 		gdm.evolveNarrowBand(0, 1.0f);
 		
 		System.out.print("Output.\n");
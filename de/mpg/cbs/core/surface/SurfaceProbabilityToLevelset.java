@@ -19,6 +19,10 @@ public class SurfaceProbabilityToLevelset {
 	private float[] probaImage;
 	private int[] maskImage = null;
 	
+	private String distanceParam = "fast_marching";
+	public static final String[] distanceTypes = {"fast_marching","fast_sweeping"};
+	private int nthreadsParam = 1;
+	
 	private int nx, ny, nz, nxyz;
 	private float rx, ry, rz;
 
@@ -26,6 +30,8 @@ public class SurfaceProbabilityToLevelset {
 	public final void setProbabilityImage(float[] val) { probaImage = val; }
 	public final void setMaskImage(int[] val) { maskImage = val; }
 	public final void setScale_mm(float val) { scaleParam = val; }
+	public final void setDistanceEngine(String val) { distanceParam = val; }
+	public final void setNumberOfThreads(int val) { nthreadsParam = val; }
 	
 	public final void setDimensions(int x, int y, int z) { nx=x; ny=y; nz=z; nxyz=nx*ny*nz; }
 	public final void setDimensions(int[] dim) { nx=dim[0]; ny=dim[1]; nz=dim[2]; nxyz=nx*ny*nz; }
@@ -99,6 +105,7 @@ public class SurfaceProbabilityToLevelset {
             lvlImage = gdm.getLevelSet();
 		} else {
             InflateGdm gdm = new InflateGdm(levelset, nx, ny, nz, rx, ry, rz, bgmask, 0.4f, 0.4f, "no", null);
+            gdm.setFastSweeping(distanceParam.equals("fast_sweeping"), nthreadsParam);
             gdm.evolveNarrowBand(0, 1.0f);
             lvlImage = gdm.getLevelSet();
         }
@@ -70,6 +70,12 @@ public class JistBrainMgdmMultiSegmentation2 extends ProcessingAlgorithm {
 	private static final String[] outputTypes = {"label_memberships","raw_memberships","segmentation","debug"};
 	//private static final String[] outputTypes = {"segmentation","memberships","cortex"};
 	private ParamBoolean	normalizeQuantitative;
+	private ParamInteger 	nthreadsParam;
+	private ParamBoolean	sparseParam;
+	private ParamOption		distanceParam;
+	private ParamOption 	pyramidParam;
+	private static final String[] pyramidTypes = {"1","2","4"};
+	private ParamInteger 	refineParam;
 	
 	private ParamVolume segmentImage;
 	private ParamVolume mgdmImage;
@@ -136,6 +142,16 @@ public class JistBrainMgdmMultiSegmentation2 extends ProcessingAlgorithm {
 
 		mainParams.add(normalizeQuantitative = new ParamBoolean("Normalize quantitative maps", true));
 		
+		mainParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
+		mainParams.add(sparseParam = new ParamBoolean("Sparse MGDM storage", false));
+		sparseParam.setDescription("Store the MGDM functions only near the boundaries, to save memory. The level set output is completed beyond the narrow band as with dense storage.");
+		mainParams.add(distanceParam = new ParamOption("Distance computation", BrainMgdmMultiSegmentation2.distanceTypes));
+		distanceParam.setValue("fast_marching");
+		
+		mainParams.add(pyramidParam = new ParamOption("Subsampling factor (coarse-to-fine)", pyramidTypes));
+		pyramidParam.setValue("1");
+		mainParams.add(refineParam = new ParamInteger("Full resolution iterations", 0, 100000, 20));
+		
 		inputParams.add(mainParams);
 		
 		algorithm = new BrainMgdmMultiSegmentation2();
@@ -217,6 +233,12 @@ public class JistBrainMgdmMultiSegmentation2 extends ProcessingAlgorithm {
 		
 		algorithm.setNormalizeQuantitativeMaps(normalizeQuantitative.getValue().booleanValue());
 		
+		algorithm.setNumberOfThreads(nthreadsParam.getValue().intValue());
+		algorithm.setSparseStorage(sparseParam.getValue().booleanValue());
+		algorithm.setDistanceEngine(distanceParam.getValue());
+		algorithm.setPyramidFactor(Integer.parseInt(pyramidParam.getValue()));
+		algorithm.setRefinementIterations(refineParam.getValue().intValue());
+		
 		algorithm.execute();
 		
 		// outputs
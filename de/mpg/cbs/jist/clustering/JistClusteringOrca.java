@@ -131,8 +131,8 @@ public class JistClusteringOrca extends ProcessingAlgorithm {
 		System.out.println("ORCA clustering process");
 		System.out.flush();
 		
-		// import the image data into 1D arrays
-		ImageDataFloat	intensImg = new ImageDataFloat(intensityImage.getImageData());
+		// import the image data as time-major series, outside of the heap
+		ImageData	intensImg = intensityImage.getImageData();
 		
 		int nx = intensImg.getRows();
 		int ny = intensImg.getCols();
@@ -144,22 +144,7 @@ public class JistClusteringOrca extends ProcessingAlgorithm {
 		float rz = intensImg.getHeader().getDimResolutions()[2];
 		String imgname = intensImg.getName();
 		
-		float[][] intensity = new float[nxyz][nt];
-		if (nt>1) {
-			float[][][][] buffer4 = intensImg.toArray4d();
-			for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) for (int t=0;t<nt;t++) {
-				int xyz = x+nx*y+nx*ny*z;
-				intensity[xyz][t] = buffer4[x][y][z][t];
-			}
-			buffer4 = null;
-		} else {
-			float[][][] buffer3 = intensImg.toArray3d();
-			for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-				int xyz = x+nx*y+nx*ny*z;
-				intensity[xyz][0] = buffer3[x][y][z];
-			}
-			buffer3 = null;			
-		}
+		TimeSeries4D intensity = Interface.getTimeSeries4D(intensityImage);
 		intensImg = null;
 		
 		// mask for regions with no data
@@ -209,26 +194,9 @@ public class JistClusteringOrca extends ProcessingAlgorithm {
 			mask[xyz] = false;
 		}
 		
-		float[][] stdev = null;
+		TimeSeries4D stdev = null;
 		if (stdevImage.getImageData()!=null) {
-			stdev = new float[nxyz][nt];
-			ImageDataFloat	stdevImg = new ImageDataFloat(stdevImage.getImageData());
-			if (nt>1) {
-				float[][][][] buffer4 = stdevImg.toArray4d();
-				for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) for (int t=0;t<nt;t++) {
-					int xyz = x+nx*y+nx*ny*z;
-					stdev[xyz][t] = buffer4[x][y][z][t];
-				}
-				buffer4 = null;
-			} else {
-				float[][][] buffer3 = stdevImg.toArray3d();
-				for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-					int xyz = x+nx*y+nx*ny*z;
-					stdev[xyz][0] = buffer3[x][y][z];
-				}
-				buffer3 = null;			
-			}
-			stdevImg = null;
+			stdev = Interface.getTimeSeries4D(stdevImage);
 		}
 
 		// main algorithm
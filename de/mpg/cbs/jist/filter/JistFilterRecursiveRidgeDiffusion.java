@@ -58,6 +58,7 @@ public class JistFilterRecursiveRidgeDiffusion extends ProcessingAlgorithm {
 	private ParamFloat simscaleParam;
 	private ParamInteger ngbParam;
 	private ParamInteger iterParam;
+	private ParamInteger nthreadsParam;
 	private ParamFloat maxdiffParam;
 	
 	private ParamVolume pvImage;
@@ -96,6 +97,7 @@ public class JistFilterRecursiveRidgeDiffusion extends ProcessingAlgorithm {
 		inputParams.add(ngbParam = new ParamInteger("Neighborhood size", 0, 26, 4));
 		inputParams.add(iterParam = new ParamInteger("Max iterations", 0, 1000, 100));
 		inputParams.add(maxdiffParam = new ParamFloat("Max difference", 0.0f, 1.0f, 0.001f));
+		inputParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
 		
 		algorithm = new FilterRecursiveRidgeDiffusion();
 		
@@ -162,6 +164,7 @@ public class JistFilterRecursiveRidgeDiffusion extends ProcessingAlgorithm {
 		algorithm.setNeighborhoodSize(ngbParam.getValue().intValue());
 		algorithm.setMaxIterations(iterParam.getValue().intValue());
 		algorithm.setMaxDifference(maxdiffParam.getValue().floatValue());
+		algorithm.setNumberOfThreads(nthreadsParam.getValue().intValue());
 	
 		algorithm.execute();
 		
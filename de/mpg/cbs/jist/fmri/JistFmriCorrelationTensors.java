@@ -53,6 +53,7 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 	private static final String[] corrTypes = {"positive","negative","shifted","absolute","raw"}; 
 	
 	private ParamBoolean renormParam;
+	private ParamInteger nthreadsParam;
 	
 	private static final byte X=0;
 	private static final byte Y=1;
@@ -88,6 +89,7 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 		inputParams.add(extentParam = new ParamFloat("Neighborhood distance (mm)", 0.0f, 30.0f, 2.0f));
 		inputParams.add(corrParam = new ParamOption("Correlation type", corrTypes));
 		inputParams.add(renormParam = new ParamBoolean("Normalize correlations", true));
+		inputParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
 		
 		inputParams.setPackage("CBS Tools");
 		inputParams.setCategory("fMRI");
@@ -119,7 +121,7 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 	@Override
 	protected void execute(CalculationMonitor monitor){
 		
-		ImageDataFloat	dataImg = new ImageDataFloat(dataImage.getImageData());
+		ImageData	dataImg = dataImage.getImageData();
 		int nx = dataImg.getRows();
 		int ny = dataImg.getCols();
 		int nz = dataImg.getSlices();
@@ -131,8 +133,9 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 		String dataName = dataImg.getName();
 		ImageHeader dataHeader = dataImg.getHeader();
 		
-		float[][][][] data = dataImg.toArray4d();
-		dataImg.dispose();
+		// time-major series, outside of the heap
+		TimeSeries4D data = Interface.getTimeSeries4D(dataImage);
+		dataImg = null;
 		dataImage.dispose();
 		
 		System.out.println("fmri data loaded");
@@ -144,25 +147,26 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 		else if (corrParam.getValue().equals("shifted")) corrtype = SFT;
 		else corrtype = RAW; 
 				
-		// center and norm
+		int nthreads = nthreadsParam.getValue().intValue();
+		
+		// center and norm: the series are normalized once, so correlations are simple scalar products
+		float[] mean = new float[nx*ny*nz];
+		float[] stdev = new float[nx*ny*nz];
+		SeriesCorrelation.normalizeSeries(data, mean, stdev, nthreads);
 		float[][][] center = new float[nx][ny][nz];
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			double mean = 0.0;
-			for (int t=0;t<nt;t++) mean += data[x][y][z][t];
-			center[x][y][z] = (float)(mean/nt);
-		}
 		float[][][] norm = new float[nx][ny][nz];
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			for (int t=0;t<nt;t++) data[x][y][z][t] -= center[x][y][z];
-			double var = 0.0;
-			for (int t=0;t<nt;t++) var += data[x][y][z][t]*data[x][y][z][t];
-			norm[x][y][z] = (float)FastMath.sqrt(var/(nt-1.0));
-		}
 		// mask from zero norm
 		boolean[][][] mask = new boolean[nx][ny][nz];
+		boolean[] masked = new boolean[nx*ny*nz];
 		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
+			int xyz = x+nx*y+nx*ny*z;
+			center[x][y][z] = mean[xyz];
+			norm[x][y][z] = stdev[xyz];
 			mask[x][y][z] = (norm[x][y][z]>0);
+			masked[xyz] = mask[x][y][z];
 		}
+		mean = null;
+		stdev = null;
 		
 		// set the correlation distance step
 		int d = (int)extentParam.getValue().floatValue();
@@ -171,11 +175,19 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 		
 		// how to deal with artefactual correlations in different directions??
 		int[] ncorr = new int[26];
+		int[] index = new int[nx*ny*nz];
+		int nindex = 0;
+		for (int xyz=0;xyz<nx*ny*nz;xyz++) index[xyz] = -1;
 		for (int x=d;x<nx-d;x++) for (int y=d;y<ny-d;y++) for (int z=d;z<nz-d;z++) if (mask[x][y][z]){
+			index[x+nx*y+nx*ny*z] = nindex++;
 			for (int n=0;n<26;n++) {
 				if (mask[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]]) ncorr[n]++;
 			}
 		}
+		// all neighbor correlations at once, in tiles of image rows on all threads
+		float[] ngbcorr = SeriesCorrelation.neighborCorrelations(data, masked, index, nindex, nthreads);
+		System.out.println("neighbor correlations computed");
+		
 		double[][] correlation = new double[26][];
 		for (int n=0;n<26;n++) correlation[n] = new double[ncorr[n]];
 			
@@ -183,9 +195,7 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 		for (int x=d;x<nx-d;x++) for (int y=d;y<ny-d;y++) for (int z=d;z<nz-d;z++) if (mask[x][y][z]){
 			for (int n=0;n<26;n++) {
 				if (mask[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]]) {
-					double corr = 0.0;
-					for (int t=0;t<nt;t++) corr += data[x][y][z][t]*data[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]][t];
-					corr /= nt*norm[x][y][z]*norm[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]];
+					double corr = ngbcorr[26*index[x+nx*y+nx*ny*z]+n];
 					
 					if (corrtype==ABS) corr = Numerics.abs(corr);
 					else if (corrtype==POS) corr = Numerics.max(corr,0.0);
@@ -228,6 +238,9 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 			}
 		}
 		
+		ngbcorr = null;
+		index = null;
+		
 		float[][][][] tensor = new float[nx][ny][nz][6];
 		if (ngbParam.getValue().equals("26C_neighbors")) {
 			for (int n=0;n<26;n++) cid[n] = 0;
@@ -311,9 +324,7 @@ public class JistFmriCorrelationTensors extends ProcessingAlgorithm {
 					if (mask[x+i][y+j][z+l]) {
 						double dist = FastMath.sqrt(i*i+j*j+l*l);
 						if (dist<=maxdist) {
-							double corr = 0.0;
-							for (int t=0;t<nt;t++) corr += data[x][y][z][t]*data[x+i][y+j][z+l][t];
-							corr/= nt*norm[x][y][z]*norm[x+i][y+j][z+l];
+							double corr = data.dot(x+nx*y+nx*ny*z, x+i+nx*(y+j)+nx*ny*(z+l));
 							double[] v = new double[]{i/dist,j/dist,l/dist};
 							tens[XX]	+= corr*v[X]*v[X];
 							tens[XY]	+= corr*v[X]*v[Y];
@@ -8,6 +8,7 @@ import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamOption;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamVolume;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamFloat;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamInteger;
+import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamBoolean;
 import edu.jhu.ece.iacl.jist.structures.image.ImageData;
 import edu.jhu.ece.iacl.jist.structures.image.ImageDataMipav;
 import edu.jhu.ece.iacl.jist.structures.image.ImageDataByte;
@@ -21,6 +22,8 @@ import edu.jhu.ece.iacl.jist.pipeline.AlgorithmInformation.AlgorithmAuthor;
 import edu.jhu.ece.iacl.jist.pipeline.AlgorithmInformation.Citation;
 import edu.jhu.ece.iacl.jist.pipeline.AlgorithmInformation;
 
+import java.util.Arrays;
+
 import de.mpg.cbs.utilities.*;
 import de.mpg.cbs.structures.*;
 import de.mpg.cbs.libraries.*;
@@ -55,6 +58,8 @@ public class JistFmriCorticalSmoothing extends ProcessingAlgorithm {
 	private static final String[] types = {"volumetric","anatomy-guided"};
 	private ParamOption		interpParam;
 	private static final String[] interps = {"linear","nearest"};
+	private ParamBoolean	kernelParam;
+	private ParamInteger	nthreadsParam;
 	//private ParamOption		subfactorParam;
 	//private ParamOption		overfactorParam;
 	//private static final String[] factors = {"1","2","3","4"};
@@ -93,6 +98,9 @@ public class JistFmriCorticalSmoothing extends ProcessingAlgorithm {
 		inputParams.add(interpParam = new ParamOption("fMRI interpolation method", interps));
 		interpParam.setValue("nearest");
 		
+		inputParams.add(kernelParam = new ParamBoolean("Precompute sparse kernel (cached)", false));
+		inputParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
+		
 		inputParams.add(spaceParam = new ParamOption("Output space", spaces));
 		spaceParam.setValue("functional");
 		
@@ -336,6 +344,20 @@ public class JistFmriCorticalSmoothing extends ProcessingAlgorithm {
 		CorticalFmriSmoothing regionSmoothing = new CorticalFmriSmoothing(data, mapping, msk, fwhmParam.getValue().floatValue(), interpParam.getValue(),
 																			nax, nay, naz, rax, ray, raz, nfx, nfy, nfz, nfd, rfx, rfy, rfz);
 		
+		regionSmoothing.setNumberOfThreads(nthreadsParam.getValue().intValue());
+		
+		// kernel mode: all points are smoothed at once with a cached sparse kernel
+		// (too large kernels or outputs fall back to point by point smoothing)
+		float[] kernelsmoothed = null;
+		int[] kernelpoints = null;
+		if (kernelParam.getValue().booleanValue()) {
+			System.out.println("kernel smoothing");
+			if (regionSmoothing.loadGeodesicKernel(null, typeParam.getValue().equals("volumetric"))!=null) {
+				kernelsmoothed = regionSmoothing.smoothWithKernel();
+				kernelpoints = regionSmoothing.getKernelPoints();
+			}
+		}
+		
 		System.out.println("smoothing loop");
 
 		// for debug
@@ -366,7 +388,10 @@ public class JistFmriCorticalSmoothing extends ProcessingAlgorithm {
 				
 				// minimal marching distance from voxel
 				//sdata[x][y][z] = regionSmoothing.smoothFromPoint( xyz);
-				if (typeParam.getValue().equals("volumetric")) {
+				if (kernelsmoothed!=null) {
+					int row = Arrays.binarySearch(kernelpoints, x+nax*y+nax*nay*z);
+					if (row>=0) for (int n=0;n<nfd;n++) smoothed[n] = kernelsmoothed[row*nfd+n];
+				} else if (typeParam.getValue().equals("volumetric")) {
 					regionSmoothing.dilateVolumetrically(smoothed, x, y, z);
 				} else {
 					regionSmoothing.dilateFromPoint(smoothed, x, y, z);
@@ -102,7 +102,7 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 	@Override
 	protected void execute(CalculationMonitor monitor){
 		
-		ImageDataFloat	dataImg = new ImageDataFloat(dataImage.getImageData());
+		ImageData	dataImg = dataImage.getImageData();
 		int nx = dataImg.getRows();
 		int ny = dataImg.getCols();
 		int nz = dataImg.getSlices();
@@ -114,8 +114,9 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 		String dataName = dataImg.getName();
 		ImageHeader dataHeader = dataImg.getHeader();
 		
-		float[][][][] data = dataImg.toArray4d();
-		dataImg.dispose();
+		// time-major series, outside of the heap
+		TimeSeries4D data = Interface.getTimeSeries4D(dataImage);
+		dataImg = null;
 		dataImage.dispose();
 		
 		System.out.println("fmri data loaded");
@@ -129,17 +130,19 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 		
 		// center and norm
 		float[][][] center = new float[nx][ny][nz];
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
+		float[][][] norm = new float[nx][ny][nz];
+		float[] series = new float[nt];
+		for (int z=0;z<nz;z++) for (int y=0;y<ny;y++) for (int x=0;x<nx;x++) {
+			int xyz = x+nx*y+nx*ny*z;
+			data.getSeries(xyz, series);
 			double mean = 0.0;
-			for (int t=0;t<nt;t++) mean += data[x][y][z][t];
+			for (int t=0;t<nt;t++) mean += series[t];
 			center[x][y][z] = (float)(mean/nt);
-		}
-		float[][][] norm = new float[nx][ny][nz];
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			for (int t=0;t<nt;t++) data[x][y][z][t] -= center[x][y][z];
+			for (int t=0;t<nt;t++) series[t] -= center[x][y][z];
 			double var = 0.0;
-			for (int t=0;t<nt;t++) var += data[x][y][z][t]*data[x][y][z][t];
+			for (int t=0;t<nt;t++) var += series[t]*series[t];
 			norm[x][y][z] = (float)FastMath.sqrt(var/(nt-1.0));
+			data.setSeries(xyz, series);
 		}
 		
 		// mask from zero norm
@@ -165,8 +168,7 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 				int cid = 0;
 				for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=1;z<nz-1;z++) if (mask[x][y][z]){
 					if (mask[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]]) {
-						double corr = 0.0;
-						for (int t=0;t<nt;t++) corr += data[x][y][z][t]*data[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]][t];
+						double corr = data.dot(x+nx*y+nx*ny*z, x+Ngb.x[n]+nx*(y+Ngb.y[n])+nx*ny*(z+Ngb.z[n]));
 						corr /= nt*norm[x][y][z]*norm[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]];
 						
 						if (corrtype==ABS) corr = Numerics.abs(corr);
@@ -194,8 +196,7 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 				int cid = 0;
 				for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=1;z<nz-1;z++) if (mask[x][y][z]){
 					if (mask[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]]) {
-						double corr = 0.0;
-						for (int t=0;t<nt;t++) corr += data[x][y][z][t]*data[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]][t];
+						double corr = data.dot(x+nx*y+nx*ny*z, x-Ngb.x[n]+nx*(y-Ngb.y[n])+nx*ny*(z-Ngb.z[n]));
 						corr /= nt*norm[x][y][z]*norm[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]];
 						
 						if (corrtype==ABS) corr = Numerics.abs(corr);
@@ -223,8 +224,7 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 				int cid = 0;
 				for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=1;z<nz-1;z++) if (mask[x][y][z]){
 					if (mask[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]] && mask[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]]) {
-						double corr = 0.0;
-						for (int t=0;t<nt;t++) corr += data[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]][t]*data[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]][t];
+						double corr = data.dot(x-Ngb.x[n]+nx*(y-Ngb.y[n])+nx*ny*(z-Ngb.z[n]), x+Ngb.x[n]+nx*(y+Ngb.y[n])+nx*ny*(z+Ngb.z[n]));
 						corr /= nt*norm[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]]*norm[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]];
 						
 						if (corrtype==ABS) corr = Numerics.abs(corr);
@@ -252,8 +252,7 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 			for (int n=0;n<26;n++) {
 				if (mask[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]] && mask[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]]) {
 					// partial correlation formula?
-					double corrXY = 0.0;
-					for (int t=0;t<nt;t++) corrXY += data[x][y][z][t]*data[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]][t];
+					double corrXY = data.dot(x+nx*y+nx*ny*z, x+Ngb.x[n]+nx*(y+Ngb.y[n])+nx*ny*(z+Ngb.z[n]));
 					corrXY /= nt*norm[x][y][z]*norm[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]];
 
 					if (corrtype==ABS) corrXY = Numerics.abs(corrXY);
@@ -266,8 +265,7 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 						else corrXY = (corrXY-coffset[n])/(coffset[n]-cmin[n]);
 					}
 					
-					double corrYZ = 0.0;
-					for (int t=0;t<nt;t++) corrYZ += data[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]][t]*data[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]][t];
+					double corrYZ = data.dot(x+Ngb.x[n]+nx*(y+Ngb.y[n])+nx*ny*(z+Ngb.z[n]), x-Ngb.x[n]+nx*(y-Ngb.y[n])+nx*ny*(z-Ngb.z[n]));
 					corrYZ /= nt*norm[x+Ngb.x[n]][y+Ngb.y[n]][z+Ngb.z[n]]*norm[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]];
 					
 					if (corrtype==ABS) corrYZ = Numerics.abs(corrYZ);
@@ -280,8 +278,7 @@ public class JistFmriPartialCorrelationBoundaries extends ProcessingAlgorithm {
 						else corrYZ = (corrYZ-coffset[n+52])/(coffset[n+52]-cmin[n+52]);
 					}
 						
-					double corrZX = 0.0;
-					for (int t=0;t<nt;t++) corrZX += data[x][y][z][t]*data[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]][t];
+					double corrZX = data.dot(x+nx*y+nx*ny*z, x-Ngb.x[n]+nx*(y-Ngb.y[n])+nx*ny*(z-Ngb.z[n]));
 					corrZX /= nt*norm[x][y][z]*norm[x-Ngb.x[n]][y-Ngb.y[n]][z-Ngb.z[n]];
 					
 					if (corrtype==ABS) corrZX = Numerics.abs(corrZX);
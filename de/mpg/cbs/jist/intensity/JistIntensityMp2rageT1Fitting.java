@@ -47,6 +47,8 @@ public class JistIntensityMp2rageT1Fitting extends ProcessingAlgorithm {
 	//private ParamOption methodParam;
 	private ParamBoolean	useB1Param;
 	private ParamFloat		b1ScalingParam;
+	private ParamBoolean	cacheParam;
+	private ParamInteger	nthreadsParam;
 	
 	private ParamVolume uniformImage;
 	private ParamVolume t1mapImage;
@@ -84,6 +86,9 @@ public class JistIntensityMp2rageT1Fitting extends ProcessingAlgorithm {
 		mrParam.add(b1ScalingParam = new ParamFloat("B1 map scaling", 0.0f, 10000000000.0f, 1000000.0f));
 		inputParams.add(mrParam);
 		
+		inputParams.add(cacheParam = new ParamBoolean("Cache lookup tables", true));
+		inputParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
+		
 		algorithm = new IntensityMp2rageT1Fitting();
 		
 		inputParams.setPackage(algorithm.getPackage());
@@ -147,6 +152,9 @@ public class JistIntensityMp2rageT1Fitting extends ProcessingAlgorithm {
 		algorithm.setCorrectB1inhomogeneities(useB1Param.getValue().booleanValue());
 		algorithm.setB1mapScaling(b1ScalingParam.getValue().floatValue());
 		
+		algorithm.setCacheLookupTables(cacheParam.getValue().booleanValue());
+		algorithm.setNumberOfThreads(nthreadsParam.getValue().intValue());
+		
 		algorithm.execute();
 
 		Interface.setFloatImage3D(algorithm.getUniformT1weightedImage(), dims, uniformImage, name+"_uni", header);
@@ -7,6 +7,7 @@ import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamCollection;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamFile;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamVolume;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamFloat;
+import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamInteger;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamBoolean;
 import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamOption;
 import edu.jhu.ece.iacl.jist.structures.image.ImageHeader;
@@ -53,6 +54,7 @@ public class JistRegistrationApplyDeformations extends ProcessingAlgorithm {
 	private ParamOption type4Option;
 	private ParamOption interpOption;
 	private ParamOption padOption;
+	private ParamInteger nthreadsParam;
 	
 	//private static final String[] types = {"none", "deformation(voxels)", "mapping(voxels)", "deformation(mm)", "mapping(mm)"};
 	//private static final String[] interp = {"NN", "linear", "WSinc"};
@@ -89,6 +91,7 @@ public class JistRegistrationApplyDeformations extends ProcessingAlgorithm {
 		type4Option.setValue("none");
 		inputParams.add(interpOption = new ParamOption("Interpolation type",RegistrationApplyDeformations.interp));
 		inputParams.add(padOption = new ParamOption("Image padding",RegistrationApplyDeformations.pads));
+		inputParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
 		
 		sourceImage.setLoadAndSaveOnValidate(false);
 		//referenceImage.setLoadAndSaveOnValidate(false);
@@ -176,6 +179,7 @@ public class JistRegistrationApplyDeformations extends ProcessingAlgorithm {
 		// parameters
 		algorithm.setInterpolationType(interpOption.getValue());
 		algorithm.setImagePadding(padOption.getValue());
+		algorithm.setNumberOfThreads(nthreadsParam.getValue().intValue());
 		 
 		algorithm.execute();
 		
@@ -0,0 +1,131 @@
+package de.mpg.cbs.jist.registration;
+
+import edu.jhu.ece.iacl.jist.pipeline.AlgorithmRuntimeException;
+import edu.jhu.ece.iacl.jist.pipeline.CalculationMonitor;
+import edu.jhu.ece.iacl.jist.pipeline.ProcessingAlgorithm;
+import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamCollection;
+import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamFloat;
+import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamInteger;
+import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamOption;
+import edu.jhu.ece.iacl.jist.pipeline.parameter.ParamVolume;
+import edu.jhu.ece.iacl.jist.structures.image.ImageHeader;
+import edu.jhu.ece.iacl.jist.structures.image.VoxelType;
+
+import edu.jhu.ece.iacl.jist.pipeline.DevelopmentStatus;
+import edu.jhu.ece.iacl.jist.pipeline.ProcessingAlgorithm;
+import edu.jhu.ece.iacl.jist.pipeline.AlgorithmInformation;
+
+import de.mpg.cbs.utilities.*;
+import de.mpg.cbs.core.registration.*;
+
+
+public class JistRegistrationMultiscaleDemons extends ProcessingAlgorithm {
+
+	private RegistrationMultiscaleDemons algorithm;
+
+	// jist containers
+	private ParamVolume sourceImage;
+	private ParamVolume targetImage;
+
+	private ParamInteger levelsParam;
+	private ParamInteger iterationParam;
+	private ParamFloat changeParam;
+	private ParamInteger gridParam;
+	private ParamFloat smoothingParam;
+	private ParamFloat scaleParam;
+	private ParamOption forceParam;
+	private ParamOption regularizationParam;
+	private ParamOption preprocessingParam;
+	private ParamInteger nthreadsParam;
+
+	private ParamVolume deformedImage;
+	private ParamVolume mappingImage;
+	private ParamVolume inverseMappingImage;
+
+	protected void createInputParameters(ParamCollection inputParams) {
+		inputParams.add(sourceImage = new ParamVolume("Source Image"));
+		inputParams.add(targetImage = new ParamVolume("Target Image"));
+
+		inputParams.add(levelsParam = new ParamInteger("Pyramid levels", 1, 8, 3));
+		inputParams.add(iterationParam = new ParamInteger("Max iterations per level", 0, 10000, 50));
+		inputParams.add(changeParam = new ParamFloat("Min change", 0.0f, 1.0f, 0.001f));
+		inputParams.add(gridParam = new ParamInteger("Deformation grid scale (voxels)", 1, 16, 2));
+		inputParams.add(smoothingParam = new ParamFloat("Regularization kernel (mm)", 0.0f, 100.0f, 1.0f));
+		inputParams.add(scaleParam = new ParamFloat("Spatial scale", 0.0f, 100.0f, 1.0f));
+		inputParams.add(forceParam = new ParamOption("Force type", RegistrationMultiscaleDemons.forceTypes));
+		forceParam.setValue("symmetric");
+		inputParams.add(regularizationParam = new ParamOption("Regularization type", RegistrationMultiscaleDemons.regularizationTypes));
+		regularizationParam.setValue("fluid");
+		inputParams.add(preprocessingParam = new ParamOption("Intensity preprocessing", RegistrationMultiscaleDemons.preprocessingTypes));
+		preprocessingParam.setValue("normalized");
+		inputParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
+
+		algorithm = new RegistrationMultiscaleDemons();
+
+		inputParams.setPackage(algorithm.getPackage());
+		inputParams.setCategory(algorithm.getCategory());
+		inputParams.setLabel(algorithm.getLabel());
+		inputParams.setName(algorithm.getName());
+
+		AlgorithmInformation info = getAlgorithmInformation();
+		info.add(References.getAuthor(algorithm.getAlgorithmAuthors()[0]));
+		info.setAffiliation(algorithm.getAffiliation());
+		info.setDescription(algorithm.getDescription());
+
+		info.setVersion(algorithm.getVersion());
+		info.setStatus(DevelopmentStatus.RC);
+		info.setEditable(false);
+	}
+
+	@Override
+	protected void createOutputParameters(ParamCollection outputParams) {
+		outputParams.add(deformedImage = new ParamVolume("Deformed Source Image",VoxelType.FLOAT));
+		outputParams.add(mappingImage = new ParamVolume("Mapping function",VoxelType.FLOAT,-1,-1,-1,-1));
+		outputParams.add(inverseMappingImage = new ParamVolume("Inverse Mapping function",VoxelType.FLOAT,-1,-1,-1,-1));
+
+		outputParams.setName("demons images");
+		outputParams.setLabel("demons images");
+	}
+
+	@Override
+	protected void execute(CalculationMonitor monitor){
+		// i/o variables
+		int[] sdims = Interface.getDimensions(sourceImage);
+		float[] sres = Interface.getResolutions(sourceImage);
+		String sname = Interface.getName(sourceImage);
+		ImageHeader sheader = Interface.getHeader(sourceImage);
+
+		int[] tdims = Interface.getDimensions(targetImage);
+		float[] tres = Interface.getResolutions(targetImage);
+		ImageHeader theader = Interface.getHeader(targetImage);
+
+		// main algorithm
+		algorithm = new RegistrationMultiscaleDemons();
+
+		algorithm.setSourceImage(Interface.getFloatImage3D(sourceImage));
+		algorithm.setTargetImage(Interface.getFloatImage3D(targetImage));
+		algorithm.setSourceDimensions(sdims);
+		algorithm.setSourceResolutions(sres);
+		algorithm.setTargetDimensions(tdims);
+		algorithm.setTargetResolutions(tres);
+
+		algorithm.setPyramidLevels(levelsParam.getValue().intValue());
+		algorithm.setMaxIterations(iterationParam.getValue().intValue());
+		algorithm.setMinChange(changeParam.getValue().floatValue());
+		algorithm.setDeformationGridScale(gridParam.getValue().intValue());
+		algorithm.setSmoothingKernel_mm(smoothingParam.getValue().floatValue());
+		algorithm.setSpatialScale(scaleParam.getValue().floatValue());
+		algorithm.setForceType(forceParam.getValue());
+		algorithm.setRegularizationType(regularizationParam.getValue());
+		algorithm.setPreprocessingType(preprocessingParam.getValue());
+		algorithm.setNumberOfThreads(nthreadsParam.getValue().intValue());
+
+		algorithm.execute();
+
+		Interface.setFloatImage3D(algorithm.getDeformedImage(), tdims, deformedImage, sname+"_def", theader);
+		Interface.setFloatImage4D(algorithm.getMappingImage(), tdims, 3, mappingImage, sname+"_map", theader);
+		Interface.setFloatImage4D(algorithm.getInverseMappingImage(), sdims, 3, inverseMappingImage, sname+"_invmap", sheader);
+	}
+
+
+}
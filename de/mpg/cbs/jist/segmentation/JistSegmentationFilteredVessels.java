@@ -889,6 +889,8 @@ public class JistSegmentationFilteredVessels extends ProcessingAlgorithm {
 	private final void shapeDirectionFrangi(float[] img, boolean[] mask, float[] shape, float[][] direction, float scaling) {
         int x,y,z,n;
 		double[][] hessian = new double[3][3];
+		double[] vals = new double[3];
+		double[] dirs = new double[9];
 		
 		double imin=1e16, imax=-1e16;
         for (x=1;x<nx-1;x++) for (y=1;y<ny-1;y++) for (z=1;z<nz-1;z++) {
@@ -909,8 +911,7 @@ public class JistSegmentationFilteredVessels extends ProcessingAlgorithm {
 				ImageGeometry.computeHessianAt(img, id, hessian, nx, ny, nz);
 				
 				// compute eigenvalues
-				double[] vals = Matrix3D.eigenvalues(hessian);
-				double[][] dirs = Matrix3D.eigenvectors(hessian, vals);
+				SymmetricEigenAnalysis.decompose(hessian, vals, dirs);
 				
 				// shape: Frangi score
 				if (vals[0]<0 && vals[1]<0) {
@@ -922,9 +923,9 @@ public class JistSegmentationFilteredVessels extends ProcessingAlgorithm {
 				}
 				
 				// main direction: lowest eigenvalue
-				direction[X][id] = (float)dirs[X][2];
-				direction[Y][id] = (float)dirs[Y][2];
-				direction[Z][id] = (float)dirs[Z][2];
+				direction[X][id] = (float)dirs[6+X];
+				direction[Y][id] = (float)dirs[6+Y];
+				direction[Z][id] = (float)dirs[6+Z];
 				
 			}
 		}
@@ -934,6 +935,8 @@ public class JistSegmentationFilteredVessels extends ProcessingAlgorithm {
         
 	private final void shapeDirectionFromHessian(float[] img, boolean[] mask, float[] shape, float[][] direction) {
        double[][] hessian = new double[3][3];
+       double[] vals = new double[3];
+       double[] dirs = new double[9];
 		       
         for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=1;z<nz-1;z++) {
         	int id = x + nx*y + nx*ny*z;
@@ -941,16 +944,15 @@ public class JistSegmentationFilteredVessels extends ProcessingAlgorithm {
 				ImageGeometry.computeHessianAt(img, id, hessian, nx, ny, nz);
 				
 				// compute eigenvalues
-				double[] vals = Matrix3D.eigenvalues(hessian);
-				double[][] dirs = Matrix3D.eigenvectors(hessian, vals);
+				SymmetricEigenAnalysis.decompose(hessian, vals, dirs);
 				
 				// shape: basic score is not good enough (too much background noise)
 				if (vals[0]!=0) shape[id] = (float)(-vals[0]*(Numerics.abs(vals[0])-Numerics.abs(vals[2]))/Numerics.abs(vals[0]));
 				
 				// main direction: lowest eigenvalue
-				direction[X][id] = (float)dirs[X][2];
-				direction[Y][id] = (float)dirs[Y][2];
-				direction[Z][id] = (float)dirs[Z][2];
+				direction[X][id] = (float)dirs[6+X];
+				direction[Y][id] = (float)dirs[6+Y];
+				direction[Z][id] = (float)dirs[6+Z];
 				
 			}
 		}
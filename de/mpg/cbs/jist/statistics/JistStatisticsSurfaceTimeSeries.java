@@ -106,8 +106,16 @@ public class JistStatisticsSurfaceTimeSeries extends ProcessingAlgorithm {
 		EmbeddedSurface surfdata = dataSurface.getSurface();
 		int nv = surfdata.getVertexCount();
 		String name = surfdata.getName();
-		double[][] data = surfdata.getVertexData();
 		int nt = surfdata.getVertexData(0).length;
+		
+		// time-major series, outside of the heap
+		TimeSeries4D data = new TimeSeries4D(nv, 1, 1, nt);
+		float[] series = new float[nt];
+		for (int v=0;v<nv;v++) {
+			double[] vdata = surfdata.getVertexData(v);
+			for (int t=0;t<nt;t++) series[t] = (float)vdata[t];
+			data.setSeries(v, series);
+		}
 		surfdata = null;
 		
 		BasicInfo.displayMessage("n vertex = "+nv+"\n");
@@ -185,7 +193,8 @@ public class JistStatisticsSurfaceTimeSeries extends ProcessingAlgorithm {
 				}
 				for (int v=0;v<nv;v++) {
 					for (int n=0;n<nlabels;n++) if (labelmap[v]==lbid[n]) {
-						for (int t=0;t<nt;t++) mean[n][t] += data[v][t];
+						data.getSeries(v, series);
+						for (int t=0;t<nt;t++) mean[n][t] += series[t];
 						den[n] += 1.0f;
 					}
 				}
@@ -210,7 +219,8 @@ public class JistStatisticsSurfaceTimeSeries extends ProcessingAlgorithm {
 				}
 				for (int v=0;v<nv;v++)  {
 					for (int n=0;n<nlabels;n++) if (labelmap[v]==lbid[n]) {
-						for (int t=0;t<nt;t++) mean[n][t] += data[v][t];
+						data.getSeries(v, series);
+						for (int t=0;t<nt;t++) mean[n][t] += series[t];
 						den[n] += 1.0f;
 					}
 				}
@@ -219,7 +229,8 @@ public class JistStatisticsSurfaceTimeSeries extends ProcessingAlgorithm {
 				}
 				for (int v=0;v<nv;v++) {
 					for (int n=0;n<nlabels;n++) if (labelmap[v]==lbid[n]) {
-						for (int t=0;t<nt;t++) std[n][t] += (data[v][t]-mean[n][t])*(data[v][t]-mean[n][t]);
+						data.getSeries(v, series);
+						for (int t=0;t<nt;t++) std[n][t] += (series[t]-mean[n][t])*(series[t]-mean[n][t]);
 					}
 				}
 				for (int n=0;n<nlabels;n++) {
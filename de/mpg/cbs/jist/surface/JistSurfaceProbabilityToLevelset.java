@@ -37,6 +37,8 @@ public class JistSurfaceProbabilityToLevelset extends ProcessingAlgorithm {
 	private ParamVolume lvlImage;
 	
 	private ParamFloat scaleParam;
+	private ParamOption distanceParam;
+	private ParamInteger nthreadsParam;
 	
 	private ParamVolume probaImage;
 	
@@ -46,6 +48,9 @@ public class JistSurfaceProbabilityToLevelset extends ProcessingAlgorithm {
 		
 		inputParams.add(probaImage = new ParamVolume("Probability Image"));
 		inputParams.add(scaleParam = new ParamFloat("Scale (mm)", 0.0f, 100.0f, 5.0f));
+		inputParams.add(distanceParam = new ParamOption("Distance computation", SurfaceProbabilityToLevelset.distanceTypes));
+		distanceParam.setValue("fast_marching");
+		inputParams.add(nthreadsParam = new ParamInteger("Number of threads", 1, 1024, 1));
 			
 		algorithm = new SurfaceProbabilityToLevelset();
 		
@@ -86,6 +91,8 @@ public class JistSurfaceProbabilityToLevelset extends ProcessingAlgorithm {
 		
 		algorithm.setProbabilityImage(Interface.getFloatImage3D(probaImage));
 		algorithm.setScale_mm(scaleParam.getValue().floatValue());
+		algorithm.setDistanceEngine(distanceParam.getValue());
+		algorithm.setNumberOfThreads(nthreadsParam.getValue().intValue());
 		
 		algorithm.setDimensions(dims);
 		algorithm.setResolutions(res);
@@ -40,19 +40,24 @@ public class BasicRigidRegistration {
 	private		int			itSupp = 10;				// maximum of steps if the cost function is not improving
 	private		int			itMax,itPlus,Nturn;		// counters for various loops
 	private static final	float   INIT_LAMBDA = 1;
+	private static final	int		MINSAMPLES = 8;		// minimum number of samples along each axis for coarse levels
 	private		float		minEdiff = 1e-6f;		// the minimum variation of energy to require a better alignment
 	private		float		minLambda = 0.001f;		// the minimum variation of energy to require a better alignment
 	private		int			subsample = 3;			// scale for the registration: just subsample the volume 
 	private		int			offset = 0;				// offset used in subsampling (cyclic)
 	private		float		maxdiff;
+	private		float		energy;					// energy of the current transform, after registration
 	
+	// parallel and coarse-to-fine options
+	private		int			nthreads = 1;			// number of threads for the energy sums (or the multiple starts)
+	private		int			nlevels = 1;			// number of smoothed, subsampled levels for coarse-to-fine registration
+	private		float[][]	sourcePyramid, targetPyramid;	// smoothed images for each level (0: original images)
+	private		float[]		sourceL, targetL;		// images and subsampling of the current level
+	private		int			subsampleL;
 	
 	// preset computation arrays for speed up
 	private		float[] 	hessian, gradient;
 	private		float[]		trial;	
-	private		float[] 	Xi;
-    private		float[][] 	dXi;
-    private		float[]		dsource;
 		
 	// constants
 	private static final	float	PI2 = (float)(Math.PI/2.0);
@@ -108,12 +113,47 @@ public class BasicRigidRegistration {
 		trial = new float[Nd];
 		gradient = new float[Nd];
 		hessian = new float[Nd];
-		Xi = new float[3];
-		dXi = new float[3][Nd];
-		dsource = new float[Nd];
 			
 		for (int n=0;n<Nd;n++) transform[n] = 0.0f;
 		rotation = transformModel.computeRotation(transform);
+		
+		sourceL = source;
+		targetL = target;
+		subsampleL = subsample;
+	}
+	
+	/**
+	 *	copy of the registration settings, sharing the images and the pyramid,
+	 *	used to run several initialisations concurrently
+	 */
+	private BasicRigidRegistration(BasicRigidRegistration parent) {
+		source = parent.source;
+		target = parent.target;
+		nx = parent.nx; ny = parent.ny; nz = parent.nz;
+		rx = parent.rx; ry = parent.ry; rz = parent.rz;
+		itMax = parent.itMax;
+		maxdiff = parent.maxdiff;
+		subsample = parent.subsample;
+		offset = parent.offset;
+		nlevels = parent.nlevels;
+		sourcePyramid = parent.sourcePyramid;
+		targetPyramid = parent.targetPyramid;
+		
+		// the transform model has no state: it can be shared
+		transformModel = parent.transformModel;
+		Nd = parent.Nd;
+		
+		transform = new float[Nd];
+		trial = new float[Nd];
+		gradient = new float[Nd];
+		hessian = new float[Nd];
+		
+		for (int n=0;n<Nd;n++) transform[n] = parent.transform[n];
+		rotation = ParametricTransform.computeRotation(transform);
+		
+		sourceL = source;
+		targetL = target;
+		subsampleL = subsample;
 	}
 	
 	public final void finalize() {
@@ -127,6 +167,19 @@ public class BasicRigidRegistration {
 	
 	public final float[] getTransform() { return transform; }
 	
+	public final float getEnergy() { return energy; }
+	
+	public final void setNumberOfThreads(int val) { nthreads = Numerics.max(1, val); }
+	
+	/** coarse-to-fine registration: each level doubles the subsampling of the previous one, on smoothed images */
+	public final void setNumberOfLevels(int val) { 
+		if (val!=nlevels) {
+			nlevels = Numerics.max(1, val);
+			sourcePyramid = null;
+			targetPyramid = null;
+		}
+	}
+	
 	public final float[][] exportTransformMatrix() {
 		float[][] matrix = new float[3][4];
 		rotation = transformModel.computeRotation(transform);
@@ -134,10 +187,112 @@ public class BasicRigidRegistration {
 		return matrix;
 	}
 	
+    /** 
+	 *	runs the Levenberg-Marquardt steps, from the coarsest to the finest level
+	 */
+	public final void register() {
+		if (nlevels>1) {
+			buildPyramid();
+			for (int l=nlevels-1;l>0;l--) {
+				// skip levels too coarse to constrain the rotations
+				if (Numerics.min(nx,ny,nz) < MINSAMPLES*subsample*(1 << l)) continue;
+				
+				if (verbose) BasicInfo.displayMessage("level "+l+"\n");
+				setLevel(l);
+				registerLevel();
+			}
+			setLevel(0);
+		}
+		registerLevel();
+		// update the rotation coefficients
+		rotation = transformModel.computeRotation(transform);
+	}
+	
+    /** 
+	 *	runs several registrations from different initial transforms concurrently, and keeps the best one
+	 */
+	public final void registerMultiStart(final float[][] inits) {
+		if (nlevels>1) buildPyramid();
+		
+		final int nstart = inits.length;
+		final float[][] result = new float[nstart][];
+		final float[] score = new float[nstart];
+		final int subthreads = Numerics.max(1, nthreads/nstart);
+		ParallelLoops.forEachSlab(0, nstart, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int s=start;s<end;s++) {
+					BasicRigidRegistration run = new BasicRigidRegistration(BasicRigidRegistration.this);
+					run.setNumberOfThreads(subthreads);
+					for (int n=0;n<Nd;n++) run.transform[n] = inits[s][n];
+					run.register();
+					result[s] = run.transform;
+					score[s] = run.energy;
+				}
+			}
+		});
+		// maximisation: keep the highest energy
+		int best = -1;
+		for (int s=0;s<nstart;s++) {
+			if (verbose) BasicInfo.displayMessage("start "+s+": E = "+score[s]+" ("+displayTransform(result[s])+")\n");
+			if (best==-1 || score[s]>score[best]) best = s;
+		}
+		if (best>-1) {
+			for (int n=0;n<Nd;n++) transform[n] = result[best][n];
+			energy = score[best];
+		}
+		rotation = ParametricTransform.computeRotation(transform);
+	}
+	
+	/** 
+	 *	initial transforms for multiple starts: the current transform, and rotations of +/- angle (in radians) around each axis
+	 */
+	public final float[][] rotationStarts(float angle) {
+		float[][] inits = new float[7][Nd];
+		for (int s=0;s<7;s++) for (int n=0;n<Nd;n++) inits[s][n] = transform[n];
+		
+		// rotation parameters are the vector part of the quaternion
+		float sina = (float)Math.sin(0.5*angle);
+		for (int n=0;n<3;n++) {
+			inits[1+2*n][n] += sina;
+			inits[2+2*n][n] -= sina;
+		}
+		return inits;
+	}
+	
+	/** 
+	 *	smoothed images for the coarse levels, computed once
+	 */
+	private final void buildPyramid() {
+		if (sourcePyramid!=null) return;
+		
+		sourcePyramid = new float[nlevels][];
+		targetPyramid = new float[nlevels][];
+		sourcePyramid[0] = source;
+		targetPyramid[0] = target;
+		for (int l=1;l<nlevels;l++) {
+			// smoothing at half the sampling distance of the level
+			float sigma = 0.5f*subsample*(1 << l);
+			float[][] kernel = ImageFilters.separableGaussianKernel(sigma, sigma, sigma);
+			sourcePyramid[l] = ImageFilters.separableConvolution(source, nx, ny, nz, kernel, nthreads);
+			targetPyramid[l] = ImageFilters.separableConvolution(target, nx, ny, nz, kernel, nthreads);
+		}
+	}
+	
+	private final void setLevel(int l) {
+		if (l==0) {
+			sourceL = source;
+			targetL = target;
+		} else {
+			sourceL = sourcePyramid[l];
+			targetL = targetPyramid[l];
+		}
+		subsampleL = subsample*(1 << l);
+	}
+	
     /** 
 	 *	runs a Levenberg-Marquardt step
 	 */
-	public final void register() {    
+	private final void registerLevel() {    
 		boolean stop;
 		
         // one level
@@ -154,8 +309,7 @@ public class BasicRigidRegistration {
 			if (verbose) System.out.print(" -> E = "+E+" ("+diff+")\n");
 			E0 = E;
 		}
-		// update the rotation coefficients
-		rotation = transformModel.computeRotation(transform);
+		energy = E0;
     }
   
 	/**
@@ -214,21 +368,9 @@ public class BasicRigidRegistration {
 	 * for a given level l
      * performs only one iteration
 	 */
-    final private float computeRegistrationCoefficients(float[] trans) {
-        float xP=0,yP=0,zP=0;
-        float dPx,dPy,dPz,sourceT,trg;
-     	int				Npt;
-		float			weight;
+    final private float computeRegistrationCoefficients(final float[] trans) {
 		float			cost,norm;
 	
-        // init the coefficients
-		cost = 0.0f;
-		norm = 0.0f;
-		for (int i=0;i<Nd;i++) {
-			hessian[i] = 0.0f;
-			gradient[i] = 0.0f;
-		}
-		
         // set up rotation parameters
         rmat = transformModel.computeRotationMatrix(trans);
 		rotation = rmat.getMatrix();
@@ -237,43 +379,87 @@ public class BasicRigidRegistration {
 		dRc = rmat.derivatives(0.0f, 0.0f, 1.0f);
 		
 		if (debug) System.out.println(displayTransform(trans));	
-			
+		
+		// partial sums for each sampled x plane, in double and reduced in plane order:
+		// the result does not depend on the number of threads
+		final int nxs = sampleNumber();
+		final double[] planeCost = new double[nxs];
+		final double[] planeNorm = new double[nxs];
+		final double[][] planeGradient = new double[nxs][Nd];
+		final double[][] planeHessian = new double[nxs][Nd];
+		
 		// main loop
-		for (int x=offset;x<nx;x+=subsample) for (int y=offset;y<ny;y+=subsample) for (int z=offset;z<nz;z+=subsample) {
-            // compute the local position
-			transformModel.imageToTemplate(Xi,x,y,z,trans,rotation,1.0f);
-				
-			// compute interpolated values
-			sourceT = ImageInterpolation.linearInterpolation(source,0.0f,Xi[0],Xi[1],Xi[2],nx,ny,nz);
-				
-			int xyz = x + y*nx + z*nx*ny;
-			trg = target[xyz];
-			
-			if (sourceT>0 && trg>0) {
-				// data terms
-				weight = imageRegistrationWeight(trg,sourceT);
-						
-				// spatial derivatives
-				dPx = ImageInterpolation.linearInterpolationXderivative(source,Xi[0],Xi[1],Xi[2],nx,ny,nz);
-				dPy = ImageInterpolation.linearInterpolationYderivative(source,Xi[0],Xi[1],Xi[2],nx,ny,nz);
-				dPz = ImageInterpolation.linearInterpolationZderivative(source,Xi[0],Xi[1],Xi[2],nx,ny,nz);
+		ParallelLoops.forEachSlab(0, nxs, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float dPx,dPy,dPz,sourceT,trg;
+				float weight;
+				float[] Xi = new float[3];
+				float[][] dXi = new float[3][Nd];
+				float[] dsource = new float[Nd];
+				for (int xs=start;xs<end;xs++) {
+					double cost = 0.0, norm = 0.0;
+					double[] grad = planeGradient[xs];
+					double[] hess = planeHessian[xs];
+					for (int y=offset;y<ny;y+=subsampleL) for (int z=offset;z<nz;z+=subsampleL) {
+						int x = offset + xs*subsampleL;
+						// compute the local position
+						transformModel.imageToTemplate(Xi,x,y,z,trans,rotation,1.0f);
+							
+						// compute interpolated values
+						sourceT = ImageInterpolation.linearInterpolation(sourceL,0.0f,Xi[0],Xi[1],Xi[2],nx,ny,nz);
+							
+						int xyz = x + y*nx + z*nx*ny;
+						trg = targetL[xyz];
 						
-				// coordinate derivatives
-				transformModel.imageToTemplateDerivatives(dXi,x,y,z,trans,rotation,dRa,dRb,dRc,1.0f);
-								
-				// assemble everything
-				for (int i=0;i<Nd;i++) {
-					dsource[i] = dPx*dXi[0][i] + dPy*dXi[1][i] + dPz*dXi[2][i];
-				}
-				cost += registrationCost(weight,trg,sourceT);
-				norm += registrationNorm(weight,trg,sourceT);
-	
-				for (int i=0;i<Nd;i++) {
-					gradient[i] += registrationCostGradient(weight,trg,sourceT,dsource,i);
-					hessian[i] += registrationCostHessian(weight,trg,sourceT,dsource,i);
+						if (sourceT>0 && trg>0) {
+							// data terms
+							weight = imageRegistrationWeight(trg,sourceT);
+									
+							// spatial derivatives
+							dPx = ImageInterpolation.linearInterpolationXderivative(sourceL,Xi[0],Xi[1],Xi[2],nx,ny,nz);
+							dPy = ImageInterpolation.linearInterpolationYderivative(sourceL,Xi[0],Xi[1],Xi[2],nx,ny,nz);
+							dPz = ImageInterpolation.linearInterpolationZderivative(sourceL,Xi[0],Xi[1],Xi[2],nx,ny,nz);
+									
+							// coordinate derivatives
+							transformModel.imageToTemplateDerivatives(dXi,x,y,z,trans,rotation,dRa,dRb,dRc,1.0f);
+											
+							// assemble everything
+							for (int i=0;i<Nd;i++) {
+								dsource[i] = dPx*dXi[0][i] + dPy*dXi[1][i] + dPz*dXi[2][i];
+							}
+							cost += registrationCost(weight,trg,sourceT);
+							norm += registrationNorm(weight,trg,sourceT);
+				
+							for (int i=0;i<Nd;i++) {
+								grad[i] += registrationCostGradient(weight,trg,sourceT,dsource,i);
+								hess[i] += registrationCostHessian(weight,trg,sourceT,dsource,i);
+							}
+						}
+					}
+					planeCost[xs] = cost;
+					planeNorm[xs] = norm;
 				}
 			}
-       }
+		});
+		
+        // gather the coefficients
+		double sumCost = 0.0, sumNorm = 0.0;
+		double[] sumGradient = new double[Nd];
+		double[] sumHessian = new double[Nd];
+		for (int xs=0;xs<nxs;xs++) {
+			sumCost += planeCost[xs];
+			sumNorm += planeNorm[xs];
+			for (int i=0;i<Nd;i++) {
+				sumGradient[i] += planeGradient[xs][i];
+				sumHessian[i] += planeHessian[xs][i];
+			}
+		}
+		cost = (float)sumCost;
+		norm = (float)sumNorm;
+		for (int i=0;i<Nd;i++) {
+			gradient[i] = (float)sumGradient[i];
+			hessian[i] = (float)sumHessian[i];
+		}
 		if (cost>ZERO) {
 			for (int i=0;i<Nd;i++) {
 				gradient[i] = gradient[i]/norm;
@@ -298,15 +484,8 @@ public class BasicRigidRegistration {
 	 * for a given level l
      * performs only one iteration
 	 */
-    final private float computeRegistrationEnergy(float[] trans) {
-        float weight;
-        float dPx,dPy,dPz,sourceT;
+    final private float computeRegistrationEnergy(final float[] trans) {
         float			cost,norm;
-        float trg;
-		
-        // init the coefficients
-		cost = 0.0f;
-		norm = 0.0f;
 		
         // set up rotation parameters
        rmat = transformModel.computeRotationMatrix(trans);
@@ -314,30 +493,59 @@ public class BasicRigidRegistration {
 		
 	   if (debug) System.out.println(displayTransform(trans));	
 		
+		// partial sums for each sampled x plane, in double and reduced in plane order
+		final int nxs = sampleNumber();
+		final double[] planeCost = new double[nxs];
+		final double[] planeNorm = new double[nxs];
+		
 		// main loop
-		for (int x=offset;x<nx;x+=subsample) for (int y=offset;y<ny;y+=subsample) for (int z=offset;z<nz;z+=subsample) {
-            // compute the local position
-			transformModel.imageToTemplate(Xi,x,y,z,trans,rotation,1.0f);
-			
-			// compute interpolated values
-			sourceT = ImageInterpolation.linearInterpolation(source,0.0f,Xi[0],Xi[1],Xi[2],nx,ny,nz);
-			
-			int xyz = x + y*nx + z*nx*ny;
-			trg = target[xyz];
-			// check if the region is zero: no calculation needed then
-			if (sourceT>0 && trg>0) {
-					
-				// data term : function of the memberships
-				weight = imageRegistrationWeight(trg,sourceT);
-				
-				cost += registrationCost(weight,trg,sourceT);
-				norm += registrationNorm(weight,trg,sourceT);
+		ParallelLoops.forEachSlab(0, nxs, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float weight;
+				float sourceT,trg;
+				float[] Xi = new float[3];
+				for (int xs=start;xs<end;xs++) {
+					double cost = 0.0, norm = 0.0;
+					for (int y=offset;y<ny;y+=subsampleL) for (int z=offset;z<nz;z+=subsampleL) {
+						int x = offset + xs*subsampleL;
+						// compute the local position
+						transformModel.imageToTemplate(Xi,x,y,z,trans,rotation,1.0f);
+						
+						// compute interpolated values
+						sourceT = ImageInterpolation.linearInterpolation(sourceL,0.0f,Xi[0],Xi[1],Xi[2],nx,ny,nz);
+						
+						int xyz = x + y*nx + z*nx*ny;
+						trg = targetL[xyz];
+						// check if the region is zero: no calculation needed then
+						if (sourceT>0 && trg>0) {
+								
+							// data term : function of the memberships
+							weight = imageRegistrationWeight(trg,sourceT);
+							
+							cost += registrationCost(weight,trg,sourceT);
+							norm += registrationNorm(weight,trg,sourceT);
+						}
+					}
+					planeCost[xs] = cost;
+					planeNorm[xs] = norm;
+				}
 			}
-        }
- 
+		});
+		double sumCost = 0.0, sumNorm = 0.0;
+		for (int xs=0;xs<nxs;xs++) {
+			sumCost += planeCost[xs];
+			sumNorm += planeNorm[xs];
+		}
+		cost = (float)sumCost;
+		norm = (float)sumNorm;
         return cost/norm;
     } // computeRegistrationEnergy
     
+	/** number of sampled x planes at the current level */
+	private final int sampleNumber() {
+		return Numerics.max(0, (nx-offset+subsampleL-1)/subsampleL);
+	}
+	
 	final private float registrationCost(float w, float t, float sT) {
 		return w*t*t*sT*sT;
 		//return w*(t-sT)*(t-sT);
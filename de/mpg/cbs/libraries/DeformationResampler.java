@@ -0,0 +1,360 @@
+package de.mpg.cbs.libraries;
+
+import de.mpg.cbs.utilities.*;
+
+/**
+ *
+ *  This class resamples images through a fixed coordinate mapping.
+ *	<p>
+ *	The mapping gives for each voxel of the reference space its coordinates in the source image (in voxels),
+ *	stored as three consecutive volumes X,Y,Z. Chains of deformations are composed once into a single mapping
+ *	(see compose()), and the interpolation cells and weights are cached on first use, so that any number of
+ *	images (3D or 4D) can then be resampled in a single pass over the reference space, on several threads.
+ *	Interpolation and padding follow the ImageInterpolation conventions (nearest/linear, closest or constant values),
+ *	with cubic B-splines computed from SplineProcessing coefficients.
+ */
+
+public class DeformationResampler {
+
+	// interpolation types
+	public static final int		NEAREST = 0;
+	public static final int		LINEAR = 1;
+	public static final int		CUBIC = 3;
+
+	// padding types
+	public static final int		CLOSEST = 0;
+	public static final int		ZERO = 1;
+	public static final int		MIN = 2;
+	public static final int		MAX = 3;
+
+	private static final byte X = 0;
+	private static final byte Y = 1;
+	private static final byte Z = 2;
+
+	private float[] mapping;
+	private int nrx, nry, nrz, nrxyz;		// reference space
+	private int nsx, nsy, nsz, nsxyz;		// source images
+
+	private int nthreads = 1;
+
+	// cached nearest neighbors: closest voxel index, and whether the mapped point is inside the image
+	private int[] nearest = null;
+	private boolean[] nearestInside = null;
+	// cached linear cells: first corner index, bounded offsets, and whether the cell is inside the image
+	private int[] cell = null;
+	private float[] alpha = null, beta = null, gamma = null;
+	private boolean[] cellInside = null;
+
+	/**
+	 *	resampling of images of dimensions nsx_,nsy_,nsz_ through the mapping defined on nrx_,nry_,nrz_
+	 */
+	public DeformationResampler(float[] mapping_, int nrx_, int nry_, int nrz_, int nsx_, int nsy_, int nsz_) {
+		mapping = mapping_;
+		nrx = nrx_; nry = nry_; nrz = nrz_;
+		nrxyz = nrx*nry*nrz;
+		nsx = nsx_; nsy = nsy_; nsz = nsz_;
+		nsxyz = nsx*nsy*nsz;
+	}
+
+	public final void setNumberOfThreads(int nt_) { nthreads = Numerics.max(1, nt_); }
+
+	public final float[] getMapping() { return mapping; }
+	public final int[] getReferenceDimensions() { return new int[]{nrx, nry, nrz}; }
+	public final boolean hasImageDimensions(int nx, int ny, int nz) { return (nx==nsx && ny==nsy && nz==nsz); }
+
+	/**
+	 *	convert a deformation or mapping, in mm or voxels, into a mapping in voxels (in place).
+	 *	Zero vectors next to the field of view are treated as missing and replaced by their closest value.
+	 */
+	public static final void toVoxelMapping(float[] def, boolean isDeformation, boolean isMm,
+												int nx, int ny, int nz, float rx, float ry, float rz) {
+		int nxyz = nx*ny*nz;
+		// scale to voxels if needed
+		if (isMm) {
+			System.out.println("normalize to resolution ("+rx+", "+ry+", "+rz+")");
+			for (int xyz=0;xyz<nxyz;xyz++) {
+				def[xyz + X*nxyz] /= rx;
+				def[xyz + Y*nxyz] /= ry;
+				def[xyz + Z*nxyz] /= rz;
+			}
+		}
+		// turn into a mapping if needed
+		if (isDeformation) {
+			for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
+				int xyz = x + nx*y + nx*ny*z;
+				def[xyz + X*nxyz] += x;
+				def[xyz + Y*nxyz] += y;
+				def[xyz + Z*nxyz] += z;
+			}
+		}
+		// check for bad borders
+		boolean[] boundary = new boolean[nxyz];
+		boolean growBoundaries = false;
+		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
+			int xyz = x + nx*y + nx*ny*z;
+			if (def[xyz + X*nxyz]==0 && def[xyz + Y*nxyz]==0 && def[xyz + Z*nxyz]==0) {
+				for (byte k=0;k<6;k++) {
+					if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nx && y+Ngb.y[k]>=0 && y+Ngb.y[k]<ny && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nz) {
+						int ngb = Ngb.neighborIndex(k, xyz,nx,ny,nz);
+						if (def[ngb + X*nxyz]!=0 || def[ngb + Y*nxyz]!=0 || def[ngb + Z*nxyz]!=0) {
+							growBoundaries = true;
+							boundary[ngb] = true;
+							k=6;
+						}
+					}
+				}
+			}
+		}
+		while (growBoundaries) {
+			boolean[] changed = new boolean[nxyz];
+			growBoundaries = false;
+			for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
+				int xyz = x + nx*y + nx*ny*z;
+				if (boundary[xyz]) {
+					for (byte k=0;k<6;k++) {
+						if (x+Ngb.x[k]>=0 && x+Ngb.x[k]<nx && y+Ngb.y[k]>=0 && y+Ngb.y[k]<ny && z+Ngb.z[k]>=0 && z+Ngb.z[k]<nz) {
+							int ngb = Ngb.neighborIndex(k, xyz,nx,ny,nz);
+							if (def[ngb + X*nxyz]==0 && def[ngb + Y*nxyz]==0 && def[ngb + Z*nxyz]==0) {
+								def[ngb + X*nxyz] = def[xyz + X*nxyz];
+								def[ngb + Y*nxyz] = def[xyz + Y*nxyz];
+								def[ngb + Z*nxyz] = def[xyz + Z*nxyz];
+								growBoundaries = true;
+								changed[ngb] = true;
+							}
+						}
+					}
+				}
+			}
+			boundary = changed;
+		}
+	}
+
+	/**
+	 *	compose two voxel mappings: X' = first(second(X)), defined on the space of the second mapping
+	 */
+	public static final float[] compose(final float[] first, final int n1x, final int n1y, final int n1z,
+										final float[] second, final int n2x, final int n2y, int n2z, int nthreads) {
+		final int n2xyz = n2x*n2y*n2z;
+		final float[] composed = new float[3*n2xyz];
+		ParallelLoops.forEachSlab(0, n2z, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int z=start;z<end;z++) for (int y=0;y<n2y;y++) for (int x=0;x<n2x;x++) {
+					int xyz = x + n2x*y + n2x*n2y*z;
+					float xs = second[xyz+X*n2xyz];
+					float ys = second[xyz+Y*n2xyz];
+					float zs = second[xyz+Z*n2xyz];
+					composed[xyz+X*n2xyz] = ImageInterpolation.linearClosestInterpolation(first, xs, ys, zs, X, n1x, n1y, n1z, 3);
+					composed[xyz+Y*n2xyz] = ImageInterpolation.linearClosestInterpolation(first, xs, ys, zs, Y, n1x, n1y, n1z, 3);
+					composed[xyz+Z*n2xyz] = ImageInterpolation.linearClosestInterpolation(first, xs, ys, zs, Z, n1x, n1y, n1z, 3);
+				}
+			}
+		});
+		return composed;
+	}
+
+	/** resample a single 3D or 4D image (nt volumes) */
+	public final float[] resample(float[] image, int nt, int interp, int pad) {
+		return resample(new float[][]{image}, new int[]{nt}, new int[]{interp}, pad)[0];
+	}
+
+	/**
+	 *	resample several 3D or 4D images (nt[i] volumes each) in one pass over the reference space,
+	 *	each with its own interpolation type
+	 */
+	public final float[][] resample(final float[][] images, final int[] nt, final int[] interp, int pad) {
+		final int nimg = images.length;
+		final float[][] result = new float[nimg][];
+		final float[] padding = new float[nimg];
+		boolean useNearest = false, useLinear = false;
+		// spline coefficients are computed and stored as 3D arrays, one per volume
+		final float[][][][][] coeff = new float[nimg][][][][];
+		for (int i=0;i<nimg;i++) {
+			result[i] = new float[nrxyz*nt[i]];
+			padding[i] = paddingValue(images[i], nsxyz*nt[i], pad);
+			if (interp[i]==NEAREST) useNearest = true;
+			else if (interp[i]==LINEAR) useLinear = true;
+			else if (interp[i]==CUBIC) coeff[i] = splineCoefficients(images[i], nt[i]);
+		}
+		if (useNearest) precomputeNearest();
+		if (useLinear) precomputeLinear();
+		final boolean closest = (pad==CLOSEST);
+
+		ParallelLoops.forEachSlab(0, nrz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float[] wx = new float[4], wy = new float[4], wz = new float[4];
+				for (int xyz=start*nrx*nry;xyz<end*nrx*nry;xyz++) {
+					for (int i=0;i<nimg;i++) {
+						float[] img = images[i];
+						float[] res = result[i];
+						if (interp[i]==NEAREST) {
+							if (closest || nearestInside[xyz]) {
+								int id = nearest[xyz];
+								for (int t=0;t<nt[i];t++) res[xyz+nrxyz*t] = img[id+nsxyz*t];
+							} else {
+								for (int t=0;t<nt[i];t++) res[xyz+nrxyz*t] = padding[i];
+							}
+						} else if (interp[i]==LINEAR) {
+							if (closest || cellInside[xyz]) {
+								float a = alpha[xyz], na = 1.0f - a;
+								float b = beta[xyz], nb = 1.0f - b;
+								float c = gamma[xyz], nc = 1.0f - c;
+								// same operations as in ImageInterpolation, for identical results
+								for (int t=0;t<nt[i];t++) {
+									int id = cell[xyz] + nsxyz*t;
+									res[xyz+nrxyz*t] = na*nb*nc*img[id]
+														+ a*nb*nc*img[id+1]
+														+ na*b*nc*img[id+nsx]
+														+ na*nb*c*img[id+nsx*nsy]
+														+ a*b*nc*img[id+1+nsx]
+														+ na*b*c*img[id+nsx+nsx*nsy]
+														+ a*nb*c*img[id+1+nsx*nsy]
+														+ a*b*c*img[id+1+nsx+nsx*nsy];
+								}
+							} else {
+								for (int t=0;t<nt[i];t++) res[xyz+nrxyz*t] = padding[i];
+							}
+						} else if (interp[i]==CUBIC) {
+							float xs = mapping[xyz+X*nrxyz];
+							float ys = mapping[xyz+Y*nrxyz];
+							float zs = mapping[xyz+Z*nrxyz];
+							if (closest) {
+								xs = Numerics.bounded(xs, 0.0f, nsx-1.0f);
+								ys = Numerics.bounded(ys, 0.0f, nsy-1.0f);
+								zs = Numerics.bounded(zs, 0.0f, nsz-1.0f);
+							} else if (xs<0 || xs>nsx-1 || ys<0 || ys>nsy-1 || zs<0 || zs>nsz-1) {
+								for (int t=0;t<nt[i];t++) res[xyz+nrxyz*t] = padding[i];
+								continue;
+							}
+							int x0 = cubicWeights(xs, wx);
+							int y0 = cubicWeights(ys, wy);
+							int z0 = cubicWeights(zs, wz);
+							for (int t=0;t<nt[i];t++) res[xyz+nrxyz*t] = cubicValue(coeff[i][t], x0, y0, z0, wx, wy, wz);
+						}
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	private final float paddingValue(float[] image, int length, int pad) {
+		if (pad==MIN || pad==MAX) {
+			float min = 1e10f, max = -1e10f;
+			for (int n=0;n<length;n++) {
+				if (image[n]<min) min = image[n];
+				if (image[n]>max) max = image[n];
+			}
+			if (pad==MIN) return min;
+			else return max;
+		}
+		return 0.0f;
+	}
+
+	/** same criteria as ImageInterpolation.nearestNeighbor(Closest)Interpolation */
+	private final void precomputeNearest() {
+		if (nearest!=null) return;
+		nearest = new int[nrxyz];
+		nearestInside = new boolean[nrxyz];
+		ParallelLoops.forEachSlab(0, nrz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int xyz=start*nrx*nry;xyz<end*nrx*nry;xyz++) {
+					float x = mapping[xyz+X*nrxyz];
+					float y = mapping[xyz+Y*nrxyz];
+					float z = mapping[xyz+Z*nrxyz];
+					int x0 = Numerics.bounded(Numerics.round(x),0,nsx-1);
+					int y0 = Numerics.bounded(Numerics.round(y),0,nsy-1);
+					int z0 = Numerics.bounded(Numerics.round(z),0,nsz-1);
+					nearest[xyz] = x0 + nsx*y0 + nsx*nsy*z0;
+					nearestInside[xyz] = !( (x<0) || (x>nsx-1) || (y<0) || (y>nsy-1) || (z<0) || (z>nsz-1) );
+				}
+			}
+		});
+	}
+
+	/** same criteria as ImageInterpolation.linear(Closest)Interpolation */
+	private final void precomputeLinear() {
+		if (cell!=null) return;
+		cell = new int[nrxyz];
+		alpha = new float[nrxyz];
+		beta = new float[nrxyz];
+		gamma = new float[nrxyz];
+		cellInside = new boolean[nrxyz];
+		ParallelLoops.forEachSlab(0, nrz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int xyz=start*nrx*nry;xyz<end*nrx*nry;xyz++) {
+					float x = mapping[xyz+X*nrxyz];
+					float y = mapping[xyz+Y*nrxyz];
+					float z = mapping[xyz+Z*nrxyz];
+					int xf = Numerics.floor(x);
+					int yf = Numerics.floor(y);
+					int zf = Numerics.floor(z);
+					cellInside[xyz] = !( (xf<0) || (xf>nsx-2) || (yf<0) || (yf>nsy-2) || (zf<0) || (zf>nsz-2) );
+					// inside the image, the closest cell is the same
+					int x0 = Numerics.bounded(xf,0,nsx-2);
+					int y0 = Numerics.bounded(yf,0,nsy-2);
+					int z0 = Numerics.bounded(zf,0,nsz-2);
+					cell[xyz] = x0 + nsx*y0 + nsx*nsy*z0;
+					alpha[xyz] = Numerics.bounded(x - x0, 0.0f, 1.0f);
+					beta[xyz] = Numerics.bounded(y - y0, 0.0f, 1.0f);
+					gamma[xyz] = Numerics.bounded(z - z0, 0.0f, 1.0f);
+				}
+			}
+		});
+	}
+
+	/** cubic B-spline coefficients of each volume, computed on several threads */
+	private final float[][][][] splineCoefficients(final float[] image, int nt) {
+		final float[][][][] coeff = new float[nt][][][];
+		ParallelLoops.forEachSlab(0, nt, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int t=start;t<end;t++) {
+					float[][][] vol = new float[nsx][nsy][nsz];
+					for (int x=0;x<nsx;x++) for (int y=0;y<nsy;y++) for (int z=0;z<nsz;z++) {
+						vol[x][y][z] = image[x + nsx*y + nsx*nsy*z + nsxyz*t];
+					}
+					SplineProcessing.samplesToCoefficients(vol, nsx, nsy, nsz, 3);
+					coeff[t] = vol;
+				}
+			}
+		});
+		return coeff;
+	}
+
+	/** cubic B-spline weights (as in SplineProcessing), returns the first index */
+	private static final int cubicWeights(float x, float[] w) {
+		int x0 = (int)Math.floor(x) - 1;
+		double d = x - (x0+1.0);
+		double w3 = (1.0/6.0)*d*d*d;
+		double w0 = (1.0/6.0) + 0.5*d*(d - 1.0) - w3;
+		double w2 = d + w0 - 2.0*w3;
+		w[0] = (float)w0;
+		w[1] = (float)(1.0 - w0 - w2 - w3);
+		w[2] = (float)w2;
+		w[3] = (float)w3;
+		return x0;
+	}
+
+	/** mirror boundary conditions, as in SplineProcessing */
+	private static final int mirror(int i, int n) {
+		if (n==1) return 0;
+		int n2 = 2*n-2;
+		i = (i<0) ? (-i - n2*((-i)/n2)) : (i - n2*(i/n2));
+		if (n<=i) i = n2 - i;
+		return i;
+	}
+
+	private final float cubicValue(float[][][] coeff, int x0, int y0, int z0, float[] wx, float[] wy, float[] wz) {
+		double val = 0.0;
+		for (int i=0;i<4;i++) {
+			float[][] cx = coeff[mirror(x0+i, nsx)];
+			for (int j=0;j<4;j++) {
+				float[] cxy = cx[mirror(y0+j, nsy)];
+				double wxy = wx[i]*wy[j];
+				for (int l=0;l<4;l++) {
+					val += wxy*wz[l]*cxy[mirror(z0+l, nsz)];
+				}
+			}
+		}
+		return (float)val;
+	}
+}
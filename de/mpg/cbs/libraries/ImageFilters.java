@@ -87,39 +87,20 @@ public class ImageFilters {
 	*	convolution with a separable kernel (the kernel is 3x{kx,ky,kz})
 	 */
 	public static float[] separableConvolution(float[] image, int nx, int ny, int nz, float[][] kernel, int kx, int ky, int kz) {
+		return separableConvolution(image, nx, ny, nz, kernel, kx, ky, kz, 1);
+	}
+		
+	/**
+	*	convolution with a separable kernel (the kernel is 3x{kx,ky,kz}), on nthreads threads
+	 */
+	public static float[] separableConvolution(float[] image, int nx, int ny, int nz, float[][] kernel, int kx, int ky, int kz, int nthreads) {
 		float[] result = new float[nx*ny*nz];
 		float[] temp = new float[nx*ny*nz];
-		int xi,yj,zl;
 		
-		//MedicUtilPublic.displayMessage("kernel size: "+kx+"x"+ky+"x"+kz+"\n");
-		
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			result[xyz] = 0.0f;	
-			for (int i=-kx;i<=kx;i++) {
-				if ( (x+i>=0) && (x+i<nx) ) {
-					result[xyz] += image[xyz+i]*kernel[0][kx+i];
-				}
-			}
-		}
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			temp[xyz] = 0.0f;	
-			for (int i=-ky;i<=ky;i++) {
-				if ( (y+i>=0) && (y+i<ny) ) {
-					temp[xyz] += result[xyz+i*nx]*kernel[1][ky+i];
-				}
-			}
-		}
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			result[xyz] = 0.0f;	
-			for (int i=-kz;i<=kz;i++) {
-				if ( (z+i>=0) && (z+i<nz) ) {
-					result[xyz] += temp[xyz+i*nx*ny]*kernel[2][kz+i];
-				}
-			}
-		}
+		nthreads = convolutionThreads(nx, ny, nz, nthreads);
+		separableConvolutionPass(image, result, nx, ny, nz, kernel[X], kx, X, nthreads);
+		separableConvolutionPass(result, temp, nx, ny, nz, kernel[Y], ky, Y, nthreads);
+		separableConvolutionPass(temp, result, nx, ny, nz, kernel[Z], kz, Z, nthreads);
 		temp = null;
 
 		return result;
@@ -129,45 +110,17 @@ public class ImageFilters {
 	*	convolution with a separable kernel (the kernel is 3x{kx,ky,kz})
 	 */
 	public static float[] separableConvolution(float[] image, int nx, int ny, int nz, float[][] kernel) {
-		float[] result = new float[nx*ny*nz];
-		float[] temp = new float[nx*ny*nz];
-		int xi,yj,zl;
-		
-		//MedicUtilPublic.displayMessage("kernel size: "+kx+"x"+ky+"x"+kz+"\n");
+		return separableConvolution(image, nx, ny, nz, kernel, 1);
+	}
 		
+	/**
+	*	convolution with a separable kernel (the kernel is 3x{kx,ky,kz}), on nthreads threads
+	 */
+	public static float[] separableConvolution(float[] image, int nx, int ny, int nz, float[][] kernel, int nthreads) {
 		int kx = (kernel[X].length-1)/2;
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			result[xyz] = 0.0f;	
-			for (int i=-kx;i<=kx;i++) {
-				if ( (x+i>=0) && (x+i<nx) ) {
-					result[xyz] += image[xyz+i]*kernel[0][kx+i];
-				}
-			}
-		}
 		int ky = (kernel[Y].length-1)/2;
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			temp[xyz] = 0.0f;	
-			for (int i=-ky;i<=ky;i++) {
-				if ( (y+i>=0) && (y+i<ny) ) {
-					temp[xyz] += result[xyz+i*nx]*kernel[1][ky+i];
-				}
-			}
-		}
 		int kz = (kernel[Z].length-1)/2;
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			result[xyz] = 0.0f;	
-			for (int i=-kz;i<=kz;i++) {
-				if ( (z+i>=0) && (z+i<nz) ) {
-					result[xyz] += temp[xyz+i*nx*ny]*kernel[2][kz+i];
-				}
-			}
-		}
-		temp = null;
-
-		return result;
+		return separableConvolution(image, nx, ny, nz, kernel, kx, ky, kz, nthreads);
 	}
 		
 		
@@ -230,67 +183,24 @@ public class ImageFilters {
 	*	this method compensates for masked regions 
 	 */
 	public static float[] separableMaskedConvolution(float[] image, boolean[] mask, int nx, int ny, int nz, float[][] kernel) {
+		return separableMaskedConvolution(image, mask, nx, ny, nz, kernel, 1);
+	}
+		
+	/**
+	*	convolution with a separable kernel (the kernel is 3x{kx,ky,kz}), on nthreads threads
+	*	this method compensates for masked regions 
+	 */
+	public static float[] separableMaskedConvolution(float[] image, boolean[] mask, int nx, int ny, int nz, float[][] kernel, int nthreads) {
 		float[] result = new float[nx*ny*nz];
 		float[] temp = new float[nx*ny*nz];
-		int xi,yj,zl;
 		
-		//MedicUtilPublic.displayMessage("kernel size: "+kx+"x"+ky+"x"+kz+"\n");
 		int kx = (kernel[X].length-1)/2;
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			result[xyz] = 0.0f;
-			double num = 0.0;
-			double den = 0.0;
-			
-			if (mask[xyz]){
-				for (int i=-kx;i<=kx;i++) {
-					if ( (x+i>=0) && (x+i<nx) && mask[xyz+i] ) {
-						num += image[xyz+i]*kernel[X][kx+i];
-						den += kernel[X][kx+i];
-					}
-				}
-				if (den*den>0) num /= den;
-				result[xyz] = (float)num;
-			}
-		}
-		
 		int ky = (kernel[Y].length-1)/2;
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			temp[xyz] = 0.0f;
-			double num = 0.0;
-			double den = 0.0;
-			
-			if (mask[xyz]){
-				for (int i=-ky;i<=ky;i++) {
-					if ( (y+i>=0) && (y+i<ny) && mask[xyz+nx*i] ) {
-						num += result[xyz+i*nx]*kernel[Y][ky+i];
-						den += kernel[Y][ky+i];
-					}
-				}
-				if (den*den>0) num /= den;
-				temp[xyz] = (float)num;
-			}
-		}
-		
 		int kz = (kernel[Z].length-1)/2;
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			result[xyz] = 0.0f;	
-			double num = 0.0;
-			double den = 0.0;
-			
-			if (mask[xyz]){
-				for (int i=-kz;i<=kz;i++) {
-					if ( (z+i>=0) && (z+i<nz) && mask[xyz+nx*ny*i] ) {
-						num += temp[xyz+i*nx*ny]*kernel[Z][kz+i];
-						den += kernel[Z][kz+i];
-					}
-				}
-				if (den*den>0) num /= den;
-				result[xyz] = (float)num;
-			}
-		}
+		nthreads = convolutionThreads(nx, ny, nz, nthreads);
+		separableMaskedConvolutionPass(image, result, mask, true, nx, ny, nz, kernel[X], kx, X, nthreads);
+		separableMaskedConvolutionPass(result, temp, mask, true, nx, ny, nz, kernel[Y], ky, Y, nthreads);
+		separableMaskedConvolutionPass(temp, result, mask, true, nx, ny, nz, kernel[Z], kz, Z, nthreads);
 		temp = null;
 
 		return result;
@@ -369,54 +279,131 @@ public class ImageFilters {
 	*	this method compensates for masked regions 
 	 */
 	public static float[] separableMaskedConvolution(float[] image, boolean[] mask, int nx, int ny, int nz, float[][] kernel, int kx, int ky, int kz) {
+		return separableMaskedConvolution(image, mask, nx, ny, nz, kernel, kx, ky, kz, 1);
+	}
+		
+	/**
+	*	convolution with a separable kernel (the kernel is 3x{kx,ky,kz}), on nthreads threads
+	*	this method compensates for masked regions 
+	 */
+	public static float[] separableMaskedConvolution(float[] image, boolean[] mask, int nx, int ny, int nz, float[][] kernel, int kx, int ky, int kz, int nthreads) {
 		float[] result = new float[nx*ny*nz];
 		float[] temp = new float[nx*ny*nz];
-		int xi,yj,zl;
 		
-		//MedicUtilPublic.displayMessage("kernel size: "+kx+"x"+ky+"x"+kz+"\n");
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			double num = 0.0;
-			double den = 0.0;
-			for (int i=-kx;i<=kx;i++) {
-				if ( (x+i>=0) && (x+i<nx) && mask[xyz+i] ) {
-					num += image[xyz+i]*kernel[X][kx+i];
-					den += kernel[X][kx+i];
-				}
-			}
-			if (den*den>0) num /= den;
-			result[xyz] = (float)num;
-		}
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			double num = 0.0;
-			double den = 0.0;
-			for (int i=-ky;i<=ky;i++) {
-				if ( (y+i>=0) && (y+i<ny) && mask[xyz+nx*i] ) {
-					num += result[xyz+i*nx]*kernel[Y][ky+i];
-					den += kernel[Y][ky+i];
+		nthreads = convolutionThreads(nx, ny, nz, nthreads);
+		separableMaskedConvolutionPass(image, result, mask, false, nx, ny, nz, kernel[X], kx, X, nthreads);
+		separableMaskedConvolutionPass(result, temp, mask, false, nx, ny, nz, kernel[Y], ky, Y, nthreads);
+		separableMaskedConvolutionPass(temp, result, mask, false, nx, ny, nz, kernel[Z], kz, Z, nthreads);
+		temp = null;
+
+		return result;
+	}
+	
+	/** minimum image size for running the convolutions on several threads */
+	private static final int PARALLELSIZE = 1<<16;
+	
+	private static final int convolutionThreads(int nx, int ny, int nz, int nthreads) {
+		if ((long)nx*ny*nz<PARALLELSIZE) return 1;
+		else return nthreads;
+	}
+	
+	/**
+	*	one pass of a separable convolution along dimension d.
+	*	The image is processed by x rows, so that the inner loops for the y and z passes
+	*	run over contiguous memory (each neighbor row is accumulated in turn),
+	*	and the z planes are split across threads.
+	*	The sums are accumulated in the same order as a voxel by voxel convolution.
+	 */
+	private static final void separableConvolutionPass(final float[] in, final float[] out, final int nx, final int ny, final int nz,
+														final float[] kernel, final int k, final byte d, int nthreads) {
+		final int stride = (d==X) ? 1 : (d==Y) ? nx : nx*ny;
+		ParallelLoops.forEachSlab(0, nz, nthreads, new ParallelLoops.Slab() {
+			public void run(int zstart, int zend, int thread) {
+				for (int z=zstart;z<zend;z++) for (int y=0;y<ny;y++) {
+					int row = nx*y+nx*ny*z;
+					if (d==X) {
+						for (int x=0;x<nx;x++) {
+							float sum = 0.0f;
+							int imax = Numerics.min(k, nx-1-x);
+							for (int i=Numerics.max(-k,-x);i<=imax;i++) {
+								sum += in[row+x+i]*kernel[k+i];
+							}
+							out[row+x] = sum;
+						}
+					} else {
+						int p = (d==Y) ? y : z;
+						int np = (d==Y) ? ny : nz;
+						for (int x=0;x<nx;x++) out[row+x] = 0.0f;
+						int imax = Numerics.min(k, np-1-p);
+						for (int i=Numerics.max(-k,-p);i<=imax;i++) {
+							float w = kernel[k+i];
+							int ngb = row+i*stride;
+							for (int x=0;x<nx;x++) {
+								out[row+x] += in[ngb+x]*w;
+							}
+						}
+					}
 				}
 			}
-			if (den*den>0) num /= den;
-			temp[xyz] = (float)num;
-		}
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x+nx*y+nx*ny*z;
-			result[xyz] = 0.0f;	
-			double num = 0.0;
-			double den = 0.0;
-			for (int i=-kz;i<=kz;i++) {
-				if ( (z+i>=0) && (z+i<nz) && mask[xyz+nx*ny*i] ) {
-					num += temp[xyz+i*nx*ny]*kernel[Z][kz+i];
-					den += kernel[Z][kz+i];
+		});
+	}
+	
+	/**
+	*	one pass of a separable convolution along dimension d, normalized over the masked neighbors
+	*	(and set to zero outside the mask if maskcenter is set), processed as above
+	 */
+	private static final void separableMaskedConvolutionPass(final float[] in, final float[] out, final boolean[] mask, final boolean maskcenter,
+																final int nx, final int ny, final int nz,
+																final float[] kernel, final int k, final byte d, int nthreads) {
+		final int stride = (d==X) ? 1 : (d==Y) ? nx : nx*ny;
+		ParallelLoops.forEachSlab(0, nz, nthreads, new ParallelLoops.Slab() {
+			public void run(int zstart, int zend, int thread) {
+				double[] num = new double[nx];
+				double[] den = new double[nx];
+				for (int z=zstart;z<zend;z++) for (int y=0;y<ny;y++) {
+					int row = nx*y+nx*ny*z;
+					if (d==X) {
+						for (int x=0;x<nx;x++) {
+							num[x] = 0.0;
+							den[x] = 0.0;
+							if (!maskcenter || mask[row+x]) {
+								int imax = Numerics.min(k, nx-1-x);
+								for (int i=Numerics.max(-k,-x);i<=imax;i++) {
+									if (mask[row+x+i]) {
+										num[x] += in[row+x+i]*kernel[k+i];
+										den[x] += kernel[k+i];
+									}
+								}
+							}
+						}
+					} else {
+						int p = (d==Y) ? y : z;
+						int np = (d==Y) ? ny : nz;
+						for (int x=0;x<nx;x++) {
+							num[x] = 0.0;
+							den[x] = 0.0;
+						}
+						int imax = Numerics.min(k, np-1-p);
+						for (int i=Numerics.max(-k,-p);i<=imax;i++) {
+							float w = kernel[k+i];
+							int ngb = row+i*stride;
+							for (int x=0;x<nx;x++) if (mask[ngb+x]) {
+								num[x] += in[ngb+x]*w;
+								den[x] += w;
+							}
+						}
+					}
+					for (int x=0;x<nx;x++) {
+						if (maskcenter && !mask[row+x]) {
+							out[row+x] = 0.0f;
+						} else {
+							if (den[x]*den[x]>0) num[x] /= den[x];
+							out[row+x] = (float)num[x];
+						}
+					}
 				}
 			}
-			if (den*den>0) num /= den;
-			result[xyz] = (float)num;
-		}
-		temp = null;
-
-		return result;
+		});
 	}
 		
 	/**
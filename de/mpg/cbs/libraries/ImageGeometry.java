@@ -1,7 +1,6 @@
 package de.mpg.cbs.libraries;
 
 import Jama.Matrix;
-import Jama.EigenvalueDecomposition;
 import de.mpg.cbs.utilities.*;
 import org.apache.commons.math3.util.FastMath;
 
@@ -881,63 +880,70 @@ public class ImageGeometry {
 	 *	  @return 			the diffused image
      */
     public static final float[][] principalCurvatureDirectionsJama(float[] image, boolean[] mask, int nx, int ny, int nz ) {
-		float[][] curv = new float[8][nx*ny*nz];
-		double num,den;
-		Matrix hessian = new Matrix(3,3);
-		double[] eigen;
+		return principalCurvatureDirectionsJama(image, mask, nx, ny, nz, 1);
+	}
+	
+	/**
+     *    curvature direction estimation on a smooth distance function
+	 *	  with no additionnal smoothing, on nthreads threads
+	 *	  (the eigendecomposition is done in place with SymmetricEigenAnalysis).
+     *    @param 	image	the original distance image
+	 *	  @return 			the diffused image
+     */
+    public static final float[][] principalCurvatureDirectionsJama(final float[] image, final boolean[] mask, final int nx, final int ny, final int nz, int nthreads) {
+		final float[][] curv = new float[8][nx*ny*nz];
 		
-		for (int x=1;x<nx-1;x++) for (int y=1;y<ny-1;y++) for (int z=1;z<nz-1;z++) {
-			int xyz = x + nx*y + nx*ny*z;
-
-			int xyzpx = xyz+1; 			if (!mask[xyzpx]) xyzpx = xyz;
-			int xyzmx = xyz-1; 			if (!mask[xyzmx]) xyzmx = xyz;
-			int xyzpy = xyz+nx; 		if (!mask[xyzpy]) xyzpy = xyz;
-			int xyzmy = xyz-nx; 		if (!mask[xyzmy]) xyzmy = xyz;
-			int xyzpz = xyz+nx*ny;		if (!mask[xyzpz]) xyzpz = xyz;
-			int xyzmz = xyz-nx*ny; 		if (!mask[xyzmz]) xyzmz = xyz;
-			
-			int xyzpxpy = xyz+1+nx;		if (!mask[xyzpxpy]) xyzpxpy = xyz;
-			int xyzmxpy = xyz-1+nx;		if (!mask[xyzmxpy]) xyzmxpy = xyz;
-			int xyzpxmy = xyz+1-nx;		if (!mask[xyzpxmy]) xyzpxmy = xyz;
-			int xyzmxmy = xyz-1-nx;		if (!mask[xyzmxmy]) xyzmxmy = xyz;
-			
-			int xyzpypz = xyz+nx+nx*ny;		if (!mask[xyzpypz]) xyzpypz = xyz;
-			int xyzmypz = xyz-nx+nx*ny;		if (!mask[xyzmypz]) xyzmypz = xyz;
-			int xyzpymz = xyz+nx-nx*ny;		if (!mask[xyzpymz]) xyzpymz = xyz;
-			int xyzmymz = xyz-nx-nx*ny;		if (!mask[xyzmymz]) xyzmymz = xyz;
-			
-			int xyzpzpx = xyz+nx*ny+1;		if (!mask[xyzpzpx]) xyzpzpx = xyz;
-			int xyzmzpx = xyz-nx*ny+1;		if (!mask[xyzmzpx]) xyzmzpx = xyz;
-			int xyzpzmx = xyz+nx*ny-1;		if (!mask[xyzpzmx]) xyzpzmx = xyz;
-			int xyzmzmx = xyz-nx*ny-1;		if (!mask[xyzmzmx]) xyzmzmx = xyz;
-			
-			hessian.set(0,0, image[xyzpx] - 2.0*image[xyz] + image[xyzmx]);
-			hessian.set(1,1, image[xyzpy] - 2.0*image[xyz] + image[xyzmy]);
-			hessian.set(2,2, image[xyzpz] - 2.0*image[xyz] + image[xyzmz]);
-			
-			hessian.set(0,1, 0.25*(image[xyzpxpy] + image[xyzmxmy] - image[xyzpxmy] - image[xyzmxpy]) );
-			hessian.set(1,2, 0.25*(image[xyzpypz] + image[xyzmymz] - image[xyzpymz] - image[xyzmypz]) );
-			hessian.set(2,0, 0.25*(image[xyzpzpx] + image[xyzmzmx] - image[xyzpzmx] - image[xyzmzpx]) );
-			
-			hessian.set(1,0, 0.25*(image[xyzpxpy] + image[xyzmxmy] - image[xyzpxmy] - image[xyzmxpy]) );
-			hessian.set(2,1, 0.25*(image[xyzpypz] + image[xyzmymz] - image[xyzpymz] - image[xyzmypz]) );
-			hessian.set(0,2, 0.25*(image[xyzpzpx] + image[xyzmzmx] - image[xyzpzmx] - image[xyzmzpx]) );
-				
-			EigenvalueDecomposition eig = hessian.eig();
-			eigen = eig.getRealEigenvalues();
-			hessian = eig.getV();
-			int first = Numerics.argmaxmag(eigen[0],eigen[1],eigen[2]);
-			int second = Numerics.argsecmag(eigen[0],eigen[1],eigen[2]);
-			
-			curv[0][xyz] = (float)eigen[first];
-			curv[1][xyz] = (float)hessian.get(0,first);
-			curv[2][xyz] = (float)hessian.get(1,first);
-			curv[3][xyz] = (float)hessian.get(2,first);
-			curv[4][xyz] = (float)eigen[second];
-			curv[5][xyz] = (float)hessian.get(0,second);
-			curv[6][xyz] = (float)hessian.get(1,second);
-			curv[7][xyz] = (float)hessian.get(2,second);
-		}
+		ParallelLoops.forEachSlab(1, nz-1, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				double[] eigen = new double[3];
+				double[] evec = new double[9];
+				for (int z=start;z<end;z++) for (int y=1;y<ny-1;y++) for (int x=1;x<nx-1;x++) {
+					int xyz = x + nx*y + nx*ny*z;
+		
+					int xyzpx = xyz+1; 			if (!mask[xyzpx]) xyzpx = xyz;
+					int xyzmx = xyz-1; 			if (!mask[xyzmx]) xyzmx = xyz;
+					int xyzpy = xyz+nx; 		if (!mask[xyzpy]) xyzpy = xyz;
+					int xyzmy = xyz-nx; 		if (!mask[xyzmy]) xyzmy = xyz;
+					int xyzpz = xyz+nx*ny;		if (!mask[xyzpz]) xyzpz = xyz;
+					int xyzmz = xyz-nx*ny; 		if (!mask[xyzmz]) xyzmz = xyz;
+					
+					int xyzpxpy = xyz+1+nx;		if (!mask[xyzpxpy]) xyzpxpy = xyz;
+					int xyzmxpy = xyz-1+nx;		if (!mask[xyzmxpy]) xyzmxpy = xyz;
+					int xyzpxmy = xyz+1-nx;		if (!mask[xyzpxmy]) xyzpxmy = xyz;
+					int xyzmxmy = xyz-1-nx;		if (!mask[xyzmxmy]) xyzmxmy = xyz;
+					
+					int xyzpypz = xyz+nx+nx*ny;		if (!mask[xyzpypz]) xyzpypz = xyz;
+					int xyzmypz = xyz-nx+nx*ny;		if (!mask[xyzmypz]) xyzmypz = xyz;
+					int xyzpymz = xyz+nx-nx*ny;		if (!mask[xyzpymz]) xyzpymz = xyz;
+					int xyzmymz = xyz-nx-nx*ny;		if (!mask[xyzmymz]) xyzmymz = xyz;
+					
+					int xyzpzpx = xyz+nx*ny+1;		if (!mask[xyzpzpx]) xyzpzpx = xyz;
+					int xyzmzpx = xyz-nx*ny+1;		if (!mask[xyzmzpx]) xyzmzpx = xyz;
+					int xyzpzmx = xyz+nx*ny-1;		if (!mask[xyzpzmx]) xyzpzmx = xyz;
+					int xyzmzmx = xyz-nx*ny-1;		if (!mask[xyzmzmx]) xyzmzmx = xyz;
+					
+					double hxx = image[xyzpx] - 2.0*image[xyz] + image[xyzmx];
+					double hyy = image[xyzpy] - 2.0*image[xyz] + image[xyzmy];
+					double hzz = image[xyzpz] - 2.0*image[xyz] + image[xyzmz];
+					
+					double hxy = 0.25*(image[xyzpxpy] + image[xyzmxmy] - image[xyzpxmy] - image[xyzmxpy]);
+					double hyz = 0.25*(image[xyzpypz] + image[xyzmymz] - image[xyzpymz] - image[xyzmypz]);
+					double hzx = 0.25*(image[xyzpzpx] + image[xyzmzmx] - image[xyzpzmx] - image[xyzmzpx]);
+					
+					// eigenvalues by decreasing magnitude
+					SymmetricEigenAnalysis.decompose(hxx, hyy, hzz, hxy, hyz, hzx, eigen, evec);
+					
+					curv[0][xyz] = (float)eigen[0];
+					curv[1][xyz] = (float)evec[0];
+					curv[2][xyz] = (float)evec[1];
+					curv[3][xyz] = (float)evec[2];
+					curv[4][xyz] = (float)eigen[1];
+					curv[5][xyz] = (float)evec[3];
+					curv[6][xyz] = (float)evec[4];
+					curv[7][xyz] = (float)evec[5];
+				}
+			}
+		});
 		return curv;
 	}
 
@@ -1255,32 +1261,18 @@ public class ImageGeometry {
 	
 	/** get curvatures from a quadric approximation */
 	public static final float[] quadricApproximationCurvature(double[] quadric) {
-		// build the quadratic term matrix
-		Matrix A = new Matrix(3,3);
-		A.set(0,0, quadric[0]);
-		A.set(1,1, quadric[1]);
-		A.set(2,2, quadric[2]);
-		
-		A.set(0,1, quadric[3]);
-		A.set(1,2, quadric[4]);
-		A.set(2,0, quadric[5]);
-		
-		A.set(1,0, quadric[3]);
-		A.set(2,1, quadric[4]);
-		A.set(0,2, quadric[5]);
-		
-		// decompose
-		EigenvalueDecomposition eig = A.eig();
-		double[] eigen = eig.getRealEigenvalues();
-		A = eig.getV();
+		// decompose the quadratic term matrix
+		double[] eigen = new double[3];
+		double[] evec = new double[9];
+		SymmetricEigenAnalysis.decompose(quadric[0], quadric[1], quadric[2], quadric[3], quadric[4], quadric[5], eigen, evec);
 		
 		// find the normal vector: best alignment with linear term
 		int norm = 0;
-		if ( Numerics.abs(A.get(0,1)*quadric[6]+A.get(1,1)*quadric[7]+A.get(2,1)*quadric[8])
-			>Numerics.abs(A.get(0,norm)*quadric[6]+A.get(1,norm)*quadric[7]+A.get(2,norm)*quadric[8]) ) norm=1;
+		if ( Numerics.abs(evec[3]*quadric[6]+evec[4]*quadric[7]+evec[5]*quadric[8])
+			>Numerics.abs(evec[3*norm]*quadric[6]+evec[3*norm+1]*quadric[7]+evec[3*norm+2]*quadric[8]) ) norm=1;
 		
-		if ( Numerics.abs(A.get(0,2)*quadric[6]+A.get(1,2)*quadric[7]+A.get(2,2)*quadric[8])
-			>Numerics.abs(A.get(0,norm)*quadric[6]+A.get(1,norm)*quadric[7]+A.get(2,norm)*quadric[8]) ) norm=2;
+		if ( Numerics.abs(evec[6]*quadric[6]+evec[7]*quadric[7]+evec[8]*quadric[8])
+			>Numerics.abs(evec[3*norm]*quadric[6]+evec[3*norm+1]*quadric[7]+evec[3*norm+2]*quadric[8]) ) norm=2;
 		
 		if (eigen[norm]>0.1) System.out.print("!");
 		eigen[norm] = 0.0;
@@ -1290,13 +1282,13 @@ public class ImageGeometry {
 		
 		float[] curv = new float[8];
 		curv[0] = (float)eigen[first];
-		curv[1] = (float)A.get(0,first);
-		curv[2] = (float)A.get(1,first);
-		curv[3] = (float)A.get(2,first);
+		curv[1] = (float)evec[3*first];
+		curv[2] = (float)evec[3*first+1];
+		curv[3] = (float)evec[3*first+2];
 		curv[4] = (float)eigen[second];
-		curv[5] = (float)A.get(0,second);
-		curv[6] = (float)A.get(1,second);
-		curv[7] = (float)A.get(2,second);
+		curv[5] = (float)evec[3*second];
+		curv[6] = (float)evec[3*second+1];
+		curv[7] = (float)evec[3*second+2];
 		
 		return curv;
 	}
@@ -1306,6 +1298,8 @@ public class ImageGeometry {
 		Matrix X = new Matrix(9,9);
 		Matrix Y = new Matrix(9,1);
 		double[] vect = new double[9];
+		double[] eigen = new double[3];
+		double[] evec = new double[9];
 		double sig2 = (size/3.0)*(size/3.0);
 		float[][][][] curv = new float[8][nx][ny][nz];
 		
@@ -1341,32 +1335,16 @@ public class ImageGeometry {
 			// 2. Get the parameters
 			Matrix Q = X.solve(Y);
 
-			// 3. build the quadratic term matrix
-			Matrix A = new Matrix(3,3);
-			A.set(0,0, Q.get(0,0));
-			A.set(1,1, Q.get(1,0));
-			A.set(2,2, Q.get(2,0));
-			
-			A.set(0,1, Q.get(3,0));
-			A.set(1,2, Q.get(4,0));
-			A.set(2,0, Q.get(5,0));
-			
-			A.set(1,0, Q.get(3,0));
-			A.set(2,1, Q.get(4,0));
-			A.set(0,2, Q.get(5,0));
-			
-			// decompose
-			EigenvalueDecomposition eig = A.eig();
-			double[] eigen = eig.getRealEigenvalues();
-			A = eig.getV();
+			// 3. decompose the quadratic term matrix
+			SymmetricEigenAnalysis.decompose(Q.get(0,0), Q.get(1,0), Q.get(2,0), Q.get(3,0), Q.get(4,0), Q.get(5,0), eigen, evec);
 			
 			// find the normal vector: best alignment with linear term
 			int norm = 0;
-			if ( Numerics.abs(A.get(0,1)*Q.get(6,0)+A.get(1,1)*Q.get(7,0)+A.get(2,1)*Q.get(8,0))
-				>Numerics.abs(A.get(0,norm)*Q.get(6,0)+A.get(1,norm)*Q.get(7,0)+A.get(2,norm)*Q.get(8,0)) ) norm=1;
+			if ( Numerics.abs(evec[3]*Q.get(6,0)+evec[4]*Q.get(7,0)+evec[5]*Q.get(8,0))
+				>Numerics.abs(evec[3*norm]*Q.get(6,0)+evec[3*norm+1]*Q.get(7,0)+evec[3*norm+2]*Q.get(8,0)) ) norm=1;
 			
-			if ( Numerics.abs(A.get(0,2)*Q.get(6,0)+A.get(1,2)*Q.get(7,0)+A.get(2,2)*Q.get(8,0))
-				>Numerics.abs(A.get(0,norm)*Q.get(6,0)+A.get(1,norm)*Q.get(7,0)+A.get(2,norm)*Q.get(8,0)) ) norm=2;
+			if ( Numerics.abs(evec[6]*Q.get(6,0)+evec[7]*Q.get(7,0)+evec[8]*Q.get(8,0))
+				>Numerics.abs(evec[3*norm]*Q.get(6,0)+evec[3*norm+1]*Q.get(7,0)+evec[3*norm+2]*Q.get(8,0)) ) norm=2;
 			
 			double neig = eigen[norm];
 			eigen[norm] = 0.0;
@@ -1377,104 +1355,100 @@ public class ImageGeometry {
 			if (Numerics.abs(eigen[norm]/eigen[first])>0.1) System.out.print("!");
 			
 			curv[0][x][y][z] = (float)eigen[first];
-			curv[1][x][y][z] = (float)A.get(0,first);
-			curv[2][x][y][z] = (float)A.get(1,first);
-			curv[3][x][y][z] = (float)A.get(2,first);
+			curv[1][x][y][z] = (float)evec[3*first];
+			curv[2][x][y][z] = (float)evec[3*first+1];
+			curv[3][x][y][z] = (float)evec[3*first+2];
 			curv[4][x][y][z] = (float)eigen[second];
-			curv[5][x][y][z] = (float)A.get(0,second);
-			curv[6][x][y][z] = (float)A.get(1,second);
-			curv[7][x][y][z] = (float)A.get(2,second);
+			curv[5][x][y][z] = (float)evec[3*second];
+			curv[6][x][y][z] = (float)evec[3*second+1];
+			curv[7][x][y][z] = (float)evec[3*second+2];
 		}
 		return curv;
 	}
 	
 	/** compute a quadric approximation to a levelset surface, assuming a centered paraboloid */
 	public static final float[][] quadricCurvatureEstimates(float[] image, boolean[] sampling, boolean[] mask, int size, int nx, int ny, int nz) {
-		Matrix X = new Matrix(9,9);
-		Matrix Y = new Matrix(9,1);
-		double[] vect = new double[9];
-		double sig2 = (size/3.0)*(size/3.0);
-		float[][] curv = new float[8][nx*ny*nz];
+		return quadricCurvatureEstimates(image, sampling, mask, size, nx, ny, nz, 1);
+	}
+	
+	/** compute a quadric approximation to a levelset surface, assuming a centered paraboloid, on nthreads threads */
+	public static final float[][] quadricCurvatureEstimates(final float[] image, final boolean[] sampling, final boolean[] mask, 
+																final int size, final int nx, final int ny, final int nz, int nthreads) {
+		final double sig2 = (size/3.0)*(size/3.0);
+		final float[][] curv = new float[8][nx*ny*nz];
 		
-		for (int x=size;x<nx-size;x++) for (int y=size;y<ny-size;y++) for (int z=size;z<nz-size;z++) {
-			int xyz = x + nx*y + nx*ny*z;
-			if (sampling[xyz] && mask[xyz]) {
-				// 1. build the linear estimate's vector and matrix
-				for (int n=0;n<9;n++) {
-					for (int m=0;m<9;m++) X.set(n,m, 0);
-					Y.set(n,0, 0);
-				}
+		ParallelLoops.forEachSlab(size, nz-size, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				Matrix X = new Matrix(9,9);
+				Matrix Y = new Matrix(9,1);
+				double[] vect = new double[9];
+				double[] eigen = new double[3];
+				double[] evec = new double[9];
+				for (int z=start;z<end;z++) for (int y=size;y<ny-size;y++) for (int x=size;x<nx-size;x++) {
+					int xyz = x + nx*y + nx*ny*z;
+					if (sampling[xyz] && mask[xyz]) {
+						// 1. build the linear estimate's vector and matrix
+						for (int n=0;n<9;n++) {
+							for (int m=0;m<9;m++) X.set(n,m, 0);
+							Y.set(n,0, 0);
+						}
 				
-				for (int i=-size;i<=size;i++) {
-					for (int j=-size;j<=size;j++) {
-						for (int l=-size;l<=size;l++) {
-							if (mask[xyz+i+nx*j+nx*ny*l]) {
-								vect[0] = i*i; vect[1] = j*j; vect[2] = l*l;
-								vect[3] = i*j; vect[4] = j*l; vect[5] = l*i;
-								vect[6] = 2*i; vect[7] = 2*j; vect[8] = 2*l;
+						for (int i=-size;i<=size;i++) {
+							for (int j=-size;j<=size;j++) {
+								for (int l=-size;l<=size;l++) {
+									if (mask[xyz+i+nx*j+nx*ny*l]) {
+										vect[0] = i*i; vect[1] = j*j; vect[2] = l*l;
+										vect[3] = i*j; vect[4] = j*l; vect[5] = l*i;
+										vect[6] = 2*i; vect[7] = 2*j; vect[8] = 2*l;
 								
-								double dist = (image[xyz+i+nx*j+nx*ny*l]-image[xyz]);
-								// distance weighting: lower the contribution of value further from the surface
-								// and the distance to center point as well?
-								double w = FastMath.exp( -0.5*dist*dist/sig2)*FastMath.exp( -0.5*(i*i+j*j+l*l)/sig2);
+										double dist = (image[xyz+i+nx*j+nx*ny*l]-image[xyz]);
+										// distance weighting: lower the contribution of value further from the surface
+										// and the distance to center point as well?
+										double w = FastMath.exp( -0.5*dist*dist/sig2)*FastMath.exp( -0.5*(i*i+j*j+l*l)/sig2);
 								
-								for (int n=0;n<9;n++)  {
-									for (int m=0;m<9;m++) X.set(n,m, X.get(n,m) + w*vect[n]*vect[m]);
-									Y.set(n,0, Y.get(n,0) + w*vect[n]*dist);	
+										for (int n=0;n<9;n++)  {
+											for (int m=0;m<9;m++) X.set(n,m, X.get(n,m) + w*vect[n]*vect[m]);
+											Y.set(n,0, Y.get(n,0) + w*vect[n]*dist);	
+										}
+									}
 								}
 							}
 						}
-					}
-				}
 			
-				// 2. Get the parameters
-				Matrix Q = X.solve(Y);
+						// 2. Get the parameters
+						Matrix Q = X.solve(Y);
 	
-				// 3. build the quadratic term matrix
-				Matrix A = new Matrix(3,3);
-				A.set(0,0, Q.get(0,0));
-				A.set(1,1, Q.get(1,0));
-				A.set(2,2, Q.get(2,0));
-				
-				A.set(0,1, Q.get(3,0));
-				A.set(1,2, Q.get(4,0));
-				A.set(2,0, Q.get(5,0));
-				
-				A.set(1,0, Q.get(3,0));
-				A.set(2,1, Q.get(4,0));
-				A.set(0,2, Q.get(5,0));
-				
-				// decompose
-				EigenvalueDecomposition eig = A.eig();
-				double[] eigen = eig.getRealEigenvalues();
-				A = eig.getV();
+						// 3. decompose the quadratic term matrix
+						SymmetricEigenAnalysis.decompose(Q.get(0,0), Q.get(1,0), Q.get(2,0), Q.get(3,0), Q.get(4,0), Q.get(5,0), eigen, evec);
 				
-				// find the normal vector: best alignment with linear term
-				int norm = 0;
-				if ( Numerics.abs(A.get(0,1)*Q.get(6,0)+A.get(1,1)*Q.get(7,0)+A.get(2,1)*Q.get(8,0))
-					>Numerics.abs(A.get(0,norm)*Q.get(6,0)+A.get(1,norm)*Q.get(7,0)+A.get(2,norm)*Q.get(8,0)) ) norm=1;
+						// find the normal vector: best alignment with linear term
+						int norm = 0;
+						if ( Numerics.abs(evec[3]*Q.get(6,0)+evec[4]*Q.get(7,0)+evec[5]*Q.get(8,0))
+							>Numerics.abs(evec[3*norm]*Q.get(6,0)+evec[3*norm+1]*Q.get(7,0)+evec[3*norm+2]*Q.get(8,0)) ) norm=1;
 				
-				if ( Numerics.abs(A.get(0,2)*Q.get(6,0)+A.get(1,2)*Q.get(7,0)+A.get(2,2)*Q.get(8,0))
-					>Numerics.abs(A.get(0,norm)*Q.get(6,0)+A.get(1,norm)*Q.get(7,0)+A.get(2,norm)*Q.get(8,0)) ) norm=2;
+						if ( Numerics.abs(evec[6]*Q.get(6,0)+evec[7]*Q.get(7,0)+evec[8]*Q.get(8,0))
+							>Numerics.abs(evec[3*norm]*Q.get(6,0)+evec[3*norm+1]*Q.get(7,0)+evec[3*norm+2]*Q.get(8,0)) ) norm=2;
 				
-				double neig = eigen[norm];
-				eigen[norm] = 0.0;
+						double neig = eigen[norm];
+						eigen[norm] = 0.0;
 			
-				int first = Numerics.argmaxmag(eigen[0],eigen[1],eigen[2]);
-				int second = Numerics.argsecmag(eigen[0],eigen[1],eigen[2]);
+						int first = Numerics.argmaxmag(eigen[0],eigen[1],eigen[2]);
+						int second = Numerics.argsecmag(eigen[0],eigen[1],eigen[2]);
 				
-				//if (Numerics.abs(eigen[norm]/eigen[first])>0.1) System.out.print("!");
-			
-				curv[0][xyz] = (float)eigen[first];
-				curv[1][xyz] = (float)A.get(0,first);
-				curv[2][xyz] = (float)A.get(1,first);
-				curv[3][xyz] = (float)A.get(2,first);
-				curv[4][xyz] = (float)eigen[second];
-				curv[5][xyz] = (float)A.get(0,second);
-				curv[6][xyz] = (float)A.get(1,second);
-				curv[7][xyz] = (float)A.get(2,second);
+						//if (Numerics.abs(eigen[norm]/eigen[first])>0.1) System.out.print("!");
+			
+						curv[0][xyz] = (float)eigen[first];
+						curv[1][xyz] = (float)evec[3*first];
+						curv[2][xyz] = (float)evec[3*first+1];
+						curv[3][xyz] = (float)evec[3*first+2];
+						curv[4][xyz] = (float)eigen[second];
+						curv[5][xyz] = (float)evec[3*second];
+						curv[6][xyz] = (float)evec[3*second+1];
+						curv[7][xyz] = (float)evec[3*second+2];
+					}
+				}
 			}
-		}
+		});
 		return curv;
 	}
 	
@@ -0,0 +1,189 @@
+package de.mpg.cbs.libraries;
+
+import de.mpg.cbs.utilities.*;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ *
+ *  This class runs the propagation steps of the ridge and vessel filters on several threads.
+ *	<p>
+ *	Each voxel is linked to a few neighbors, given as direction codes (neighbor[n][xyz]) and mapped
+ *	to index offsets by the caller, with a similarity weight for each link (similarity[n][xyz]).
+ *	Belief propagation is synchronous: new messages are computed from the messages of the previous
+ *	iteration into a second buffer, by slabs of the volume, and the two buffers are swapped,
+ *	so the result does not depend on the number of threads. Slabs read their neighbors
+ *	directly from the shared previous buffer, which replaces halo exchanges. The convergence test
+ *	is a maximum over the per-slab differences.
+ *	<p>
+ *	Diffusion is updated synchronously as well (Jacobi, double-buffered), for any number of threads.
+ */
+
+public class ParallelPropagation {
+
+	// no data: used as a library of functions
+
+	/**
+	 *	belief propagation over the ngb links of each voxel with 0 < proba < 1 (inside the mask, if not null);
+	 *	links to voxels with zero probability are ignored if skipEmpty is true.
+	 *	Returns the normalized foreground beliefs.
+	 */
+	public static final float[] beliefPropagation(final float[] proba, final float[][] similarity, final byte[][] neighbor, final int[] offset,
+													final int ngb, final boolean[] mask, final boolean skipEmpty,
+													final int nxyz, int iter, float maxdiff, int nthreads) {
+
+		float[][] messagefg = new float[ngb][nxyz];
+		float[][] messagebg = new float[ngb][nxyz];
+		float[][] newmsgfg = new float[ngb][nxyz];
+		float[][] newmsgbg = new float[ngb][nxyz];
+		for (int n=0;n<ngb;n++) for (int xyz=0;xyz<nxyz;xyz++) {
+			messagefg[n][xyz] = 1.0f;
+			messagebg[n][xyz] = 1.0f;
+			newmsgfg[n][xyz] = 1.0f;
+			newmsgbg[n][xyz] = 1.0f;
+		}
+		final float[] slabdiff = new float[ParallelLoops.numberOfSlabs(0, nxyz, nthreads)];
+
+		// message passing
+		for (int t=0;t<iter;t++) {
+			BasicInfo.displayMessage("iteration "+(t+1)+": ");
+			final float[][] prevfg = messagefg;
+			final float[][] prevbg = messagebg;
+			final float[][] nextfg = newmsgfg;
+			final float[][] nextbg = newmsgbg;
+			ParallelLoops.forEachSlab(0, nxyz, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					float diff = 0.0f;
+					for (int xyz=start;xyz<end;xyz++) if ( (mask==null || mask[xyz]) && proba[xyz]>0 && proba[xyz]<1) {
+						for (int n=0;n<ngb;n++) {
+							float simfgfg = similarity[n][xyz];
+							float simbgfg = 0.0f;
+							float simfgbg = (1.0f-similarity[n][xyz]);
+							float simbgbg = 1.0f;
+
+							int xyzn = xyz+offset[neighbor[n][xyz]];
+							if (skipEmpty && proba[xyzn]<=0) continue;
+
+							// neighbor message, fg label (min value for probas, similarities: 0)
+							float mfgfg = Numerics.max(0.0f,simfgfg)*Numerics.max(0.0f,proba[xyzn]);
+							float mfgbg = Numerics.max(0.0f,simfgbg)*Numerics.max(0.0f,(1.0f-proba[xyzn]));
+							float mbgbg = Numerics.max(0.0f,simbgbg)*Numerics.max(0.0f,(1.0f-proba[xyzn]));
+							float mbgfg = Numerics.max(0.0f,simbgfg)*Numerics.max(0.0f,proba[xyzn]);
+							for (int m=0;m<ngb;m++) {
+								if (xyzn+offset[neighbor[m][xyzn]]!=xyz && prevfg[m][xyzn]>0) mfgfg *= prevfg[m][xyzn];
+							}
+							for (int m=0;m<ngb;m++) {
+								if (xyzn+offset[neighbor[m][xyzn]]!=xyz && prevbg[m][xyzn]>0) mfgbg *= prevbg[m][xyzn];
+							}
+							nextfg[n][xyz] = Numerics.max(mfgfg, mfgbg);
+							diff = Numerics.max(diff, Numerics.abs(nextfg[n][xyz]-prevfg[n][xyz]));
+
+							// neighbor message, bg label
+							for (int m=0;m<ngb;m++) {
+								if (xyzn+offset[neighbor[m][xyzn]]!=xyz && prevbg[m][xyzn]>0) mbgbg *= prevbg[m][xyzn];
+							}
+							for (int m=0;m<ngb;m++) {
+								if (xyzn+offset[neighbor[m][xyzn]]!=xyz && prevfg[m][xyzn]>0) mbgfg *= prevfg[m][xyzn];
+							}
+							nextbg[n][xyz] = Numerics.max(mbgbg, mbgfg);
+							diff = Numerics.max(diff, Numerics.abs(nextbg[n][xyz]-prevbg[n][xyz]));
+						}
+					}
+					slabdiff[thread] = diff;
+				}
+			});
+			float diff = 0.0f;
+			for (int s=0;s<slabdiff.length;s++) diff = Numerics.max(diff, slabdiff[s]);
+
+			// swap the message buffers: entries that are never updated are 1 in both
+			messagefg = nextfg;
+			messagebg = nextbg;
+			newmsgfg = prevfg;
+			newmsgbg = prevbg;
+
+			BasicInfo.displayMessage("diff "+diff+"\n");
+			if (diff < maxdiff) t = iter;
+		}
+
+		// compute final belief
+		final float[][] finalfg = messagefg;
+		final float[][] finalbg = messagebg;
+		final float[] belief = new float[nxyz];
+		ParallelLoops.forEachSlab(0, nxyz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int xyz=start;xyz<end;xyz++) {
+					belief[xyz] = proba[xyz];
+					float bgbelief = (1.0f-proba[xyz]);
+					if ( (mask==null || mask[xyz]) && proba[xyz]>0 && proba[xyz]<1) {
+						for (int n=0;n<ngb;n++) {
+							if (finalfg[n][xyz]>0) belief[xyz] *= finalfg[n][xyz];
+						}
+						for (int n=0;n<ngb;n++) {
+							if (finalbg[n][xyz]>0) bgbelief *= finalbg[n][xyz];
+						}
+					}
+					// normalize
+					belief[xyz] = belief[xyz]/(belief[xyz]+bgbelief);
+				}
+			}
+		});
+		return belief;
+	}
+
+	/**
+	 *	log-domain diffusion of the probabilities along the ngb links of each voxel inside the mask,
+	 *	or with proba > 0 if the mask is null (factor is the weight of each link). The convergence test
+	 *	uses the relative difference if relative is true, the absolute difference otherwise.
+	 *	Returns log(1+diffused), to be rescaled by the caller.
+	 */
+	public static final float[] probabilisticDiffusion(final float[] proba, final float[][] similarity, final byte[][] neighbor, final int[] offset,
+														final int ngb, final boolean[] mask, final float factor, final boolean relative,
+														final int nxyz, int iter, float maxdiff, int nthreads) {
+
+		float[] diffused = new float[nxyz];
+		for (int xyz=0;xyz<nxyz;xyz++) {
+			diffused[xyz] = (float)FastMath.log(1.0f + proba[xyz]);
+		}
+		// entries that are never updated are the same in both buffers
+		float[] updated = diffused.clone();
+		final float[] slabdiff = new float[ParallelLoops.numberOfSlabs(0, nxyz, nthreads)];
+
+		for (int t=0;t<iter;t++) {
+			BasicInfo.displayMessage("iteration "+(t+1)+": ");
+			final float[] prev = diffused;
+			final float[] next = updated;
+			ParallelLoops.forEachSlab(0, nxyz, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					float diff = 0.0f;
+					for (int xyz=start;xyz<end;xyz++) if (mask!=null ? mask[xyz] : proba[xyz]>0) {
+						float previous = prev[xyz];
+						float val = proba[xyz];
+						for (int n=0;n<ngb;n++) {
+							float ngbval = prev[xyz+offset[neighbor[n][xyz]]];
+							ngbval = (float)FastMath.exp(ngbval)-1.0f;
+							// integration over the whole vessel (log version is more stable)
+							val += factor*similarity[n][xyz]*ngbval;
+						}
+						val = (float)FastMath.log(1.0f + val);
+						next[xyz] = val;
+
+						if (relative) {
+							if (val+previous>0 && Numerics.abs(previous-val)/(previous+val)>diff) diff = Numerics.abs(previous-val)/(previous+val);
+						} else {
+							if (Numerics.abs(previous-val)>diff) diff = Numerics.abs(previous-val);
+						}
+					}
+					slabdiff[thread] = diff;
+				}
+			});
+			float diff = 0.0f;
+			for (int s=0;s<slabdiff.length;s++) diff = Numerics.max(diff, slabdiff[s]);
+			// swap the buffers
+			updated = prev;
+			diffused = next;
+			BasicInfo.displayMessage("diff "+diff+"\n");
+			if (diff<maxdiff) t=iter;
+		}
+		return diffused;
+	}
+}
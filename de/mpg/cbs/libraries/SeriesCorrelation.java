@@ -0,0 +1,163 @@
+package de.mpg.cbs.libraries;
+
+import de.mpg.cbs.utilities.*;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ *
+ *  This class computes correlations between the time series of neighboring voxels.
+ *	<p>
+ *	The series are first normalized in place (zero mean, scaled by 1/(sqrt(nt)*stdev)), so that 
+ *	correlations are plain scalar products. Neighbor correlations are then computed on several threads,
+ *	z slab by z slab: each thread keeps a few rows of series in contiguous buffers and
+ *	computes the 13 'forward' directions only, the 13 others following by symmetry.
+ */
+
+public class SeriesCorrelation {
+
+	// no data: used as a library of functions
+
+	// number of rows of series kept in each thread (enough for the 9 rows around any voxel)
+	private static final int NROWS = 10;
+
+	/**
+	 *	demean and scale each series by 1/(sqrt(nt)*stdev), in place (series with zero variance are set to zero),
+	 *	so that the scalar product of two series is their correlation sum(a*b)/(nt*stdev_a*stdev_b).
+	 *	The mean and standard deviation of each series are returned in mean[xyz] and stdev[xyz].
+	 */
+	public static final void normalizeSeries(final TimeSeries4D data, final float[] mean, final float[] stdev, int nthreads) {
+		final int nt = data.getTimePoints();
+
+		ParallelLoops.forEachSlab(0, data.getVoxels(), nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float[] series = new float[nt];
+				for (int xyz=start;xyz<end;xyz++) {
+					data.getSeries(xyz, series);
+					double sum = 0.0;
+					for (int t=0;t<nt;t++) sum += series[t];
+					mean[xyz] = (float)(sum/nt);
+					for (int t=0;t<nt;t++) series[t] -= mean[xyz];
+					double var = 0.0;
+					for (int t=0;t<nt;t++) var += series[t]*series[t];
+					stdev[xyz] = (float)FastMath.sqrt(var/(nt-1.0));
+					float scale = 0.0f;
+					if (var>0) scale = (float)FastMath.sqrt((nt-1.0)/(nt*var));
+					for (int t=0;t<nt;t++) series[t] *= scale;
+					data.setSeries(xyz, series);
+				}
+			}
+		});
+	}
+
+	/**
+	 *	correlations between normalized series and their 26 neighbors, in Ngb order.
+	 *	Voxels with index[xyz]>=0 are the centers; the correlation with neighbor n is stored in
+	 *	result[26*index[xyz]+n] when the neighbor is inside the image and the mask (left to zero otherwise).
+	 */
+	public static final float[] neighborCorrelations(final TimeSeries4D data, final boolean[] mask, final int[] index, int nindex, int nthreads) {
+		final int nx = data.getRows();
+		final int ny = data.getCols();
+		final int nz = data.getSlices();
+		final int nt = data.getTimePoints();
+		final float[] result = new float[26*nindex];
+
+		// forward directions and their opposites
+		final boolean[] forward = new boolean[26];
+		final int[] opposite = new int[26];
+		for (int n=0;n<26;n++) {
+			forward[n] = (Ngb.z[n]>0 || (Ngb.z[n]==0 && Ngb.y[n]>0) || (Ngb.z[n]==0 && Ngb.y[n]==0 && Ngb.x[n]>0));
+			for (int m=0;m<26;m++) {
+				if (Ngb.x[m]==-Ngb.x[n] && Ngb.y[m]==-Ngb.y[n] && Ngb.z[m]==-Ngb.z[n]) opposite[n] = m;
+			}
+		}
+
+		ParallelLoops.forEachSlab(0, nz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				RowBuffer rows = new RowBuffer(data, nx, ny, nt);
+				for (int z=start;z<end;z++) for (int y=0;y<ny;y++) {
+					int row = nx*y+nx*ny*z;
+					boolean centers = false;
+					for (int x=0;x<nx && !centers;x++) if (index[row+x]>=0) centers = true;
+					if (!centers) continue;
+
+					for (int x=0;x<nx;x++) if (index[row+x]>=0) {
+						float[] series = rows.get(y,z);
+						int id = 26*index[row+x];
+						for (int n=0;n<26;n++) {
+							int xn = x+Ngb.x[n];
+							int yn = y+Ngb.y[n];
+							int zn = z+Ngb.z[n];
+							if (xn<0 || xn>=nx || yn<0 || yn>=ny || zn<0 || zn>=nz) continue;
+							int ngb = xn+nx*yn+nx*ny*zn;
+							if (!mask[ngb]) continue;
+							// backward neighbors are handled by their own centers
+							if (!forward[n] && index[ngb]>=0) continue;
+
+							float corr = dot(series, x*nt, rows.get(yn,zn), xn*nt, nt);
+							result[id+n] = corr;
+							if (forward[n] && index[ngb]>=0) result[26*index[ngb]+opposite[n]] = corr;
+						}
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 *	scalar product of a[ia..ia+len) and b[ib..ib+len),
+	 *	with independent partial sums in double precision so the loop can be pipelined
+	 */
+	public static final float dot(float[] a, int ia, float[] b, int ib, int len) {
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int t=0;
+		for (;t<len-3;t+=4) {
+			s0 += (double)a[ia+t]*b[ib+t];
+			s1 += (double)a[ia+t+1]*b[ib+t+1];
+			s2 += (double)a[ia+t+2]*b[ib+t+2];
+			s3 += (double)a[ia+t+3]*b[ib+t+3];
+		}
+		for (;t<len;t++) s0 += (double)a[ia+t]*b[ib+t];
+		return (float)((s0+s1)+(s2+s3));
+	}
+
+	/**
+	 *	a few image rows of series (nx series of nt values each), reloaded as needed.
+	 *	The least recently used row is replaced, so the rows around the current voxel are all kept.
+	 */
+	private static class RowBuffer {
+		private TimeSeries4D data;
+		private int nx, ny;
+		private float[][] rows;
+		private int[] tag;
+		private long[] used;
+		private long clock = 0;
+
+		RowBuffer(TimeSeries4D data_, int nx_, int ny_, int nt_) {
+			data = data_;
+			nx = nx_;
+			ny = ny_;
+			rows = new float[NROWS][nx*nt_];
+			tag = new int[NROWS];
+			used = new long[NROWS];
+			for (int r=0;r<NROWS;r++) tag[r] = -1;
+		}
+
+		final float[] get(int y, int z) {
+			int id = y+ny*z;
+			int best = 0;
+			clock++;
+			for (int r=0;r<NROWS;r++) {
+				if (tag[r]==id) {
+					used[r] = clock;
+					return rows[r];
+				}
+				if (used[r]<used[best]) best = r;
+			}
+			data.getBlock(nx*id, nx, rows[best]);
+			tag[best] = id;
+			used[best] = clock;
+			return rows[best];
+		}
+	}
+}
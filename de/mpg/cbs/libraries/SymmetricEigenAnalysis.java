@@ -0,0 +1,142 @@
+package de.mpg.cbs.libraries;
+
+import de.mpg.cbs.utilities.*;
+
+/**
+ *
+ *  This class computes eigenvalues and eigenvectors of 3x3 symmetric matrices (Hessians, tensors).
+ *	<p>
+ *	Matrices are decomposed with cyclic Jacobi rotations into caller-provided buffers, so that
+ *	per-voxel analyses do not allocate any memory. Eigenvalues are ordered by decreasing magnitude,
+ *	|l1| >= |l2| >= |l3|, as in Matrix3D, and eigenvectors are stored vector by vector,
+ *	following the Tensor numbering (L1,L2,L3,V1X,V1Y,V1Z,...,V3Z). Symmetric matrices use the Tensor
+ *	vector form {xx,yy,zz,xy,yz,zx}; images of matrices store each component as a block of nxyz values.
+ */
+
+public class SymmetricEigenAnalysis {
+
+	// no data: used as a library of functions
+
+	// tensor components, as in Tensor.matrixForm()
+	public static final int XX = 0;
+	public static final int YY = 1;
+	public static final int ZZ = 2;
+	public static final int XY = 3;
+	public static final int YZ = 4;
+	public static final int ZX = 5;
+
+	private static final int	MAXSWEEP = 50;
+	private static final double EPS = 1e-15;
+
+	/**
+	 *	eigendecomposition of a symmetric matrix: eigenvalues in val[3], eigenvectors in vec[9]
+	 *	(vec[3*n+m]: component m of the n-th eigenvector), or only eigenvalues if vec is null
+	 */
+	public static final void decompose(double xx, double yy, double zz, double xy, double yz, double zx, double[] val, double[] vec) {
+		// the diagonal is rotated in place into the eigenvalues
+		val[0] = xx; val[1] = yy; val[2] = zz;
+		double a01 = xy, a12 = yz, a02 = zx;
+		if (vec!=null) {
+			for (int n=0;n<9;n++) vec[n] = 0.0;
+			vec[0] = 1.0; vec[4] = 1.0; vec[8] = 1.0;
+		}
+		for (int sweep=0;sweep<MAXSWEEP;sweep++) {
+			double off = Numerics.abs(a01) + Numerics.abs(a12) + Numerics.abs(a02);
+			if (off==0.0 || off<=EPS*(Numerics.abs(val[0]) + Numerics.abs(val[1]) + Numerics.abs(val[2]))) break;
+
+			// rotation in the (0,1) plane
+			if (a01!=0.0) {
+				double t = jacobiTangent(val[0], val[1], a01);
+				double c = 1.0/Math.sqrt(t*t+1.0), s = t*c;
+				val[0] -= t*a01;
+				val[1] += t*a01;
+				a01 = 0.0;
+				double g = a02, h = a12;
+				a02 = c*g - s*h;
+				a12 = s*g + c*h;
+				if (vec!=null) rotateVectors(vec, 0, 1, c, s);
+			}
+			// rotation in the (0,2) plane
+			if (a02!=0.0) {
+				double t = jacobiTangent(val[0], val[2], a02);
+				double c = 1.0/Math.sqrt(t*t+1.0), s = t*c;
+				val[0] -= t*a02;
+				val[2] += t*a02;
+				a02 = 0.0;
+				double g = a01, h = a12;
+				a01 = c*g - s*h;
+				a12 = s*g + c*h;
+				if (vec!=null) rotateVectors(vec, 0, 2, c, s);
+			}
+			// rotation in the (1,2) plane
+			if (a12!=0.0) {
+				double t = jacobiTangent(val[1], val[2], a12);
+				double c = 1.0/Math.sqrt(t*t+1.0), s = t*c;
+				val[1] -= t*a12;
+				val[2] += t*a12;
+				a12 = 0.0;
+				double g = a01, h = a02;
+				a01 = c*g - s*h;
+				a02 = s*g + c*h;
+				if (vec!=null) rotateVectors(vec, 1, 2, c, s);
+			}
+		}
+		// re-ordering by decreasing size : |val[0]| >= |val[1]| >= |val[2]|
+		if (Numerics.abs(val[0])<Numerics.abs(val[1])) swap(val, vec, 0, 1);
+		if (Numerics.abs(val[0])<Numerics.abs(val[2])) swap(val, vec, 0, 2);
+		if (Numerics.abs(val[1])<Numerics.abs(val[2])) swap(val, vec, 1, 2);
+	}
+
+	/** eigendecomposition of a symmetric matrix given as a 3x3 array (only the upper triangle is used) */
+	public static final void decompose(double[][] mat, double[] val, double[] vec) {
+		decompose(mat[0][0], mat[1][1], mat[2][2], mat[0][1], mat[1][2], mat[0][2], val, vec);
+	}
+
+	/**
+	 *	eigendecomposition of an image of symmetric matrices (6 blocks of nxyz values, in Tensor vector form),
+	 *	inside the mask (if not null), on nthreads threads.
+	 *	The result is written in eigen as 12 blocks (L1,L2,L3,V1X,..,V3Z) or 3 blocks (L1,L2,L3) if vectors is false;
+	 *	values outside the mask are left unchanged.
+	 */
+	public static final void decompose(final float[] tensor, final boolean[] mask, final int nxyz,
+										final float[] eigen, final boolean vectors, int nthreads) {
+		ParallelLoops.forEachSlab(0, nxyz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				double[] val = new double[3];
+				double[] vec = null;
+				if (vectors) vec = new double[9];
+				for (int xyz=start;xyz<end;xyz++) if (mask==null || mask[xyz]) {
+					decompose(tensor[xyz+XX*nxyz], tensor[xyz+YY*nxyz], tensor[xyz+ZZ*nxyz],
+								tensor[xyz+XY*nxyz], tensor[xyz+YZ*nxyz], tensor[xyz+ZX*nxyz], val, vec);
+					for (int n=0;n<3;n++) eigen[xyz+n*nxyz] = (float)val[n];
+					if (vectors) for (int n=0;n<9;n++) eigen[xyz+(3+n)*nxyz] = (float)vec[n];
+				}
+			}
+		});
+	}
+
+	/** tangent of the Jacobi rotation angle cancelling the (p,q) coefficient */
+	private static final double jacobiTangent(double app, double aqq, double apq) {
+		double theta = (aqq-app)/(2.0*apq);
+		double t = 1.0/(Numerics.abs(theta) + Math.sqrt(theta*theta+1.0));
+		if (theta<0) return -t;
+		else return t;
+	}
+
+	private static final void rotateVectors(double[] vec, int p, int q, double c, double s) {
+		for (int m=0;m<3;m++) {
+			double vp = vec[3*p+m], vq = vec[3*q+m];
+			vec[3*p+m] = c*vp - s*vq;
+			vec[3*q+m] = s*vp + c*vq;
+		}
+	}
+
+	private static final void swap(double[] val, double[] vec, int p, int q) {
+		double tmp = val[p]; val[p] = val[q]; val[q] = tmp;
+		if (vec!=null) {
+			for (int m=0;m<3;m++) {
+				tmp = vec[3*p+m]; vec[3*p+m] = vec[3*q+m]; vec[3*q+m] = tmp;
+			}
+		}
+	}
+}
@@ -132,6 +132,14 @@ public class Tensor {
 		return eigen;
 	}
 	
+	/**
+	 *	Tensor decomposition into {Eigenvalues,Eigenvectors} for an image of tensors in vector form
+	 *	(6 blocks of nxyz values), written into eigen as 12 blocks of nxyz values (L1,...,V3Z)
+	 */
+	public static final void eigenDecomposition(float[] tensors, boolean[] mask, int nxyz, float[] eigen, int nthreads) {
+		SymmetricEigenAnalysis.decompose(tensors, mask, nxyz, eigen, true, nthreads);
+	}
+	
 	/**
 	 *	Tensor recomposition from {Eigenvalues,Eigenvectors}
 	 */
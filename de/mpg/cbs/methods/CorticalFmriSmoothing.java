@@ -56,6 +56,13 @@ public class CorticalFmriSmoothing {
 	private static final byte NEAREST=10;
 	private static final byte LINEAR=20;
 	
+	// sparse kernel mode: weights computed once for all points of the mask
+	private		int				nthreads = 1;
+	private		int[]			points;				// mask points, in index order
+	private		SparseKernel	kernel = null;
+	private static final int	TIMEBLOCK = 64;		// time points sampled at once in kernel mode
+	private static final int	MAXLENGTH = Integer.MAX_VALUE-8;	// largest java array
+	
 	// for debug and display
 	private static final boolean		debug=true;
 	private static final boolean		verbose=true;
@@ -142,6 +149,238 @@ public class CorticalFmriSmoothing {
 		System.gc();
 	}
 
+	public final void setNumberOfThreads(int val) { nthreads = Numerics.max(1,val); }
+	
+	/** mask points handled in kernel mode, as x+nax*y+nax*nay*z indices in kernel row order */
+	public final int[] getKernelPoints() { return points; }
+	
+	public final SparseKernel getKernel() { return kernel; }
+	
+	/**
+	 *	compute the Gaussian weights of all mask points into a sparse kernel, with the rings of
+	 *	dilateFromPoint() (or dilateVolumetrically() if volumetric is true), in parallel over points.
+	 *	Returns null if the kernel has more weights than a java array can hold: the points must then
+	 *	be smoothed one by one with dilateFromPoint() or dilateVolumetrically()
+	 */
+	public final SparseKernel buildGeodesicKernel(final boolean volumetric) {
+		final int naxyz = nax*nay*naz;
+		points = new int[mask.cardinality()];
+		final int[] row = new int[naxyz];
+		Arrays.fill(row, -1);
+		int npt=0;
+		for (int xyz = mask.nextSetBit(0); xyz >= 0; xyz = mask.nextSetBit(xyz+1)) {
+			row[xyz] = npt;
+			points[npt] = xyz;
+			npt++;
+		}
+		final int nrows = npt;
+		final int ns = ParallelLoops.numberOfSlabs(0, nrows, nthreads);
+		final int[][] slabcols = new int[ns][];
+		final float[][] slabweights = new float[ns][];
+		final int[] slabsize = new int[ns];
+		final int[] length = new int[nrows];
+		final boolean[] toolarge = new boolean[1];
+		
+		ParallelLoops.forEachSlab(0, nrows, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				BitSet inused = new BitSet(naxyz);
+				BitSet inboundary = new BitSet(naxyz);
+				BitSet innext = new BitSet(naxyz);
+				int[] usedlist = new int[256];
+				int[] ring = new int[256];
+				int[] nextring = new int[256];
+				double[] ringweight = new double[256];
+				int[] cols = new int[(int)Numerics.min(Numerics.max(1024L, 64L*(end-start)), MAXLENGTH)];
+				float[] weights = new float[cols.length];
+				int nnz = 0;
+				int dmax = Numerics.ceil(3.05f*sigma);
+				
+				for (int r=start;r<end;r++) {
+					int nused = 0;
+					int nring = 1;
+					ring[0] = points[r];
+					inboundary.set(points[r]);
+					double sumWeight = 0.0;
+					int first = nnz;
+					for (int d=0;d<=dmax && nring>0;d++) {
+						double gaussWeight = FastMath.exp(-0.5f*d*d/sigmasqr);
+						int nnext = 0;
+						for (int i=0;i<nring;i++) {
+							int xyz = ring[i];
+							if (!volumetric || mask.get(xyz)) {
+								if (nnz==cols.length) {
+									if (nnz==MAXLENGTH || toolarge[0]) {
+										toolarge[0] = true;
+										return;
+									}
+									int size = (int)Numerics.min(2L*nnz, MAXLENGTH);
+									cols = Arrays.copyOf(cols, size);
+									weights = Arrays.copyOf(weights, size);
+								}
+								if (nnz-first==ringweight.length) ringweight = Arrays.copyOf(ringweight, 2*ringweight.length);
+								sumWeight += gaussWeight;
+								cols[nnz] = row[xyz];
+								ringweight[nnz-first] = gaussWeight;
+								nnz++;
+							}
+							for (int k = 0; k<6; k++) {
+								int xyzn = xyz + xoff[k] + yoff[k] + zoff[k];
+								boolean inside = volumetric ? !imgbound.get(xyzn) : mask.get(xyzn);
+								if (inside && !inused.get(xyzn) && !inboundary.get(xyzn) && !innext.get(xyzn)) {
+									innext.set(xyzn);
+									if (nnext==nextring.length) nextring = Arrays.copyOf(nextring, 2*nnext);
+									nextring[nnext] = xyzn;
+									nnext++;
+								}
+							}
+							inused.set(xyz);
+							if (nused==usedlist.length) usedlist = Arrays.copyOf(usedlist, 2*nused);
+							usedlist[nused] = xyz;
+							nused++;
+						}
+						// replace active boundary, visited in index order as in dilateFromPoint()
+						for (int i=0;i<nring;i++) inboundary.clear(ring[i]);
+						for (int i=0;i<nnext;i++) {
+							innext.clear(nextring[i]);
+							inboundary.set(nextring[i]);
+						}
+						Arrays.sort(nextring, 0, nnext);
+						int[] tmp = ring;
+						ring = nextring;
+						nextring = tmp;
+						nring = nnext;
+					}
+					for (int i=0;i<nring;i++) inboundary.clear(ring[i]);
+					for (int i=0;i<nused;i++) inused.clear(usedlist[i]);
+					
+					for (int n=first;n<nnz;n++) weights[n] = (float)(ringweight[n-first]/sumWeight);
+					length[r] = nnz-first;
+				}
+				slabcols[thread] = cols;
+				slabweights[thread] = weights;
+				slabsize[thread] = nnz;
+			}
+		});
+		// gather the slabs, in row order
+		long nweights = 0;
+		for (int r=0;r<nrows;r++) nweights += length[r];
+		if (toolarge[0] || nweights>MAXLENGTH) {
+			BasicInfo.displayMessage("geodesic kernel: too many weights for "+nrows+" points, use point by point smoothing\n");
+			points = null;
+			kernel = null;
+			return null;
+		}
+		int[] rowstart = new int[nrows+1];
+		for (int r=0;r<nrows;r++) rowstart[r+1] = rowstart[r]+length[r];
+		int[] columns = new int[rowstart[nrows]];
+		float[] weights = new float[rowstart[nrows]];
+		int offset = 0;
+		for (int t=0;t<ns;t++) {
+			System.arraycopy(slabcols[t], 0, columns, offset, slabsize[t]);
+			System.arraycopy(slabweights[t], 0, weights, offset, slabsize[t]);
+			offset += slabsize[t];
+			slabcols[t] = null;
+			slabweights[t] = null;
+		}
+		kernel = new SparseKernel(rowstart, columns, weights, kernelKey(volumetric));
+		if (debug) BasicInfo.displayMessage("geodesic kernel: "+nrows+" points, "+rowstart[nrows]+" weights");
+		return kernel;
+	}
+	
+	/**
+	 *	load the sparse kernel matching the mask, FWHM and mode from the cache directory
+	 *	(the LUT cache directory of the user if null, see CriticalPointLUT.cacheDirectory()),
+	 *	or build it and save it there. Returns null if the kernel is too large (see buildGeodesicKernel())
+	 */
+	public final SparseKernel loadGeodesicKernel(String cachedir, boolean volumetric) {
+		if (cachedir==null) cachedir = CriticalPointLUT.cacheDirectory();
+		long key = kernelKey(volumetric);
+		File cache = new File(cachedir, "cortical-kernel-"+Long.toHexString(key)+".csk");
+		
+		SparseKernel cached = SparseKernel.read(cache, key);
+		if (cached!=null && cached.getRows()==mask.cardinality()) {
+			points = new int[cached.getRows()];
+			int npt=0;
+			for (int xyz = mask.nextSetBit(0); xyz >= 0; xyz = mask.nextSetBit(xyz+1)) points[npt++] = xyz;
+			kernel = cached;
+			if (debug) BasicInfo.displayMessage("geodesic kernel loaded from "+cache.getPath());
+			return kernel;
+		}
+		if (buildGeodesicKernel(volumetric)==null) return null;
+		// write to a temporary file first, so that concurrent jobs never read a partial kernel
+		try {
+			File dir = CriticalPointLUT.createCacheDirectory(cachedir);
+			File tmp = File.createTempFile("cortical-kernel-", ".tmp", dir);
+			kernel.write(tmp);
+			if (!tmp.renameTo(cache)) tmp.delete();
+		} catch (IOException e) {
+			System.out.println("i/o exception: kernel not cached");
+			System.out.println(e.getMessage());
+		}
+		return kernel;
+	}
+	
+	/**
+	 *	smooth all time points of all kernel points: the data is sampled once per point and time,
+	 *	then multiplied by the kernel, by blocks of time points. Returns the smoothed series
+	 *	point by point (smoothed[r*nfd+n] for point getKernelPoints()[r]), or null if the series
+	 *	of all points do not fit in a java array.
+	 */
+	public final float[] smoothWithKernel() {
+		final int nrows = kernel.getRows();
+		if ((long)nrows*nfd>MAXLENGTH) {
+			BasicInfo.displayMessage("kernel smoothing: too many values for "+nrows+" points and "+nfd+" time points, use point by point smoothing\n");
+			return null;
+		}
+		final float[] smoothed = new float[nrows*nfd];
+		final int nblock = Numerics.min(nfd, TIMEBLOCK);
+		final float[] sampled = new float[nrows*nblock];
+		final float[] product = new float[nrows*nblock];
+		for (int n0=0;n0<nfd;n0+=nblock) {
+			final int t0 = n0;
+			final int nt = Numerics.min(nblock, nfd-n0);
+			ParallelLoops.forEachSlab(0, nrows, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					for (int r=start;r<end;r++) {
+						int z = points[r]/(nax*nay);
+						int y = (points[r]-z*nax*nay)/nax;
+						int x = points[r]-z*nax*nay-y*nax;
+						for (int t=0;t<nt;t++) {
+							if (interp==LINEAR) sampled[r*nt+t] = ImageInterpolation.linearInterpolation(data, 0.0f, mapping[x][y][z][X],mapping[x][y][z][Y],mapping[x][y][z][Z],t0+t, nfx,nfy,nfz,nfd);
+							else sampled[r*nt+t] = ImageInterpolation.nearestNeighborInterpolation(data, 0.0f, mapping[x][y][z][X],mapping[x][y][z][Y],mapping[x][y][z][Z],t0+t, nfx,nfy,nfz,nfd);
+						}
+					}
+				}
+			});
+			ParallelLoops.forEachSlab(0, nrows, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					kernel.multiply(sampled, product, nt, start, end);
+					for (int r=start;r<end;r++) for (int t=0;t<nt;t++) smoothed[r*nfd+t0+t] = product[r*nt+t];
+				}
+			});
+		}
+		return smoothed;
+	}
+	
+	/** identifier of the kernel parameters: image dimensions, mask, sigma and mode */
+	private final long kernelKey(boolean volumetric) {
+		long key = 0xcbf29ce484222325L;
+		long[] bits = mask.toLongArray();
+		key = mix(key, nax); key = mix(key, nay); key = mix(key, naz);
+		key = mix(key, Float.floatToIntBits(sigma));
+		key = mix(key, volumetric ? 1 : 0);
+		for (int n=0;n<bits.length;n++) key = mix(key, bits[n]);
+		return key;
+	}
+	
+	private static final long mix(long key, long val) {
+		for (int b=0;b<8;b++) {
+			key ^= (val>>>(8*b)) & 0xff;
+			key *= 0x100000001b3L;
+		}
+		return key;
+	}
+
 
 	public final void dilateFromPoint(float[] smoothed, int x0, int y0, int z0) {
 		
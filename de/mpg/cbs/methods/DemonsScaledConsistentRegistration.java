@@ -2,8 +2,8 @@ package de.mpg.cbs.methods;
 
 import java.io.*;
 import java.util.*;
-import gov.nih.mipav.view.*;
-import gov.nih.mipav.model.structures.jama.*;
+//import gov.nih.mipav.view.*;
+//import gov.nih.mipav.model.structures.jama.*;
 
 import de.mpg.cbs.libraries.*;
 import de.mpg.cbs.structures.*;
@@ -87,6 +87,14 @@ public class DemonsScaledConsistentRegistration {
 	private		int		fieldType;
 	private		int		preType;
 	private		int		Niter;
+	private		int		nthreads = 1;		// threads for the update, composition and smoothing steps
+	
+	// image pyramid: images and targets smoothed and subsampled for the current level (the originals at level 0)
+	private		float[][]		levelImage;
+	private		float[][]		levelTarget;
+	private		int				levelFactor;
+	private		int				nlx,nly,nlz;		// subsampled image dimensions
+	private		int				nltx,nlty,nltz;		// subsampled target dimensions
 	
 	// computation variables
 	private		float			sigma2; 		// scale of transformation
@@ -180,6 +188,7 @@ public class DemonsScaledConsistentRegistration {
 				
 		try {			
 			preprocessInputImages(image_, target_);
+			setPyramidLevel(1);
 		} catch (OutOfMemoryError e){
 			isWorking = false;
             finalize();
@@ -193,6 +202,8 @@ public class DemonsScaledConsistentRegistration {
 	final public void finalize() {
 		image = null;
 		target = null;
+		levelImage = null;
+		levelTarget = null;
 		s = null; u = null; c = null;
 		is = null; iu = null; ic = null;
 		System.gc();
@@ -214,6 +225,9 @@ public class DemonsScaledConsistentRegistration {
     
 	public final boolean isWorking() { return isWorking; }
 	public final boolean isCompleted() { return isCompleted; }
+	
+	/** number of threads used in each iteration (the deformations do not depend on it) */
+	public final void setNumberOfThreads(int nt_) { nthreads = Numerics.max(1, nt_); }
     
 	
 	private final void preprocessInputImages(float[] img, float[] trg) {
@@ -392,123 +406,131 @@ public class DemonsScaledConsistentRegistration {
      * performs only one iteration
 	 */
     final public float registerImageToTargetUpdate() {
-		float meanDiff = 0.0f;
-		for (int x=1;x<nsx-1;x++) for (int y=1;y<nsy-1;y++) for (int z=1;z<nsz-1;z++) {
-			int xyz = x+nsx*y+nsx*nsy*z;
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(1, nsz-1, nthreads)];
+		ParallelLoops.forEachSlab(1, nsz-1, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanDiff = 0.0f;
+				for (int z=start;z<end;z++) for (int y=1;y<nsy-1;y++) for (int x=1;x<nsx-1;x++) {
+					int xyz = x+nsx*y+nsx*nsy*z;
 		
-			// compute the update field
-			float xs = s[X][xyz];
-			float ys = s[Y][xyz];
-			float zs = s[Z][xyz];
+					// compute the update field
+					float xs = s[X][xyz];
+					float ys = s[Y][xyz];
+					float zs = s[Z][xyz];
 		
-			float xsmx = s[X][xyz-1];
-			float ysmx = s[Y][xyz-1];
-			float zsmx = s[Z][xyz-1];
+					float xsmx = s[X][xyz-1];
+					float ysmx = s[Y][xyz-1];
+					float zsmx = s[Z][xyz-1];
 	
-			float xspx = s[X][xyz+1];
-			float yspx = s[Y][xyz+1];
-			float zspx = s[Z][xyz+1];
+					float xspx = s[X][xyz+1];
+					float yspx = s[Y][xyz+1];
+					float zspx = s[Z][xyz+1];
 	
-			float xsmy = s[X][xyz-nsx];
-			float ysmy = s[Y][xyz-nsx];
-			float zsmy = s[Z][xyz-nsx];
+					float xsmy = s[X][xyz-nsx];
+					float ysmy = s[Y][xyz-nsx];
+					float zsmy = s[Z][xyz-nsx];
 	
-			float xspy = s[X][xyz+nsx];
-			float yspy = s[Y][xyz+nsx];
-			float zspy = s[Z][xyz+nsx];
+					float xspy = s[X][xyz+nsx];
+					float yspy = s[Y][xyz+nsx];
+					float zspy = s[Z][xyz+nsx];
 	
-			float xsmz = s[X][xyz-nsx*nsy];
-			float ysmz = s[Y][xyz-nsx*nsy];
-			float zsmz = s[Z][xyz-nsx*nsy];
+					float xsmz = s[X][xyz-nsx*nsy];
+					float ysmz = s[Y][xyz-nsx*nsy];
+					float zsmz = s[Z][xyz-nsx*nsy];
 	
-			float xspz = s[X][xyz+nsx*nsy];
-			float yspz = s[Y][xyz+nsx*nsy];
-			float zspz = s[Z][xyz+nsx*nsy];
+					float xspz = s[X][xyz+nsx*nsy];
+					float yspz = s[Y][xyz+nsx*nsy];
+					float zspz = s[Z][xyz+nsx*nsy];
 			
-			float xt = x*scale;
-			float yt = y*scale;
-			float zt = z*scale;
+					float xt = x*scale;
+					float yt = y*scale;
+					float zt = z*scale;
 			
-			float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
-			float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
-			float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
-			float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
-			float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
-			float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
-			float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
+					float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
+					float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
+					float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
+					float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
+					float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
+					float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
+					float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
 			
-			u[X][xyz] = 0.0f;
-			u[Y][xyz] = 0.0f;
-			u[Z][xyz] = 0.0f;
-			float den = 0.0f;
-			for (int n=0;n<nc;n++) {
-				// image differences
-				float diff = (ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt,ntx,nty,ntz) 
-							- ImageInterpolation.linearClosestInterpolation(image[n],xs,ys,zs,nix,niy,niz));				
+					u[X][xyz] = 0.0f;
+					u[Y][xyz] = 0.0f;
+					u[Z][xyz] = 0.0f;
+					float den = 0.0f;
+					for (int n=0;n<nc;n++) {
+						// image differences
+						float diff = (sampleTarget(n,xt,yt,zt) 
+									- sampleImage(n,xs,ys,zs));				
 				
-				// image gradient
-				float Jx, Jy, Jz;
-				if (forceType==FIXED) {
-					Jx = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xt+scale,yt,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt-scale,yt,zt,ntx,nty,ntz));
-					Jy = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt+scale,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt-scale,zt,ntx,nty,ntz));
-					Jz = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt+scale,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt-scale,ntx,nty,ntz));
-				} else if (forceType==MOVING) {
-					Jx = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xspx,yspx,zspx,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmx,ysmx,zsmx,nix,niy,niz));
-					Jy = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xspy,yspy,zspy,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmy,ysmy,zsmy,nix,niy,niz));
-					Jz = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xspz,yspz,zspz,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmz,ysmz,zsmz,nix,niy,niz));
-				} else {
-					Jx = 0.25f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xt+scale,yt,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt-scale,yt,zt,ntx,nty,ntz));
-					Jy = 0.25f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt+scale,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt-scale,zt,ntx,nty,ntz));
-					Jz = 0.25f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt+scale,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt-scale,ntx,nty,ntz));
+						// image gradient
+						float Jx, Jy, Jz;
+						if (forceType==FIXED) {
+							Jx = 0.5f/rtx*(sampleTarget(n,xt+scale,yt,zt) - sampleTarget(n,xt-scale,yt,zt));
+							Jy = 0.5f/rty*(sampleTarget(n,xt,yt+scale,zt) - sampleTarget(n,xt,yt-scale,zt));
+							Jz = 0.5f/rtz*(sampleTarget(n,xt,yt,zt+scale) - sampleTarget(n,xt,yt,zt-scale));
+						} else if (forceType==MOVING) {
+							Jx = 0.5f/rix*(sampleImage(n,xspx,yspx,zspx)-sampleImage(n,xsmx,ysmx,zsmx));
+							Jy = 0.5f/riy*(sampleImage(n,xspy,yspy,zspy)-sampleImage(n,xsmy,ysmy,zsmy));
+							Jz = 0.5f/riz*(sampleImage(n,xspz,yspz,zspz)-sampleImage(n,xsmz,ysmz,zsmz));
+						} else {
+							Jx = 0.25f/rtx*(sampleTarget(n,xt+scale,yt,zt) - sampleTarget(n,xt-scale,yt,zt));
+							Jy = 0.25f/rty*(sampleTarget(n,xt,yt+scale,zt) - sampleTarget(n,xt,yt-scale,zt));
+							Jz = 0.25f/rtz*(sampleTarget(n,xt,yt,zt+scale) - sampleTarget(n,xt,yt,zt-scale));
 
-					Jx += 0.25f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xspx,yspx,zspx,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmx,ysmx,zsmx,nix,niy,niz));
-					Jy += 0.25f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xspy,yspy,zspy,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmy,ysmy,zsmy,nix,niy,niz));
-					Jz += 0.25f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xspz,yspz,zspz,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmz,ysmz,zsmz,nix,niy,niz));
-				}
+							Jx += 0.25f/rix*(sampleImage(n,xspx,yspx,zspx)-sampleImage(n,xsmx,ysmx,zsmx));
+							Jy += 0.25f/riy*(sampleImage(n,xspy,yspy,zspy)-sampleImage(n,xsmy,ysmy,zsmy));
+							Jz += 0.25f/riz*(sampleImage(n,xspz,yspz,zspz)-sampleImage(n,xsmz,ysmz,zsmz));
+						}
 				
-				// inverse consistent coupling: backprojected coordinates
-				float iTx = xt - ImageInterpolation.linearClosestInterpolation(is[X],xsi,ysi,zsi,nisx,nisy,nisz);
-				float iTy = yt - ImageInterpolation.linearClosestInterpolation(is[Y],xsi,ysi,zsi,nisx,nisy,nisz);
-				float iTz = zt - ImageInterpolation.linearClosestInterpolation(is[Z],xsi,ysi,zsi,nisx,nisy,nisz);
+						// inverse consistent coupling: backprojected coordinates
+						float iTx = xt - ImageInterpolation.linearClosestInterpolation(is[X],xsi,ysi,zsi,nisx,nisy,nisz);
+						float iTy = yt - ImageInterpolation.linearClosestInterpolation(is[Y],xsi,ysi,zsi,nisx,nisy,nisz);
+						float iTz = zt - ImageInterpolation.linearClosestInterpolation(is[Z],xsi,ysi,zsi,nisx,nisy,nisz);
 				
-				// erse consistent coupling: inverse transform jacobian
-				float[][] diT = new float[3][3];
-				diT[X][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[X],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
-				diT[X][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[X],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
-				diT[X][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[X],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
+						// erse consistent coupling: inverse transform jacobian
+						float[][] diT = new float[3][3];
+						diT[X][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[X],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
+						diT[X][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[X],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
+						diT[X][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[X],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
 
-				diT[Y][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Y],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
-				diT[Y][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Y],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
-				diT[Y][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Y],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
+						diT[Y][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Y],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
+						diT[Y][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Y],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
+						diT[Y][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Y],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
 
-				diT[Z][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Z],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
-				diT[Z][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Z],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
-				diT[Z][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Z],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
+						diT[Z][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Z],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
+						diT[Z][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Z],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
+						diT[Z][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Z],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
 
-				// putting it all together
-				float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
+						// putting it all together
+						float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
 				
-				float diT2 = Matrix3D.determinant(diT);
-				diT2 *= diT2;				
+						float diT2 = Matrix3D.determinant(diT);
+						diT2 *= diT2;				
 				
-				float sigmaI = diff*diff/sigma2;
+						float sigmaI = diff*diff/sigma2;
 				
-				den += sigmaI*(1.0f+diT2) + J2;
+						den += sigmaI*(1.0f+diT2) + J2;
 				
-				u[X][xyz] += diff*Jx;
-				u[Y][xyz] += diff*Jy;
-				u[Z][xyz] += diff*Jz;
+						u[X][xyz] += diff*Jx;
+						u[Y][xyz] += diff*Jy;
+						u[Z][xyz] += diff*Jz;
 				
-				u[X][xyz] += sigmaI*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
-				u[Y][xyz] += sigmaI*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
-				u[Z][xyz] += sigmaI*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
+						u[X][xyz] += sigmaI*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
+						u[Y][xyz] += sigmaI*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
+						u[Z][xyz] += sigmaI*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
 				
-				meanDiff += Numerics.abs(diff);
+						meanDiff += Numerics.abs(diff);
+					}
+					u[X][xyz] /= Numerics.max(ZERO,den);
+					u[Y][xyz] /= Numerics.max(ZERO,den);
+					u[Z][xyz] /= Numerics.max(ZERO,den);			
+				}
+				partial[thread] = meanDiff;
 			}
-			u[X][xyz] /= Numerics.max(ZERO,den);
-			u[Y][xyz] /= Numerics.max(ZERO,den);
-			u[Z][xyz] /= Numerics.max(ZERO,den);			
-		}
+		});
+		float meanDiff = 0.0f;
+		for (int t=0;t<partial.length;t++) meanDiff += partial[t];
 		meanDiff /= (ntx*nty*ntz);
 		
 		if (debug) BasicInfo.displayMessage("mean intensity difference "+meanDiff+"\n");
@@ -522,87 +544,95 @@ public class DemonsScaledConsistentRegistration {
      * performs only one iteration
 	 */
     final public float registerImageToTargetUpdateDecoupled() {
-		float meanDiff = 0.0f;
-		for (int x=1;x<nsx-1;x++) for (int y=1;y<nsy-1;y++) for (int z=1;z<nsz-1;z++) {
-			int xyz = x+nsx*y+nsx*nsy*z;
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(1, nsz-1, nthreads)];
+		ParallelLoops.forEachSlab(1, nsz-1, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanDiff = 0.0f;
+				for (int z=start;z<end;z++) for (int y=1;y<nsy-1;y++) for (int x=1;x<nsx-1;x++) {
+					int xyz = x+nsx*y+nsx*nsy*z;
 		
-			// compute the update field
-			float xs = s[X][xyz];
-			float ys = s[Y][xyz];
-			float zs = s[Z][xyz];
+					// compute the update field
+					float xs = s[X][xyz];
+					float ys = s[Y][xyz];
+					float zs = s[Z][xyz];
 		
-			float xsmx = s[X][xyz-1];
-			float ysmx = s[Y][xyz-1];
-			float zsmx = s[Z][xyz-1];
+					float xsmx = s[X][xyz-1];
+					float ysmx = s[Y][xyz-1];
+					float zsmx = s[Z][xyz-1];
 	
-			float xspx = s[X][xyz+1];
-			float yspx = s[Y][xyz+1];
-			float zspx = s[Z][xyz+1];
+					float xspx = s[X][xyz+1];
+					float yspx = s[Y][xyz+1];
+					float zspx = s[Z][xyz+1];
 	
-			float xsmy = s[X][xyz-nsx];
-			float ysmy = s[Y][xyz-nsx];
-			float zsmy = s[Z][xyz-nsx];
+					float xsmy = s[X][xyz-nsx];
+					float ysmy = s[Y][xyz-nsx];
+					float zsmy = s[Z][xyz-nsx];
 	
-			float xspy = s[X][xyz+nsx];
-			float yspy = s[Y][xyz+nsx];
-			float zspy = s[Z][xyz+nsx];
+					float xspy = s[X][xyz+nsx];
+					float yspy = s[Y][xyz+nsx];
+					float zspy = s[Z][xyz+nsx];
 	
-			float xsmz = s[X][xyz-nsx*nsy];
-			float ysmz = s[Y][xyz-nsx*nsy];
-			float zsmz = s[Z][xyz-nsx*nsy];
+					float xsmz = s[X][xyz-nsx*nsy];
+					float ysmz = s[Y][xyz-nsx*nsy];
+					float zsmz = s[Z][xyz-nsx*nsy];
 	
-			float xspz = s[X][xyz+nsx*nsy];
-			float yspz = s[Y][xyz+nsx*nsy];
-			float zspz = s[Z][xyz+nsx*nsy];
+					float xspz = s[X][xyz+nsx*nsy];
+					float yspz = s[Y][xyz+nsx*nsy];
+					float zspz = s[Z][xyz+nsx*nsy];
 			
-			float xt = x*scale;
-			float yt = y*scale;
-			float zt = z*scale;
+					float xt = x*scale;
+					float yt = y*scale;
+					float zt = z*scale;
 						
-			u[X][xyz] = 0.0f;
-			u[Y][xyz] = 0.0f;
-			u[Z][xyz] = 0.0f;
-			float den = 0.0f;
-			for (int n=0;n<nc;n++) {
-				// image differences
-				float diff = (ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt,ntx,nty,ntz) 
-							- ImageInterpolation.linearClosestInterpolation(image[n],xs,ys,zs,nix,niy,niz));				
+					u[X][xyz] = 0.0f;
+					u[Y][xyz] = 0.0f;
+					u[Z][xyz] = 0.0f;
+					float den = 0.0f;
+					for (int n=0;n<nc;n++) {
+						// image differences
+						float diff = (sampleTarget(n,xt,yt,zt) 
+									- sampleImage(n,xs,ys,zs));				
 				
-				// image gradient
-				float Jx, Jy, Jz;
-				if (forceType==FIXED) {
-					Jx = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xt+scale,yt,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt-scale,yt,zt,ntx,nty,ntz));
-					Jy = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt+scale,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt-scale,zt,ntx,nty,ntz));
-					Jz = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt+scale,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt-scale,ntx,nty,ntz));
-				} else if (forceType==MOVING) {
-					Jx = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xspx,yspx,zspx,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmx,ysmx,zsmx,nix,niy,niz));
-					Jy = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xspy,yspy,zspy,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmy,ysmy,zsmy,nix,niy,niz));
-					Jz = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xspz,yspz,zspz,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmz,ysmz,zsmz,nix,niy,niz));
-				} else {
-					Jx = 0.25f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xt+scale,yt,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt-scale,yt,zt,ntx,nty,ntz));
-					Jy = 0.25f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt+scale,zt,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt-scale,zt,ntx,nty,ntz));
-					Jz = 0.25f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt+scale,ntx,nty,ntz) - ImageInterpolation.linearClosestInterpolation(target[n],xt,yt,zt-scale,ntx,nty,ntz));
+						// image gradient
+						float Jx, Jy, Jz;
+						if (forceType==FIXED) {
+							Jx = 0.5f/rtx*(sampleTarget(n,xt+scale,yt,zt) - sampleTarget(n,xt-scale,yt,zt));
+							Jy = 0.5f/rty*(sampleTarget(n,xt,yt+scale,zt) - sampleTarget(n,xt,yt-scale,zt));
+							Jz = 0.5f/rtz*(sampleTarget(n,xt,yt,zt+scale) - sampleTarget(n,xt,yt,zt-scale));
+						} else if (forceType==MOVING) {
+							Jx = 0.5f/rix*(sampleImage(n,xspx,yspx,zspx)-sampleImage(n,xsmx,ysmx,zsmx));
+							Jy = 0.5f/riy*(sampleImage(n,xspy,yspy,zspy)-sampleImage(n,xsmy,ysmy,zsmy));
+							Jz = 0.5f/riz*(sampleImage(n,xspz,yspz,zspz)-sampleImage(n,xsmz,ysmz,zsmz));
+						} else {
+							Jx = 0.25f/rtx*(sampleTarget(n,xt+scale,yt,zt) - sampleTarget(n,xt-scale,yt,zt));
+							Jy = 0.25f/rty*(sampleTarget(n,xt,yt+scale,zt) - sampleTarget(n,xt,yt-scale,zt));
+							Jz = 0.25f/rtz*(sampleTarget(n,xt,yt,zt+scale) - sampleTarget(n,xt,yt,zt-scale));
 
-					Jx += 0.25f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xspx,yspx,zspx,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmx,ysmx,zsmx,nix,niy,niz));
-					Jy += 0.25f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xspy,yspy,zspy,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmy,ysmy,zsmy,nix,niy,niz));
-					Jz += 0.25f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xspz,yspz,zspz,nix,niy,niz)-ImageInterpolation.linearClosestInterpolation(image[n],xsmz,ysmz,zsmz,nix,niy,niz));
-				}
+							Jx += 0.25f/rix*(sampleImage(n,xspx,yspx,zspx)-sampleImage(n,xsmx,ysmx,zsmx));
+							Jy += 0.25f/riy*(sampleImage(n,xspy,yspy,zspy)-sampleImage(n,xsmy,ysmy,zsmy));
+							Jz += 0.25f/riz*(sampleImage(n,xspz,yspz,zspz)-sampleImage(n,xsmz,ysmz,zsmz));
+						}
 				
-				// putting it all together
-				float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
+						// putting it all together
+						float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
 				
-				den += diff*diff/sigma2 + J2;
+						den += diff*diff/sigma2 + J2;
 				
-				u[X][xyz] += diff*Jx;
-				u[Y][xyz] += diff*Jy;
-				u[Z][xyz] += diff*Jz;
+						u[X][xyz] += diff*Jx;
+						u[Y][xyz] += diff*Jy;
+						u[Z][xyz] += diff*Jz;
 				
-				meanDiff += Numerics.abs(diff);
+						meanDiff += Numerics.abs(diff);
+					}
+					u[X][xyz] /= Numerics.max(ZERO,den);
+					u[Y][xyz] /= Numerics.max(ZERO,den);
+					u[Z][xyz] /= Numerics.max(ZERO,den);			
+				}
+				partial[thread] = meanDiff;
 			}
-			u[X][xyz] /= Numerics.max(ZERO,den);
-			u[Y][xyz] /= Numerics.max(ZERO,den);
-			u[Z][xyz] /= Numerics.max(ZERO,den);			
-		}
+		});
+		float meanDiff = 0.0f;
+		for (int t=0;t<partial.length;t++) meanDiff += partial[t];
 		meanDiff /= (ntx*nty*ntz);
 		
 		if (debug) BasicInfo.displayMessage("mean intensity difference "+meanDiff+"\n");
@@ -620,48 +650,60 @@ public class DemonsScaledConsistentRegistration {
 			//if (debug) BasicInfo.displayMessage("GAUSS_FLUID regularization \n");
 		
 			// smooth the result with a gaussian kernel
-			u[X] = ImageFilters.separableConvolution(u[X],nsx,nsy,nsz,gaussKernel,gx,gy,gz);
-			u[Y] = ImageFilters.separableConvolution(u[Y],nsx,nsy,nsz,gaussKernel,gx,gy,gz);
-			u[Z] = ImageFilters.separableConvolution(u[Z],nsx,nsy,nsz,gaussKernel,gx,gy,gz);
+			u[X] = ImageFilters.separableConvolution(u[X],nsx,nsy,nsz,gaussKernel,gx,gy,gz,nthreads);
+			u[Y] = ImageFilters.separableConvolution(u[Y],nsx,nsy,nsz,gaussKernel,gx,gy,gz,nthreads);
+			u[Z] = ImageFilters.separableConvolution(u[Z],nsx,nsy,nsz,gaussKernel,gx,gy,gz,nthreads);
 		}
 		
 		// compose the transformations
 		if (fieldType==COMPOSITIVE) {
 			//if (debug) BasicInfo.displayMessage("compose with current transform \n");
 							
-			for (int x=0;x<nsx;x++) for (int y=0;y<nsy;y++) for (int z=0;z<nsz;z++) {
-				int xyz = x+nsx*y+nsx*nsy*z;
-				
-				float xu = x+u[X][xyz];
-				float yu = y+u[Y][xyz];
-				float zu = z+u[Z][xyz];
-				
-				// note: if outside, extrapolate as X+u
-				c[X][xyz] = ImageInterpolation.linearClosestInterpolation(s[X],xu,yu,zu,nsx,nsy,nsz) - x*scale;
-				c[Y][xyz] = ImageInterpolation.linearClosestInterpolation(s[Y],xu,yu,zu,nsx,nsy,nsz) - y*scale;
-				c[Z][xyz] = ImageInterpolation.linearClosestInterpolation(s[Z],xu,yu,zu,nsx,nsy,nsz) - z*scale;
-			}
+			ParallelLoops.forEachSlab(0, nsz, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					for (int z=start;z<end;z++) for (int y=0;y<nsy;y++) for (int x=0;x<nsx;x++) {
+						int xyz = x+nsx*y+nsx*nsy*z;
+						
+						float xu = x+u[X][xyz];
+						float yu = y+u[Y][xyz];
+						float zu = z+u[Z][xyz];
+						
+						// note: if outside, extrapolate as X+u
+						c[X][xyz] = ImageInterpolation.linearClosestInterpolation(s[X],xu,yu,zu,nsx,nsy,nsz) - x*scale;
+						c[Y][xyz] = ImageInterpolation.linearClosestInterpolation(s[Y],xu,yu,zu,nsx,nsy,nsz) - y*scale;
+						c[Z][xyz] = ImageInterpolation.linearClosestInterpolation(s[Z],xu,yu,zu,nsx,nsy,nsz) - z*scale;
+					}
+				}
+			});
 		}
 		
 		if (regType==GAUSS_DIFFUSION || regType==GAUSS_MIXED) {
 			//if (debug) BasicInfo.displayMessage("GAUSS_DIFFUSION regularization \n");
 			
 			// smooth the result with a gaussian kernel
-			c[X] = ImageFilters.separableConvolution(c[X],nsx,nsy,nsz,gaussKernel,gx,gy,gz);
-			c[Y] = ImageFilters.separableConvolution(c[Y],nsx,nsy,nsz,gaussKernel,gx,gy,gz);
-			c[Z] = ImageFilters.separableConvolution(c[Z],nsx,nsy,nsz,gaussKernel,gx,gy,gz);
+			c[X] = ImageFilters.separableConvolution(c[X],nsx,nsy,nsz,gaussKernel,gx,gy,gz,nthreads);
+			c[Y] = ImageFilters.separableConvolution(c[Y],nsx,nsy,nsz,gaussKernel,gx,gy,gz,nthreads);
+			c[Z] = ImageFilters.separableConvolution(c[Z],nsx,nsy,nsz,gaussKernel,gx,gy,gz,nthreads);
 		}
 					
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(0, nsz, nthreads)];
+		ParallelLoops.forEachSlab(0, nsz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanC = 0.0f;
+				for (int z=start;z<end;z++) for (int y=0;y<nsy;y++) for (int x=0;x<nsx;x++) {
+					int xyz = x+nsx*y+nsx*nsy*z;
+					
+					s[X][xyz] = x*scale + c[X][xyz];
+					s[Y][xyz] = y*scale + c[Y][xyz];
+					s[Z][xyz] = z*scale + c[Z][xyz];
+					
+					meanC += c[X][xyz]*c[X][xyz]+c[Y][xyz]*c[Y][xyz]+c[Z][xyz]*c[Z][xyz];
+				}
+				partial[thread] = meanC;
+			}
+		});
 		float meanC = 0.0f;
-		for (int x=0;x<nsx;x++) for (int y=0;y<nsy;y++) for (int z=0;z<nsz;z++) {
-			int xyz = x+nsx*y+nsx*nsy*z;
-			
-			s[X][xyz] = x*scale + c[X][xyz];
-			s[Y][xyz] = y*scale + c[Y][xyz];
-			s[Z][xyz] = z*scale + c[Z][xyz];
-			
-			meanC += c[X][xyz]*c[X][xyz]+c[Y][xyz]*c[Y][xyz]+c[Z][xyz]*c[Z][xyz];
-		}
+		for (int t=0;t<partial.length;t++) meanC += partial[t];
 		meanC /= (nsx*nsy*nsz);
 		
 		//if (debug) BasicInfo.displayMessage("mean update size "+meanC+"\n");
@@ -675,123 +717,131 @@ public class DemonsScaledConsistentRegistration {
      * performs only one iteration
 	 */
     final public float registerTargetToImageUpdate() {
-		float meanDiff = 0.0f;
-		for (int x=1;x<nisx-1;x++) for (int y=1;y<nisy-1;y++) for (int z=1;z<nisz-1;z++) {
-			int xyz = x+nisx*y+nisx*nisy*z;
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(1, nisz-1, nthreads)];
+		ParallelLoops.forEachSlab(1, nisz-1, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanDiff = 0.0f;
+				for (int z=start;z<end;z++) for (int y=1;y<nisy-1;y++) for (int x=1;x<nisx-1;x++) {
+					int xyz = x+nisx*y+nisx*nisy*z;
 		
-			// compute the update field
-			float xs = is[X][xyz];
-			float ys = is[Y][xyz];
-			float zs = is[Z][xyz];
+					// compute the update field
+					float xs = is[X][xyz];
+					float ys = is[Y][xyz];
+					float zs = is[Z][xyz];
 		
-			float xsmx = is[X][xyz-1];
-			float ysmx = is[Y][xyz-1];
-			float zsmx = is[Z][xyz-1];
+					float xsmx = is[X][xyz-1];
+					float ysmx = is[Y][xyz-1];
+					float zsmx = is[Z][xyz-1];
 	
-			float xspx = is[X][xyz+1];
-			float yspx = is[Y][xyz+1];
-			float zspx = is[Z][xyz+1];
+					float xspx = is[X][xyz+1];
+					float yspx = is[Y][xyz+1];
+					float zspx = is[Z][xyz+1];
 	
-			float xsmy = is[X][xyz-nisx];
-			float ysmy = is[Y][xyz-nisx];
-			float zsmy = is[Z][xyz-nisx];
+					float xsmy = is[X][xyz-nisx];
+					float ysmy = is[Y][xyz-nisx];
+					float zsmy = is[Z][xyz-nisx];
 	
-			float xspy = is[X][xyz+nisx];
-			float yspy = is[Y][xyz+nisx];
-			float zspy = is[Z][xyz+nisx];
+					float xspy = is[X][xyz+nisx];
+					float yspy = is[Y][xyz+nisx];
+					float zspy = is[Z][xyz+nisx];
 	
-			float xsmz = is[X][xyz-nisx*nisy];
-			float ysmz = is[Y][xyz-nisx*nisy];
-			float zsmz = is[Z][xyz-nisx*nisy];
+					float xsmz = is[X][xyz-nisx*nisy];
+					float ysmz = is[Y][xyz-nisx*nisy];
+					float zsmz = is[Z][xyz-nisx*nisy];
 	
-			float xspz = is[X][xyz+nisx*nisy];
-			float yspz = is[Y][xyz+nisx*nisy];
-			float zspz = is[Z][xyz+nisx*nisy];
+					float xspz = is[X][xyz+nisx*nisy];
+					float yspz = is[Y][xyz+nisx*nisy];
+					float zspz = is[Z][xyz+nisx*nisy];
 			
-			float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
-			float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
-			float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
-			float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
-			float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
-			float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
-			float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
+					float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
+					float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
+					float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
+					float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
+					float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
+					float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
+					float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
 			
-			float xt = x*scale;
-			float yt = y*scale;
-			float zt = z*scale;
+					float xt = x*scale;
+					float yt = y*scale;
+					float zt = z*scale;
 			
-			iu[X][xyz] = 0.0f;
-			iu[Y][xyz] = 0.0f;
-			iu[Z][xyz] = 0.0f;
-			float den = 0.0f;
-			for (int n=0;n<nc;n++) {
-				// image differences
-				float diff = (ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt,nix,niy,niz) 
-							- ImageInterpolation.linearClosestInterpolation(target[n],xs,ys,zs,ntx,nty,ntz));				
+					iu[X][xyz] = 0.0f;
+					iu[Y][xyz] = 0.0f;
+					iu[Z][xyz] = 0.0f;
+					float den = 0.0f;
+					for (int n=0;n<nc;n++) {
+						// image differences
+						float diff = (sampleImage(n,xt,yt,zt) 
+									- sampleTarget(n,xs,ys,zs));				
 				
-				// image gradient
-				float Jx, Jy, Jz;
-				if (forceType==FIXED) {
-					Jx = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xt+scale,yt,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt-scale,yt,zt,nix,niy,niz));
-					Jy = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt+scale,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt-scale,zt,nix,niy,niz));
-					Jz = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt+scale,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt-scale,nix,niy,niz));
-				} else if (forceType==MOVING) {
-					Jx = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xspx,yspx,zspx,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmx,ysmx,zsmx,ntx,nty,ntz));
-					Jy = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xspy,yspy,zspy,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmy,ysmy,zsmy,ntx,nty,ntz));
-					Jz = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xspz,yspz,zspz,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmz,ysmz,zsmz,ntx,nty,ntz));
-				} else {
-					Jx = 0.25f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xt+scale,yt,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt-scale,yt,zt,nix,niy,niz));
-					Jy = 0.25f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt+scale,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt-scale,zt,nix,niy,niz));
-					Jz = 0.25f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt+scale,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt-scale,nix,niy,niz));
+						// image gradient
+						float Jx, Jy, Jz;
+						if (forceType==FIXED) {
+							Jx = 0.5f/rix*(sampleImage(n,xt+scale,yt,zt) - sampleImage(n,xt-scale,yt,zt));
+							Jy = 0.5f/riy*(sampleImage(n,xt,yt+scale,zt) - sampleImage(n,xt,yt-scale,zt));
+							Jz = 0.5f/riz*(sampleImage(n,xt,yt,zt+scale) - sampleImage(n,xt,yt,zt-scale));
+						} else if (forceType==MOVING) {
+							Jx = 0.5f/rtx*(sampleTarget(n,xspx,yspx,zspx)-sampleTarget(n,xsmx,ysmx,zsmx));
+							Jy = 0.5f/rty*(sampleTarget(n,xspy,yspy,zspy)-sampleTarget(n,xsmy,ysmy,zsmy));
+							Jz = 0.5f/rtz*(sampleTarget(n,xspz,yspz,zspz)-sampleTarget(n,xsmz,ysmz,zsmz));
+						} else {
+							Jx = 0.25f/rix*(sampleImage(n,xt+scale,yt,zt) - sampleImage(n,xt-scale,yt,zt));
+							Jy = 0.25f/riy*(sampleImage(n,xt,yt+scale,zt) - sampleImage(n,xt,yt-scale,zt));
+							Jz = 0.25f/riz*(sampleImage(n,xt,yt,zt+scale) - sampleImage(n,xt,yt,zt-scale));
 					
-					Jx += 0.25f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xspx,yspx,zspx,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmx,ysmx,zsmx,ntx,nty,ntz));
-					Jy += 0.25f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xspy,yspy,zspy,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmy,ysmy,zsmy,ntx,nty,ntz));
-					Jz += 0.25f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xspz,yspz,zspz,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmz,ysmz,zsmz,ntx,nty,ntz));
-				}
+							Jx += 0.25f/rtx*(sampleTarget(n,xspx,yspx,zspx)-sampleTarget(n,xsmx,ysmx,zsmx));
+							Jy += 0.25f/rty*(sampleTarget(n,xspy,yspy,zspy)-sampleTarget(n,xsmy,ysmy,zsmy));
+							Jz += 0.25f/rtz*(sampleTarget(n,xspz,yspz,zspz)-sampleTarget(n,xsmz,ysmz,zsmz));
+						}
 			
-				// inverse consistent coupling: backprojected coordinates
-				float iTx = xt - ImageInterpolation.linearClosestInterpolation(s[X],xsi,ysi,zsi,nsx,nsy,nsz);
-				float iTy = yt - ImageInterpolation.linearClosestInterpolation(s[Y],xsi,ysi,zsi,nsx,nsy,nsz);
-				float iTz = zt - ImageInterpolation.linearClosestInterpolation(s[Z],xsi,ysi,zsi,nsx,nsy,nsz);
+						// inverse consistent coupling: backprojected coordinates
+						float iTx = xt - ImageInterpolation.linearClosestInterpolation(s[X],xsi,ysi,zsi,nsx,nsy,nsz);
+						float iTy = yt - ImageInterpolation.linearClosestInterpolation(s[Y],xsi,ysi,zsi,nsx,nsy,nsz);
+						float iTz = zt - ImageInterpolation.linearClosestInterpolation(s[Z],xsi,ysi,zsi,nsx,nsy,nsz);
 				
-				// erse consistent coupling: inverse transform jacobian
-				float[][] diT = new float[3][3];
-				diT[X][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[X],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
-				diT[X][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[X],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
-				diT[X][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[X],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
+						// erse consistent coupling: inverse transform jacobian
+						float[][] diT = new float[3][3];
+						diT[X][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[X],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
+						diT[X][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[X],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
+						diT[X][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[X],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
 
-				diT[Y][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Y],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
-				diT[Y][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Y],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
-				diT[Y][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Y],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
+						diT[Y][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Y],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
+						diT[Y][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Y],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
+						diT[Y][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Y],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
 
-				diT[Z][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Z],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
-				diT[Z][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Z],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
-				diT[Z][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Z],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
+						diT[Z][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Z],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
+						diT[Z][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Z],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
+						diT[Z][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Z],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
 				
-				// putting all together
-				float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
+						// putting all together
+						float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
 				
-				float diT2 = Matrix3D.determinant(diT);
-				diT2 *= diT2;				
+						float diT2 = Matrix3D.determinant(diT);
+						diT2 *= diT2;				
 				
-				float sigmaI = diff*diff/sigma2;
+						float sigmaI = diff*diff/sigma2;
 				
-				den += sigmaI*(1.0f+diT2) + J2;
+						den += sigmaI*(1.0f+diT2) + J2;
 				
-				iu[X][xyz] += diff*Jx;
-				iu[Y][xyz] += diff*Jy;
-				iu[Z][xyz] += diff*Jz;
+						iu[X][xyz] += diff*Jx;
+						iu[Y][xyz] += diff*Jy;
+						iu[Z][xyz] += diff*Jz;
 				
-				iu[X][xyz] += sigmaI*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
-				iu[Y][xyz] += sigmaI*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
-				iu[Z][xyz] += sigmaI*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
+						iu[X][xyz] += sigmaI*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
+						iu[Y][xyz] += sigmaI*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
+						iu[Z][xyz] += sigmaI*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
 				
-				meanDiff += Numerics.abs(diff);
+						meanDiff += Numerics.abs(diff);
+					}
+					iu[X][xyz] /= Numerics.max(ZERO,den);
+					iu[Y][xyz] /= Numerics.max(ZERO,den);
+					iu[Z][xyz] /= Numerics.max(ZERO,den);			
+				}
+				partial[thread] = meanDiff;
 			}
-			iu[X][xyz] /= Numerics.max(ZERO,den);
-			iu[Y][xyz] /= Numerics.max(ZERO,den);
-			iu[Z][xyz] /= Numerics.max(ZERO,den);			
-		}
+		});
+		float meanDiff = 0.0f;
+		for (int t=0;t<partial.length;t++) meanDiff += partial[t];
 		meanDiff /= (nix*niy*niz);
 
 		if (debug) BasicInfo.displayMessage("mean intensity difference "+meanDiff+"\n");
@@ -806,87 +856,95 @@ public class DemonsScaledConsistentRegistration {
 	 */
     final public float registerTargetToImageUpdateDecoupled() {
 		
-		float meanDiff = 0.0f;
-		for (int x=1;x<nisx-1;x++) for (int y=1;y<nisy-1;y++) for (int z=1;z<nisz-1;z++) {
-			int xyz = x+nisx*y+nisx*nisy*z;
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(1, nisz-1, nthreads)];
+		ParallelLoops.forEachSlab(1, nisz-1, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanDiff = 0.0f;
+				for (int z=start;z<end;z++) for (int y=1;y<nisy-1;y++) for (int x=1;x<nisx-1;x++) {
+					int xyz = x+nisx*y+nisx*nisy*z;
 		
-			// compute the update field
-			float xs = is[X][xyz];
-			float ys = is[Y][xyz];
-			float zs = is[Z][xyz];
+					// compute the update field
+					float xs = is[X][xyz];
+					float ys = is[Y][xyz];
+					float zs = is[Z][xyz];
 		
-			float xsmx = is[X][xyz-1];
-			float ysmx = is[Y][xyz-1];
-			float zsmx = is[Z][xyz-1];
+					float xsmx = is[X][xyz-1];
+					float ysmx = is[Y][xyz-1];
+					float zsmx = is[Z][xyz-1];
 	
-			float xspx = is[X][xyz+1];
-			float yspx = is[Y][xyz+1];
-			float zspx = is[Z][xyz+1];
+					float xspx = is[X][xyz+1];
+					float yspx = is[Y][xyz+1];
+					float zspx = is[Z][xyz+1];
 	
-			float xsmy = is[X][xyz-nisx];
-			float ysmy = is[Y][xyz-nisx];
-			float zsmy = is[Z][xyz-nisx];
+					float xsmy = is[X][xyz-nisx];
+					float ysmy = is[Y][xyz-nisx];
+					float zsmy = is[Z][xyz-nisx];
 	
-			float xspy = is[X][xyz+nisx];
-			float yspy = is[Y][xyz+nisx];
-			float zspy = is[Z][xyz+nisx];
+					float xspy = is[X][xyz+nisx];
+					float yspy = is[Y][xyz+nisx];
+					float zspy = is[Z][xyz+nisx];
 	
-			float xsmz = is[X][xyz-nisx*nisy];
-			float ysmz = is[Y][xyz-nisx*nisy];
-			float zsmz = is[Z][xyz-nisx*nisy];
+					float xsmz = is[X][xyz-nisx*nisy];
+					float ysmz = is[Y][xyz-nisx*nisy];
+					float zsmz = is[Z][xyz-nisx*nisy];
 	
-			float xspz = is[X][xyz+nisx*nisy];
-			float yspz = is[Y][xyz+nisx*nisy];
-			float zspz = is[Z][xyz+nisx*nisy];
+					float xspz = is[X][xyz+nisx*nisy];
+					float yspz = is[Y][xyz+nisx*nisy];
+					float zspz = is[Z][xyz+nisx*nisy];
 			
-			float xt = x*scale;
-			float yt = y*scale;
-			float zt = z*scale;
+					float xt = x*scale;
+					float yt = y*scale;
+					float zt = z*scale;
 			
-			iu[X][xyz] = 0.0f;
-			iu[Y][xyz] = 0.0f;
-			iu[Z][xyz] = 0.0f;
-			float den = 0.0f;
-			for (int n=0;n<nc;n++) {
-				// image differences
-				float diff = (ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt,nix,niy,niz) 
-							- ImageInterpolation.linearClosestInterpolation(target[n],xs,ys,zs,ntx,nty,ntz));				
+					iu[X][xyz] = 0.0f;
+					iu[Y][xyz] = 0.0f;
+					iu[Z][xyz] = 0.0f;
+					float den = 0.0f;
+					for (int n=0;n<nc;n++) {
+						// image differences
+						float diff = (sampleImage(n,xt,yt,zt) 
+									- sampleTarget(n,xs,ys,zs));				
 				
-				// image gradient
-				float Jx, Jy, Jz;
-				if (forceType==FIXED) {
-					Jx = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xt+scale,yt,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt-scale,yt,zt,nix,niy,niz));
-					Jy = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt+scale,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt-scale,zt,nix,niy,niz));
-					Jz = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt+scale,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt-scale,nix,niy,niz));
-				} else if (forceType==MOVING) {
-					Jx = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xspx,yspx,zspx,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmx,ysmx,zsmx,ntx,nty,ntz));
-					Jy = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xspy,yspy,zspy,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmy,ysmy,zsmy,ntx,nty,ntz));
-					Jz = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xspz,yspz,zspz,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmz,ysmz,zsmz,ntx,nty,ntz));
-				} else {
-					Jx = 0.25f/rix*(ImageInterpolation.linearClosestInterpolation(image[n],xt+scale,yt,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt-scale,yt,zt,nix,niy,niz));
-					Jy = 0.25f/riy*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt+scale,zt,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt-scale,zt,nix,niy,niz));
-					Jz = 0.25f/riz*(ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt+scale,nix,niy,niz) - ImageInterpolation.linearClosestInterpolation(image[n],xt,yt,zt-scale,nix,niy,niz));
+						// image gradient
+						float Jx, Jy, Jz;
+						if (forceType==FIXED) {
+							Jx = 0.5f/rix*(sampleImage(n,xt+scale,yt,zt) - sampleImage(n,xt-scale,yt,zt));
+							Jy = 0.5f/riy*(sampleImage(n,xt,yt+scale,zt) - sampleImage(n,xt,yt-scale,zt));
+							Jz = 0.5f/riz*(sampleImage(n,xt,yt,zt+scale) - sampleImage(n,xt,yt,zt-scale));
+						} else if (forceType==MOVING) {
+							Jx = 0.5f/rtx*(sampleTarget(n,xspx,yspx,zspx)-sampleTarget(n,xsmx,ysmx,zsmx));
+							Jy = 0.5f/rty*(sampleTarget(n,xspy,yspy,zspy)-sampleTarget(n,xsmy,ysmy,zsmy));
+							Jz = 0.5f/rtz*(sampleTarget(n,xspz,yspz,zspz)-sampleTarget(n,xsmz,ysmz,zsmz));
+						} else {
+							Jx = 0.25f/rix*(sampleImage(n,xt+scale,yt,zt) - sampleImage(n,xt-scale,yt,zt));
+							Jy = 0.25f/riy*(sampleImage(n,xt,yt+scale,zt) - sampleImage(n,xt,yt-scale,zt));
+							Jz = 0.25f/riz*(sampleImage(n,xt,yt,zt+scale) - sampleImage(n,xt,yt,zt-scale));
 					
-					Jx += 0.25f/rtx*(ImageInterpolation.linearClosestInterpolation(target[n],xspx,yspx,zspx,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmx,ysmx,zsmx,ntx,nty,ntz));
-					Jy += 0.25f/rty*(ImageInterpolation.linearClosestInterpolation(target[n],xspy,yspy,zspy,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmy,ysmy,zsmy,ntx,nty,ntz));
-					Jz += 0.25f/rtz*(ImageInterpolation.linearClosestInterpolation(target[n],xspz,yspz,zspz,ntx,nty,ntz)-ImageInterpolation.linearClosestInterpolation(target[n],xsmz,ysmz,zsmz,ntx,nty,ntz));
-				}
+							Jx += 0.25f/rtx*(sampleTarget(n,xspx,yspx,zspx)-sampleTarget(n,xsmx,ysmx,zsmx));
+							Jy += 0.25f/rty*(sampleTarget(n,xspy,yspy,zspy)-sampleTarget(n,xsmy,ysmy,zsmy));
+							Jz += 0.25f/rtz*(sampleTarget(n,xspz,yspz,zspz)-sampleTarget(n,xsmz,ysmz,zsmz));
+						}
 			
-				// putting all together
-				float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
+						// putting all together
+						float J2 = Jx*Jx+Jy*Jy+Jz*Jz;
 				
-				den += diff*diff/sigma2 + J2;
+						den += diff*diff/sigma2 + J2;
 				
-				iu[X][xyz] += diff*Jx;
-				iu[Y][xyz] += diff*Jy;
-				iu[Z][xyz] += diff*Jz;
+						iu[X][xyz] += diff*Jx;
+						iu[Y][xyz] += diff*Jy;
+						iu[Z][xyz] += diff*Jz;
 				
-				meanDiff += Numerics.abs(diff);
+						meanDiff += Numerics.abs(diff);
+					}
+					iu[X][xyz] /= Numerics.max(ZERO,den);
+					iu[Y][xyz] /= Numerics.max(ZERO,den);
+					iu[Z][xyz] /= Numerics.max(ZERO,den);			
+				}
+				partial[thread] = meanDiff;
 			}
-			iu[X][xyz] /= Numerics.max(ZERO,den);
-			iu[Y][xyz] /= Numerics.max(ZERO,den);
-			iu[Z][xyz] /= Numerics.max(ZERO,den);			
-		}
+		});
+		float meanDiff = 0.0f;
+		for (int t=0;t<partial.length;t++) meanDiff += partial[t];
 		meanDiff /= (nix*niy*niz);
 
 		if (debug) BasicInfo.displayMessage("mean intensity difference "+meanDiff+"\n");
@@ -905,48 +963,60 @@ public class DemonsScaledConsistentRegistration {
 			//if (debug) BasicInfo.displayMessage("GAUSS_FLUID regularization \n");
 		
 			// smooth the result with a gaussian kernel
-			iu[X] = ImageFilters.separableConvolution(iu[X],nisx,nisy,nisz,igaussKernel,igx,igy,igz);
-			iu[Y] = ImageFilters.separableConvolution(iu[Y],nisx,nisy,nisz,igaussKernel,igx,igy,igz);
-			iu[Z] = ImageFilters.separableConvolution(iu[Z],nisx,nisy,nisz,igaussKernel,igx,igy,igz);
+			iu[X] = ImageFilters.separableConvolution(iu[X],nisx,nisy,nisz,igaussKernel,igx,igy,igz,nthreads);
+			iu[Y] = ImageFilters.separableConvolution(iu[Y],nisx,nisy,nisz,igaussKernel,igx,igy,igz,nthreads);
+			iu[Z] = ImageFilters.separableConvolution(iu[Z],nisx,nisy,nisz,igaussKernel,igx,igy,igz,nthreads);
 		}
 		
 		// compose the transformations
 		if (fieldType==COMPOSITIVE) {
 			//if (debug) BasicInfo.displayMessage("compose with current transform \n");
 							
-			for (int x=0;x<nisx;x++) for (int y=0;y<nisy;y++) for (int z=0;z<nisz;z++) {
-				int xyz = x+nisx*y+nisx*nisy*z;
-				
-				float xu = x+iu[X][xyz];
-				float yu = y+iu[Y][xyz];
-				float zu = z+iu[Z][xyz];
-				
-				// note: if outside, extrapolate as X+u
-				ic[X][xyz] = ImageInterpolation.linearClosestInterpolation(is[X],xu,yu,zu,nisx,nisy,nisz) - x*scale;
-				ic[Y][xyz] = ImageInterpolation.linearClosestInterpolation(is[Y],xu,yu,zu,nisx,nisy,nisz) - y*scale;
-				ic[Z][xyz] = ImageInterpolation.linearClosestInterpolation(is[Z],xu,yu,zu,nisx,nisy,nisz) - z*scale;
-			}
+			ParallelLoops.forEachSlab(0, nisz, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					for (int z=start;z<end;z++) for (int y=0;y<nisy;y++) for (int x=0;x<nisx;x++) {
+						int xyz = x+nisx*y+nisx*nisy*z;
+						
+						float xu = x+iu[X][xyz];
+						float yu = y+iu[Y][xyz];
+						float zu = z+iu[Z][xyz];
+						
+						// note: if outside, extrapolate as X+u
+						ic[X][xyz] = ImageInterpolation.linearClosestInterpolation(is[X],xu,yu,zu,nisx,nisy,nisz) - x*scale;
+						ic[Y][xyz] = ImageInterpolation.linearClosestInterpolation(is[Y],xu,yu,zu,nisx,nisy,nisz) - y*scale;
+						ic[Z][xyz] = ImageInterpolation.linearClosestInterpolation(is[Z],xu,yu,zu,nisx,nisy,nisz) - z*scale;
+					}
+				}
+			});
 		}
 		
 		if (regType==GAUSS_DIFFUSION || regType==GAUSS_MIXED) {
 			//if (debug) BasicInfo.displayMessage("GAUSS_DIFFUSION regularization \n");
 			
 			// smooth the result with a gaussian kernel
-			ic[X] = ImageFilters.separableConvolution(ic[X],nisx,nisy,nisz,igaussKernel,igx,igy,igz);
-			ic[Y] = ImageFilters.separableConvolution(ic[Y],nisx,nisy,nisz,igaussKernel,igx,igy,igz);
-			ic[Z] = ImageFilters.separableConvolution(ic[Z],nisx,nisy,nisz,igaussKernel,igx,igy,igz);
+			ic[X] = ImageFilters.separableConvolution(ic[X],nisx,nisy,nisz,igaussKernel,igx,igy,igz,nthreads);
+			ic[Y] = ImageFilters.separableConvolution(ic[Y],nisx,nisy,nisz,igaussKernel,igx,igy,igz,nthreads);
+			ic[Z] = ImageFilters.separableConvolution(ic[Z],nisx,nisy,nisz,igaussKernel,igx,igy,igz,nthreads);
 		}
 					
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(0, nisz, nthreads)];
+		ParallelLoops.forEachSlab(0, nisz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanC = 0.0f;
+				for (int z=start;z<end;z++) for (int y=0;y<nisy;y++) for (int x=0;x<nisx;x++) {
+					int xyz = x+nisx*y+nisx*nisy*z;
+					
+					is[X][xyz] = x*scale + ic[X][xyz];
+					is[Y][xyz] = y*scale + ic[Y][xyz];
+					is[Z][xyz] = z*scale + ic[Z][xyz];
+					
+					meanC += ic[X][xyz]*ic[X][xyz]+ic[Y][xyz]*ic[Y][xyz]+ic[Z][xyz]*ic[Z][xyz];
+				}
+				partial[thread] = meanC;
+			}
+		});
 		float meanC = 0.0f;
-		for (int x=0;x<nisx;x++) for (int y=0;y<nisy;y++) for (int z=0;z<nisz;z++) {
-			int xyz = x+nisx*y+nisx*nisy*z;
-			
-			is[X][xyz] = x*scale + ic[X][xyz];
-			is[Y][xyz] = y*scale + ic[Y][xyz];
-			is[Z][xyz] = z*scale + ic[Z][xyz];
-			
-			meanC += ic[X][xyz]*ic[X][xyz]+ic[Y][xyz]*ic[Y][xyz]+ic[Z][xyz]*ic[Z][xyz];
-		}
+		for (int t=0;t<partial.length;t++) meanC += partial[t];
 		meanC /= (nisx*nisy*nisz);
 		
 		//if (debug) BasicInfo.displayMessage("mean update size "+meanC+"\n");
@@ -960,93 +1030,101 @@ public class DemonsScaledConsistentRegistration {
      * performs only one iteration
 	 */
     final public float registerImageToTargetInverseConsistent() {
-		float meanDiff = 0.0f;
-		for (int x=1;x<nsx-1;x++) for (int y=1;y<nsy-1;y++) for (int z=1;z<nsz-1;z++) {
-			int xyz = x+nsx*y+nsx*nsy*z;
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(1, nsz-1, nthreads)];
+		ParallelLoops.forEachSlab(1, nsz-1, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanDiff = 0.0f;
+				for (int z=start;z<end;z++) for (int y=1;y<nsy-1;y++) for (int x=1;x<nsx-1;x++) {
+					int xyz = x+nsx*y+nsx*nsy*z;
 		
-			// compute the update field
-			float xs = s[X][xyz];
-			float ys = s[Y][xyz];
-			float zs = s[Z][xyz];
+					// compute the update field
+					float xs = s[X][xyz];
+					float ys = s[Y][xyz];
+					float zs = s[Z][xyz];
 		
-			float xsmx = s[X][xyz-1];
-			float ysmx = s[Y][xyz-1];
-			float zsmx = s[Z][xyz-1];
+					float xsmx = s[X][xyz-1];
+					float ysmx = s[Y][xyz-1];
+					float zsmx = s[Z][xyz-1];
 	
-			float xspx = s[X][xyz+1];
-			float yspx = s[Y][xyz+1];
-			float zspx = s[Z][xyz+1];
+					float xspx = s[X][xyz+1];
+					float yspx = s[Y][xyz+1];
+					float zspx = s[Z][xyz+1];
 	
-			float xsmy = s[X][xyz-nsx];
-			float ysmy = s[Y][xyz-nsx];
-			float zsmy = s[Z][xyz-nsx];
+					float xsmy = s[X][xyz-nsx];
+					float ysmy = s[Y][xyz-nsx];
+					float zsmy = s[Z][xyz-nsx];
 	
-			float xspy = s[X][xyz+nsx];
-			float yspy = s[Y][xyz+nsx];
-			float zspy = s[Z][xyz+nsx];
+					float xspy = s[X][xyz+nsx];
+					float yspy = s[Y][xyz+nsx];
+					float zspy = s[Z][xyz+nsx];
 	
-			float xsmz = s[X][xyz-nsx*nsy];
-			float ysmz = s[Y][xyz-nsx*nsy];
-			float zsmz = s[Z][xyz-nsx*nsy];
+					float xsmz = s[X][xyz-nsx*nsy];
+					float ysmz = s[Y][xyz-nsx*nsy];
+					float zsmz = s[Z][xyz-nsx*nsy];
 	
-			float xspz = s[X][xyz+nsx*nsy];
-			float yspz = s[Y][xyz+nsx*nsy];
-			float zspz = s[Z][xyz+nsx*nsy];
+					float xspz = s[X][xyz+nsx*nsy];
+					float yspz = s[Y][xyz+nsx*nsy];
+					float zspz = s[Z][xyz+nsx*nsy];
 			
-			float xt = x*scale;
-			float yt = y*scale;
-			float zt = z*scale;
+					float xt = x*scale;
+					float yt = y*scale;
+					float zt = z*scale;
 			
-			float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
-			float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
-			float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
-			float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
-			float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
-			float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
-			float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
+					float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
+					float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
+					float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
+					float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
+					float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
+					float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
+					float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
 			
-			u[X][xyz] = 0.0f;
-			u[Y][xyz] = 0.0f;
-			u[Z][xyz] = 0.0f;
-			float den = 0.0f;
-			for (int n=0;n<nc;n++) {
-				// inverse consistent coupling: backprojected coordinates
-				float iTx = xt - ImageInterpolation.linearClosestInterpolation(is[X],xsi,ysi,zsi,nisx,nisy,nisz);
-				float iTy = yt - ImageInterpolation.linearClosestInterpolation(is[Y],xsi,ysi,zsi,nisx,nisy,nisz);
-				float iTz = zt - ImageInterpolation.linearClosestInterpolation(is[Z],xsi,ysi,zsi,nisx,nisy,nisz);
+					u[X][xyz] = 0.0f;
+					u[Y][xyz] = 0.0f;
+					u[Z][xyz] = 0.0f;
+					float den = 0.0f;
+					for (int n=0;n<nc;n++) {
+						// inverse consistent coupling: backprojected coordinates
+						float iTx = xt - ImageInterpolation.linearClosestInterpolation(is[X],xsi,ysi,zsi,nisx,nisy,nisz);
+						float iTy = yt - ImageInterpolation.linearClosestInterpolation(is[Y],xsi,ysi,zsi,nisx,nisy,nisz);
+						float iTz = zt - ImageInterpolation.linearClosestInterpolation(is[Z],xsi,ysi,zsi,nisx,nisy,nisz);
 				
-				// inverse consistent coupling: inverse transform jacobian
-				float[][] diT = new float[3][3];
-				diT[X][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[X],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
-				diT[X][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[X],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
-				diT[X][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[X],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
+						// inverse consistent coupling: inverse transform jacobian
+						float[][] diT = new float[3][3];
+						diT[X][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[X],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
+						diT[X][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[X],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
+						diT[X][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[X],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[X],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
 
-				diT[Y][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Y],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
-				diT[Y][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Y],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
-				diT[Y][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Y],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
+						diT[Y][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Y],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
+						diT[Y][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Y],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
+						diT[Y][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Y],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Y],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
 
-				diT[Z][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Z],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
-				diT[Z][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Z],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
-				diT[Z][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Z],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
+						diT[Z][X] = 0.5f/rix*(ImageInterpolation.linearClosestInterpolation(is[Z],xspxi,yspxi,zspxi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmxi,ysmxi,zsmxi,nisx,nisy,nisz));
+						diT[Z][Y] = 0.5f/riy*(ImageInterpolation.linearClosestInterpolation(is[Z],xspyi,yspyi,zspyi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmyi,ysmyi,zsmyi,nisx,nisy,nisz));
+						diT[Z][Z] = 0.5f/riz*(ImageInterpolation.linearClosestInterpolation(is[Z],xspzi,yspzi,zspzi,nisx,nisy,nisz)-ImageInterpolation.linearClosestInterpolation(is[Z],xsmzi,ysmzi,zsmzi,nisx,nisy,nisz));
 
-				// putting it all together
-				float diT2 = Matrix3D.determinant(diT);
-				diT2 *= diT2;				
+						// putting it all together
+						float diT2 = Matrix3D.determinant(diT);
+						diT2 *= diT2;				
 				
-				float iT2 = iTx*iTx + iTy*iTy + iTz*iTz;
+						float iT2 = iTx*iTx + iTy*iTy + iTz*iTz;
 				
-				den += iT2 + diT2;
+						den += iT2 + diT2;
 				
-				u[X][xyz] += 0.5f*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
-				u[Y][xyz] += 0.5f*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
-				u[Z][xyz] += 0.5f*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
+						u[X][xyz] += 0.5f*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
+						u[Y][xyz] += 0.5f*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
+						u[Z][xyz] += 0.5f*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
 				
-				meanDiff += (float)Math.sqrt(iT2);
+						meanDiff += (float)Math.sqrt(iT2);
+					}
+					u[X][xyz] /= Numerics.max(ZERO,den);
+					u[Y][xyz] /= Numerics.max(ZERO,den);
+					u[Z][xyz] /= Numerics.max(ZERO,den);			
+				}
+				partial[thread] = meanDiff;
 			}
-			u[X][xyz] /= Numerics.max(ZERO,den);
-			u[Y][xyz] /= Numerics.max(ZERO,den);
-			u[Z][xyz] /= Numerics.max(ZERO,den);			
-		}
+		});
+		float meanDiff = 0.0f;
+		for (int t=0;t<partial.length;t++) meanDiff += partial[t];
 		meanDiff /= (ntx*nty*ntz);
 
 		if (debug) BasicInfo.displayMessage("inverse consistency: "+meanDiff+"\n");
@@ -1060,93 +1138,101 @@ public class DemonsScaledConsistentRegistration {
      * performs only one iteration
 	 */
     final public float registerTargetToImageInverseConsistent() {
-		float meanDiff = 0.0f;
-		for (int x=1;x<nisx-1;x++) for (int y=1;y<nisy-1;y++) for (int z=1;z<nisz-1;z++) {
-			int xyz = x+nisx*y+nisx*nisy*z;
+		final float[] partial = new float[ParallelLoops.numberOfSlabs(1, nisz-1, nthreads)];
+		ParallelLoops.forEachSlab(1, nisz-1, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				float meanDiff = 0.0f;
+				for (int z=start;z<end;z++) for (int y=1;y<nisy-1;y++) for (int x=1;x<nisx-1;x++) {
+					int xyz = x+nisx*y+nisx*nisy*z;
 		
-			// compute the update field
-			float xs = is[X][xyz];
-			float ys = is[Y][xyz];
-			float zs = is[Z][xyz];
+					// compute the update field
+					float xs = is[X][xyz];
+					float ys = is[Y][xyz];
+					float zs = is[Z][xyz];
 		
-			float xsmx = is[X][xyz-1];
-			float ysmx = is[Y][xyz-1];
-			float zsmx = is[Z][xyz-1];
+					float xsmx = is[X][xyz-1];
+					float ysmx = is[Y][xyz-1];
+					float zsmx = is[Z][xyz-1];
 	
-			float xspx = is[X][xyz+1];
-			float yspx = is[Y][xyz+1];
-			float zspx = is[Z][xyz+1];
+					float xspx = is[X][xyz+1];
+					float yspx = is[Y][xyz+1];
+					float zspx = is[Z][xyz+1];
 	
-			float xsmy = is[X][xyz-nisx];
-			float ysmy = is[Y][xyz-nisx];
-			float zsmy = is[Z][xyz-nisx];
+					float xsmy = is[X][xyz-nisx];
+					float ysmy = is[Y][xyz-nisx];
+					float zsmy = is[Z][xyz-nisx];
 	
-			float xspy = is[X][xyz+nisx];
-			float yspy = is[Y][xyz+nisx];
-			float zspy = is[Z][xyz+nisx];
+					float xspy = is[X][xyz+nisx];
+					float yspy = is[Y][xyz+nisx];
+					float zspy = is[Z][xyz+nisx];
 	
-			float xsmz = is[X][xyz-nisx*nisy];
-			float ysmz = is[Y][xyz-nisx*nisy];
-			float zsmz = is[Z][xyz-nisx*nisy];
+					float xsmz = is[X][xyz-nisx*nisy];
+					float ysmz = is[Y][xyz-nisx*nisy];
+					float zsmz = is[Z][xyz-nisx*nisy];
 	
-			float xspz = is[X][xyz+nisx*nisy];
-			float yspz = is[Y][xyz+nisx*nisy];
-			float zspz = is[Z][xyz+nisx*nisy];
+					float xspz = is[X][xyz+nisx*nisy];
+					float yspz = is[Y][xyz+nisx*nisy];
+					float zspz = is[Z][xyz+nisx*nisy];
 			
-			float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
-			float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
-			float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
-			float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
-			float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
-			float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
-			float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
+					float xsi = xs/scale, ysi = ys/scale, zsi = zs/scale;
+					float xsmxi = xsmx/scale, ysmxi = ysmx/scale, zsmxi = zsmx/scale;
+					float xspxi = xspx/scale, yspxi = yspx/scale, zspxi = zspx/scale;
+					float xsmyi = xsmy/scale, ysmyi = ysmy/scale, zsmyi = zsmy/scale;
+					float xspyi = xspy/scale, yspyi = yspy/scale, zspyi = zspy/scale;
+					float xsmzi = xsmz/scale, ysmzi = ysmz/scale, zsmzi = zsmz/scale;
+					float xspzi = xspz/scale, yspzi = yspz/scale, zspzi = zspz/scale;
 			
-			float xt = x*scale;
-			float yt = y*scale;
-			float zt = z*scale;
+					float xt = x*scale;
+					float yt = y*scale;
+					float zt = z*scale;
 			
-			iu[X][xyz] = 0.0f;
-			iu[Y][xyz] = 0.0f;
-			iu[Z][xyz] = 0.0f;
-			float den = 0.0f;
-			for (int n=0;n<nc;n++) {
-				// inverse consistent coupling: backprojected coordinates
-				float iTx = xt - ImageInterpolation.linearClosestInterpolation(s[X],xsi,ysi,zsi,nsx,nsy,nsz);
-				float iTy = yt - ImageInterpolation.linearClosestInterpolation(s[Y],xsi,ysi,zsi,nsx,nsy,nsz);
-				float iTz = zt - ImageInterpolation.linearClosestInterpolation(s[Z],xsi,ysi,zsi,nsx,nsy,nsz);
+					iu[X][xyz] = 0.0f;
+					iu[Y][xyz] = 0.0f;
+					iu[Z][xyz] = 0.0f;
+					float den = 0.0f;
+					for (int n=0;n<nc;n++) {
+						// inverse consistent coupling: backprojected coordinates
+						float iTx = xt - ImageInterpolation.linearClosestInterpolation(s[X],xsi,ysi,zsi,nsx,nsy,nsz);
+						float iTy = yt - ImageInterpolation.linearClosestInterpolation(s[Y],xsi,ysi,zsi,nsx,nsy,nsz);
+						float iTz = zt - ImageInterpolation.linearClosestInterpolation(s[Z],xsi,ysi,zsi,nsx,nsy,nsz);
 				
-				// erse consistent coupling: inverse transform jacobian
-				float[][] diT = new float[3][3];
-				diT[X][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[X],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
-				diT[X][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[X],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
-				diT[X][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[X],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
+						// erse consistent coupling: inverse transform jacobian
+						float[][] diT = new float[3][3];
+						diT[X][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[X],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
+						diT[X][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[X],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
+						diT[X][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[X],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[X],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
 
-				diT[Y][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Y],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
-				diT[Y][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Y],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
-				diT[Y][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Y],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
+						diT[Y][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Y],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
+						diT[Y][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Y],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
+						diT[Y][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Y],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Y],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
 
-				diT[Z][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Z],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
-				diT[Z][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Z],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
-				diT[Z][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Z],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
+						diT[Z][X] = 0.5f/rtx*(ImageInterpolation.linearClosestInterpolation(s[Z],xspxi,yspxi,zspxi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmxi,ysmxi,zsmxi,nsx,nsy,nsz));
+						diT[Z][Y] = 0.5f/rty*(ImageInterpolation.linearClosestInterpolation(s[Z],xspyi,yspyi,zspyi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmyi,ysmyi,zsmyi,nsx,nsy,nsz));
+						diT[Z][Z] = 0.5f/rtz*(ImageInterpolation.linearClosestInterpolation(s[Z],xspzi,yspzi,zspzi,nsx,nsy,nsz)-ImageInterpolation.linearClosestInterpolation(s[Z],xsmzi,ysmzi,zsmzi,nsx,nsy,nsz));
 				
-				// putting all together
-				float diT2 = Matrix3D.determinant(diT);
-				diT2 *= diT2;				
+						// putting all together
+						float diT2 = Matrix3D.determinant(diT);
+						diT2 *= diT2;				
 				
-				float iT2 = iTx*iTx + iTy*iTy + iTz*iTz;
+						float iT2 = iTx*iTx + iTy*iTy + iTz*iTz;
 				
-				den += iT2 + diT2;
+						den += iT2 + diT2;
 				
-				iu[X][xyz] += 0.5f*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
-				iu[Y][xyz] += 0.5f*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
-				iu[Z][xyz] += 0.5f*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
+						iu[X][xyz] += 0.5f*( iTx*diT[X][X] + iTy*diT[X][Y] + iTz*diT[X][Z] );
+						iu[Y][xyz] += 0.5f*( iTx*diT[Y][X] + iTy*diT[Y][Y] + iTz*diT[Y][Z] );
+						iu[Z][xyz] += 0.5f*( iTx*diT[Z][X] + iTy*diT[Z][Y] + iTz*diT[Z][Z] );
 				
-				meanDiff += (float)Math.sqrt(iT2);
+						meanDiff += (float)Math.sqrt(iT2);
+					}
+					iu[X][xyz] /= Numerics.max(ZERO,den);
+					iu[Y][xyz] /= Numerics.max(ZERO,den);
+					iu[Z][xyz] /= Numerics.max(ZERO,den);			
+				}
+				partial[thread] = meanDiff;
 			}
-			iu[X][xyz] /= Numerics.max(ZERO,den);
-			iu[Y][xyz] /= Numerics.max(ZERO,den);
-			iu[Z][xyz] /= Numerics.max(ZERO,den);			
-		}
+		});
+		float meanDiff = 0.0f;
+		for (int t=0;t<partial.length;t++) meanDiff += partial[t];
 		meanDiff /= (nix*niy*niz);
 
 		if (debug) BasicInfo.displayMessage("inverse consistency "+meanDiff+"\n");
@@ -1163,18 +1249,100 @@ public class DemonsScaledConsistentRegistration {
         initializeTransform();
         initializeInverseTransform();
 		
+		runIterations(Niter, 0.0f);
+    }   
+	
+	/** 
+	 *	runs the algorithm coarse to fine: level l, from nlevels-1 down to 0, works on deformation grids
+	 *	subsampled by scale*2^l and on images smoothed and subsampled by 2^l (see setPyramidLevel), 
+	 *	for at most iterations[l] iterations, and stops early when the variation of the score falls 
+	 *	below minChange (relative to the first score of the level)
+	 */
+	public final void runMultiscaleRegistration(int nlevels, int[] iterations, float minChange) {
+		float finalScale = scale;
+		for (int l=nlevels-1;l>=0;l--) {
+			float levelScale = finalScale*(1<<l);
+			if (l==nlevels-1) {
+				if (debug) BasicInfo.displayMessage("initialize all parameters \n");
+				setGridScale(levelScale);
+				initializeTransform();
+				initializeInverseTransform();
+			} else {
+				refineGridScale(levelScale);
+			}
+			setPyramidLevel(1<<l);
+			if (debug) BasicInfo.displayMessage("level "+l+" (scale "+levelScale+", grid "+nsx+"x"+nsy+"x"+nsz
+													+", images "+nlx+"x"+nly+"x"+nlz+")\n");
+			
+			int nt = runIterations(iterations[l], minChange);
+			if (debug) BasicInfo.displayMessage("level "+l+": "+nt+" iterations\n");
+		}
+	}
+	
+	/** 
+	 *	images and targets for a pyramid level: Gaussian smoothing of standard deviation factor/2 voxels,
+	 *	then one voxel out of factor along each axis (factor 1 uses the original images)
+	 */
+	private final void setPyramidLevel(int factor) {
+		levelFactor = factor;
+		if (factor==1) {
+			levelImage = image;
+			levelTarget = target;
+			nlx = nix; nly = niy; nlz = niz;
+			nltx = ntx; nlty = nty; nltz = ntz;
+			return;
+		}
+		nlx = (nix-1)/factor+1; nly = (niy-1)/factor+1; nlz = (niz-1)/factor+1;
+		nltx = (ntx-1)/factor+1; nlty = (nty-1)/factor+1; nltz = (ntz-1)/factor+1;
+		
+		float[][] kernel = ImageFilters.separableGaussianKernel(0.5f*factor, 0.5f*factor, 0.5f*factor);
+		levelImage = new float[nc][];
+		levelTarget = new float[nc][];
+		for (int n=0;n<nc;n++) {
+			levelImage[n] = decimate(ImageFilters.separableConvolution(image[n],nix,niy,niz,kernel,nthreads), nix,niy,niz, factor);
+			levelTarget[n] = decimate(ImageFilters.separableConvolution(target[n],ntx,nty,ntz,kernel,nthreads), ntx,nty,ntz, factor);
+		}
+	}
+	
+	/** keep the voxels of coordinates multiple of factor */
+	private static final float[] decimate(float[] img, int nx, int ny, int nz, int factor) {
+		int nsx = (nx-1)/factor+1, nsy = (ny-1)/factor+1, nsz = (nz-1)/factor+1;
+		float[] sub = new float[nsx*nsy*nsz];
+		for (int x=0;x<nsx;x++) for (int y=0;y<nsy;y++) for (int z=0;z<nsz;z++) {
+			sub[x+nsx*y+nsx*nsy*z] = img[x*factor + nx*y*factor + nx*ny*z*factor];
+		}
+		return sub;
+	}
+	
+	/** image channel n at image voxel coordinates (x,y,z), from the current pyramid level */
+	private final float sampleImage(int n, float x, float y, float z) {
+		return ImageInterpolation.linearClosestInterpolation(levelImage[n],x/levelFactor,y/levelFactor,z/levelFactor,nlx,nly,nlz);
+	}
+	
+	/** target channel n at target voxel coordinates (x,y,z), from the current pyramid level */
+	private final float sampleTarget(int n, float x, float y, float z) {
+		return ImageInterpolation.linearClosestInterpolation(levelTarget[n],x/levelFactor,y/levelFactor,z/levelFactor,nltx,nlty,nltz);
+	}
+	
+	/** 
+	 *	iterations at the current scale, until the relative variation of the score is below minChange;
+	 *	returns the number of iterations performed
+	 */
+	private final int runIterations(int niter, float minChange) {
 		float dist=0, dist0=0, prec=0;
-		for (int t=0;t<Niter;t++) {
+		for (int t=0;t<niter;t++) {
 			if (debug) BasicInfo.displayMessage("iteration "+(t+1)+"\n");
 			prec = dist;
 			
 			dist = registerImageToTargetUpdateDecoupled();
 			dist += registerTargetToImageUpdateDecoupled();
 			
+			boolean converged = false;
 			if (t==0) {
 				dist0 = dist;
 			} else {
 				BasicInfo.displayMessage("score: "+(dist/dist0)+", variation: "+( (dist-prec)/dist0 )+"\n");
+				converged = (Numerics.abs(dist-prec)<minChange*dist0);
 			}
 			registerImageToTargetCompose();
 			registerTargetToImageCompose();
@@ -1184,9 +1352,72 @@ public class DemonsScaledConsistentRegistration {
 
 			registerImageToTargetCompose();
 			registerTargetToImageCompose();
+			
+			if (converged) return t+1;
 		}
+		return niter;
     }   
 	
+	/** set the sampling of the deformation grids (the deformations must be re-initialized or resampled) */
+	private final void setGridScale(float scale_) {
+		scale = scale_;
+		
+		nsx = Numerics.ceil(ntx/scale);
+		nsy = Numerics.ceil(nty/scale);
+		nsz = Numerics.ceil(ntz/scale);
+		
+		nisx = Numerics.ceil(nix/scale);
+		nisy = Numerics.ceil(niy/scale);
+		nisz = Numerics.ceil(niz/scale);
+	}
+	
+	/** move the current deformations to finer grids */
+	private final void refineGridScale(float scale_) {
+		float scale0 = scale;
+		int nsx0 = nsx, nsy0 = nsy, nsz0 = nsz;
+		int nisx0 = nisx, nisy0 = nisy, nisz0 = nisz;
+		
+		setGridScale(scale_);
+		
+		s = resampleMapping(s, nsx0,nsy0,nsz0, scale0, nsx,nsy,nsz);
+		is = resampleMapping(is, nisx0,nisy0,nisz0, scale0, nisx,nisy,nisz);
+		
+		// updates start from zero
+		u = new float[3][nsx*nsy*nsz];
+		c = new float[3][nsx*nsy*nsz];
+		iu = new float[3][nisx*nisy*nisz];
+		ic = new float[3][nisx*nisy*nisz];
+	}
+	
+	/** 
+	 *	interpolate a mapping defined on a grid of scale scale0 onto a grid of the current scale:
+	 *	the displacements are interpolated rather than the coordinates, as they extend smoothly beyond the grid
+	 */
+	private final float[][] resampleMapping(float[][] map, final int nx0, final int ny0, final int nz0, float scale0, final int nx, final int ny, int nz) {
+		final float ratio = scale/scale0;
+		final float[][] disp = new float[3][nx0*ny0*nz0];
+		for (int x=0;x<nx0;x++) for (int y=0;y<ny0;y++) for (int z=0;z<nz0;z++) {
+			int xyz = x+nx0*y+nx0*ny0*z;
+			disp[X][xyz] = map[X][xyz] - x*scale0;
+			disp[Y][xyz] = map[Y][xyz] - y*scale0;
+			disp[Z][xyz] = map[Z][xyz] - z*scale0;
+		}
+		final float[][] result = new float[3][nx*ny*nz];
+		ParallelLoops.forEachSlab(0, nz, nthreads, new ParallelLoops.Slab() {
+			public void run(int start, int end, int thread) {
+				for (int z=start;z<end;z++) for (int y=0;y<ny;y++) for (int x=0;x<nx;x++) {
+					int xyz = x+nx*y+nx*ny*z;
+					float x0 = x*ratio, y0 = y*ratio, z0 = z*ratio;
+					
+					result[X][xyz] = x*scale + ImageInterpolation.linearClosestInterpolation(disp[X],x0,y0,z0,nx0,ny0,nz0);
+					result[Y][xyz] = y*scale + ImageInterpolation.linearClosestInterpolation(disp[Y],x0,y0,z0,nx0,ny0,nz0);
+					result[Z][xyz] = z*scale + ImageInterpolation.linearClosestInterpolation(disp[Z],x0,y0,z0,nx0,ny0,nz0);
+				}
+			}
+		});
+		return result;
+	}
+	
 	/** 
 	 *	returns the transformed coordinates
 	 */
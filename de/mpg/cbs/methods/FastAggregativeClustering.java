@@ -78,7 +78,7 @@ public class FastAggregativeClustering {
 	
 	//private		ArrayList<Float>	degree;
 	//private		ArrayList<ArrayList<Triple>>	assoc;
-	private		Triple[][]						assoc;
+	private		ClusterAdjacency				assoc;
 	private		BitSet							active;
 	private		BinaryHeapPair					bintree;
 	private		float[]							cost;
@@ -91,43 +91,16 @@ public class FastAggregativeClustering {
 	
 	private		Histogram		distribution;
 	
+	private		int				nthreads = 1;
+	
+	// neighbor offsets, in the order of the adjacency lists: 6-C, then 18-C, then 26-C
+	private static final int[] ngbx = {-1,+1, 0, 0, 0, 0, -1,+1,-1,+1, 0, 0, 0, 0,-1,-1,+1,+1, -1,+1,-1,-1,+1,-1,+1,+1};
+	private static final int[] ngby = { 0, 0,-1,+1, 0, 0, -1,-1,+1,+1,-1,+1,-1,+1, 0, 0, 0, 0, -1,-1,+1,-1,+1,+1,-1,+1};
+	private static final int[] ngbz = { 0, 0, 0, 0,-1,+1,  0, 0, 0, 0,-1,-1,+1,+1,-1,+1,-1,+1, -1,-1,-1,+1,-1,+1,+1,+1};
+	
     static final boolean		debug				=	true;
 	static final boolean		verbose				=	true;
     
-	// simple id, value class
-	private static class Triple {
-		public int id;
-		public float weight;
-		public float delta;
-		public float size;
-		
-		public Triple(int id) {
-			this.id = id;
-			this.weight = 0.0f;
-			this.delta = 0.0f;
-			this.size = 1;
-		}
-		public Triple(int id, float weight) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = 0.0f;
-			this.size = 1;
-		}
-		public Triple(int id, float weight, float size) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = 0.0f;
-			this.size = size;
-		}
-		public Triple(int id, float weight, float delta, float size) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = delta;
-			this.size = size;
-		}
-		
-	}
-	
 	/* simple variable size array */
 	private static class IntArray {
 		public int[] val;
@@ -236,158 +209,81 @@ public class FastAggregativeClustering {
 		System.gc();
 	}
 	
+	/** 
+	 *	number of threads used to compute the edge weights and to merge the clusters in parallel rounds
+	 *	(the edge weights are identical to the single-thread computation)
+	 */
+	public final void setNumberOfThreads(int nt_) {
+		nthreads = Numerics.max(1, nt_);
+	}
+	
+	/**
+	 *	compute the links of each voxel to its masked neighbors, slab by slab on nthreads threads.
+	 *	All the voxel rows are allocated beforehand, so each thread only writes in the rows of its slab;
+	 *	the rows are then trimmed and the pool compacted. The links are in the same order as in a
+	 *	single-thread pass, and the self entries are left to the caller.
+	 *	With asdelta, the association is stored as the delta of the links rather than their weight.
+	 */
+	private final void initEdgeRows(final boolean asdelta) {
+		for (int lb=1;lb<=nlb;lb++) assoc.allocate(lb, connect+1);
+		
+		final int nngb = (connect>18) ? 26 : (connect>6) ? 18 : 6;
+		final int[] nbcount = new int[nlb+1];
+		ParallelLoops.forEachSlab(0, nz, nthreads, new ParallelLoops.Slab() {
+			public void run(int zstart, int zend, int thread) {
+				for (int z=zstart;z<zend;z++) for (int y=0;y<ny;y++) for (int x=0;x<nx;x++) {
+					int xyz = x + nx*y + nx*ny*z;
+					if (mask[xyz]) {
+						int node = labeling[xyz];
+						int nb=0;
+						for (int k=0;k<nngb;k++) {
+							int xn = x+ngbx[k];
+							int yn = y+ngby[k];
+							int zn = z+ngbz[k];
+							if (xn>=0 && xn<nx && yn>=0 && yn<ny && zn>=0 && zn<nz) {
+								int xyzn = xn + nx*yn + nx*ny*zn;
+								if (mask[xyzn]) {
+									if (asdelta) assoc.set(node, nb+1, labeling[xyzn], 0.0f, associationWeight(xyz,xyzn), 1.0f);
+									else assoc.set(node, nb+1, labeling[xyzn], associationWeight(xyz,xyzn), 0.0f, 1.0f);
+									nb++;
+								}
+							}
+						}
+						nbcount[node] = nb;
+					}
+				}
+			}
+		});
+		for (int lb=1;lb<=nlb;lb++) assoc.trim(lb, nbcount[lb]+1);
+		assoc.compact();
+	}
+	
 	// initial lists: create all the links, thus the images are not needed anymore ?
 	public final void initAllEdgeWeightsAverage() {
 		
 		if (debug) System.out.println("-- weight initialization --");
 		
-		assoc = new Triple[2*nlb][];
-		assoc[0] = new Triple[1];
-		assoc[0][0] = new Triple(0);
+		assoc = new ClusterAdjacency(2*nlb, (connect+1)*(nlb+1));
+		assoc.allocate(0, 1);
+		assoc.set(0, 0, 0, 0.0f, 0.0f, 1.0f);
 		
 		latest = new int[2*nlb];
 		
-		Triple[] trp = new Triple[connect];
-		
 		if (debug) System.out.println("first pass");
 
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x + nx*y + nx*ny*z;
-			if (mask[xyz]) {
-				int nb=0;
-				// 6-C
-				if (x>0 && mask[xyz-1])	{
-					trp[nb] = new Triple(labeling[xyz-1], associationWeight(xyz,xyz-1));
-					nb++;
-				}
-				if (x<nx-1 && mask[xyz+1])	{
-					trp[nb] = new Triple(labeling[xyz+1], associationWeight(xyz,xyz+1));
-					nb++;
-				}
-				if (y>0 && mask[xyz-nx])	{
-					trp[nb] = new Triple(labeling[xyz-nx], associationWeight(xyz,xyz-nx));
-					nb++;
-				}
-				if (y<ny-1 && mask[xyz+nx])	{
-					trp[nb] = new Triple(labeling[xyz+nx], associationWeight(xyz,xyz+nx));
-					nb++;
-				}
-				if (z>0 && mask[xyz-nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny));
-					nb++;
-				}
-				if (z<nz-1 && mask[xyz+nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny));
-					nb++;
-				}
-				// 18-C
-				if (connect>6) {
-					if (x>0 && y>0 && mask[xyz-1-nx])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && mask[xyz+1-nx])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && mask[xyz-1+nx])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && mask[xyz+1+nx])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx));
-						nb++;
-					}
-					if (y>0 && z>0 && mask[xyz-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny));
-						nb++;
-					}
-					if (y<ny-1 && z>0 && mask[xyz+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny));
-						nb++;
-					}
-					if (y>0 && z<nz-1 && mask[xyz-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny));
-						nb++;
-					}
-					if (y<ny-1 && z<nz-1 && mask[xyz+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny));
-						nb++;
-					}
-					if (z>0 && x>0 && mask[xyz-nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1));
-						nb++;
-					}
-					if (z<nz-1 && x>0 && mask[xyz+nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1));
-						nb++;
-					}
-					if (z>0 && x<nx-1 && mask[xyz-nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1));
-						nb++;
-					}
-					if (z<nz-1 && x<nx-1 && mask[xyz+nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1));
-						nb++;
-					}
-				}
-				// 26-C
-				if (connect>18) {
-					if (x>0 && y>0 && z>0 && mask[xyz-1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z>0 && mask[xyz+1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z>0 && mask[xyz-1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y>0 && z<nz-1 && mask[xyz-1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z>0 && mask[xyz+1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z<nz-1 && mask[xyz-1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z<nz-1 && mask[xyz+1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z<nz-1 && mask[xyz+1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny));
-						nb++;
-					}
-				}
-				// build the weight array
-
-				// link in 6 directions
-				Triple[] node = new Triple[nb+1];
-				node[0] = new Triple(labeling[xyz], 1.0f);
-				for (int n=0;n<nb;n++) {
-					node[n+1] = trp[n];
-				}
-				// build the degree array
-				float deg = node[0].weight/node[0].size;
-				for (int n=0;n<nb;n++) {
-					deg += trp[n].weight/trp[n].size/nb;
-				}
-				//degree.set(labeling[xyz], new Float(deg));
-				node[0].delta = deg;
-
-				// store the values
-				assoc[labeling[xyz]] = node;
-				
-				// store the latest active index for everything
-				latest[labeling[xyz]] = labeling[xyz];
+		initEdgeRows(false);
+		for (int node=1;node<=nlb;node++) {
+			int nb = assoc.length(node)-1;
+			assoc.set(node, 0, node, 1.0f, 0.0f, 1.0f);
+			// build the degree array
+			float deg = assoc.weight(node, 0)/assoc.size(node, 0);
+			for (int n=0;n<nb;n++) {
+				deg += assoc.weight(node, n+1)/assoc.size(node, n+1)/nb;
 			}
+			assoc.setDelta(node, 0, deg);
+			
+			// store the latest active index for everything
+			latest[node] = node;
 		}
 		
 		if (debug) System.out.println("second pass");
@@ -400,17 +296,17 @@ public class FastAggregativeClustering {
 		self[0] = 0.0f;
 		other[0] = 0.0f;
 		for (int l=1;l<=nlb;l++) {
-			Triple[] node = assoc[l];
-			float di = node[0].delta;
-			for (int n=1;n<node.length;n++) {
+			int node = l;
+			float di = assoc.delta(node, 0);
+			for (int n=1;n<assoc.length(node);n++) {
 				//float dj = degree.get(node.get(n).id);
-				float wij = node[n].weight;
-				float wii = node[0].weight;
-				float wjj = assoc[node[n].id][0].weight;
-				float dj = assoc[node[n].id][0].delta;
-				float sij = node[n].size;
-				float si = node[0].size;
-				float sj = assoc[node[n].id][0].size;
+				float wij = assoc.weight(node, n);
+				float wii = assoc.weight(node, 0);
+				float wjj = assoc.weight(assoc.id(node, n), 0);
+				float dj = assoc.delta(assoc.id(node, n), 0);
+				float sij = assoc.size(node, n);
+				float si = assoc.size(node, 0);
+				float sj = assoc.size(assoc.id(node, n), 0);
 				//float dval = 2.0f*node.get(n).weight/(di + dj);
 				// use the formula with self-weights?
 				// D = (wii+wjj+2node)/(di+dj) -wii/di -wjj/dj
@@ -420,7 +316,7 @@ public class FastAggregativeClustering {
 				//node.get(n).delta = 2.0f*wij/sij*(di + dj)/(si + sj);
 				
 				// best so far..
-				node[n].delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij);
+				assoc.setDelta(node, n, wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij));
 				
 				// use the same score as the stopping criterion? slows down the process
 				//node.get(n).delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij)
@@ -428,7 +324,7 @@ public class FastAggregativeClustering {
 				
 				//other[0] += wij/sij;
 			}
-			cost[0] += node[0].weight/node[0].size/node[0].delta;
+			cost[0] += assoc.weight(node, 0)/assoc.size(node, 0)/assoc.delta(node, 0);
 			//self[0] += node.get(0).weight/node.get(0).size;
 		}
 	}
@@ -442,154 +338,27 @@ public class FastAggregativeClustering {
 		//degree = new ArrayList(nlb+1);
 		//assoc.add(0, new ArrayList<Triple>(1));
 		
-		assoc = new Triple[2*nlb][];
-		assoc[0] = new Triple[1];
-		assoc[0][0] = new Triple(0);
+		assoc = new ClusterAdjacency(2*nlb, (connect+1)*(nlb+1));
+		assoc.allocate(0, 1);
+		assoc.set(0, 0, 0, 0.0f, 0.0f, 1.0f);
 		
 		latest = new int[2*nlb];
 		
-		Triple[] trp = new Triple[connect];
-		
 		if (debug) System.out.println("first pass");
 
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x + nx*y + nx*ny*z;
-			if (mask[xyz]) {
-				int nb=0;
-				// 6-C
-				if (x>0 && mask[xyz-1])	{
-					trp[nb] = new Triple(labeling[xyz-1], associationWeight(xyz,xyz-1));
-					nb++;
-				}
-				if (x<nx-1 && mask[xyz+1])	{
-					trp[nb] = new Triple(labeling[xyz+1], associationWeight(xyz,xyz+1));
-					nb++;
-				}
-				if (y>0 && mask[xyz-nx])	{
-					trp[nb] = new Triple(labeling[xyz-nx], associationWeight(xyz,xyz-nx));
-					nb++;
-				}
-				if (y<ny-1 && mask[xyz+nx])	{
-					trp[nb] = new Triple(labeling[xyz+nx], associationWeight(xyz,xyz+nx));
-					nb++;
-				}
-				if (z>0 && mask[xyz-nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny));
-					nb++;
-				}
-				if (z<nz-1 && mask[xyz+nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny));
-					nb++;
-				}
-				// 18-C
-				if (connect>6) {
-					if (x>0 && y>0 && mask[xyz-1-nx])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && mask[xyz+1-nx])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && mask[xyz-1+nx])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && mask[xyz+1+nx])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx));
-						nb++;
-					}
-					if (y>0 && z>0 && mask[xyz-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny));
-						nb++;
-					}
-					if (y<ny-1 && z>0 && mask[xyz+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny));
-						nb++;
-					}
-					if (y>0 && z<nz-1 && mask[xyz-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny));
-						nb++;
-					}
-					if (y<ny-1 && z<nz-1 && mask[xyz+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny));
-						nb++;
-					}
-					if (z>0 && x>0 && mask[xyz-nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1));
-						nb++;
-					}
-					if (z<nz-1 && x>0 && mask[xyz+nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1));
-						nb++;
-					}
-					if (z>0 && x<nx-1 && mask[xyz-nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1));
-						nb++;
-					}
-					if (z<nz-1 && x<nx-1 && mask[xyz+nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1));
-						nb++;
-					}
-				}
-				// 26-C
-				if (connect>18) {
-					if (x>0 && y>0 && z>0 && mask[xyz-1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z>0 && mask[xyz+1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z>0 && mask[xyz-1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y>0 && z<nz-1 && mask[xyz-1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z>0 && mask[xyz+1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z<nz-1 && mask[xyz-1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z<nz-1 && mask[xyz+1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z<nz-1 && mask[xyz+1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny));
-						nb++;
-					}
-				}
-				// build the weight array
-
-				// link in 6 directions
-				Triple[] node = new Triple[nb+1];
-				node[0] = new Triple(labeling[xyz], 0.0f);
-				for (int n=0;n<nb;n++) {
-					node[n+1] = trp[n];
-					//if (trp[n].weight==0) System.out.print("o");
-				}
-				// build the degree array
-				float deg = node[0].weight/node[0].size;
-				for (int n=0;n<nb;n++) {
-					deg += trp[n].weight/trp[n].size/nb;
-				}
-				//degree.set(labeling[xyz], new Float(deg));
-				node[0].delta = deg;
-
-				// store the values
-				assoc[labeling[xyz]] = node;
-				
-				// store the latest active index for everything
-				latest[labeling[xyz]] = labeling[xyz];
+		initEdgeRows(false);
+		for (int node=1;node<=nlb;node++) {
+			int nb = assoc.length(node)-1;
+			assoc.set(node, 0, node, 0.0f, 0.0f, 1.0f);
+			// build the degree array
+			float deg = assoc.weight(node, 0)/assoc.size(node, 0);
+			for (int n=0;n<nb;n++) {
+				deg += assoc.weight(node, n+1)/assoc.size(node, n+1)/nb;
 			}
+			assoc.setDelta(node, 0, deg);
+			
+			// store the latest active index for everything
+			latest[node] = node;
 		}
 		
 		if (debug) System.out.println("second pass");
@@ -602,17 +371,17 @@ public class FastAggregativeClustering {
 		self[0] = 0.0f;
 		other[0] = 0.0f;
 		for (int l=1;l<=nlb;l++) {
-			Triple[] node = assoc[l];
-			float di = node[0].delta;
-			for (int n=1;n<node.length;n++) {
+			int node = l;
+			float di = assoc.delta(node, 0);
+			for (int n=1;n<assoc.length(node);n++) {
 				//float dj = degree.get(node.get(n).id);
-				float wij = node[n].weight;
-				float wii = node[0].weight;
-				float wjj = assoc[node[n].id][0].weight;
-				float dj = assoc[node[n].id][0].delta;
-				float sij = node[n].size;
-				float si = node[0].size;
-				float sj = assoc[node[n].id][0].size;
+				float wij = assoc.weight(node, n);
+				float wii = assoc.weight(node, 0);
+				float wjj = assoc.weight(assoc.id(node, n), 0);
+				float dj = assoc.delta(assoc.id(node, n), 0);
+				float sij = assoc.size(node, n);
+				float si = assoc.size(node, 0);
+				float sj = assoc.size(assoc.id(node, n), 0);
 				//float dval = 2.0f*node.get(n).weight/(di + dj);
 				// use the formula with self-weights?
 				// D = (wii+wjj+2node)/(di+dj) -wii/di -wjj/dj
@@ -621,7 +390,7 @@ public class FastAggregativeClustering {
 				//node.get(n).delta = (wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij);
 				//node.get(n).delta = 2.0f*wij/sij*(di + dj)/(si + sj);
 				
-				node[n].delta = basis - wij;
+				assoc.setDelta(node, n, basis - wij);
 				
 				// use the same score as the stopping criterion? slows down the process
 				//node.get(n).delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij)
@@ -629,7 +398,7 @@ public class FastAggregativeClustering {
 				
 				//other[0] += wij/sij;
 			}
-			cost[0] += node[0].weight/node[0].size/node[0].delta;
+			cost[0] += assoc.weight(node, 0)/assoc.size(node, 0)/assoc.delta(node, 0);
 			//self[0] += node.get(0).weight/node.get(0).size;
 		}
 	}
@@ -639,153 +408,27 @@ public class FastAggregativeClustering {
 		
 		if (debug) System.out.println("-- weight initialization --");
 		
-		assoc = new Triple[2*nlb][];
-		assoc[0] = new Triple[1];
-		assoc[0][0] = new Triple(0);
+		assoc = new ClusterAdjacency(2*nlb, (connect+1)*(nlb+1));
+		assoc.allocate(0, 1);
+		assoc.set(0, 0, 0, 0.0f, 0.0f, 1.0f);
 		
 		latest = new int[2*nlb];
 		
-		Triple[] trp = new Triple[connect];
-		
 		if (debug) System.out.println("first pass");
 
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x + nx*y + nx*ny*z;
-			if (mask[xyz]) {
-				int nb=0;
-				// 6-C
-				if (x>0 && mask[xyz-1])	{
-					trp[nb] = new Triple(labeling[xyz-1], associationWeight(xyz,xyz-1));
-					nb++;
-				}
-				if (x<nx-1 && mask[xyz+1])	{
-					trp[nb] = new Triple(labeling[xyz+1], associationWeight(xyz,xyz+1));
-					nb++;
-				}
-				if (y>0 && mask[xyz-nx])	{
-					trp[nb] = new Triple(labeling[xyz-nx], associationWeight(xyz,xyz-nx));
-					nb++;
-				}
-				if (y<ny-1 && mask[xyz+nx])	{
-					trp[nb] = new Triple(labeling[xyz+nx], associationWeight(xyz,xyz+nx));
-					nb++;
-				}
-				if (z>0 && mask[xyz-nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny));
-					nb++;
-				}
-				if (z<nz-1 && mask[xyz+nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny));
-					nb++;
-				}
-				// 18-C
-				if (connect>6) {
-					if (x>0 && y>0 && mask[xyz-1-nx])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && mask[xyz+1-nx])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && mask[xyz-1+nx])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && mask[xyz+1+nx])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx));
-						nb++;
-					}
-					if (y>0 && z>0 && mask[xyz-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny));
-						nb++;
-					}
-					if (y<ny-1 && z>0 && mask[xyz+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny));
-						nb++;
-					}
-					if (y>0 && z<nz-1 && mask[xyz-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny));
-						nb++;
-					}
-					if (y<ny-1 && z<nz-1 && mask[xyz+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny));
-						nb++;
-					}
-					if (z>0 && x>0 && mask[xyz-nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1));
-						nb++;
-					}
-					if (z<nz-1 && x>0 && mask[xyz+nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1));
-						nb++;
-					}
-					if (z>0 && x<nx-1 && mask[xyz-nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1));
-						nb++;
-					}
-					if (z<nz-1 && x<nx-1 && mask[xyz+nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1));
-						nb++;
-					}
-				}
-				// 26-C
-				if (connect>18) {
-					if (x>0 && y>0 && z>0 && mask[xyz-1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z>0 && mask[xyz+1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z>0 && mask[xyz-1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y>0 && z<nz-1 && mask[xyz-1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z>0 && mask[xyz+1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny));
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z<nz-1 && mask[xyz-1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z<nz-1 && mask[xyz+1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny));
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z<nz-1 && mask[xyz+1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny));
-						nb++;
-					}
-				}
-				// build the weight array
-				
-				// link in 6 directions
-				Triple[] node = new Triple[nb+1];
-				node[0] = new Triple(labeling[xyz], 1.0f);
-				for (int n=0;n<nb;n++) {
-					node[n+1] = trp[n];
-				}
-				// build the degree array
-				float deg = node[0].weight/node[0].size;
-				for (int n=0;n<nb;n++) {
-					deg += trp[n].weight/trp[n].size/nb;
-				}
-				//degree.set(labeling[xyz], new Float(deg));
-				node[0].delta = deg;
-
-				// store the values
-				assoc[labeling[xyz]] = node;
-				
-				// store the latest active index for everything
-				latest[labeling[xyz]] = labeling[xyz];
+		initEdgeRows(false);
+		for (int node=1;node<=nlb;node++) {
+			int nb = assoc.length(node)-1;
+			assoc.set(node, 0, node, 1.0f, 0.0f, 1.0f);
+			// build the degree array
+			float deg = assoc.weight(node, 0)/assoc.size(node, 0);
+			for (int n=0;n<nb;n++) {
+				deg += assoc.weight(node, n+1)/assoc.size(node, n+1)/nb;
 			}
+			assoc.setDelta(node, 0, deg);
+			
+			// store the latest active index for everything
+			latest[node] = node;
 		}
 		
 		if (debug) System.out.println("second pass");
@@ -798,25 +441,25 @@ public class FastAggregativeClustering {
 		self[0] = 0.0f;
 		other[0] = 0.0f;
 		for (int l=1;l<=nlb;l++) {
-			Triple[] node = assoc[l];
-			float di = node[0].delta;
-			for (int n=1;n<node.length;n++) {
+			int node = l;
+			float di = assoc.delta(node, 0);
+			for (int n=1;n<assoc.length(node);n++) {
 				//float dj = degree.get(node.get(n).id);
-				float wij = node[n].weight;
-				float wii = node[0].weight;
-				float wjj = assoc[node[n].id][0].weight;
-				float dj = assoc[node[n].id][0].delta;
-				float sij = node[n].size;
-				float si = node[0].size;
-				float sj = assoc[node[n].id][0].size;
+				float wij = assoc.weight(node, n);
+				float wii = assoc.weight(node, 0);
+				float wjj = assoc.weight(assoc.id(node, n), 0);
+				float dj = assoc.delta(assoc.id(node, n), 0);
+				float sij = assoc.size(node, n);
+				float si = assoc.size(node, 0);
+				float sj = assoc.size(assoc.id(node, n), 0);
 				
 				// best so far..
 				//node[n].delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij);
 				//node[n].delta = wij*Numerics.min(wii,wjj,wij);
 				//node[n].delta = wij*Numerics.min(wii,wjj,wij) - (1.0f-wij)*(float)Math.sqrt(wii*wjj);
-				node[n].delta = Numerics.square(wij*Numerics.min(wii,wjj,wij)) - Numerics.square(1.0f-wij)*wii*wjj;
+				assoc.setDelta(node, n, Numerics.square(wij*Numerics.min(wii,wjj,wij)) - Numerics.square(1.0f-wij)*wii*wjj);
 			}
-			cost[0] += node[0].weight/node[0].size/node[0].delta;
+			cost[0] += assoc.weight(node, 0)/assoc.size(node, 0)/assoc.delta(node, 0);
 		}
 	}
 	
@@ -825,146 +468,20 @@ public class FastAggregativeClustering {
 		
 		if (debug) System.out.println("-- weight initialization (normal clusters)--");
 		
-		assoc = new Triple[2*nlb][];
-		assoc[0] = new Triple[1];
-		assoc[0][0] = new Triple(0);
+		assoc = new ClusterAdjacency(2*nlb, (connect+1)*(nlb+1));
+		assoc.allocate(0, 1);
+		assoc.set(0, 0, 0, 0.0f, 0.0f, 1.0f);
 		
 		latest = new int[2*nlb];
 		
-		Triple[] trp = new Triple[connect];
-		
 		if (debug) System.out.println("first pass");
 
-		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
-			int xyz = x + nx*y + nx*ny*z;
-			if (mask[xyz]) {
-				int nb=0;
-				// 6-C
-				if (x>0 && mask[xyz-1])	{
-					trp[nb] = new Triple(labeling[xyz-1], 0.0f, associationWeight(xyz,xyz-1), 1.0f);
-					nb++;
-				}
-				if (x<nx-1 && mask[xyz+1])	{
-					trp[nb] = new Triple(labeling[xyz+1], 0.0f, associationWeight(xyz,xyz+1), 1.0f);
-					nb++;
-				}
-				if (y>0 && mask[xyz-nx])	{
-					trp[nb] = new Triple(labeling[xyz-nx], 0.0f, associationWeight(xyz,xyz-nx), 1.0f);
-					nb++;
-				}
-				if (y<ny-1 && mask[xyz+nx])	{
-					trp[nb] = new Triple(labeling[xyz+nx], 0.0f, associationWeight(xyz,xyz+nx), 1.0f);
-					nb++;
-				}
-				if (z>0 && mask[xyz-nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz-nx*ny], 0.0f, associationWeight(xyz,xyz-nx*ny), 1.0f);
-					nb++;
-				}
-				if (z<nz-1 && mask[xyz+nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz+nx*ny], 0.0f, associationWeight(xyz,xyz+nx*ny), 1.0f);
-					nb++;
-				}
-				// 18-C
-				if (connect>6) {
-					if (x>0 && y>0 && mask[xyz-1-nx])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx], 0.0f, associationWeight(xyz,xyz-1-nx), 1.0f);
-						nb++;
-					}
-					if (x<nx-1 && y>0 && mask[xyz+1-nx])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx], 0.0f, associationWeight(xyz,xyz+1-nx), 1.0f);
-						nb++;
-					}
-					if (x>0 && y<ny-1 && mask[xyz-1+nx])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx], 0.0f, associationWeight(xyz,xyz-1+nx), 1.0f);
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && mask[xyz+1+nx])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx], 0.0f, associationWeight(xyz,xyz+1+nx), 1.0f);
-						nb++;
-					}
-					if (y>0 && z>0 && mask[xyz-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx-nx*ny], 0.0f, associationWeight(xyz,xyz-nx-nx*ny), 1.0f);
-						nb++;
-					}
-					if (y<ny-1 && z>0 && mask[xyz+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx-nx*ny], 0.0f, associationWeight(xyz,xyz+nx-nx*ny), 1.0f);
-						nb++;
-					}
-					if (y>0 && z<nz-1 && mask[xyz-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx+nx*ny], 0.0f, associationWeight(xyz,xyz-nx+nx*ny), 1.0f);
-						nb++;
-					}
-					if (y<ny-1 && z<nz-1 && mask[xyz+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx+nx*ny], 0.0f, associationWeight(xyz,xyz+nx+nx*ny), 1.0f);
-						nb++;
-					}
-					if (z>0 && x>0 && mask[xyz-nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny-1], 0.0f, associationWeight(xyz,xyz-nx*ny-1), 1.0f);
-						nb++;
-					}
-					if (z<nz-1 && x>0 && mask[xyz+nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny-1], 0.0f, associationWeight(xyz,xyz+nx*ny-1), 1.0f);
-						nb++;
-					}
-					if (z>0 && x<nx-1 && mask[xyz-nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny+1], 0.0f, associationWeight(xyz,xyz-nx*ny+1), 1.0f);
-						nb++;
-					}
-					if (z<nz-1 && x<nx-1 && mask[xyz+nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny+1], 0.0f, associationWeight(xyz,xyz+nx*ny+1), 1.0f);
-						nb++;
-					}
-				}
-				// 26-C
-				if (connect>18) {
-					if (x>0 && y>0 && z>0 && mask[xyz-1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx-nx*ny], 0.0f, associationWeight(xyz,xyz-1-nx-nx*ny), 1.0f);
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z>0 && mask[xyz+1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx-nx*ny], 0.0f, associationWeight(xyz,xyz+1-nx-nx*ny), 1.0f);
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z>0 && mask[xyz-1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx-nx*ny], 0.0f, associationWeight(xyz,xyz-1+nx-nx*ny), 1.0f);
-						nb++;
-					}
-					if (x>0 && y>0 && z<nz-1 && mask[xyz-1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx+nx*ny], 0.0f, associationWeight(xyz,xyz-1-nx+nx*ny), 1.0f);
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z>0 && mask[xyz+1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx-nx*ny], 0.0f, associationWeight(xyz,xyz+1+nx-nx*ny), 1.0f);
-						nb++;
-					}
-					if (x>0 && y<ny-1 && z<nz-1 && mask[xyz-1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx+nx*ny], 0.0f, associationWeight(xyz,xyz-1+nx+nx*ny), 1.0f);
-						nb++;
-					}
-					if (x<nx-1 && y>0 && z<nz-1 && mask[xyz+1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx+nx*ny], 0.0f, associationWeight(xyz,xyz+1-nx+nx*ny), 1.0f);
-						nb++;
-					}
-					if (x<nx-1 && y<ny-1 && z<nz-1 && mask[xyz+1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx+nx*ny], 0.0f, associationWeight(xyz,xyz+1+nx+nx*ny), 1.0f);
-						nb++;
-					}
-				}
-				// build the weight array
-
-				// link in 6 directions
-				Triple[] node = new Triple[nb+1];
-				node[0] = new Triple(labeling[xyz], image[0][xyz], 0.0f, 1.0f);
-				for (int n=0;n<nb;n++) {
-					node[n+1] = trp[n];
-				}
-				
-				// store the values
-				assoc[labeling[xyz]] = node;
-				
-				// store the latest active index for everything
-				latest[labeling[xyz]] = labeling[xyz];
-			}
+		initEdgeRows(true);
+		for (int node=1;node<=nlb;node++) {
+			assoc.set(node, 0, node, image[0][invertlabeling[node]], 0.0f, 1.0f);
+			
+			// store the latest active index for everything
+			latest[node] = node;
 		}
 		
 		if (debug) System.out.println("second pass");
@@ -1107,16 +624,16 @@ public class FastAggregativeClustering {
 
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			Triple[] node = assoc[lb];
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.length>1) {
+			if (assoc.length(node)>1) {
 				int best=1;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=2;b<node.length;b++) {
-					if (node[b].delta>node[best].delta) best = b;
+				for (int b=2;b<assoc.length(node);b++) {
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (debug) System.out.print(""+node.get(best).delta+","+l+":"+best);
-				bintree.addValue(node[best].delta, node[0].id, best);
+				bintree.addValue(assoc.delta(node, best), assoc.id(node, 0), best);
 			} else {
 				if (debug) System.out.print("!");	
 			}
@@ -1166,14 +683,14 @@ public class FastAggregativeClustering {
 
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
-				Triple[] bNode = assoc[lbest];
-				int	lpair = bNode[nbest].id;
+				int bNode = lbest;
+				int	lpair = assoc.id(bNode, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
-					Triple[] pNode = assoc[lpair];
+					int pNode = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -1184,31 +701,32 @@ public class FastAggregativeClustering {
 					
 					// new values
 					//ArrayList<Triple> aNode = new ArrayList<Triple>(Numerics.max(bNode.size(),pNode.size())-1);
-					Triple[] aNode = new Triple[bNode.length+pNode.length-3];
+					assoc.allocate(id, assoc.length(bNode)+assoc.length(pNode)-3);
+					int aNode = id;
 					// self-weight & degree
 					// d(uv) = d(u) + d(v)
 					// w(uv,uv) = w(u,u) + w(v,v) + 2*w(uv.uv)
-					aNode[0] = new Triple(id, bNode[0].weight + pNode[0].weight + 2.0f*bNode[nbest].weight, 
-												bNode[0].delta + pNode[0].delta,  
-												bNode[0].size + pNode[0].size + 2.0f*bNode[nbest].size );
+					assoc.set(aNode, 0, id, assoc.weight(bNode, 0) + assoc.weight(pNode, 0) + 2.0f*assoc.weight(bNode, nbest), 
+												assoc.delta(bNode, 0) + assoc.delta(pNode, 0),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) + 2.0f*assoc.size(bNode, nbest) );
 					
 					// new mixing weights
 					// w(uv,x) = w(u,x) + w(v,x)
 					// must check if the links still exist, not duplicate
 					
-					newclustertime += bNode.length+pNode.length;
+					newclustertime += assoc.length(bNode)+assoc.length(pNode);
 					
 					// using latest[] allows to preserve the tree structure inside assoc, but skip steps when attributing the labels
-					for (int n=1;n<bNode.length;n++) {
+					for (int n=1;n<assoc.length(bNode);n++) {
 						//int lbn = bNode[n].id;
-						int lbn = latest[bNode[n].id];
+						int lbn = latest[assoc.id(bNode, n)];
 						if (lbn!=lpair) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -1216,28 +734,28 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[bNode[n].id] = lbn;
+								latest[assoc.id(bNode, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lpair) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] += bNode[n].weight;
-								ngbSize[lbn] += bNode[n].size;
+								ngbWeight[lbn] += assoc.weight(bNode, n);
+								ngbSize[lbn] += assoc.size(bNode, n);
 							}							
 							// no need to check on all already created values!!
 						}
 					}
-					for (int n=1;n<pNode.length;n++) {
+					for (int n=1;n<assoc.length(pNode);n++) {
 						//int lbn = pNode[n].id;
-						int lbn = latest[pNode[n].id];
+						int lbn = latest[assoc.id(pNode, n)];
 						if (lbn!=lbest) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -1245,14 +763,14 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[pNode[n].id] = lbn;
+								latest[assoc.id(pNode, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lbest) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] += pNode[n].weight;
-								ngbSize[lbn] += pNode[n].size;
+								ngbWeight[lbn] += assoc.weight(pNode, n);
+								ngbSize[lbn] += assoc.size(pNode, n);
 							}
 							// no need to check on all already created values!!
 						}
@@ -1261,7 +779,7 @@ public class FastAggregativeClustering {
 					int l=1;
 					for (int lbn = ngbList.nextSetBit(0); lbn >= 0; lbn = ngbList.nextSetBit(lbn+1)) {
 						// create a new one
-						aNode[l] = new Triple(lbn, ngbWeight[lbn], ngbSize[lbn]);
+						assoc.set(aNode, l, lbn, ngbWeight[lbn], 0.0f, ngbSize[lbn]);
 						l++;
 						// reset the values
 						ngbWeight[lbn] = 0.0f;
@@ -1271,11 +789,7 @@ public class FastAggregativeClustering {
 
 					// make sure we don't have extra empty values
 					//aNode.trimToSize();
-					if (l<aNode.length) {
-						Triple[] tmp = new Triple[l];
-						for (int n=0;n<l;n++) tmp[n] = aNode[n];
-						aNode = tmp;
-					}
+					assoc.trim(aNode, l);
 					// set the new location parameters
 					ngbcluster.clear();
 					if (lbest>nlb && lpair>nlb && clusterPos[lbest].length>clusterPos[lpair].length) {
@@ -1358,28 +872,28 @@ public class FastAggregativeClustering {
 					}
 					// new deltas : no need of the u,v values anymore
 					// D(uv,x) = ( w(uv,uv) + w(x,x) + 2w(uv,x) )/( d(uv)+d(x) ) - w(uv,uv)/d(uv) - w(x,x)/d(x)
-					for (int n=1; n<aNode.length; n++) {
-						Triple[] wngb = assoc[aNode[n].id];
+					for (int n=1; n<assoc.length(aNode); n++) {
+						int wngb = assoc.id(aNode, n);
 						// best method so far
 						// use the same criterion than for stopping? makes sense, but slows down the process
 						// geometric progression:
-						float wsize = 1.0f/(1.0f + Numerics.square( (aNode[0].size+wngb[0].size)/((connect+1.0f)*nlb)) );
+						float wsize = 1.0f/(1.0f + Numerics.square( (assoc.size(aNode, 0)+assoc.size(wngb, 0))/((connect+1.0f)*nlb)) );
 						//float wsize = 1.0f/(1.0f + Numerics.square( (aNode[0].size+wngb[0].size)/((connect+1.0f))) );
 						//float wsize = 1.0f;
-						aNode[n].delta = wsize*( Numerics.square(aNode[n].weight/aNode[n].size)
-													 *Numerics.square( ( aNode[0].weight + wngb[0].weight + 2.0f*aNode[n].weight )
-																		/( aNode[0].size + wngb[0].size + 2.0f*aNode[n].size ) )
-													 -Numerics.square(1.0f-aNode[n].weight/aNode[n].size)
-													  *aNode[0].weight/aNode[0].size
-													  *wngb[0].weight/wngb[0].size  );
+						assoc.setDelta(aNode, n, wsize*( Numerics.square(assoc.weight(aNode, n)/assoc.size(aNode, n))
+													 *Numerics.square( ( assoc.weight(aNode, 0) + assoc.weight(wngb, 0) + 2.0f*assoc.weight(aNode, n) )
+																		/( assoc.size(aNode, 0) + assoc.size(wngb, 0) + 2.0f*assoc.size(aNode, n) ) )
+													 -Numerics.square(1.0f-assoc.weight(aNode, n)/assoc.size(aNode, n))
+													  *assoc.weight(aNode, 0)/assoc.size(aNode, 0)
+													  *assoc.weight(wngb, 0)/assoc.size(wngb, 0)  ));
 						
 					}
 					
 					/// probably not needed
 					// recompute the degree? (for averaged links)
-					self[iter] = 	Numerics.square(bNode[nbest].weight/bNode[nbest].size * aNode[0].weight/aNode[0].size);
-					other[iter] = Numerics.square(1.0f-bNode[nbest].weight/bNode[nbest].size) * bNode[0].weight/bNode[0].size
-																							* pNode[0].weight/pNode[0].size;
+					self[iter] = 	Numerics.square(assoc.weight(bNode, nbest)/assoc.size(bNode, nbest) * assoc.weight(aNode, 0)/assoc.size(aNode, 0));
+					other[iter] = Numerics.square(1.0f-assoc.weight(bNode, nbest)/assoc.size(bNode, nbest)) * assoc.weight(bNode, 0)/assoc.size(bNode, 0)
+																							* assoc.weight(pNode, 0)/assoc.size(pNode, 0);
 					cost[iter] = bcost;
 
 					if (verbose) if (iter%(nlb/100)==0) {
@@ -1389,7 +903,7 @@ public class FastAggregativeClustering {
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length
+																	+assoc.length(bNode)+", "+assoc.length(pNode)
 																	+"| n "+newclustertime+", d "+depthsearchtime+", w "+widthsearchtime+")");
 						looptime = newtime;
 						newclustertime = 0;
@@ -1402,35 +916,34 @@ public class FastAggregativeClustering {
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length+")");	
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");	
 					   first=false;
 					   if (firststop) stop = true;
 					}								
 					// add the new values to list, binary tree
-					assoc[id] = aNode;
 					active.set(id, true);
 					
-					if (aNode.length>1) {
+					if (assoc.length(aNode)>1) {
 						int best=1;
-						for (int b=2;b<aNode.length;b++) {
-							if (aNode[b].delta>aNode[best].delta) best = b;
+						for (int b=2;b<assoc.length(aNode);b++) {
+							if (assoc.delta(aNode, b)>assoc.delta(aNode, best)) best = b;
 						}
-						bintree.addValue(aNode[best].delta, id, best);
+						bintree.addValue(assoc.delta(aNode, best), id, best);
 
-						if (debug) if (aNode[best].delta>1) {
+						if (debug) if (assoc.delta(aNode, best)>1) {
 							System.out.println(nclusters+": c= "+cost[iter]+" ("
-																	+bNode[0].delta+", "
-																	+bNode[0].weight+", "
-																	+bNode[0].size+" | "
-																	+pNode[0].delta+", "
-																	+pNode[0].weight+", "
-																	+pNode[0].size+" | "
-																	+aNode[0].delta+", "
-																	+aNode[0].weight+", "
-																	+aNode[0].size+")");					   
+																	+assoc.delta(bNode, 0)+", "
+																	+assoc.weight(bNode, 0)+", "
+																	+assoc.size(bNode, 0)+" | "
+																	+assoc.delta(pNode, 0)+", "
+																	+assoc.weight(pNode, 0)+", "
+																	+assoc.size(pNode, 0)+" | "
+																	+assoc.delta(aNode, 0)+", "
+																	+assoc.weight(aNode, 0)+", "
+																	+assoc.size(aNode, 0)+")");					   
 							
-							for (int n=1; n<aNode.length; n++) {
-								System.out.print("<"+aNode[n].delta+", "+aNode[n].weight+", "+aNode[n].size+">");
+							for (int n=1; n<assoc.length(aNode); n++) {
+								System.out.print("<"+assoc.delta(aNode, n)+", "+assoc.weight(aNode, n)+", "+assoc.size(aNode, n)+">");
 							}
 							System.out.print("\n");
 						}
@@ -1438,12 +951,8 @@ public class FastAggregativeClustering {
 					}
 					
 					// replace the older values with info on what is the new label
-					assoc[lbest] = null;
-					assoc[lpair] = null;
-					assoc[lbest] = new Triple[1];
-					assoc[lpair] = new Triple[1];
-					assoc[lbest][0] = new Triple(id);
-					assoc[lpair][0] = new Triple(id);
+					assoc.redirect(lbest, id, 0.0f);
+					assoc.redirect(lpair, id, 0.0f);
 					
 					// de-activate the labels
 					active.set(lbest, false);
@@ -1461,12 +970,12 @@ public class FastAggregativeClustering {
 					// update the neighbors too, but only up to a point 
 					// (-> use both strategies to gain speed in the two extreme worst case scenarios)
 					// (both strategies = this and the track updating)
-					for (int b=1;b<aNode.length && b<maxlength;b++) {
-						if (active.get(aNode[b].id)) {
-							widthsearchtime += assoc[aNode[b].id].length;
-							for (int c=1;c<assoc[aNode[b].id].length && c<maxlength;c++) {
-								if (latest[assoc[aNode[b].id][c].id]==lbest || latest[assoc[aNode[b].id][c].id]==lpair)
-									latest[assoc[aNode[b].id][c].id] = id;
+					for (int b=1;b<assoc.length(aNode) && b<maxlength;b++) {
+						if (active.get(assoc.id(aNode, b))) {
+							widthsearchtime += assoc.length(assoc.id(aNode, b));
+							for (int c=1;c<assoc.length(assoc.id(aNode, b)) && c<maxlength;c++) {
+								if (latest[assoc.id(assoc.id(aNode, b), c)]==lbest || latest[assoc.id(assoc.id(aNode, b), c)]==lpair)
+									latest[assoc.id(assoc.id(aNode, b), c)] = id;
 								//if (assoc[aNode[b].id][c].id==lbest || assoc[aNode[b].id][c].id==lpair)
 								//	assoc[aNode[b].id][c].id = id;
 							}
@@ -1481,6 +990,316 @@ public class FastAggregativeClustering {
 		
 	}
 	
+	/**
+	 *	hierarchical clustering with the average criterion, merging many pairs of clusters in each round
+	 *	(Boruvka / parallel HAC): every active cluster finds its best up-to-date link, and all the links
+	 *	that are the best for both of their clusters are merged at once. Finding the links, building
+	 *	the merged clusters and their new deltas are done on nthreads threads.
+	 *	<p>
+	 *	The merges of a round are numbered by decreasing score, so the cost[] sequence and the export
+	 *	functions keep their meaning, but the dendrogram differs from the serial one. With exact, the
+	 *	serial clustering is run instead: its lazy heap updates cannot be reproduced by merging rounds.
+	 */
+	public final void hierarchicalClusteringAverageParallel(int k0, boolean firststop, int maxlength, boolean exact) {
+		
+		if (exact) {
+			hierarchicalClusteringAverageAlt(k0, firststop, maxlength);
+			return;
+		}
+		if (debug) System.out.println("hierarchical clustering : average (parallel rounds)");
+		
+		active = new BitSet(2*nlb);
+		final int[] current = new int[nlb];
+		int ncurrent = 0;
+		for (int lb=1;lb<=nlb;lb++) {
+			active.set(lb, true);
+			latest[lb] = lb;
+			current[ncurrent] = lb;
+			ncurrent++;
+		}
+		
+		// store cluster location dynamically
+		clusterPos = new int[2*nlb][];
+		boundaryScore = new float[nx*ny*nz];
+		
+		// best link of each cluster (entry in its list), and best score of the links proposed to or by each cluster
+		final int[] bestlink = new int[2*nlb];
+		final float[] bestscore = new float[2*nlb];
+		final BitSet matched = new BitSet(2*nlb);
+		
+		// merged pairs of the current round
+		final int[] pairb = new int[nlb/2+1];
+		final int[] pairp = new int[nlb/2+1];
+		final int[] pairn = new int[nlb/2+1];
+		final int[] pairid = new int[nlb/2+1];
+		final int[] pairlength = new int[nlb/2+1];
+		float[] pairscore = new float[nlb/2+1];
+		long[] order = new long[nlb/2+1];
+		
+		int nclusters = nlb;
+		int iter = 0;
+		int round = 0;
+		key = nlb;
+		boolean first = true;
+		boolean stop = false;
+		long looptime = System.currentTimeMillis();
+		
+		while (nclusters>k0 && !stop) {
+			// 1. best link of each cluster: only the links to active clusters are up to date 
+			// (the same links are found in the lists of the more recent clusters)
+			ParallelLoops.forEachSlab(0, ncurrent, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					for (int c=start;c<end;c++) {
+						int node = current[c];
+						int best = 0;
+						for (int n=1;n<assoc.length(node);n++) {
+							if (active.get(assoc.id(node, n)) && (best==0 || assoc.delta(node, n)>assoc.delta(node, best))) best = n;
+						}
+						bestlink[node] = best;
+						bestscore[node] = -INF;
+					}
+				}
+			});
+			for (int c=0;c<ncurrent;c++) {
+				int node = current[c];
+				if (bestlink[node]>0) {
+					float score = assoc.delta(node, bestlink[node]);
+					int ngb = assoc.id(node, bestlink[node]);
+					if (score>bestscore[node]) bestscore[node] = score;
+					if (score>bestscore[ngb]) bestscore[ngb] = score;
+				}
+			}
+			// 2. merge all the links that are the best for both clusters
+			int npairs = 0;
+			matched.clear();
+			for (int c=0;c<ncurrent;c++) {
+				int node = current[c];
+				if (bestlink[node]>0 && !matched.get(node)) {
+					float score = assoc.delta(node, bestlink[node]);
+					int ngb = assoc.id(node, bestlink[node]);
+					if (score>=bestscore[node] && score>=bestscore[ngb] && !matched.get(ngb)) {
+						matched.set(node);
+						matched.set(ngb);
+						pairb[npairs] = node;
+						pairp[npairs] = ngb;
+						pairn[npairs] = bestlink[node];
+						pairscore[npairs] = score;
+						npairs++;
+					}
+				}
+			}
+			if (npairs==0) break;
+			
+			// order by decreasing score (sortable bits of the score in the high word, pair in the low word)
+			for (int k=0;k<npairs;k++) {
+				int bits = Float.floatToIntBits(pairscore[k]);
+				bits ^= (bits>>31) & 0x7fffffff;
+				order[k] = ((long)(~bits)<<32) | k;
+			}
+			Arrays.sort(order, 0, npairs);
+			
+			// only the merges needed to reach k0, or up to the first negative score
+			int nmerge = Numerics.min(npairs, nclusters-k0);
+			for (int k=0;k<nmerge;k++) {
+				if (pairscore[(int)order[k]]<0 && first) {
+					if (verbose) System.out.println((iter+k+1)+" / "+nclusters+": c= "+pairscore[(int)order[k]]);
+					first = false;
+					if (firststop) {
+						nmerge = k+1;
+						stop = true;
+					}
+				}
+			}
+			
+			// 3. new labels, in order (the merged lists point to the new clusters of the round too)
+			final int[] pairiter = new int[nmerge];
+			final int[] pairs = new int[nmerge];
+			for (int k=0;k<nmerge;k++) {
+				int pair = (int)order[k];
+				pairs[k] = pair;
+				iter++;
+				key++;
+				pairiter[k] = iter;
+				pairid[pair] = key;
+				cost[iter] = pairscore[pair];
+				
+				active.set(pairb[pair], false);
+				active.set(pairp[pair], false);
+				active.set(key, true);
+				latest[pairb[pair]] = key;
+				latest[pairp[pair]] = key;
+				latest[key] = key;
+				
+				assoc.allocate(key, assoc.length(pairb[pair])+assoc.length(pairp[pair])-3);
+				nclusters--;
+			}
+			
+			// 4. build the merged clusters
+			ParallelLoops.forEachSlab(0, nmerge, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					int[] tracks = new int[64];
+					long[] entry = new long[64];
+					float[] ngbWeight = new float[64];
+					float[] ngbSize = new float[64];
+					BitSet ngbcluster = new BitSet(nx*ny*nz);
+					for (int k=start;k<end;k++) {
+						int pair = pairs[k];
+						int bNode = pairb[pair];
+						int pNode = pairp[pair];
+						int nbest = pairn[pair];
+						int id = pairid[pair];
+						
+						// self-weight & degree
+						assoc.set(id, 0, id, assoc.weight(bNode, 0) + assoc.weight(pNode, 0) + 2.0f*assoc.weight(bNode, nbest), 
+												assoc.delta(bNode, 0) + assoc.delta(pNode, 0),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) + 2.0f*assoc.size(bNode, nbest) );
+						
+						// list the up-to-date neighbors, sorted by label
+						int nentry = 0;
+						int len = assoc.length(bNode)+assoc.length(pNode);
+						if (entry.length<len) {
+							entry = new long[len];
+							ngbWeight = new float[len];
+							ngbSize = new float[len];
+						}
+						for (int m=0;m<2;m++) {
+							int node = (m==0) ? bNode : pNode;
+							for (int n=1;n<assoc.length(node);n++) {
+								int lbn = assoc.id(node, n);
+								if (!active.get(lbn)) {
+									// follow the merges up to the active label and shorten the path
+									// (concurrent updates all write the same active label)
+									int ntracks = 0;
+									while (!active.get(lbn)) {
+										if (ntracks==tracks.length) tracks = Arrays.copyOf(tracks, 2*ntracks);
+										tracks[ntracks] = lbn;
+										ntracks++;
+										lbn = latest[lbn];
+									}
+									for (int t=0;t<ntracks;t++) latest[tracks[t]] = lbn;
+								}
+								if (lbn!=id) {
+									ngbWeight[nentry] = assoc.weight(node, n);
+									ngbSize[nentry] = assoc.size(node, n);
+									entry[nentry] = ((long)lbn<<32) | nentry;
+									nentry++;
+								}
+							}
+						}
+						Arrays.sort(entry, 0, nentry);
+						int l=0;
+						for (int e=0;e<nentry;e++) {
+							int lbn = (int)(entry[e]>>>32);
+							int n = (int)entry[e];
+							if (l>0 && assoc.id(id, l)==lbn) {
+								assoc.setWeight(id, l, assoc.weight(id, l) + ngbWeight[n]);
+								assoc.setSize(id, l, assoc.size(id, l) + ngbSize[n]);
+							} else {
+								l++;
+								assoc.set(id, l, lbn, ngbWeight[n], 0.0f, ngbSize[n]);
+							}
+						}
+						pairlength[pair] = l+1;
+						
+						self[pairiter[k]] = Numerics.square(assoc.weight(bNode, nbest)/assoc.size(bNode, nbest) * assoc.weight(id, 0)/assoc.size(id, 0));
+						other[pairiter[k]] = Numerics.square(1.0f-assoc.weight(bNode, nbest)/assoc.size(bNode, nbest)) * assoc.weight(bNode, 0)/assoc.size(bNode, 0)
+																							* assoc.weight(pNode, 0)/assoc.size(pNode, 0);
+						
+						mergeClusterPositions(id, bNode, pNode, pairscore[pair], ngbcluster);
+					}
+				}
+			});
+			for (int k=0;k<nmerge;k++) {
+				int pair = pairs[k];
+				assoc.trim(pairid[pair], pairlength[pair]);
+			}
+			
+			// 5. new deltas, once all the merged clusters are built
+			ParallelLoops.forEachSlab(0, nmerge, nthreads, new ParallelLoops.Slab() {
+				public void run(int start, int end, int thread) {
+					for (int k=start;k<end;k++) {
+						int aNode = pairid[pairs[k]];
+						for (int n=1; n<assoc.length(aNode); n++) {
+							int wngb = assoc.id(aNode, n);
+							float wsize = 1.0f/(1.0f + Numerics.square( (assoc.size(aNode, 0)+assoc.size(wngb, 0))/((connect+1.0f)*nlb)) );
+							assoc.setDelta(aNode, n, wsize*( Numerics.square(assoc.weight(aNode, n)/assoc.size(aNode, n))
+														 *Numerics.square( ( assoc.weight(aNode, 0) + assoc.weight(wngb, 0) + 2.0f*assoc.weight(aNode, n) )
+																			/( assoc.size(aNode, 0) + assoc.size(wngb, 0) + 2.0f*assoc.size(aNode, n) ) )
+														 -Numerics.square(1.0f-assoc.weight(aNode, n)/assoc.size(aNode, n))
+														  *assoc.weight(aNode, 0)/assoc.size(aNode, 0)
+														  *assoc.weight(wngb, 0)/assoc.size(wngb, 0)  ));
+						}
+					}
+				}
+			});
+			
+			// replace the older values with info on what is the new label, update the list of active clusters
+			for (int k=0;k<nmerge;k++) {
+				int pair = pairs[k];
+				assoc.redirect(pairb[pair], pairid[pair], 0.0f);
+				assoc.redirect(pairp[pair], pairid[pair], 0.0f);
+			}
+			int nactive = 0;
+			for (int c=0;c<ncurrent;c++) {
+				if (active.get(current[c])) {
+					current[nactive] = current[c];
+					nactive++;
+				}
+			}
+			for (int k=0;k<nmerge;k++) {
+				current[nactive] = pairid[pairs[k]];
+				nactive++;
+			}
+			ncurrent = nactive;
+			round++;
+			
+			if (verbose) {
+				long newtime = System.currentTimeMillis();
+				System.out.println("round "+round+", t="+(newtime-looptime)+", "+iter+" / "+nlb+": "+nmerge+" merges, c= "+cost[iter]
+										+" (pool "+assoc.used()+"/"+assoc.capacity()+")");
+				looptime = newtime;
+			}
+		}
+		// done!
+		if (debug) System.out.println("completed ("+nclusters+")");
+		
+	}
+	
+	/**
+	 *	voxel list of a new cluster and boundary scores between its two parts 
+	 *	(ngbcluster is a work buffer, left empty)
+	 */
+	private final void mergeClusterPositions(int id, int lbest, int lpair, float bcost, BitSet ngbcluster) {
+		int[] posb = (lbest>nlb) ? clusterPos[lbest] : new int[]{lbest};
+		int[] posp = (lpair>nlb) ? clusterPos[lpair] : new int[]{lpair};
+		// mark the largest part, and look for boundaries from the other one
+		int[] large = (posb.length>=posp.length) ? posb : posp;
+		int[] small = (posb.length>=posp.length) ? posp : posb;
+		
+		clusterPos[id] = new int[posb.length+posp.length];
+		System.arraycopy(posb, 0, clusterPos[id], 0, posb.length);
+		System.arraycopy(posp, 0, clusterPos[id], posb.length, posp.length);
+		
+		for (int n=0;n<large.length;n++) ngbcluster.set(invertlabeling[large[n]]);
+		for (int n=0;n<small.length;n++) {
+			int xyz = invertlabeling[small[n]];
+			for (int k = 0; k<6; k++) {
+				int xyzn = xyz + xoff[k] + yoff[k] + zoff[k];
+				if (xyzn>=0 && xyzn<nx*ny*nz && ngbcluster.get(xyzn)) {
+					boundaryScore[xyz] = bcost;
+					boundaryScore[xyzn] = bcost;
+				}
+			}
+		}
+		for (int n=0;n<large.length;n++) ngbcluster.clear(invertlabeling[large[n]]);
+		// single voxels are always on the boundary
+		if (small.length==1) boundaryScore[invertlabeling[small[0]]] = bcost;
+		if (large.length==1) boundaryScore[invertlabeling[large[0]]] = bcost;
+		
+		clusterPos[lbest] = null;
+		clusterPos[lpair] = null;
+	}
+	
 	// perform the hierarchical clustering until we reach k0 clusters
 	public final void hierarchicalClusteringMinimax(int k0, boolean firststop, int maxlength) {
 		
@@ -1494,16 +1313,16 @@ public class FastAggregativeClustering {
 
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			Triple[] node = assoc[lb];
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.length>1) {
+			if (assoc.length(node)>1) {
 				int best=1;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=2;b<node.length;b++) {
-					if (node[b].delta>node[best].delta) best = b;
+				for (int b=2;b<assoc.length(node);b++) {
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (debug) System.out.print(""+node.get(best).delta+","+l+":"+best);
-				bintree.addValue(node[best].delta, node[0].id, best);
+				bintree.addValue(assoc.delta(node, best), assoc.id(node, 0), best);
 			} else {
 				if (debug) System.out.print("!");	
 			}
@@ -1557,14 +1376,14 @@ public class FastAggregativeClustering {
 
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
-				Triple[] bNode = assoc[lbest];
-				int	lpair = bNode[nbest].id;
+				int bNode = lbest;
+				int	lpair = assoc.id(bNode, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
-					Triple[] pNode = assoc[lpair];
+					int pNode = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -1575,31 +1394,32 @@ public class FastAggregativeClustering {
 					
 					// new values
 					//ArrayList<Triple> aNode = new ArrayList<Triple>(Numerics.max(bNode.size(),pNode.size())-1);
-					Triple[] aNode = new Triple[bNode.length+pNode.length-3];
+					assoc.allocate(id, assoc.length(bNode)+assoc.length(pNode)-3);
+					int aNode = id;
 					// self-weight & degree
 					// d(uv) = d(u) + d(v)
 					// w(uv,uv) = w(u,u) + w(v,v) + 2*w(uv.uv)
-					aNode[0] = new Triple(id, Numerics.min(bNode[0].weight, pNode[0].weight, bNode[nbest].weight), 
-												Numerics.min(bNode[0].delta, pNode[0].delta),  
-												bNode[0].size + pNode[0].size );
+					assoc.set(aNode, 0, id, Numerics.min(assoc.weight(bNode, 0), assoc.weight(pNode, 0), assoc.weight(bNode, nbest)), 
+												Numerics.min(assoc.delta(bNode, 0), assoc.delta(pNode, 0)),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) );
 					
 					// new mixing weights
 					// w(uv,x) = w(u,x) + w(v,x)
 					// must check if the links still exist, not duplicate
 					
-					newclustertime += bNode.length+pNode.length;
+					newclustertime += assoc.length(bNode)+assoc.length(pNode);
 					
 					// using latest[] allows to preserve the tree structure inside assoc, but skip steps when attributing the labels
-					for (int n=1;n<bNode.length;n++) {
+					for (int n=1;n<assoc.length(bNode);n++) {
 						//int lbn = bNode[n].id;
-						int lbn = latest[bNode[n].id];
+						int lbn = latest[assoc.id(bNode, n)];
 						if (lbn!=lpair) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -1607,7 +1427,7 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[bNode[n].id] = lbn;
+								latest[assoc.id(bNode, n)] = lbn;
 								//bNode[n].id = lbn;
 							}
 							if (lbn!=lpair) {
@@ -1617,22 +1437,22 @@ public class FastAggregativeClustering {
 								// max corresp. to graph-based, not noise prone
 								//ngbWeight[lbn] = Numerics.max(bNode[n].weight, ngbWeight[lbn]);
 								// min corresp. to most conservative
-								ngbWeight[lbn] = Numerics.min(bNode[n].weight, ngbWeight[lbn]);
-								ngbSize[lbn] += bNode[n].size;
+								ngbWeight[lbn] = Numerics.min(assoc.weight(bNode, n), ngbWeight[lbn]);
+								ngbSize[lbn] += assoc.size(bNode, n);
 							}							
 							// no need to check on all already created values!!
 						}
 					}
-					for (int n=1;n<pNode.length;n++) {
+					for (int n=1;n<assoc.length(pNode);n++) {
 						//int lbn = pNode[n].id;
-						int lbn = latest[pNode[n].id];
+						int lbn = latest[assoc.id(pNode, n)];
 						if (lbn!=lbest) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -1640,7 +1460,7 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[pNode[n].id] = lbn;
+								latest[assoc.id(pNode, n)] = lbn;
 								//pNode[n].id = lbn;
 								
 							}
@@ -1648,8 +1468,8 @@ public class FastAggregativeClustering {
 								// add to the label
 								ngbList.set(lbn, true);
 								//ngbWeight[lbn] = Numerics.max(pNode[n].weight, ngbWeight[lbn]);
-								ngbWeight[lbn] = Numerics.min(pNode[n].weight, ngbWeight[lbn]);
-								ngbSize[lbn] += pNode[n].size;
+								ngbWeight[lbn] = Numerics.min(assoc.weight(pNode, n), ngbWeight[lbn]);
+								ngbSize[lbn] += assoc.size(pNode, n);
 							}
 							// no need to check on all already created values!!
 						}
@@ -1658,7 +1478,7 @@ public class FastAggregativeClustering {
 					int l=1;
 					for (int lbn = ngbList.nextSetBit(0); lbn >= 0; lbn = ngbList.nextSetBit(lbn+1)) {
 						// create a new one
-						aNode[l] = new Triple(lbn, ngbWeight[lbn], ngbSize[lbn]);
+						assoc.set(aNode, l, lbn, ngbWeight[lbn], 0.0f, ngbSize[lbn]);
 						l++;
 						// reset the values
 						ngbWeight[lbn] = 0.0f;
@@ -1668,11 +1488,7 @@ public class FastAggregativeClustering {
 
 					// make sure we don't have extra empty values
 					//aNode.trimToSize();
-					if (l<aNode.length) {
-						Triple[] tmp = new Triple[l];
-						for (int n=0;n<l;n++) tmp[n] = aNode[n];
-						aNode = tmp;
-					}
+					assoc.trim(aNode, l);
 					
 					// set the new location parameters
 					ngbcluster.clear();
@@ -1756,22 +1572,22 @@ public class FastAggregativeClustering {
 					}
 					// new deltas : no need of the u,v values anymore
 					// D(uv,x) = ( w(uv,uv) + w(x,x) + 2w(uv,x) )/( d(uv)+d(x) ) - w(uv,uv)/d(uv) - w(x,x)/d(x)
-					for (int n=1; n<aNode.length; n++) {
-						Triple[] wngb = assoc[aNode[n].id];
+					for (int n=1; n<assoc.length(aNode); n++) {
+						int wngb = assoc.id(aNode, n);
 						// best method so far
 						//aNode[n].delta = aNode[n].weight*Numerics.min(aNode[0].weight, wngb[0].weight, aNode[n].weight);
 												
 						// use the same criterion than for stopping? makes sense, but slows down the process
-						float wsize = 1.0f/(1.0f + Numerics.square( (aNode[0].size+wngb[0].size)/nlb) );
+						float wsize = 1.0f/(1.0f + Numerics.square( (assoc.size(aNode, 0)+assoc.size(wngb, 0))/nlb) );
 						//float wsize = 1.0f;
-						aNode[n].delta = wsize*( Numerics.square(aNode[n].weight *Numerics.min(aNode[0].weight, wngb[0].weight, aNode[n].weight ))
-											     -Numerics.square(1.0f-aNode[n].weight)*aNode[0].weight*wngb[0].weight );
+						assoc.setDelta(aNode, n, wsize*( Numerics.square(assoc.weight(aNode, n) *Numerics.min(assoc.weight(aNode, 0), assoc.weight(wngb, 0), assoc.weight(aNode, n) ))
+											     -Numerics.square(1.0f-assoc.weight(aNode, n))*assoc.weight(aNode, 0)*assoc.weight(wngb, 0) ));
 					}
 					
 					/// probably not needed
 					// recompute the degree? (for averaged links)
-					self[iter] = Numerics.square(bNode[nbest].weight * aNode[0].weight);
-					other[iter] = Numerics.square(1.0f-bNode[nbest].weight) * bNode[0].weight * pNode[0].weight;
+					self[iter] = Numerics.square(assoc.weight(bNode, nbest) * assoc.weight(aNode, 0));
+					other[iter] = Numerics.square(1.0f-assoc.weight(bNode, nbest)) * assoc.weight(bNode, 0) * assoc.weight(pNode, 0);
 					
 					cost[iter] = bcost;
 
@@ -1782,7 +1598,7 @@ public class FastAggregativeClustering {
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length
+																	+assoc.length(bNode)+", "+assoc.length(pNode)
 																	+"| n "+newclustertime+", d "+depthsearchtime+", w "+widthsearchtime+")");
 						looptime = newtime;
 						newclustertime = 0;
@@ -1796,35 +1612,34 @@ public class FastAggregativeClustering {
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length+")");	
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");	
 					   first=false;
 					   if (firststop) stop = true;
 				   	}								
 					// add the new values to list, binary tree
-					assoc[id] = aNode;
 					active.set(id, true);
 					
-					if (aNode.length>1) {
+					if (assoc.length(aNode)>1) {
 						int best=1;
-						for (int b=2;b<aNode.length;b++) {
-							if (aNode[b].delta>aNode[best].delta) best = b;
+						for (int b=2;b<assoc.length(aNode);b++) {
+							if (assoc.delta(aNode, b)>assoc.delta(aNode, best)) best = b;
 						}
-						bintree.addValue(aNode[best].delta, id, best);
+						bintree.addValue(assoc.delta(aNode, best), id, best);
 
-						if (debug) if (aNode[best].delta>1) {
+						if (debug) if (assoc.delta(aNode, best)>1) {
 							System.out.println(nclusters+": c= "+cost[iter]+" ("
-																	+bNode[0].delta+", "
-																	+bNode[0].weight+", "
-																	+bNode[0].size+" | "
-																	+pNode[0].delta+", "
-																	+pNode[0].weight+", "
-																	+pNode[0].size+" | "
-																	+aNode[0].delta+", "
-																	+aNode[0].weight+", "
-																	+aNode[0].size+")");					   
+																	+assoc.delta(bNode, 0)+", "
+																	+assoc.weight(bNode, 0)+", "
+																	+assoc.size(bNode, 0)+" | "
+																	+assoc.delta(pNode, 0)+", "
+																	+assoc.weight(pNode, 0)+", "
+																	+assoc.size(pNode, 0)+" | "
+																	+assoc.delta(aNode, 0)+", "
+																	+assoc.weight(aNode, 0)+", "
+																	+assoc.size(aNode, 0)+")");					   
 							
-							for (int n=1; n<aNode.length; n++) {
-								System.out.print("<"+aNode[n].delta+", "+aNode[n].weight+", "+aNode[n].size+">");
+							for (int n=1; n<assoc.length(aNode); n++) {
+								System.out.print("<"+assoc.delta(aNode, n)+", "+assoc.weight(aNode, n)+", "+assoc.size(aNode, n)+">");
 							}
 							System.out.print("\n");
 						}
@@ -1832,12 +1647,8 @@ public class FastAggregativeClustering {
 					}
 					
 					// replace the older values with info on what is the new label
-					assoc[lbest] = null;
-					assoc[lpair] = null;
-					assoc[lbest] = new Triple[1];
-					assoc[lpair] = new Triple[1];
-					assoc[lbest][0] = new Triple(id);
-					assoc[lpair][0] = new Triple(id);
+					assoc.redirect(lbest, id, 0.0f);
+					assoc.redirect(lpair, id, 0.0f);
 					
 					// de-activate the labels
 					active.set(lbest, false);
@@ -1855,12 +1666,12 @@ public class FastAggregativeClustering {
 					// update the neighbors too, but only up to a point 
 					// (-> use both strategies to gain speed in the two extreme worst case scenarios)
 					// (both strategies = this and the track updating)
-					for (int b=1;b<aNode.length && b<maxlength;b++) {
-						if (active.get(aNode[b].id)) {
-							widthsearchtime += assoc[aNode[b].id].length;
-							for (int c=1;c<assoc[aNode[b].id].length && c<maxlength;c++) {
-								if (latest[assoc[aNode[b].id][c].id]==lbest || latest[assoc[aNode[b].id][c].id]==lpair)
-									latest[assoc[aNode[b].id][c].id] = id;
+					for (int b=1;b<assoc.length(aNode) && b<maxlength;b++) {
+						if (active.get(assoc.id(aNode, b))) {
+							widthsearchtime += assoc.length(assoc.id(aNode, b));
+							for (int c=1;c<assoc.length(assoc.id(aNode, b)) && c<maxlength;c++) {
+								if (latest[assoc.id(assoc.id(aNode, b), c)]==lbest || latest[assoc.id(assoc.id(aNode, b), c)]==lpair)
+									latest[assoc.id(assoc.id(aNode, b), c)] = id;
 								//if (assoc[aNode[b].id][c].id==lbest || assoc[aNode[b].id][c].id==lpair)
 								//	assoc[aNode[b].id][c].id = id;
 							}
@@ -1888,16 +1699,16 @@ public class FastAggregativeClustering {
 
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			Triple[] node = assoc[lb];
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.length>1) {
+			if (assoc.length(node)>1) {
 				int best=1;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=2;b<node.length;b++) {
-					if (node[b].delta>node[best].delta) best = b;
+				for (int b=2;b<assoc.length(node);b++) {
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (debug) System.out.print(""+node.get(best).delta+","+l+":"+best);
-				bintree.addValue(node[best].delta, node[0].id, best);
+				bintree.addValue(assoc.delta(node, best), assoc.id(node, 0), best);
 			} else {
 				if (debug) System.out.print("!");	
 			}
@@ -1948,14 +1759,14 @@ public class FastAggregativeClustering {
 
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
-				Triple[] bNode = assoc[lbest];
-				int	lpair = bNode[nbest].id;
+				int bNode = lbest;
+				int	lpair = assoc.id(bNode, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
-					Triple[] pNode = assoc[lpair];
+					int pNode = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -1966,31 +1777,32 @@ public class FastAggregativeClustering {
 					
 					// new values
 					//ArrayList<Triple> aNode = new ArrayList<Triple>(Numerics.max(bNode.size(),pNode.size())-1);
-					Triple[] aNode = new Triple[bNode.length+pNode.length-3];
+					assoc.allocate(id, assoc.length(bNode)+assoc.length(pNode)-3);
+					int aNode = id;
 					// self-weight & degree
 					// d(uv) = d(u) + d(v)
 					// w(uv,uv) = w(u,u) + w(v,v) + 2*w(uv.uv)
-					aNode[0] = new Triple(id, Numerics.max(bNode[0].weight, pNode[0].weight, bNode[nbest].weight), 
-												Numerics.min(bNode[0].delta, pNode[0].delta),  
-												bNode[0].size + pNode[0].size );
+					assoc.set(aNode, 0, id, Numerics.max(assoc.weight(bNode, 0), assoc.weight(pNode, 0), assoc.weight(bNode, nbest)), 
+												Numerics.min(assoc.delta(bNode, 0), assoc.delta(pNode, 0)),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) );
 					
 					// new mixing weights
 					// w(uv,x) = w(u,x) + w(v,x)
 					// must check if the links still exist, not duplicate
 					
-					newclustertime += bNode.length+pNode.length;
+					newclustertime += assoc.length(bNode)+assoc.length(pNode);
 					
 					// using latest[] allows to preserve the tree structure inside assoc, but skip steps when attributing the labels
-					for (int n=1;n<bNode.length;n++) {
+					for (int n=1;n<assoc.length(bNode);n++) {
 						//int lbn = bNode[n].id;
-						int lbn = latest[bNode[n].id];
+						int lbn = latest[assoc.id(bNode, n)];
 						if (lbn!=lpair) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -1998,28 +1810,28 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[bNode[n].id] = lbn;
+								latest[assoc.id(bNode, n)] = lbn;
 								//bNode[n].id = lbn;
 							}
 							if (lbn!=lpair) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] = Numerics.min(bNode[n].weight,ngbWeight[lbn]);
-								ngbSize[lbn] += bNode[n].size;
+								ngbWeight[lbn] = Numerics.min(assoc.weight(bNode, n),ngbWeight[lbn]);
+								ngbSize[lbn] += assoc.size(bNode, n);
 							}							
 							// no need to check on all already created values!!
 						}
 					}
-					for (int n=1;n<pNode.length;n++) {
+					for (int n=1;n<assoc.length(pNode);n++) {
 						//int lbn = pNode[n].id;
-						int lbn = latest[pNode[n].id];
+						int lbn = latest[assoc.id(pNode, n)];
 						if (lbn!=lbest) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -2027,15 +1839,15 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[pNode[n].id] = lbn;
+								latest[assoc.id(pNode, n)] = lbn;
 								//pNode[n].id = lbn;
 								
 							}
 							if (lbn!=lbest) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] = Numerics.min(pNode[n].weight,ngbWeight[lbn]);
-								ngbSize[lbn] += pNode[n].size;
+								ngbWeight[lbn] = Numerics.min(assoc.weight(pNode, n),ngbWeight[lbn]);
+								ngbSize[lbn] += assoc.size(pNode, n);
 							}
 							// no need to check on all already created values!!
 						}
@@ -2044,7 +1856,7 @@ public class FastAggregativeClustering {
 					int l=1;
 					for (int lbn = ngbList.nextSetBit(0); lbn >= 0; lbn = ngbList.nextSetBit(lbn+1)) {
 						// create a new one
-						aNode[l] = new Triple(lbn, ngbWeight[lbn], ngbSize[lbn]);
+						assoc.set(aNode, l, lbn, ngbWeight[lbn], 0.0f, ngbSize[lbn]);
 						l++;
 						// reset the values
 						ngbWeight[lbn] = INF;
@@ -2054,11 +1866,7 @@ public class FastAggregativeClustering {
 					
 					// make sure we don't have extra empty values
 					//aNode.trimToSize();
-					if (l<aNode.length) {
-						Triple[] tmp = new Triple[l];
-						for (int n=0;n<l;n++) tmp[n] = aNode[n];
-						aNode = tmp;
-					}
+					assoc.trim(aNode, l);
 					
 					// set the new location parameters
 					ngbcluster.clear();
@@ -2143,29 +1951,29 @@ public class FastAggregativeClustering {
 
 					// new deltas : no need of the u,v values anymore
 					// D(uv,x) = ( w(uv,uv) + w(x,x) + 2w(uv,x) )/( d(uv)+d(x) ) - w(uv,uv)/d(uv) - w(x,x)/d(x)
-					for (int n=1; n<aNode.length; n++) {
-						Triple[] wngb = assoc[aNode[n].id];
+					for (int n=1; n<assoc.length(aNode); n++) {
+						int wngb = assoc.id(aNode, n);
 						// score : min joint weight - max( self-weight + k / size, self-weight + k / size)
-						aNode[n].delta = Numerics.min(aNode[0].weight + basis/aNode[0].size, 
-														wngb[0].weight + basis/wngb[0].size) - aNode[n].weight;
+						assoc.setDelta(aNode, n, Numerics.min(assoc.weight(aNode, 0) + basis/assoc.size(aNode, 0), 
+														assoc.weight(wngb, 0) + basis/assoc.size(wngb, 0)) - assoc.weight(aNode, n));
 					}
 					
 					/// probably not needed
 					// recompute the degree? (for averaged links)
-					other[iter] = bNode[nbest].weight;
-					self[iter] = Numerics.min(bNode[0].weight + basis/bNode[0].size,
-												pNode[0].weight + basis/pNode[0].size);
+					other[iter] = assoc.weight(bNode, nbest);
+					self[iter] = Numerics.min(assoc.weight(bNode, 0) + basis/assoc.size(bNode, 0),
+												assoc.weight(pNode, 0) + basis/assoc.size(pNode, 0));
 					
 					cost[iter] = bcost;
 
 					if (verbose) if (iter%(nlb/100)==0) {
 						long newtime = System.currentTimeMillis();
 						nstep++;
-						System.out.println("n="+nstep+", t="+(newtime-looptime)+", "+iter+" / "+nclusters+": c= "+bcost+" | "+bNode[nbest].weight
-																	+", s= "+bNode[0].weight
-																	+", o= "+pNode[0].weight
+						System.out.println("n="+nstep+", t="+(newtime-looptime)+", "+iter+" / "+nclusters+": c= "+bcost+" | "+assoc.weight(bNode, nbest)
+																	+", s= "+assoc.weight(bNode, 0)
+																	+", o= "+assoc.weight(pNode, 0)
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length
+																	+assoc.length(bNode)+", "+assoc.length(pNode)
 																	+"| n "+newclustertime+", d "+depthsearchtime+", w "+widthsearchtime+")");
 						looptime = newtime;
 						newclustertime = 0;
@@ -2179,35 +1987,34 @@ public class FastAggregativeClustering {
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length+")");	
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");	
 					   first=false;
 					   if (firststop) stop = true;
 				   	}								
 					// add the new values to list, binary tree
-					assoc[id] = aNode;
 					active.set(id, true);
 					
-					if (aNode.length>1) {
+					if (assoc.length(aNode)>1) {
 						int best=1;
-						for (int b=2;b<aNode.length;b++) {
-							if (aNode[b].delta>aNode[best].delta) best = b;
+						for (int b=2;b<assoc.length(aNode);b++) {
+							if (assoc.delta(aNode, b)>assoc.delta(aNode, best)) best = b;
 						}
-						bintree.addValue(aNode[best].delta, id, best);
+						bintree.addValue(assoc.delta(aNode, best), id, best);
 						/*
-						if (debug) if (aNode[best].delta>1) {
+						if (debug) if (assoc.delta(aNode, best)>1) {
 							System.out.println(nclusters+": c= "+cost[iter]+" ("
-																	+bNode[0].delta+", "
-																	+bNode[0].weight+", "
-																	+bNode[0].size+" | "
-																	+pNode[0].delta+", "
-																	+pNode[0].weight+", "
-																	+pNode[0].size+" | "
-																	+aNode[0].delta+", "
-																	+aNode[0].weight+", "
-																	+aNode[0].size+")");					   
+																	+assoc.delta(bNode, 0)+", "
+																	+assoc.weight(bNode, 0)+", "
+																	+assoc.size(bNode, 0)+" | "
+																	+assoc.delta(pNode, 0)+", "
+																	+assoc.weight(pNode, 0)+", "
+																	+assoc.size(pNode, 0)+" | "
+																	+assoc.delta(aNode, 0)+", "
+																	+assoc.weight(aNode, 0)+", "
+																	+assoc.size(aNode, 0)+")");					   
 							
-							for (int n=1; n<aNode.length; n++) {
-								System.out.print("<"+aNode[n].delta+", "+aNode[n].weight+", "+aNode[n].size+">");
+							for (int n=1; n<assoc.length(aNode); n++) {
+								System.out.print("<"+assoc.delta(aNode, n)+", "+assoc.weight(aNode, n)+", "+assoc.size(aNode, n)+">");
 							}
 							System.out.print("\n");
 						}
@@ -2215,12 +2022,8 @@ public class FastAggregativeClustering {
 					}
 					
 					// replace the older values with info on what is the new label
-					assoc[lbest] = null;
-					assoc[lpair] = null;
-					assoc[lbest] = new Triple[1];
-					assoc[lpair] = new Triple[1];
-					assoc[lbest][0] = new Triple(id);
-					assoc[lpair][0] = new Triple(id);
+					assoc.redirect(lbest, id, 0.0f);
+					assoc.redirect(lpair, id, 0.0f);
 					
 					// de-activate the labels
 					active.set(lbest, false);
@@ -2237,12 +2040,12 @@ public class FastAggregativeClustering {
 					// update the neighbors too, but only up to a point 
 					// (-> use both strategies to gain speed in the two extreme worst case scenarios)
 					// (both strategies = this and the track updating)
-					for (int b=1;b<aNode.length && b<maxlength;b++) {
-						if (active.get(aNode[b].id)) {
-							widthsearchtime += assoc[aNode[b].id].length;
-							for (int c=1;c<assoc[aNode[b].id].length && c<maxlength;c++) {
-								if (latest[assoc[aNode[b].id][c].id]==lbest || latest[assoc[aNode[b].id][c].id]==lpair)
-									latest[assoc[aNode[b].id][c].id] = id;
+					for (int b=1;b<assoc.length(aNode) && b<maxlength;b++) {
+						if (active.get(assoc.id(aNode, b))) {
+							widthsearchtime += assoc.length(assoc.id(aNode, b));
+							for (int c=1;c<assoc.length(assoc.id(aNode, b)) && c<maxlength;c++) {
+								if (latest[assoc.id(assoc.id(aNode, b), c)]==lbest || latest[assoc.id(assoc.id(aNode, b), c)]==lpair)
+									latest[assoc.id(assoc.id(aNode, b), c)] = id;
 								//if (assoc[aNode[b].id][c].id==lbest || assoc[aNode[b].id][c].id==lpair)
 								//	assoc[aNode[b].id][c].id = id;
 							}
@@ -2269,16 +2072,16 @@ public class FastAggregativeClustering {
 
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			Triple[] node = assoc[lb];
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.length>1) {
+			if (assoc.length(node)>1) {
 				int best=1;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=2;b<node.length;b++) {
-					if (node[b].delta>node[best].delta) best = b;
+				for (int b=2;b<assoc.length(node);b++) {
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (debug) System.out.print(""+node.get(best).delta+","+l+":"+best);
-				bintree.addValue(node[best].delta, node[0].id, best);
+				bintree.addValue(assoc.delta(node, best), assoc.id(node, 0), best);
 			} else {
 				if (debug) System.out.print("!");	
 			}
@@ -2329,14 +2132,14 @@ public class FastAggregativeClustering {
 
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
-				Triple[] bNode = assoc[lbest];
-				int	lpair = bNode[nbest].id;
+				int bNode = lbest;
+				int	lpair = assoc.id(bNode, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
-					Triple[] pNode = assoc[lpair];
+					int pNode = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -2347,35 +2150,36 @@ public class FastAggregativeClustering {
 					
 					// new values
 					//ArrayList<Triple> aNode = new ArrayList<Triple>(Numerics.max(bNode.size(),pNode.size())-1);
-					Triple[] aNode = new Triple[bNode.length+pNode.length-3];
+					assoc.allocate(id, assoc.length(bNode)+assoc.length(pNode)-3);
+					int aNode = id;
 					// mean, variance, size: compute from data??
 					
 					// sum(uv) = sum(u) + sum(v)
 					// sq2(uv) = sq2(u) + sq2(v) + 1/n(uv) [n(u)/n(v)*m(v) - n(v)/n(u)*m(u)]^2
 					// n(uv) = n(u) + n(v)
-					aNode[0] = new Triple(id, bNode[0].weight + pNode[0].weight, 
-												bNode[0].delta + pNode[0].delta 
-												+ Numerics.square(bNode[0].weight/bNode[0].size-pNode[0].weight/pNode[0].size)
-													*bNode[0].size*pNode[0].size/(bNode[0].size+pNode[0].size),  
-												bNode[0].size + pNode[0].size );
+					assoc.set(aNode, 0, id, assoc.weight(bNode, 0) + assoc.weight(pNode, 0), 
+												assoc.delta(bNode, 0) + assoc.delta(pNode, 0) 
+												+ Numerics.square(assoc.weight(bNode, 0)/assoc.size(bNode, 0)-assoc.weight(pNode, 0)/assoc.size(pNode, 0))
+													*assoc.size(bNode, 0)*assoc.size(pNode, 0)/(assoc.size(bNode, 0)+assoc.size(pNode, 0)),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) );
 					
 					// new mixing weights
 					// w(uv,x) = w(u,x) + w(v,x)
 					// must check if the links still exist, not duplicate
 					
-					newclustertime += bNode.length+pNode.length;
+					newclustertime += assoc.length(bNode)+assoc.length(pNode);
 					
 					// using latest[] allows to preserve the tree structure inside assoc, but skip steps when attributing the labels
-					for (int n=1;n<bNode.length;n++) {
+					for (int n=1;n<assoc.length(bNode);n++) {
 						//int lbn = bNode[n].id;
-						int lbn = latest[bNode[n].id];
+						int lbn = latest[assoc.id(bNode, n)];
 						if (lbn!=lpair) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -2383,28 +2187,28 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[bNode[n].id] = lbn;
+								latest[assoc.id(bNode, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lpair) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] += bNode[n].weight;
-								ngbSize[lbn] += bNode[n].size;
+								ngbWeight[lbn] += assoc.weight(bNode, n);
+								ngbSize[lbn] += assoc.size(bNode, n);
 							}							
 							// no need to check on all already created values!!
 						}
 					}
-					for (int n=1;n<pNode.length;n++) {
+					for (int n=1;n<assoc.length(pNode);n++) {
 						//int lbn = pNode[n].id;
-						int lbn = latest[pNode[n].id];
+						int lbn = latest[assoc.id(pNode, n)];
 						if (lbn!=lbest) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -2412,14 +2216,14 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[pNode[n].id] = lbn;
+								latest[assoc.id(pNode, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lbest) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] += pNode[n].weight;
-								ngbSize[lbn] += pNode[n].size;
+								ngbWeight[lbn] += assoc.weight(pNode, n);
+								ngbSize[lbn] += assoc.size(pNode, n);
 							}
 							// no need to check on all already created values!!
 						}
@@ -2428,7 +2232,7 @@ public class FastAggregativeClustering {
 					int l=1;
 					for (int lbn = ngbList.nextSetBit(0); lbn >= 0; lbn = ngbList.nextSetBit(lbn+1)) {
 						// create a new one
-						aNode[l] = new Triple(lbn, ngbWeight[lbn], ngbSize[lbn]);
+						assoc.set(aNode, l, lbn, ngbWeight[lbn], 0.0f, ngbSize[lbn]);
 						l++;
 						// reset the values
 						ngbWeight[lbn] = 0.0f;
@@ -2438,11 +2242,7 @@ public class FastAggregativeClustering {
 
 					// make sure we don't have extra empty values
 					//aNode.trimToSize();
-					if (l<aNode.length) {
-						Triple[] tmp = new Triple[l];
-						for (int n=0;n<l;n++) tmp[n] = aNode[n];
-						aNode = tmp;
-					}
+					assoc.trim(aNode, l);
 					// set the new location parameters
 					ngbcluster.clear();
 					if (lbest>nlb && lpair>nlb && clusterPos[lbest].length>clusterPos[lpair].length) {
@@ -2525,26 +2325,26 @@ public class FastAggregativeClustering {
 					}
 					// new deltas : no need of the u,v values anymore
 					// D(uv,x) = ( w(uv,uv) + w(x,x) + 2w(uv,x) )/( d(uv)+d(x) ) - w(uv,uv)/d(uv) - w(x,x)/d(x)
-					for (int n=1; n<aNode.length; n++) {
-						Triple[] wngb = assoc[aNode[n].id];
+					for (int n=1; n<assoc.length(aNode); n++) {
+						int wngb = assoc.id(aNode, n);
 						// estimate the variance with prior
-						var1 = (aNode[0].delta + basis*imgscale*imgscale)/(aNode[0].size+basis-1.0);
-						var2 = (wngb[0].delta + basis*imgscale*imgscale)/(wngb[0].size+basis-1.0);
+						var1 = (assoc.delta(aNode, 0) + basis*imgscale*imgscale)/(assoc.size(aNode, 0)+basis-1.0);
+						var2 = (assoc.delta(wngb, 0) + basis*imgscale*imgscale)/(assoc.size(wngb, 0)+basis-1.0);
 						
 						// build the t-test for each possible pairing
-						float tval = tTest(aNode[0].weight/aNode[0].size, wngb[0].weight/wngb[0].size,
-										var1, var2, Numerics.max(aNode[0].size,2), Numerics.max(wngb[0].size,2));
+						float tval = tTest(assoc.weight(aNode, 0)/assoc.size(aNode, 0), assoc.weight(wngb, 0)/assoc.size(wngb, 0),
+										var1, var2, Numerics.max(assoc.size(aNode, 0),2), Numerics.max(assoc.size(wngb, 0),2));
 						
 						// geometric progression:
-						float wsize = 1.0f/(1.0f + Numerics.square( (aNode[0].size+wngb[0].size)/((connect+1.0f)*nlb)) );
+						float wsize = 1.0f/(1.0f + Numerics.square( (assoc.size(aNode, 0)+assoc.size(wngb, 0))/((connect+1.0f)*nlb)) );
 						
 						// Bonferroni correction ?
 						//float threshold = pvalue/(aNode[0].size+wngb[0].size-1.0f);
 						
 						// Sidak correction ?
-						float threshold = 1.0f - (float)FastMath.pow(1.0f-pvalue, 1.0f/(aNode[0].size+wngb[0].size-1.0f));
+						float threshold = 1.0f - (float)FastMath.pow(1.0f-pvalue, 1.0f/(assoc.size(aNode, 0)+assoc.size(wngb, 0)-1.0f));
 						
-						aNode[n].delta = wsize*(tval-threshold);
+						assoc.setDelta(aNode, n, wsize*(tval-threshold));
 						
 					}
 					
@@ -2558,12 +2358,12 @@ public class FastAggregativeClustering {
 						long newtime = System.currentTimeMillis();
 						nstep++;
 						System.out.println("n="+nstep+", t="+(newtime-looptime)+", "+iter+" / "+nclusters+": c= "+bcost+" | "
-																	+", m= "+aNode[0].weight/aNode[0].size
-																	+", s= "+Math.sqrt(aNode[0].delta/aNode[0].size)
-																	+", s0= "+Math.sqrt((aNode[0].delta + basis*imgscale*imgscale)/(aNode[0].size+basis))
-																	+", n= "+aNode[0].size
+																	+", m= "+assoc.weight(aNode, 0)/assoc.size(aNode, 0)
+																	+", s= "+Math.sqrt(assoc.delta(aNode, 0)/assoc.size(aNode, 0))
+																	+", s0= "+Math.sqrt((assoc.delta(aNode, 0) + basis*imgscale*imgscale)/(assoc.size(aNode, 0)+basis))
+																	+", n= "+assoc.size(aNode, 0)
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length
+																	+assoc.length(bNode)+", "+assoc.length(pNode)
 																	+"| n "+newclustertime+", d "+depthsearchtime+", w "+widthsearchtime+")");
 						looptime = newtime;
 						newclustertime = 0;
@@ -2573,40 +2373,39 @@ public class FastAggregativeClustering {
 					// not a correct stopping criterion								
 					if (verbose) if (bcost<0 && first) {
 					   System.out.println(iter+" / "+nclusters+": c= "+bcost
-																	+", m= "+aNode[0].weight/aNode[0].size
-																	+", s= "+Math.sqrt(aNode[0].delta/aNode[0].size)
-																	+", s0= "+Math.sqrt((aNode[0].delta + basis*imgscale*imgscale)/(aNode[0].size+basis))
-																	+", n= "+aNode[0].size
+																	+", m= "+assoc.weight(aNode, 0)/assoc.size(aNode, 0)
+																	+", s= "+Math.sqrt(assoc.delta(aNode, 0)/assoc.size(aNode, 0))
+																	+", s0= "+Math.sqrt((assoc.delta(aNode, 0) + basis*imgscale*imgscale)/(assoc.size(aNode, 0)+basis))
+																	+", n= "+assoc.size(aNode, 0)
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length+")");	
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");	
 					   first=false;
 					   if (firststop) stop = true;
 					}								
 					// add the new values to list, binary tree
-					assoc[id] = aNode;
 					active.set(id, true);
 					
-					if (aNode.length>1) {
+					if (assoc.length(aNode)>1) {
 						int best=1;
-						for (int b=2;b<aNode.length;b++) {
-							if (aNode[b].delta>aNode[best].delta) best = b;
+						for (int b=2;b<assoc.length(aNode);b++) {
+							if (assoc.delta(aNode, b)>assoc.delta(aNode, best)) best = b;
 						}
-						bintree.addValue(aNode[best].delta, id, best);
+						bintree.addValue(assoc.delta(aNode, best), id, best);
 						/*
-						if (debug) if (aNode[best].delta>1) {
+						if (debug) if (assoc.delta(aNode, best)>1) {
 							System.out.println(nclusters+": c= "+cost[iter]+" ("
-																	+bNode[0].delta+", "
-																	+bNode[0].weight+", "
-																	+bNode[0].size+" | "
-																	+pNode[0].delta+", "
-																	+pNode[0].weight+", "
-																	+pNode[0].size+" | "
-																	+aNode[0].delta+", "
-																	+aNode[0].weight+", "
-																	+aNode[0].size+")");					   
+																	+assoc.delta(bNode, 0)+", "
+																	+assoc.weight(bNode, 0)+", "
+																	+assoc.size(bNode, 0)+" | "
+																	+assoc.delta(pNode, 0)+", "
+																	+assoc.weight(pNode, 0)+", "
+																	+assoc.size(pNode, 0)+" | "
+																	+assoc.delta(aNode, 0)+", "
+																	+assoc.weight(aNode, 0)+", "
+																	+assoc.size(aNode, 0)+")");					   
 							
-							for (int n=1; n<aNode.length; n++) {
-								System.out.print("<"+aNode[n].delta+", "+aNode[n].weight+", "+aNode[n].size+">");
+							for (int n=1; n<assoc.length(aNode); n++) {
+								System.out.print("<"+assoc.delta(aNode, n)+", "+assoc.weight(aNode, n)+", "+assoc.size(aNode, n)+">");
 							}
 							System.out.print("\n");
 						}
@@ -2614,16 +2413,12 @@ public class FastAggregativeClustering {
 					}
 					
 					// replace the older values with info on what is the new label
-					assoc[lbest] = null;
-					assoc[lpair] = null;
-					assoc[lbest] = new Triple[1];
-					assoc[lpair] = new Triple[1];
+					assoc.trim(lbest, 1);
+					assoc.trim(lpair, 1);
 					//assoc[lbest][0] = new Triple(id);
 					//assoc[lpair][0] = new Triple(id);
-					assoc[lbest][0] = bNode[0];
-					assoc[lpair][0] = pNode[0];
-					assoc[lbest][0].id = id;
-					assoc[lpair][0].id = id;
+					assoc.setId(lbest, 0, id);
+					assoc.setId(lpair, 0, id);
 					
 					// de-activate the labels
 					active.set(lbest, false);
@@ -2656,16 +2451,16 @@ public class FastAggregativeClustering {
 
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			Triple[] node = assoc[lb];
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.length>1) {
+			if (assoc.length(node)>1) {
 				int best=1;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=2;b<node.length;b++) {
-					if (node[b].delta>node[best].delta) best = b;
+				for (int b=2;b<assoc.length(node);b++) {
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (debug) System.out.print(""+node.get(best).delta+","+l+":"+best);
-				bintree.addValue(node[best].delta, node[0].id, best);
+				bintree.addValue(assoc.delta(node, best), assoc.id(node, 0), best);
 			} else {
 				if (debug) System.out.print("!");	
 			}
@@ -2716,14 +2511,14 @@ public class FastAggregativeClustering {
 
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
-				Triple[] bNode = assoc[lbest];
-				int	lpair = bNode[nbest].id;
+				int bNode = lbest;
+				int	lpair = assoc.id(bNode, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
-					Triple[] pNode = assoc[lpair];
+					int pNode = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -2734,35 +2529,36 @@ public class FastAggregativeClustering {
 					
 					// new values
 					//ArrayList<Triple> aNode = new ArrayList<Triple>(Numerics.max(bNode.size(),pNode.size())-1);
-					Triple[] aNode = new Triple[bNode.length+pNode.length-3];
+					assoc.allocate(id, assoc.length(bNode)+assoc.length(pNode)-3);
+					int aNode = id;
 					// mean, variance, size: compute from data??
 					
 					// sum(uv) = sum(u) + sum(v)
 					// sq2(uv) = sq2(u) + sq2(v) + 1/n(uv) [n(u)/n(v)*m(v) - n(v)/n(u)*m(u)]^2
 					// n(uv) = n(u) + n(v)
-					aNode[0] = new Triple(id, bNode[0].weight + pNode[0].weight, 
-												bNode[0].delta + pNode[0].delta 
-												+ Numerics.square(bNode[0].weight/bNode[0].size-pNode[0].weight/pNode[0].size)
-													*bNode[0].size*pNode[0].size/(bNode[0].size+pNode[0].size),  
-												bNode[0].size + pNode[0].size );
+					assoc.set(aNode, 0, id, assoc.weight(bNode, 0) + assoc.weight(pNode, 0), 
+												assoc.delta(bNode, 0) + assoc.delta(pNode, 0) 
+												+ Numerics.square(assoc.weight(bNode, 0)/assoc.size(bNode, 0)-assoc.weight(pNode, 0)/assoc.size(pNode, 0))
+													*assoc.size(bNode, 0)*assoc.size(pNode, 0)/(assoc.size(bNode, 0)+assoc.size(pNode, 0)),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) );
 					
 					// new mixing weights
 					// w(uv,x) = w(u,x) + w(v,x)
 					// must check if the links still exist, not duplicate
 					
-					newclustertime += bNode.length+pNode.length;
+					newclustertime += assoc.length(bNode)+assoc.length(pNode);
 					
 					// using latest[] allows to preserve the tree structure inside assoc, but skip steps when attributing the labels
-					for (int n=1;n<bNode.length;n++) {
+					for (int n=1;n<assoc.length(bNode);n++) {
 						//int lbn = bNode[n].id;
-						int lbn = latest[bNode[n].id];
+						int lbn = latest[assoc.id(bNode, n)];
 						if (lbn!=lpair) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -2770,28 +2566,28 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[bNode[n].id] = lbn;
+								latest[assoc.id(bNode, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lpair) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] += bNode[n].weight;
-								ngbSize[lbn] += bNode[n].size;
+								ngbWeight[lbn] += assoc.weight(bNode, n);
+								ngbSize[lbn] += assoc.size(bNode, n);
 							}							
 							// no need to check on all already created values!!
 						}
 					}
-					for (int n=1;n<pNode.length;n++) {
+					for (int n=1;n<assoc.length(pNode);n++) {
 						//int lbn = pNode[n].id;
-						int lbn = latest[pNode[n].id];
+						int lbn = latest[assoc.id(pNode, n)];
 						if (lbn!=lbest) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = latest[assoc[lbn][0].id];
+									lbn = latest[assoc.id(lbn, 0)];
 									//lbn = assoc[lbn][0].id;
 									depthsearchtime++;
 								}
@@ -2799,14 +2595,14 @@ public class FastAggregativeClustering {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[pNode[n].id] = lbn;
+								latest[assoc.id(pNode, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lbest) {
 								// add to the label
 								ngbList.set(lbn, true);
-								ngbWeight[lbn] += pNode[n].weight;
-								ngbSize[lbn] += pNode[n].size;
+								ngbWeight[lbn] += assoc.weight(pNode, n);
+								ngbSize[lbn] += assoc.size(pNode, n);
 							}
 							// no need to check on all already created values!!
 						}
@@ -2815,7 +2611,7 @@ public class FastAggregativeClustering {
 					int l=1;
 					for (int lbn = ngbList.nextSetBit(0); lbn >= 0; lbn = ngbList.nextSetBit(lbn+1)) {
 						// create a new one
-						aNode[l] = new Triple(lbn, ngbWeight[lbn], ngbSize[lbn]);
+						assoc.set(aNode, l, lbn, ngbWeight[lbn], 0.0f, ngbSize[lbn]);
 						l++;
 						// reset the values
 						ngbWeight[lbn] = 0.0f;
@@ -2825,11 +2621,7 @@ public class FastAggregativeClustering {
 
 					// make sure we don't have extra empty values
 					//aNode.trimToSize();
-					if (l<aNode.length) {
-						Triple[] tmp = new Triple[l];
-						for (int n=0;n<l;n++) tmp[n] = aNode[n];
-						aNode = tmp;
-					}
+					assoc.trim(aNode, l);
 					// set the new location parameters
 					ngbcluster.clear();
 					if (lbest>nlb && lpair>nlb && clusterPos[lbest].length>clusterPos[lpair].length) {
@@ -2912,36 +2704,36 @@ public class FastAggregativeClustering {
 					}
 					// new deltas : no need of the u,v values anymore
 					// D(uv,x) = ( w(uv,uv) + w(x,x) + 2w(uv,x) )/( d(uv)+d(x) ) - w(uv,uv)/d(uv) - w(x,x)/d(x)
-					for (int n=1; n<aNode.length; n++) {
-						Triple[] wngb = assoc[aNode[n].id];
+					for (int n=1; n<assoc.length(aNode); n++) {
+						int wngb = assoc.id(aNode, n);
 						// estimate the variance with prior
-						var1 = (aNode[0].delta + basis*imgscale*imgscale)/(aNode[0].size+basis-1.0);
-						var2 = (wngb[0].delta + basis*imgscale*imgscale)/(wngb[0].size+basis-1.0);
+						var1 = (assoc.delta(aNode, 0) + basis*imgscale*imgscale)/(assoc.size(aNode, 0)+basis-1.0);
+						var2 = (assoc.delta(wngb, 0) + basis*imgscale*imgscale)/(assoc.size(wngb, 0)+basis-1.0);
 						
 						if (mode==KULLBACKLEIBLER) {
-							var12 = (wngb[0].delta + aNode[0].delta
-									+ (wngb[0].size/aNode[0].size*aNode[0].weight*aNode[0].weight
-									+ aNode[0].size/wngb[0].size*wngb[0].weight*wngb[0].weight
-									- 2.0*aNode[0].weight*wngb[0].weight)/(aNode[0].size+wngb[0].size)
-									+ basis*imgscale*imgscale)/(aNode[0].size+wngb[0].size+basis-1.0);
+							var12 = (assoc.delta(wngb, 0) + assoc.delta(aNode, 0)
+									+ (assoc.size(wngb, 0)/assoc.size(aNode, 0)*assoc.weight(aNode, 0)*assoc.weight(aNode, 0)
+									+ assoc.size(aNode, 0)/assoc.size(wngb, 0)*assoc.weight(wngb, 0)*assoc.weight(wngb, 0)
+									- 2.0*assoc.weight(aNode, 0)*assoc.weight(wngb, 0))/(assoc.size(aNode, 0)+assoc.size(wngb, 0))
+									+ basis*imgscale*imgscale)/(assoc.size(aNode, 0)+assoc.size(wngb, 0)+basis-1.0);
 						}
 						
 						// build the divergence metric
-						float metric = (float)distributionMetric(aNode[0].weight/aNode[0].size, wngb[0].weight/wngb[0].size, 
-																	var1, var2, var12, Numerics.max(aNode[0].size,2), Numerics.max(wngb[0].size,2));
+						float metric = (float)distributionMetric(assoc.weight(aNode, 0)/assoc.size(aNode, 0), assoc.weight(wngb, 0)/assoc.size(wngb, 0), 
+																	var1, var2, var12, Numerics.max(assoc.size(aNode, 0),2), Numerics.max(assoc.size(wngb, 0),2));
 						
 						// geometric progression:
-						float wsize = 1.0f/(1.0f + Numerics.square( (aNode[0].size+wngb[0].size)/((connect+1.0f)*nlb)) );
+						float wsize = 1.0f/(1.0f + Numerics.square( (assoc.size(aNode, 0)+assoc.size(wngb, 0))/((connect+1.0f)*nlb)) );
 						
 						
-						float threshold = distributionThreshold(aNode[0].size, wngb[0].size);
+						float threshold = distributionThreshold(assoc.size(aNode, 0), assoc.size(wngb, 0));
 						// Bonferroni correction ?
 						//float threshold = pvalue/(aNode[0].size+wngb[0].size-1.0f);
 						
 						// Sidak correction ?
 						//float threshold = 1.0f - (float)FastMath.pow(1.0f-pvalue, 1.0f/(aNode[0].size+wngb[0].size-1.0f));
 						
-						aNode[n].delta = wsize*(metric-threshold);
+						assoc.setDelta(aNode, n, wsize*(metric-threshold));
 						
 					}
 					
@@ -2955,12 +2747,12 @@ public class FastAggregativeClustering {
 						long newtime = System.currentTimeMillis();
 						nstep++;
 						System.out.println("n="+nstep+", t="+(newtime-looptime)+", "+iter+" / "+nclusters+": c= "+bcost+" | "
-																	+", m= "+aNode[0].weight/aNode[0].size
-																	+", s= "+Math.sqrt(aNode[0].delta/aNode[0].size)
-																	+", s0= "+Math.sqrt((aNode[0].delta + basis*imgscale*imgscale)/(aNode[0].size+basis))
-																	+", n= "+aNode[0].size
+																	+", m= "+assoc.weight(aNode, 0)/assoc.size(aNode, 0)
+																	+", s= "+Math.sqrt(assoc.delta(aNode, 0)/assoc.size(aNode, 0))
+																	+", s0= "+Math.sqrt((assoc.delta(aNode, 0) + basis*imgscale*imgscale)/(assoc.size(aNode, 0)+basis))
+																	+", n= "+assoc.size(aNode, 0)
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length
+																	+assoc.length(bNode)+", "+assoc.length(pNode)
 																	+"| n "+newclustertime+", d "+depthsearchtime+", w "+widthsearchtime+")");
 						looptime = newtime;
 						newclustertime = 0;
@@ -2970,40 +2762,39 @@ public class FastAggregativeClustering {
 					// not a correct stopping criterion								
 					if (verbose) if (bcost<0 && first) {
 					   System.out.println(iter+" / "+nclusters+": c= "+bcost
-																	+", m= "+aNode[0].weight/aNode[0].size
-																	+", s= "+Math.sqrt(aNode[0].delta/aNode[0].size)
-																	+", s0= "+Math.sqrt((aNode[0].delta + basis*imgscale*imgscale)/(aNode[0].size+basis))
-																	+", n= "+aNode[0].size
+																	+", m= "+assoc.weight(aNode, 0)/assoc.size(aNode, 0)
+																	+", s= "+Math.sqrt(assoc.delta(aNode, 0)/assoc.size(aNode, 0))
+																	+", s0= "+Math.sqrt((assoc.delta(aNode, 0) + basis*imgscale*imgscale)/(assoc.size(aNode, 0)+basis))
+																	+", n= "+assoc.size(aNode, 0)
 																	+" ("+bintree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length+")");	
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");	
 					   first=false;
 					   if (firststop) stop = true;
 					}								
 					// add the new values to list, binary tree
-					assoc[id] = aNode;
 					active.set(id, true);
 					
-					if (aNode.length>1) {
+					if (assoc.length(aNode)>1) {
 						int best=1;
-						for (int b=2;b<aNode.length;b++) {
-							if (aNode[b].delta>aNode[best].delta) best = b;
+						for (int b=2;b<assoc.length(aNode);b++) {
+							if (assoc.delta(aNode, b)>assoc.delta(aNode, best)) best = b;
 						}
-						bintree.addValue(aNode[best].delta, id, best);
+						bintree.addValue(assoc.delta(aNode, best), id, best);
 						/*
-						if (debug) if (aNode[best].delta>1) {
+						if (debug) if (assoc.delta(aNode, best)>1) {
 							System.out.println(nclusters+": c= "+cost[iter]+" ("
-																	+bNode[0].delta+", "
-																	+bNode[0].weight+", "
-																	+bNode[0].size+" | "
-																	+pNode[0].delta+", "
-																	+pNode[0].weight+", "
-																	+pNode[0].size+" | "
-																	+aNode[0].delta+", "
-																	+aNode[0].weight+", "
-																	+aNode[0].size+")");					   
+																	+assoc.delta(bNode, 0)+", "
+																	+assoc.weight(bNode, 0)+", "
+																	+assoc.size(bNode, 0)+" | "
+																	+assoc.delta(pNode, 0)+", "
+																	+assoc.weight(pNode, 0)+", "
+																	+assoc.size(pNode, 0)+" | "
+																	+assoc.delta(aNode, 0)+", "
+																	+assoc.weight(aNode, 0)+", "
+																	+assoc.size(aNode, 0)+")");					   
 							
-							for (int n=1; n<aNode.length; n++) {
-								System.out.print("<"+aNode[n].delta+", "+aNode[n].weight+", "+aNode[n].size+">");
+							for (int n=1; n<assoc.length(aNode); n++) {
+								System.out.print("<"+assoc.delta(aNode, n)+", "+assoc.weight(aNode, n)+", "+assoc.size(aNode, n)+">");
 							}
 							System.out.print("\n");
 						}
@@ -3011,16 +2802,12 @@ public class FastAggregativeClustering {
 					}
 					
 					// replace the older values with info on what is the new label
-					assoc[lbest] = null;
-					assoc[lpair] = null;
-					assoc[lbest] = new Triple[1];
-					assoc[lpair] = new Triple[1];
+					assoc.trim(lbest, 1);
+					assoc.trim(lpair, 1);
 					//assoc[lbest][0] = new Triple(id);
 					//assoc[lpair][0] = new Triple(id);
-					assoc[lbest][0] = bNode[0];
-					assoc[lpair][0] = pNode[0];
-					assoc[lbest][0].id = id;
-					assoc[lpair][0].id = id;
+					assoc.setId(lbest, 0, id);
+					assoc.setId(lpair, 0, id);
 					
 					// de-activate the labels
 					active.set(lbest, false);
@@ -3110,7 +2897,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3128,7 +2915,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3155,7 +2942,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3213,7 +3000,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3257,7 +3044,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3292,7 +3079,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3350,7 +3137,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3409,11 +3196,11 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc[lb][0].delta;
+				tmp[xyz] = assoc.delta(lb, 0);
 			}
 		}
 		return tmp;
@@ -3426,11 +3213,11 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc[lb][0].weight;
+				tmp[xyz] = assoc.weight(lb, 0);
 			}
 		}
 		return tmp;
@@ -3442,7 +3229,7 @@ public class FastAggregativeClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -3457,7 +3244,7 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = latest[labeling[xyz]];
-				tmp[xyz] = assoc[lb][0].weight/assoc[lb][0].size;
+				tmp[xyz] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -3470,11 +3257,11 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[x][y][z] = assoc[lb][0].weight/assoc[lb][0].size;
+				tmp[x][y][z] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -3487,7 +3274,7 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = (int)clusters[x][y][z];
-				tmp[x][y][z] = assoc[lb][0].weight/assoc[lb][0].size;
+				tmp[x][y][z] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -3500,7 +3287,7 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = (int)clusters[xyz];
-				tmp[xyz] = assoc[lb][0].weight/assoc[lb][0].size;
+				tmp[xyz] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -3513,7 +3300,7 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = (int)clusters[xyz];
-				tmp[xyz] = assoc[lb][0].delta/assoc[lb][0].size;
+				tmp[xyz] = assoc.delta(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -3526,11 +3313,11 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc[lb][0].size;
+				tmp[xyz] = assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -3543,13 +3330,13 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float w = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.min(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[xyz] = w;
@@ -3566,15 +3353,15 @@ public class FastAggregativeClustering {
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
 				
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				
 				//lb = latest[labeling[xyz]];
 				float w = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.min(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[x][y][z] = w;
@@ -3597,8 +3384,8 @@ public class FastAggregativeClustering {
 				}
 				*/
 				float w = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.min(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[x][y][z] = w;
@@ -3614,8 +3401,8 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				for (int l=1;l<assoc[lb].length;l++) {
-					tmp[x][y][z][l-1] = assoc[lb][l].weight/assoc[lb][l].size;
+				for (int l=1;l<assoc.length(lb);l++) {
+					tmp[x][y][z][l-1] = assoc.weight(lb, l)/assoc.size(lb, l);
 				}
 			}
 		}
@@ -3629,8 +3416,8 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				for (int l=1;l<assoc[lb].length;l++) {
-					tmp[l-1][xyz] = assoc[lb][l].weight/assoc[lb][l].size;
+				for (int l=1;l<assoc.length(lb);l++) {
+					tmp[l-1][xyz] = assoc.weight(lb, l)/assoc.size(lb, l);
 				}
 			}
 		}
@@ -3645,8 +3432,8 @@ public class FastAggregativeClustering {
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
 				float w = -1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.max(w, assoc[lb][l].delta);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.max(w, assoc.delta(lb, l));
 				}
 				if (w==-1e9f) w = 0.0f;
 				tmp[xyz] = w;
@@ -3661,13 +3448,13 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float w = -1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.max(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.max(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				tmp[xyz] = w;
 			}
@@ -3682,13 +3469,13 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float d = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					d = Numerics.min(d, assoc[lb][l].delta);
+				for (int l=1;l<assoc.length(lb);l++) {
+					d = Numerics.min(d, assoc.delta(lb, l));
 				}
 				tmp[xyz] = d;
 			}
@@ -3702,13 +3489,13 @@ public class FastAggregativeClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float d = -1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					d = Numerics.max(d, assoc[lb][l].delta);
+				for (int l=1;l<assoc.length(lb);l++) {
+					d = Numerics.max(d, assoc.delta(lb, l));
 				}
 				tmp[xyz] = d;
 			}
@@ -76,7 +76,7 @@ public class FastAggregativeClusteringND {
 	//private		ArrayList<Float>	degree;
 	//private		ArrayList<ArrayList<Triple>>	assoc;
 	private		Cluster[]						list;
-	private		Ngb[][]							assoc;
+	private		ClusterAdjacency				assoc;
 	private		BitSet							active;
 	private		BinaryHeapPair					maxtree;
 	private		float[]							cost;
@@ -125,18 +125,6 @@ public class FastAggregativeClusteringND {
 		
 	}
 	
-	// simple id, value class
-	private static class Ngb {
-		public int id;
-		public float size;
-		public float delta;
-		
-		public Ngb(int id, float delta) {
-			this.id = id;
-			this.delta = delta;
-		}
-	}
-	
 
 	/* simple variable size array */
 	private static class IntArray {
@@ -251,13 +239,10 @@ public class FastAggregativeClusteringND {
 		
 		list = new Cluster[2*nlb];
 		list[0] = new Cluster(0,nc);
-		assoc = new Ngb[2*nlb][];
-		assoc[0] = null;
+		assoc = new ClusterAdjacency(2*nlb, connect*nlb);
 		
 		latest = new int[2*nlb];
 		
-		Ngb[] ngb = new Ngb[connect];
-		
 		if (debug) System.out.println("weight computation");
 
 		float[][] zerocov;
@@ -302,124 +287,123 @@ public class FastAggregativeClusteringND {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				//if (debug) System.out.print(".");
+				int node = labeling[xyz];
+				assoc.allocate(node, connect);
 				int nb=0;
 				// 6-C
 				if (x>0 && mask[xyz-1])	{
-					ngb[nb] = new Ngb(labeling[xyz-1], associationWeight(xyz,xyz-1));
+					assoc.set(node, nb, labeling[xyz-1], 0.0f, associationWeight(xyz,xyz-1), 0.0f);
 					nb++;
 				}
 				if (x<nx-1 && mask[xyz+1])	{
-					ngb[nb] = new Ngb(labeling[xyz+1], associationWeight(xyz,xyz+1));
+					assoc.set(node, nb, labeling[xyz+1], 0.0f, associationWeight(xyz,xyz+1), 0.0f);
 					nb++;
 				}
 				if (y>0 && mask[xyz-nx])	{
-					ngb[nb] = new Ngb(labeling[xyz-nx], associationWeight(xyz,xyz-nx));
+					assoc.set(node, nb, labeling[xyz-nx], 0.0f, associationWeight(xyz,xyz-nx), 0.0f);
 					nb++;
 				}
 				if (y<ny-1 && mask[xyz+nx])	{
-					ngb[nb] = new Ngb(labeling[xyz+nx], associationWeight(xyz,xyz+nx));
+					assoc.set(node, nb, labeling[xyz+nx], 0.0f, associationWeight(xyz,xyz+nx), 0.0f);
 					nb++;
 				}
 				if (z>0 && mask[xyz-nx*ny])	{
-					ngb[nb] = new Ngb(labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny));
+					assoc.set(node, nb, labeling[xyz-nx*ny], 0.0f, associationWeight(xyz,xyz-nx*ny), 0.0f);
 					nb++;
 				}
 				if (z<nz-1 && mask[xyz+nx*ny])	{
-					ngb[nb] = new Ngb(labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny));
+					assoc.set(node, nb, labeling[xyz+nx*ny], 0.0f, associationWeight(xyz,xyz+nx*ny), 0.0f);
 					nb++;
 				}
 				// 18-C
 				if (connect>6) {
 					if (x>0 && y>0 && mask[xyz-1-nx])	{
-						ngb[nb] = new Ngb(labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx));
+						assoc.set(node, nb, labeling[xyz-1-nx], 0.0f, associationWeight(xyz,xyz-1-nx), 0.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && mask[xyz+1-nx])	{
-						ngb[nb] = new Ngb(labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx));
+						assoc.set(node, nb, labeling[xyz+1-nx], 0.0f, associationWeight(xyz,xyz+1-nx), 0.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && mask[xyz-1+nx])	{
-						ngb[nb] = new Ngb(labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx));
+						assoc.set(node, nb, labeling[xyz-1+nx], 0.0f, associationWeight(xyz,xyz-1+nx), 0.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && mask[xyz+1+nx])	{
-						ngb[nb] = new Ngb(labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx));
+						assoc.set(node, nb, labeling[xyz+1+nx], 0.0f, associationWeight(xyz,xyz+1+nx), 0.0f);
 						nb++;
 					}
 					if (y>0 && z>0 && mask[xyz-nx-nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny));
+						assoc.set(node, nb, labeling[xyz-nx-nx*ny], 0.0f, associationWeight(xyz,xyz-nx-nx*ny), 0.0f);
 						nb++;
 					}
 					if (y<ny-1 && z>0 && mask[xyz+nx-nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny));
+						assoc.set(node, nb, labeling[xyz+nx-nx*ny], 0.0f, associationWeight(xyz,xyz+nx-nx*ny), 0.0f);
 						nb++;
 					}
 					if (y>0 && z<nz-1 && mask[xyz-nx+nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny));
+						assoc.set(node, nb, labeling[xyz-nx+nx*ny], 0.0f, associationWeight(xyz,xyz-nx+nx*ny), 0.0f);
 						nb++;
 					}
 					if (y<ny-1 && z<nz-1 && mask[xyz+nx+nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny));
+						assoc.set(node, nb, labeling[xyz+nx+nx*ny], 0.0f, associationWeight(xyz,xyz+nx+nx*ny), 0.0f);
 						nb++;
 					}
 					if (z>0 && x>0 && mask[xyz-nx*ny-1])	{
-						ngb[nb] = new Ngb(labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1));
+						assoc.set(node, nb, labeling[xyz-nx*ny-1], 0.0f, associationWeight(xyz,xyz-nx*ny-1), 0.0f);
 						nb++;
 					}
 					if (z<nz-1 && x>0 && mask[xyz+nx*ny-1])	{
-						ngb[nb] = new Ngb(labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1));
+						assoc.set(node, nb, labeling[xyz+nx*ny-1], 0.0f, associationWeight(xyz,xyz+nx*ny-1), 0.0f);
 						nb++;
 					}
 					if (z>0 && x<nx-1 && mask[xyz-nx*ny+1])	{
-						ngb[nb] = new Ngb(labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1));
+						assoc.set(node, nb, labeling[xyz-nx*ny+1], 0.0f, associationWeight(xyz,xyz-nx*ny+1), 0.0f);
 						nb++;
 					}
 					if (z<nz-1 && x<nx-1 && mask[xyz+nx*ny+1])	{
-						ngb[nb] = new Ngb(labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1));
+						assoc.set(node, nb, labeling[xyz+nx*ny+1], 0.0f, associationWeight(xyz,xyz+nx*ny+1), 0.0f);
 						nb++;
 					}
 				}
 				// 26-C
 				if (connect>18) {
 					if (x>0 && y>0 && z>0 && mask[xyz-1-nx-nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny));
+						assoc.set(node, nb, labeling[xyz-1-nx-nx*ny], 0.0f, associationWeight(xyz,xyz-1-nx-nx*ny), 0.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && z>0 && mask[xyz+1-nx-nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny));
+						assoc.set(node, nb, labeling[xyz+1-nx-nx*ny], 0.0f, associationWeight(xyz,xyz+1-nx-nx*ny), 0.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && z>0 && mask[xyz-1+nx-nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny));
+						assoc.set(node, nb, labeling[xyz-1+nx-nx*ny], 0.0f, associationWeight(xyz,xyz-1+nx-nx*ny), 0.0f);
 						nb++;
 					}
 					if (x>0 && y>0 && z<nz-1 && mask[xyz-1-nx+nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny));
+						assoc.set(node, nb, labeling[xyz-1-nx+nx*ny], 0.0f, associationWeight(xyz,xyz-1-nx+nx*ny), 0.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && z>0 && mask[xyz+1+nx-nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny));
+						assoc.set(node, nb, labeling[xyz+1+nx-nx*ny], 0.0f, associationWeight(xyz,xyz+1+nx-nx*ny), 0.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && z<nz-1 && mask[xyz-1+nx+nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny));
+						assoc.set(node, nb, labeling[xyz-1+nx+nx*ny], 0.0f, associationWeight(xyz,xyz-1+nx+nx*ny), 0.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && z<nz-1 && mask[xyz+1-nx+nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny));
+						assoc.set(node, nb, labeling[xyz+1-nx+nx*ny], 0.0f, associationWeight(xyz,xyz+1-nx+nx*ny), 0.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && z<nz-1 && mask[xyz+1+nx+nx*ny])	{
-						ngb[nb] = new Ngb(labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny));
+						assoc.set(node, nb, labeling[xyz+1+nx+nx*ny], 0.0f, associationWeight(xyz,xyz+1+nx+nx*ny), 0.0f);
 						nb++;
 					}
 				}
 				
-				// store the values: new instance!
-				assoc[labeling[xyz]] = new Ngb[nb];
-				for (int n=0;n<nb;n++) {
-					assoc[labeling[xyz]][n] = ngb[n];
-				}
+				// store the values
+				assoc.trim(node, nb);
 				
 				// store the latest active index for everything
 				latest[labeling[xyz]] = labeling[xyz];
@@ -581,17 +565,17 @@ public class FastAggregativeClusteringND {
 		int ntree=0;
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			Ngb[] node = assoc[lb];
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.length>0) {
+			if (assoc.length(node)>0) {
 				int best=0;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=1;b<node.length;b++) {
-					if (node[b].delta>node[best].delta) best = b;
+				for (int b=1;b<assoc.length(node);b++) {
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (node[best].delta>0) {
 					//if (debug) System.out.print(""+node[best].delta+",");
-					maxtree.addValue(node[best].delta, list[lb].id, best);
+					maxtree.addValue(assoc.delta(node, best), list[lb].id, best);
 					ntree++;
 				//}
 			} else {
@@ -643,15 +627,15 @@ public class FastAggregativeClusteringND {
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
 				Cluster bNodeC = list[lbest];
-				Ngb[] bNodeN = assoc[lbest];
-				int	lpair = bNodeN[nbest].id;
+				int bNodeN = lbest;
+				int	lpair = assoc.id(bNodeN, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
 					Cluster pNodeC = list[lpair];
-					Ngb[] pNodeN = assoc[lpair];
+					int pNodeN = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -661,7 +645,8 @@ public class FastAggregativeClusteringND {
 					key++;
 					
 					// new values
-					Ngb[] aNodeN = new Ngb[bNodeN.length+pNodeN.length-2];
+					assoc.allocate(id, assoc.length(bNodeN)+assoc.length(pNodeN)-2);
+					int aNodeN = id;
 					
 					// sum(uv) = sum(u) + sum(v)
 					// sq2(uv) = sq2(u) + sq2(v) + 1/n(uv) [n(u)/n(v)*m(v) - n(v)/n(u)*m(u)]^2
@@ -711,12 +696,12 @@ public class FastAggregativeClusteringND {
 					// w(uv,x) = w(u,x) + w(v,x)
 					// must check if the links still exist, not duplicate
 					
-					newclustertime += bNodeN.length+pNodeN.length;
+					newclustertime += assoc.length(bNodeN)+assoc.length(pNodeN);
 					
 					// using latest[] allows to preserve the tree structure inside assoc, but skip steps when attributing the labels
-					for (int n=0;n<bNodeN.length;n++) {
+					for (int n=0;n<assoc.length(bNodeN);n++) {
 						//int lbn = bNode[n].id;
-						int lbn = latest[bNodeN[n].id];
+						int lbn = latest[assoc.id(bNodeN, n)];
 						if (lbn!=lpair) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
@@ -731,7 +716,7 @@ public class FastAggregativeClusteringND {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[bNodeN[n].id] = lbn;
+								latest[assoc.id(bNodeN, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lpair) {
@@ -741,9 +726,9 @@ public class FastAggregativeClusteringND {
 							// no need to check on all already created values!!
 						}
 					}
-					for (int n=0;n<pNodeN.length;n++) {
+					for (int n=0;n<assoc.length(pNodeN);n++) {
 						//int lbn = pNode[n].id;
-						int lbn = latest[pNodeN[n].id];
+						int lbn = latest[assoc.id(pNodeN, n)];
 						if (lbn!=lbest) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
@@ -758,7 +743,7 @@ public class FastAggregativeClusteringND {
 								for (int lb=0;lb<tracks.last;lb++)
 									latest[tracks.val[lb]] = lbn;
 									//assoc[tracks.val[lb]][0].id = lbn;
-								latest[pNodeN[n].id] = lbn;
+								latest[assoc.id(pNodeN, n)] = lbn;
 								//lbn = latest[lbn];
 							}
 							if (lbn!=lbest) {
@@ -772,18 +757,14 @@ public class FastAggregativeClusteringND {
 					int l=0;
 					for (int lbn = ngbList.nextSetBit(0); lbn >= 0; lbn = ngbList.nextSetBit(lbn+1)) {
 						// create a new one
-						aNodeN[l] = new Ngb(lbn, 0.0f);
+						assoc.set(aNodeN, l, lbn, 0.0f, 0.0f, 0.0f);
 						l++;
 					}
 					ngbList.clear();
 
 					// make sure we don't have extra empty values
 					//aNode.trimToSize();
-					if (l<aNodeN.length) {
-						Ngb[] tmp = new Ngb[l];
-						for (int n=0;n<l;n++) tmp[n] = aNodeN[n];
-						aNodeN = tmp;
-					}
+					assoc.trim(aNodeN, l);
 					// set the new location parameters
 					ngbcluster.clear();
 					if (lbest>nlb && lpair>nlb && clusterPos[lbest].length>clusterPos[lpair].length) {
@@ -891,8 +872,8 @@ public class FastAggregativeClusteringND {
 						
 					for (int n=0; n<aNodeN.length; n++) if (!discardedNgb.get(n)) {
 					*/
-					for (int n=0; n<aNodeN.length; n++) {
-						Cluster wngbC = list[aNodeN[n].id];
+					for (int n=0; n<assoc.length(aNodeN); n++) {
+						Cluster wngbC = list[assoc.id(aNodeN, n)];
 						
 						// build the divergence metric
 						float metric = (float)distributionMetric(aNodeC.mean, wngbC.mean, 
@@ -907,7 +888,7 @@ public class FastAggregativeClusteringND {
 						float threshold = distributionThreshold(aNodeC.size, wngbC.size);
 						
 						
-						aNodeN[n].delta = wsize*(metric-threshold);
+						assoc.setDelta(aNodeN, n, wsize*(metric-threshold));
 						
 						//System.out.print("m="+metric+"; ");
 					}
@@ -928,7 +909,7 @@ public class FastAggregativeClusteringND {
 																	+"cov= "+avgcov
 																	+", n= "+aNodeC.size
 																	+" ("+maxtree.getCurrentSize()+"|"
-																	+bNodeN.length+", "+pNodeN.length
+																	+assoc.length(bNodeN)+", "+assoc.length(pNodeN)
 																	+"| n "+newclustertime+", d "+depthsearchtime+", w "+widthsearchtime+")");
 						looptime = newtime;
 						newclustertime = 0;
@@ -940,26 +921,25 @@ public class FastAggregativeClusteringND {
 					   System.out.println(iter+" / "+nclusters+": c= "+bcost
 																	+", n= "+aNodeC.size
 																	+" ("+maxtree.getCurrentSize()+"|"
-																	+bNodeN.length+", "+pNodeN.length+")");	
+																	+assoc.length(bNodeN)+", "+assoc.length(pNodeN)+")");	
 					   first=false;
 					   if (firststop) stop = true;
 					}								
 					// add the new values to list, binary tree
 					list[id] = aNodeC;
-					assoc[id] = aNodeN;
 					active.set(id, true);
 					
-					if (aNodeN.length>0) {
+					if (assoc.length(aNodeN)>0) {
 						int best=0;
-						for (int b=1;b<aNodeN.length;b++) {
-							if (aNodeN[b].delta>aNodeN[best].delta) best = b;
+						for (int b=1;b<assoc.length(aNodeN);b++) {
+							if (assoc.delta(aNodeN, b)>assoc.delta(aNodeN, best)) best = b;
 						}
-						maxtree.addValue(aNodeN[best].delta, id, best);
+						maxtree.addValue(assoc.delta(aNodeN, best), id, best);
 					}
 					
 					// replace the older values with info on what is the new label
-					assoc[lbest] = null;
-					assoc[lpair] = null;
+					assoc.release(lbest);
+					assoc.release(lpair);
 					list[lbest].id = id;
 					list[lpair].id = id;
 					
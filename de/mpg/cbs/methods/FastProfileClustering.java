@@ -58,7 +58,7 @@ public class FastProfileClustering {
 	
 	//private		ArrayList<Float>	degree;
 	//private		ArrayList<ArrayList<Triple>>	assoc;
-	private		Triple[][]						assoc;
+	private		ClusterAdjacency				assoc;
 	private		BitSet							active;
 	private		BinaryHeapPair					maxtree;
 	private		float[]							cost;
@@ -69,40 +69,6 @@ public class FastProfileClustering {
     static final boolean		debug				=	true;
 	static final boolean		verbose				=	true;
     
-	// simple id, value class
-	private static class Triple {
-		public int id;
-		public float weight;
-		public float delta;
-		public float size;
-		
-		public Triple(int id) {
-			this.id = id;
-			this.weight = 1.0f;
-			this.delta = 0.0f;
-			this.size = 1;
-		}
-		public Triple(int id, float weight) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = 0.0f;
-			this.size = 1;
-		}
-		public Triple(int id, float weight, float size) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = 0.0f;
-			this.size = size;
-		}
-		public Triple(int id, float weight, float delta, float size) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = delta;
-			this.size = size;
-		}
-		
-	}
-	
 	/* simple variable size array */
 	private static class IntArray {
 		public int[] val;
@@ -193,128 +159,128 @@ public class FastProfileClustering {
 		//degree = new ArrayList(nlb+1);
 		//assoc.add(0, new ArrayList<Triple>(1));
 		
-		assoc = new Triple[2*nlb][];
-		assoc[0] = new Triple[1];
-		assoc[0][0] = new Triple(0);
+		assoc = new ClusterAdjacency(2*nlb, (connect+1)*(nlb+1));
+		assoc.allocate(0, 1);
+		assoc.set(0, 0, 0, 1.0f, 0.0f, 1.0f);
 		
 		latest = new int[2*nlb];
 		
-		Triple[] trp = new Triple[connect];
-		
 		if (debug) System.out.println("first pass");
 
 		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
+				int node = labeling[xyz];
+				assoc.allocate(node, connect+1);
 				int nb=0;
 				// 6-C
 				if (x>0 && mask[xyz-1])	{
-					trp[nb] = new Triple(labeling[xyz-1], associationWeight(xyz,xyz-1));
+					assoc.set(node, nb+1, labeling[xyz-1], associationWeight(xyz,xyz-1), 0.0f, 1.0f);
 					nb++;
 				}
 				if (x<nx-1 && mask[xyz+1])	{
-					trp[nb] = new Triple(labeling[xyz+1], associationWeight(xyz,xyz+1));
+					assoc.set(node, nb+1, labeling[xyz+1], associationWeight(xyz,xyz+1), 0.0f, 1.0f);
 					nb++;
 				}
 				if (y>0 && mask[xyz-nx])	{
-					trp[nb] = new Triple(labeling[xyz-nx], associationWeight(xyz,xyz-nx));
+					assoc.set(node, nb+1, labeling[xyz-nx], associationWeight(xyz,xyz-nx), 0.0f, 1.0f);
 					nb++;
 				}
 				if (y<ny-1 && mask[xyz+nx])	{
-					trp[nb] = new Triple(labeling[xyz+nx], associationWeight(xyz,xyz+nx));
+					assoc.set(node, nb+1, labeling[xyz+nx], associationWeight(xyz,xyz+nx), 0.0f, 1.0f);
 					nb++;
 				}
 				if (z>0 && mask[xyz-nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny));
+					assoc.set(node, nb+1, labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny), 0.0f, 1.0f);
 					nb++;
 				}
 				if (z<nz-1 && mask[xyz+nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny));
+					assoc.set(node, nb+1, labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny), 0.0f, 1.0f);
 					nb++;
 				}
 				// 18-C
 				if (connect>6) {
 					if (x>0 && y>0 && mask[xyz-1-nx])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx));
+						assoc.set(node, nb+1, labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && mask[xyz+1-nx])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx));
+						assoc.set(node, nb+1, labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && mask[xyz-1+nx])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx));
+						assoc.set(node, nb+1, labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && mask[xyz+1+nx])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx));
+						assoc.set(node, nb+1, labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y>0 && z>0 && mask[xyz-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y<ny-1 && z>0 && mask[xyz+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y>0 && z<nz-1 && mask[xyz-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y<ny-1 && z<nz-1 && mask[xyz+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z>0 && x>0 && mask[xyz-nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1));
+						assoc.set(node, nb+1, labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z<nz-1 && x>0 && mask[xyz+nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1));
+						assoc.set(node, nb+1, labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z>0 && x<nx-1 && mask[xyz-nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1));
+						assoc.set(node, nb+1, labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z<nz-1 && x<nx-1 && mask[xyz+nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1));
+						assoc.set(node, nb+1, labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1), 0.0f, 1.0f);
 						nb++;
 					}
 				}
 				// 26-C
 				if (connect>18) {
 					if (x>0 && y>0 && z>0 && mask[xyz-1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && z>0 && mask[xyz+1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && z>0 && mask[xyz-1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y>0 && z<nz-1 && mask[xyz-1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && z>0 && mask[xyz+1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && z<nz-1 && mask[xyz-1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && z<nz-1 && mask[xyz+1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && z<nz-1 && mask[xyz+1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 				}
@@ -339,7 +305,7 @@ public class FastProfileClustering {
 				// build the degree array
 				float deg = node.get(0).weight/node.get(0).size;
 				for (int n=0;n<nb;n++) {
-					deg += trp[n].weight/trp[n].size/nb;
+					deg += assoc.weight(node, n+1)/assoc.size(node, n+1)/nb;
 				}
 				//degree.set(labeling[xyz], new Float(deg));
 				node.get(0).delta = deg;
@@ -348,21 +314,15 @@ public class FastProfileClustering {
 				assoc.add(labeling[xyz], node);
 				*/
 				// link in 6 directions
-				Triple[] node = new Triple[nb+1];
-				node[0] = new Triple(labeling[xyz], 1.0f);
-				for (int n=0;n<nb;n++) {
-					node[n+1] = trp[n];
-				}
+				assoc.trim(node, nb+1);
+				assoc.set(node, 0, labeling[xyz], 1.0f, 0.0f, 1.0f);
 				// build the degree array
-				float deg = node[0].weight/node[0].size;
+				float deg = assoc.weight(node, 0)/assoc.size(node, 0);
 				for (int n=0;n<nb;n++) {
-					deg += trp[n].weight/trp[n].size/nb;
+					deg += assoc.weight(node, n+1)/assoc.size(node, n+1)/nb;
 				}
 				//degree.set(labeling[xyz], new Float(deg));
-				node[0].delta = deg;
-
-				// store the values
-				assoc[labeling[xyz]] = node;
+				assoc.setDelta(node, 0, deg);
 				
 				// store the latest active index for everything
 				latest[labeling[xyz]] = labeling[xyz];
@@ -379,17 +339,17 @@ public class FastProfileClustering {
 		self[0] = 0.0f;
 		other[0] = 0.0f;
 		for (int l=1;l<=nlb;l++) {
-			Triple[] node = assoc[l];
-			float di = node[0].delta;
-			for (int n=1;n<node.length;n++) {
+			int node = l;
+			float di = assoc.delta(node, 0);
+			for (int n=1;n<assoc.length(node);n++) {
 				//float dj = degree.get(node.get(n).id);
-				float wij = node[n].weight;
-				float wii = node[0].weight;
-				float wjj = assoc[node[n].id][0].weight;
-				float dj = assoc[node[n].id][0].delta;
-				float sij = node[n].size;
-				float si = node[0].size;
-				float sj = assoc[node[n].id][0].size;
+				float wij = assoc.weight(node, n);
+				float wii = assoc.weight(node, 0);
+				float wjj = assoc.weight(assoc.id(node, n), 0);
+				float dj = assoc.delta(assoc.id(node, n), 0);
+				float sij = assoc.size(node, n);
+				float si = assoc.size(node, 0);
+				float sj = assoc.size(assoc.id(node, n), 0);
 				//float dval = 2.0f*node.get(n).weight/(di + dj);
 				// use the formula with self-weights?
 				// D = (wii+wjj+2node)/(di+dj) -wii/di -wjj/dj
@@ -399,7 +359,7 @@ public class FastProfileClustering {
 				//node.get(n).delta = 2.0f*wij/sij*(di + dj)/(si + sj);
 				
 				// best so far..
-				node[n].delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij);
+				assoc.setDelta(node, n, wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij));
 				
 				// use the same score as the stopping criterion? slows down the process
 				//node.get(n).delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij)
@@ -407,7 +367,7 @@ public class FastProfileClustering {
 				
 				//other[0] += wij/sij;
 			}
-			cost[0] += node[0].weight/node[0].size/node[0].delta;
+			cost[0] += assoc.weight(node, 0)/assoc.size(node, 0)/assoc.delta(node, 0);
 			//self[0] += node.get(0).weight/node.get(0).size;
 		}
 	}
@@ -513,12 +473,12 @@ public class FastProfileClustering {
 
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			Triple[] node = assoc[lb];
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.length>1) {
+			if (assoc.length(node)>1) {
 				int best=1;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=2;b<node.length;b++) {
+				for (int b=2;b<assoc.length(node);b++) {
 					/*
 					// recompute the delta value every time
 					float score = node.get(b).weight/node.get(b).delta/(node.get(0).delta+assoc.get(node.get(b).id).get(0).delta);
@@ -528,10 +488,10 @@ public class FastProfileClustering {
 						bestscore = score;
 					}
 					*/
-					if (node[b].delta>node[best].delta) best = b;
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (debug) System.out.print(""+node.get(best).delta+","+l+":"+best);
-				maxtree.addValue(node[best].delta, node[0].id, best);
+				maxtree.addValue(assoc.delta(node, best), assoc.id(node, 0), best);
 			} else {
 				if (debug) System.out.print("!");	
 			}
@@ -561,14 +521,14 @@ public class FastProfileClustering {
 
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
-				Triple[] bNode = assoc[lbest];
-				int	lpair = bNode[nbest].id;
+				int bNode = lbest;
+				int	lpair = assoc.id(bNode, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
-					Triple[] pNode = assoc[lpair];
+					int pNode = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -579,13 +539,14 @@ public class FastProfileClustering {
 					
 					// new values
 					//ArrayList<Triple> aNode = new ArrayList<Triple>(Numerics.max(bNode.size(),pNode.size())-1);
-					Triple[] aNode = new Triple[bNode.length+pNode.length-3];
+					assoc.allocate(id, assoc.length(bNode)+assoc.length(pNode)-3);
+					int aNode = id;
 					// self-weight & degree
 					// d(uv) = d(u) + d(v)
 					// w(uv,uv) = w(u,u) + w(v,v) + 2*w(uv.uv)
-					aNode[0] = new Triple(id, bNode[0].weight + pNode[0].weight + 2.0f*bNode[nbest].weight, 
-												bNode[0].delta + pNode[0].delta,  
-												bNode[0].size + pNode[0].size + 2.0f*bNode[nbest].size );
+					assoc.set(aNode, 0, id, assoc.weight(bNode, 0) + assoc.weight(pNode, 0) + 2.0f*assoc.weight(bNode, nbest), 
+												assoc.delta(bNode, 0) + assoc.delta(pNode, 0),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) + 2.0f*assoc.size(bNode, nbest) );
 					
 					// new mixing weights
 					// w(uv,x) = w(u,x) + w(v,x)
@@ -593,16 +554,16 @@ public class FastProfileClustering {
 					int l=1;
 					BitSet counted = new BitSet();
 					counted.set(0);
-					for (int n=1;n<bNode.length;n++) {
+					for (int n=1;n<assoc.length(bNode);n++) {
 						//int lbn = bNode[n].id;
-						int lbn = latest[bNode[n].id];
+						int lbn = latest[assoc.id(bNode, n)];
 						if (lbn!=lpair) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = assoc[lbn][0].id;
+									lbn = assoc.id(lbn, 0);
 									/*
 									int lbn2 = assoc[lbn][0].id;
 									if (lbn2!=lbn) {
@@ -620,8 +581,8 @@ public class FastProfileClustering {
 								//lbn = latest[lbn];
 							}
 							// retrieve the up-to-date weight linking depending on creation date
-							float wnb = bNode[n].weight;
-							float snb = bNode[n].size;
+							float wnb = assoc.weight(bNode, n);
+							float snb = assoc.size(bNode, n);
 							// maybe not: just combine all the original weights onto a single label
 							/*
 							if (lbn>lbest) {
@@ -652,21 +613,21 @@ public class FastProfileClustering {
 							}
 							*/
 							if (!found && lbn!=lpair) {
-								aNode[l] = new Triple(lbn, wnb, snb);
+								assoc.set(aNode, l, lbn, wnb, 0.0f, snb);
 								l++;
 							}	
 						}
 					}
-					for (int n=1;n<pNode.length;n++) {
+					for (int n=1;n<assoc.length(pNode);n++) {
 						//int lbn = pNode[n].id;
-						int lbn = latest[pNode[n].id];
+						int lbn = latest[assoc.id(pNode, n)];
 						if (lbn!=lbest) {
 							if (!active.get(lbn)) {
 								// make sure it's the most up-to-date version of the label
 								tracks.reset();
 								while (!active.get(lbn)) {
 									tracks.add(lbn);
-									lbn = assoc[lbn][0].id;
+									lbn = assoc.id(lbn, 0);
 									/*
 									int lbn2 = assoc[lbn][0].id;
 									if (lbn2!=lbn) {
@@ -685,8 +646,8 @@ public class FastProfileClustering {
 							}
 							// retrieve the up-to-date weight linking to lpair ?
 							// or is this counting twice??
-							float wnb = pNode[n].weight;
-							float snb = pNode[n].size;
+							float wnb = assoc.weight(pNode, n);
+							float snb = assoc.size(pNode, n);
 							/*
 							if (lbn>lpair) {
 								boolean found=false;
@@ -707,38 +668,34 @@ public class FastProfileClustering {
 							//for (int m=1;m<aNode.size() && !found;m++) {
 							int bLength = l;
 							for (int m=1;m<bLength && !found;m++) {
-								if (lbn==aNode[m].id && lbn!=lbest) {
+								if (lbn==assoc.id(aNode, m) && lbn!=lbest) {
 									// found: add the values
 									found=true;
-									aNode[m].weight += wnb;
-									aNode[m].size += snb;
+									assoc.setWeight(aNode, m, assoc.weight(aNode, m) + wnb);
+									assoc.setSize(aNode, m, assoc.size(aNode, m) + snb);
 									//if (!counted.get(m)) counted.set(m);
 									//else System.out.print(";");
 								}
 							}
 							if (!found && lbn!=lbest) {
 								// create a new one
-								aNode[l] = new Triple(lbn, wnb, snb);
+								assoc.set(aNode, l, lbn, wnb, 0.0f, snb);
 								l++;
 							}
 						}
 					}
 					// make sure we don't have extra empty values
 					//aNode.trimToSize();
-					if (l<aNode.length) {
-						Triple[] tmp = new Triple[l];
-						for (int n=0;n<l;n++) tmp[n] = aNode[n];
-						aNode = tmp;
-					}
+					assoc.trim(aNode, l);
 					
 					// new deltas : no need of the u,v values anymore
 					// D(uv,x) = ( w(uv,uv) + w(x,x) + 2w(uv,x) )/( d(uv)+d(x) ) - w(uv,uv)/d(uv) - w(x,x)/d(x)
-					for (int n=1; n<aNode.length; n++) {
-						Triple[] wngb = assoc[aNode[n].id];
+					for (int n=1; n<assoc.length(aNode); n++) {
+						int wngb = assoc.id(aNode, n);
 						// best method so far
-						aNode[n].delta = aNode[n].weight/aNode[n].size
-												*( aNode[0].weight + wngb[0].weight + 2.0f*aNode[n].weight )
-												/( aNode[0].size + wngb[0].size + 2.0f*aNode[n].size );
+						assoc.setDelta(aNode, n, assoc.weight(aNode, n)/assoc.size(aNode, n)
+												*( assoc.weight(aNode, 0) + assoc.weight(wngb, 0) + 2.0f*assoc.weight(aNode, n) )
+												/( assoc.size(aNode, 0) + assoc.size(wngb, 0) + 2.0f*assoc.size(aNode, n) ));
 												
 						// use the same criterion than for stopping? makes sense, but slows down the process
 						/*
@@ -758,18 +715,18 @@ public class FastProfileClustering {
 					
 					/// probably not needed
 					// recompute the degree? (for averaged links)
-					aNode[0].delta = aNode[0].weight/aNode[0].size;
-					for (int n=1; n<aNode.length; n++) {
-						aNode[0].delta += aNode[n].weight/aNode[n].size/(aNode.length-1.0f);
+					assoc.setDelta(aNode, 0, assoc.weight(aNode, 0)/assoc.size(aNode, 0));
+					for (int n=1; n<assoc.length(aNode); n++) {
+						assoc.setDelta(aNode, 0, assoc.delta(aNode, 0) + assoc.weight(aNode, n)/assoc.size(aNode, n)/(assoc.length(aNode)-1.0f));
 					}
 					/*
 					cost[iter] = 	- 0.5f*bNode.get(0).weight/bNode.get(0).size/bNode.get(0).delta
 									- 0.5f*pNode.get(0).weight/pNode.get(0).size/pNode.get(0).delta
 									+ aNode.get(0).weight/aNode.get(0).size/aNode.get(0).delta;
 					*/
-					self[iter] = 	bNode[nbest].weight/bNode[nbest].size * aNode[0].weight/aNode[0].size;
-					other[iter] = (1.0f-bNode[nbest].weight/bNode[nbest].size) * bNode[0].weight/bNode[0].size
-																							* pNode[0].weight/pNode[0].size;
+					self[iter] = 	assoc.weight(bNode, nbest)/assoc.size(bNode, nbest) * assoc.weight(aNode, 0)/assoc.size(aNode, 0);
+					other[iter] = (1.0f-assoc.weight(bNode, nbest)/assoc.size(bNode, nbest)) * assoc.weight(bNode, 0)/assoc.size(bNode, 0)
+																							* assoc.weight(pNode, 0)/assoc.size(pNode, 0);
 					cost[iter] = self[iter]-other[iter];
 					/*
 					// update the association cost
@@ -808,14 +765,14 @@ public class FastProfileClustering {
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+maxtree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length+")");		
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");		
 																	
 				   if (verbose) if (self[iter]-other[iter]<0 && first) {
 				   	   System.out.println(iter+" / "+nclusters+": c= "+(self[iter]-other[iter])
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+maxtree.getCurrentSize()+"|"
-																	+bNode.length+", "+pNode.length+")");	
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");	
 					   first=false;
 					   if (firststop) stop = true;
 				   }								
@@ -849,7 +806,6 @@ public class FastProfileClustering {
 					}
 					*/
 					// add the new values to list, binary tree
-					assoc[id] = aNode;
 					active.set(id, true);
 					
 					/*
@@ -859,7 +815,7 @@ public class FastProfileClustering {
 					}
 					*/
 					
-					if (aNode.length>1) {
+					if (assoc.length(aNode)>1) {
 						int best=1;
 						/*
 						float bestscore = 2.0f*aNode.get(1).weight/aNode.get(1).delta
@@ -875,25 +831,25 @@ public class FastProfileClustering {
 							}
 						}
 						*/
-						for (int b=2;b<aNode.length;b++) {
-							if (aNode[b].delta>aNode[best].delta) best = b;
+						for (int b=2;b<assoc.length(aNode);b++) {
+							if (assoc.delta(aNode, b)>assoc.delta(aNode, best)) best = b;
 						}
-						maxtree.addValue(aNode[best].delta, id, best);
+						maxtree.addValue(assoc.delta(aNode, best), id, best);
 
-						if (debug) if (aNode[best].delta>1) {
+						if (debug) if (assoc.delta(aNode, best)>1) {
 							System.out.println(nclusters+": c= "+cost[iter]+" ("
-																	+bNode[0].delta+", "
-																	+bNode[0].weight+", "
-																	+bNode[0].size+" | "
-																	+pNode[0].delta+", "
-																	+pNode[0].weight+", "
-																	+pNode[0].size+" | "
-																	+aNode[0].delta+", "
-																	+aNode[0].weight+", "
-																	+aNode[0].size+")");					   
+																	+assoc.delta(bNode, 0)+", "
+																	+assoc.weight(bNode, 0)+", "
+																	+assoc.size(bNode, 0)+" | "
+																	+assoc.delta(pNode, 0)+", "
+																	+assoc.weight(pNode, 0)+", "
+																	+assoc.size(pNode, 0)+" | "
+																	+assoc.delta(aNode, 0)+", "
+																	+assoc.weight(aNode, 0)+", "
+																	+assoc.size(aNode, 0)+")");					   
 							
-							for (int n=1; n<aNode.length; n++) {
-								System.out.print("<"+aNode[n].delta+", "+aNode[n].weight+", "+aNode[n].size+">");
+							for (int n=1; n<assoc.length(aNode); n++) {
+								System.out.print("<"+assoc.delta(aNode, n)+", "+assoc.weight(aNode, n)+", "+assoc.size(aNode, n)+">");
 							}
 							System.out.print("\n");
 						}
@@ -907,12 +863,8 @@ public class FastProfileClustering {
 					assoc.set(lbest, tag);
 					assoc.set(lpair, tag);
 					*/
-					assoc[lbest] = null;
-					assoc[lpair] = null;
-					assoc[lbest] = new Triple[1];
-					assoc[lpair] = new Triple[1];
-					assoc[lbest][0] = new Triple(id);
-					assoc[lpair][0] = new Triple(id);
+					assoc.redirect(lbest, id, 1.0f);
+					assoc.redirect(lpair, id, 1.0f);
 					
 					// de-activate the labels
 					active.set(lbest, false);
@@ -926,11 +878,11 @@ public class FastProfileClustering {
 					// update the neighbors too, but only up to a point 
 					// (-> use both strategies to gain speed in the two extreme worst case scenarios)
 					int maxlength = 100;
-					for (int b=1;b<aNode.length && b<maxlength;b++) {
-						for (int c=1;c<assoc[aNode[b].id].length && c<maxlength;c++) {
-							if (active.get(aNode[b].id))
-								if (assoc[aNode[b].id][c].id==lbest || assoc[aNode[b].id][c].id==lpair)
-									assoc[aNode[b].id][c].id = id;
+					for (int b=1;b<assoc.length(aNode) && b<maxlength;b++) {
+						for (int c=1;c<assoc.length(assoc.id(aNode, b)) && c<maxlength;c++) {
+							if (active.get(assoc.id(aNode, b)))
+								if (assoc.id(assoc.id(aNode, b), c)==lbest || assoc.id(assoc.id(aNode, b), c)==lpair)
+									assoc.setId(assoc.id(aNode, b), c, id);
 						}
 					}	
 					
@@ -1105,7 +1057,7 @@ public class FastProfileClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -1190,7 +1142,7 @@ public class FastProfileClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -1234,7 +1186,7 @@ public class FastProfileClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -1269,7 +1221,7 @@ public class FastProfileClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -1327,7 +1279,7 @@ public class FastProfileClustering {
 		for (int n=0;n<2*nlb;n++) latest[n] = 0;
 		
 		for (int n=2*nlb-maxlb-1; n>0; n--) {
-			int lb = assoc[n][0].id;
+			int lb = assoc.id(n, 0);
 			if (lb==n) latest[n] = lb;
 			else {
 				// recurse up to the top one
@@ -1386,11 +1338,11 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc[lb][0].delta;
+				tmp[xyz] = assoc.delta(lb, 0);
 			}
 		}
 		return tmp;
@@ -1403,11 +1355,11 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc[lb][0].weight;
+				tmp[xyz] = assoc.weight(lb, 0);
 			}
 		}
 		return tmp;
@@ -1420,11 +1372,11 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[x][y][z] = assoc[lb][0].weight/assoc[lb][0].size;
+				tmp[x][y][z] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -1437,7 +1389,7 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = (int)clusters[x][y][z];
-				tmp[x][y][z] = assoc[lb][0].weight/assoc[lb][0].size;
+				tmp[x][y][z] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -1450,7 +1402,7 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = (int)clusters[xyz];
-				tmp[xyz] = assoc[lb][0].weight/assoc[lb][0].size;
+				tmp[xyz] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -1463,11 +1415,11 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc[lb][0].size;
+				tmp[xyz] = assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -1480,13 +1432,13 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float w = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.min(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[xyz] = w;
@@ -1503,15 +1455,15 @@ public class FastProfileClustering {
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
 				
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				
 				//lb = latest[labeling[xyz]];
 				float w = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.min(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[x][y][z] = w;
@@ -1534,8 +1486,8 @@ public class FastProfileClustering {
 				}
 				*/
 				float w = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.min(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[x][y][z] = w;
@@ -1551,8 +1503,8 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				for (int l=1;l<assoc[lb].length;l++) {
-					tmp[x][y][z][l-1] = assoc[lb][l].weight/assoc[lb][l].size;
+				for (int l=1;l<assoc.length(lb);l++) {
+					tmp[x][y][z][l-1] = assoc.weight(lb, l)/assoc.size(lb, l);
 				}
 			}
 		}
@@ -1565,13 +1517,13 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float w = -1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					w = Numerics.max(w, assoc[lb][l].weight/assoc[lb][l].size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.max(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				tmp[xyz] = w;
 			}
@@ -1586,13 +1538,13 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float d = 1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					d = Numerics.min(d, assoc[lb][l].delta);
+				for (int l=1;l<assoc.length(lb);l++) {
+					d = Numerics.min(d, assoc.delta(lb, l));
 				}
 				tmp[xyz] = d;
 			}
@@ -1606,13 +1558,13 @@ public class FastProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc[lb][0].id>0 && assoc[lb][0].id!=lb 
-						&& !active.get(lb) && assoc[lb][0].id<2*nlb-maxlb) {
-					lb = assoc[lb][0].id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float d = -1e9f;
-				for (int l=1;l<assoc[lb].length;l++) {
-					d = Numerics.max(d, assoc[lb][l].delta);
+				for (int l=1;l<assoc.length(lb);l++) {
+					d = Numerics.max(d, assoc.delta(lb, l));
 				}
 				tmp[xyz] = d;
 			}
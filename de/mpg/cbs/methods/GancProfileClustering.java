@@ -57,7 +57,7 @@ public class GancProfileClustering {
 	private		int			key;
 	
 	//private		ArrayList<Float>	degree;
-	private		ArrayList<ArrayList<Triple>>	assoc;
+	private		ClusterAdjacency				assoc;
 	private		BitSet							active;
 	private		BinaryHeapPair					maxtree;
 	private		float[]							cost;
@@ -67,40 +67,6 @@ public class GancProfileClustering {
     static final boolean		debug				=	true;
 	static final boolean		verbose				=	true;
     
-	// simple id, value class
-	private static class Triple {
-		public int id;
-		public float weight;
-		public float delta;
-		public float size;
-		
-		public Triple(int id) {
-			this.id = id;
-			this.weight = 1.0f;
-			this.delta = 0.0f;
-			this.size = 1;
-		}
-		public Triple(int id, float weight) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = 0.0f;
-			this.size = 1;
-		}
-		public Triple(int id, float weight, float size) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = 0.0f;
-			this.size = size;
-		}
-		public Triple(int id, float weight, float delta, float size) {
-			this.id = id;
-			this.weight = weight;
-			this.delta = delta;
-			this.size = size;
-		}
-		
-	}
-	
 	/**
 	 *  constructor
 	 */
@@ -160,126 +126,126 @@ public class GancProfileClustering {
 		
 		if (debug) System.out.println("-- weight initialization --");
 		
-		assoc = new ArrayList<ArrayList<Triple>>(nlb+1);
+		assoc = new ClusterAdjacency(2*nlb, (connect+1)*(nlb+1));
 		//degree = new ArrayList(nlb+1);
-		assoc.add(0, new ArrayList<Triple>(1));
-		
-		Triple[] trp = new Triple[connect];
+		assoc.allocate(0, 0);
 		
 		if (debug) System.out.println("first pass");
 
 		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) for (int z=0;z<nz;z++) {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
+				int node = labeling[xyz];
+				assoc.allocate(node, connect+1);
 				int nb=0;
 				// 6-C
 				if (x>0 && mask[xyz-1])	{
-					trp[nb] = new Triple(labeling[xyz-1], associationWeight(xyz,xyz-1));
+					assoc.set(node, nb+1, labeling[xyz-1], associationWeight(xyz,xyz-1), 0.0f, 1.0f);
 					nb++;
 				}
 				if (x<nx-1 && mask[xyz+1])	{
-					trp[nb] = new Triple(labeling[xyz+1], associationWeight(xyz,xyz+1));
+					assoc.set(node, nb+1, labeling[xyz+1], associationWeight(xyz,xyz+1), 0.0f, 1.0f);
 					nb++;
 				}
 				if (y>0 && mask[xyz-nx])	{
-					trp[nb] = new Triple(labeling[xyz-nx], associationWeight(xyz,xyz-nx));
+					assoc.set(node, nb+1, labeling[xyz-nx], associationWeight(xyz,xyz-nx), 0.0f, 1.0f);
 					nb++;
 				}
 				if (y<ny-1 && mask[xyz+nx])	{
-					trp[nb] = new Triple(labeling[xyz+nx], associationWeight(xyz,xyz+nx));
+					assoc.set(node, nb+1, labeling[xyz+nx], associationWeight(xyz,xyz+nx), 0.0f, 1.0f);
 					nb++;
 				}
 				if (z>0 && mask[xyz-nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny));
+					assoc.set(node, nb+1, labeling[xyz-nx*ny], associationWeight(xyz,xyz-nx*ny), 0.0f, 1.0f);
 					nb++;
 				}
 				if (z<nz-1 && mask[xyz+nx*ny])	{
-					trp[nb] = new Triple(labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny));
+					assoc.set(node, nb+1, labeling[xyz+nx*ny], associationWeight(xyz,xyz+nx*ny), 0.0f, 1.0f);
 					nb++;
 				}
 				// 18-C
 				if (connect>6) {
 					if (x>0 && y>0 && mask[xyz-1-nx])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx));
+						assoc.set(node, nb+1, labeling[xyz-1-nx], associationWeight(xyz,xyz-1-nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && mask[xyz+1-nx])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx));
+						assoc.set(node, nb+1, labeling[xyz+1-nx], associationWeight(xyz,xyz+1-nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && mask[xyz-1+nx])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx));
+						assoc.set(node, nb+1, labeling[xyz-1+nx], associationWeight(xyz,xyz-1+nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && mask[xyz+1+nx])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx));
+						assoc.set(node, nb+1, labeling[xyz+1+nx], associationWeight(xyz,xyz+1+nx), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y>0 && z>0 && mask[xyz-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-nx-nx*ny], associationWeight(xyz,xyz-nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y<ny-1 && z>0 && mask[xyz+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+nx-nx*ny], associationWeight(xyz,xyz+nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y>0 && z<nz-1 && mask[xyz-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-nx+nx*ny], associationWeight(xyz,xyz-nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (y<ny-1 && z<nz-1 && mask[xyz+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+nx+nx*ny], associationWeight(xyz,xyz+nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z>0 && x>0 && mask[xyz-nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1));
+						assoc.set(node, nb+1, labeling[xyz-nx*ny-1], associationWeight(xyz,xyz-nx*ny-1), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z<nz-1 && x>0 && mask[xyz+nx*ny-1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1));
+						assoc.set(node, nb+1, labeling[xyz+nx*ny-1], associationWeight(xyz,xyz+nx*ny-1), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z>0 && x<nx-1 && mask[xyz-nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1));
+						assoc.set(node, nb+1, labeling[xyz-nx*ny+1], associationWeight(xyz,xyz-nx*ny+1), 0.0f, 1.0f);
 						nb++;
 					}
 					if (z<nz-1 && x<nx-1 && mask[xyz+nx*ny+1])	{
-						trp[nb] = new Triple(labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1));
+						assoc.set(node, nb+1, labeling[xyz+nx*ny+1], associationWeight(xyz,xyz+nx*ny+1), 0.0f, 1.0f);
 						nb++;
 					}
 				}
 				// 26-C
 				if (connect>18) {
 					if (x>0 && y>0 && z>0 && mask[xyz-1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1-nx-nx*ny], associationWeight(xyz,xyz-1-nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && z>0 && mask[xyz+1-nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1-nx-nx*ny], associationWeight(xyz,xyz+1-nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && z>0 && mask[xyz-1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1+nx-nx*ny], associationWeight(xyz,xyz-1+nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y>0 && z<nz-1 && mask[xyz-1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1-nx+nx*ny], associationWeight(xyz,xyz-1-nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && z>0 && mask[xyz+1+nx-nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1+nx-nx*ny], associationWeight(xyz,xyz+1+nx-nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x>0 && y<ny-1 && z<nz-1 && mask[xyz-1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz-1+nx+nx*ny], associationWeight(xyz,xyz-1+nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y>0 && z<nz-1 && mask[xyz+1-nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1-nx+nx*ny], associationWeight(xyz,xyz+1-nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 					if (x<nx-1 && y<ny-1 && z<nz-1 && mask[xyz+1+nx+nx*ny])	{
-						trp[nb] = new Triple(labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny));
+						assoc.set(node, nb+1, labeling[xyz+1+nx+nx*ny], associationWeight(xyz,xyz+1+nx+nx*ny), 0.0f, 1.0f);
 						nb++;
 					}
 				}
@@ -295,21 +261,15 @@ public class GancProfileClustering {
 				}
 				*/
 				// link in 6 directions
-				ArrayList<Triple> node = new ArrayList<Triple>(nb);
-				node.add(0, new Triple(labeling[xyz], 1.0f));
-				for (int n=0;n<nb;n++) {
-					node.add(n+1, trp[n]);
-				}
+				assoc.trim(node, nb+1);
+				assoc.set(node, 0, labeling[xyz], 1.0f, 0.0f, 1.0f);
 				// build the degree array
-				float deg = node.get(0).weight/node.get(0).size;
+				float deg = assoc.weight(node, 0)/assoc.size(node, 0);
 				for (int n=0;n<nb;n++) {
-					deg += trp[n].weight/trp[n].size/nb;
+					deg += assoc.weight(node, n+1)/assoc.size(node, n+1)/nb;
 				}
 				//degree.set(labeling[xyz], new Float(deg));
-				node.get(0).delta = deg;
-
-				// store the values
-				assoc.add(labeling[xyz], node);
+				assoc.setDelta(node, 0, deg);
 			}
 		}
 		
@@ -323,17 +283,17 @@ public class GancProfileClustering {
 		self[0] = 0.0f;
 		other[0] = 0.0f;
 		for (int l=1;l<=nlb;l++) {
-			ArrayList<Triple> node = assoc.get(l);
-			float di = node.get(0).delta;
-			for (int n=1;n<node.size();n++) {
+			int node = l;
+			float di = assoc.delta(node, 0);
+			for (int n=1;n<assoc.length(node);n++) {
 				//float dj = degree.get(node.get(n).id);
-				float wij = node.get(n).weight;
-				float wii = node.get(0).weight;
-				float wjj = assoc.get(node.get(n).id).get(0).weight;
-				float dj = assoc.get(node.get(n).id).get(0).delta;
-				float sij = node.get(n).size;
-				float si = node.get(0).size;
-				float sj = assoc.get(node.get(n).id).get(0).size;
+				float wij = assoc.weight(node, n);
+				float wii = assoc.weight(node, 0);
+				float wjj = assoc.weight(assoc.id(node, n), 0);
+				float dj = assoc.delta(assoc.id(node, n), 0);
+				float sij = assoc.size(node, n);
+				float si = assoc.size(node, 0);
+				float sj = assoc.size(assoc.id(node, n), 0);
 				//float dval = 2.0f*node.get(n).weight/(di + dj);
 				// use the formula with self-weights?
 				// D = (wii+wjj+2node)/(di+dj) -wii/di -wjj/dj
@@ -343,7 +303,7 @@ public class GancProfileClustering {
 				//node.get(n).delta = 2.0f*wij/sij*(di + dj)/(si + sj);
 				
 				// best so far..
-				node.get(n).delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij);
+				assoc.setDelta(node, n, wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij));
 				
 				// use the same score as the stopping criterion? slows down the process
 				//node.get(n).delta = wij/sij*(wii+wjj+2.0f*wij)/(si + sj + 2.0f*sij)
@@ -351,7 +311,7 @@ public class GancProfileClustering {
 				
 				//other[0] += wij/sij;
 			}
-			cost[0] += node.get(0).weight/node.get(0).size/node.get(0).delta;
+			cost[0] += assoc.weight(node, 0)/assoc.size(node, 0)/assoc.delta(node, 0);
 			//self[0] += node.get(0).weight/node.get(0).size;
 		}
 	}
@@ -369,12 +329,12 @@ public class GancProfileClustering {
 
 		for (int lb=1;lb<=nlb;lb++) {
 			//if (debug) System.out.print(".");
-			ArrayList<Triple> node = assoc.get(lb);
+			int node = lb;
 			// only store the largest delta (the others will never be selected because it gets relabeled)
-			if (node.size()>1) {
+			if (assoc.length(node)>1) {
 				int best=1;
 				//float bestscore = node.get(1).weight/node.get(1).delta/(node.get(0).delta+assoc.get(node.get(1).id).get(0).delta);
-				for (int b=2;b<node.size();b++) {
+				for (int b=2;b<assoc.length(node);b++) {
 					/*
 					// recompute the delta value every time
 					float score = node.get(b).weight/node.get(b).delta/(node.get(0).delta+assoc.get(node.get(b).id).get(0).delta);
@@ -384,10 +344,10 @@ public class GancProfileClustering {
 						bestscore = score;
 					}
 					*/
-					if (node.get(b).delta>node.get(best).delta) best = b;
+					if (assoc.delta(node, b)>assoc.delta(node, best)) best = b;
 				}
 				//if (debug) System.out.print(""+node.get(best).delta+","+l+":"+best);
-				maxtree.addValue(node.get(best).delta, node.get(0).id, best);
+				maxtree.addValue(assoc.delta(node, best), assoc.id(node, 0), best);
 			} else {
 				if (debug) System.out.print("!");	
 			}
@@ -414,14 +374,14 @@ public class GancProfileClustering {
 
 			// retrieve corresponding values (if they still exist)
 			if (active.get(lbest)) {
-				ArrayList<Triple> bNode = assoc.get(lbest);
-				int	lpair = bNode.get(nbest).id;
+				int bNode = lbest;
+				int	lpair = assoc.id(bNode, nbest);
 				
 				//if (debug) System.out.print("|"+lbest+"-"+lpair);
 			
 				// update the link label? no, because the weights are now different
 				if (active.get(lpair)) {
-					ArrayList<Triple> pNode = assoc.get(lpair);
+					int pNode = lpair;
 
 					// only count iterations when changing the labels
 					iter++;
@@ -432,13 +392,14 @@ public class GancProfileClustering {
 					
 					// new values
 					//ArrayList<Triple> aNode = new ArrayList<Triple>(Numerics.max(bNode.size(),pNode.size())-1);
-					ArrayList<Triple> aNode = new ArrayList<Triple>(bNode.size()+pNode.size()-2);
+					assoc.allocate(id, assoc.length(bNode)+assoc.length(pNode)-1);
+					int aNode = id;
 					// self-weight & degree
 					// d(uv) = d(u) + d(v)
 					// w(uv,uv) = w(u,u) + w(v,v) + 2*w(uv.uv)
-					aNode.add(0, new Triple(id, bNode.get(0).weight + pNode.get(0).weight + 2.0f*bNode.get(nbest).weight, 
-												bNode.get(0).delta + pNode.get(0).delta,  
-												bNode.get(0).size + pNode.get(0).size + 2.0f*bNode.get(nbest).size ) );
+					assoc.set(aNode, 0, id, assoc.weight(bNode, 0) + assoc.weight(pNode, 0) + 2.0f*assoc.weight(bNode, nbest), 
+												assoc.delta(bNode, 0) + assoc.delta(pNode, 0),  
+												assoc.size(bNode, 0) + assoc.size(pNode, 0) + 2.0f*assoc.size(bNode, nbest) );
 					
 					// new mixing weights
 					// w(uv,x) = w(u,x) + w(v,x)
@@ -446,14 +407,14 @@ public class GancProfileClustering {
 					int l=1;
 					BitSet counted = new BitSet();
 					counted.set(0);
-					for (int n=1;n<bNode.size();n++) {
-						int lbn = bNode.get(n).id;
+					for (int n=1;n<assoc.length(bNode);n++) {
+						int lbn = assoc.id(bNode, n);
 						if (lbn!=lpair) {
 							// make sure it's the most up-to-date version of the label
-							while (!active.get(lbn)) lbn = assoc.get(lbn).get(0).id;
+							while (!active.get(lbn)) lbn = assoc.id(lbn, 0);
 							// retrieve the up-to-date weight linking depending on creation date
-							float wnb = bNode.get(n).weight;
-							float snb = bNode.get(n).size;
+							float wnb = assoc.weight(bNode, n);
+							float snb = assoc.size(bNode, n);
 							// maybe not: just combine all the original weights onto a single label
 							/*
 							if (lbn>lbest) {
@@ -484,20 +445,20 @@ public class GancProfileClustering {
 							}
 							*/
 							if (!found && lbn!=lpair) {
-								aNode.add(l, new Triple(lbn, wnb, snb));
+								assoc.set(aNode, l, lbn, wnb, 0.0f, snb);
 								l++;
 							}	
 						}
 					}
-					for (int n=1;n<pNode.size();n++) {
-						int lbn = pNode.get(n).id;
+					for (int n=1;n<assoc.length(pNode);n++) {
+						int lbn = assoc.id(pNode, n);
 						if (lbn!=lbest) {
 							// make sure it's the most up-to-date version of the label
-							while (!active.get(lbn)) lbn = assoc.get(lbn).get(0).id;
+							while (!active.get(lbn)) lbn = assoc.id(lbn, 0);
 							// retrieve the up-to-date weight linking to lpair ?
 							// or is this counting twice??
-							float wnb = pNode.get(n).weight;
-							float snb = pNode.get(n).size;
+							float wnb = assoc.weight(pNode, n);
+							float snb = assoc.size(pNode, n);
 							/*
 							if (lbn>lpair) {
 								boolean found=false;
@@ -530,22 +491,22 @@ public class GancProfileClustering {
 							*/
 							if (!found && lbn!=lbest) {
 								// create a new one
-								aNode.add(l, new Triple(lbn, wnb, snb));
+								assoc.set(aNode, l, lbn, wnb, 0.0f, snb);
 								l++;
 							}
 						}
 					}
 					// make sure we don't have extra empty values
-					aNode.trimToSize();
+					assoc.trim(aNode, l);
 					
 					// new deltas : no need of the u,v values anymore
 					// D(uv,x) = ( w(uv,uv) + w(x,x) + 2w(uv,x) )/( d(uv)+d(x) ) - w(uv,uv)/d(uv) - w(x,x)/d(x)
-					for (int n=1; n<aNode.size(); n++) {
-						ArrayList<Triple> wngb = assoc.get(aNode.get(n).id);
+					for (int n=1; n<assoc.length(aNode); n++) {
+						int wngb = assoc.id(aNode, n);
 						// best method so far
-						aNode.get(n).delta = aNode.get(n).weight/aNode.get(n).size
-												*( aNode.get(0).weight + wngb.get(0).weight + 2.0f*aNode.get(n).weight )
-												/( aNode.get(0).size + wngb.get(0).size + 2.0f*aNode.get(n).size );
+						assoc.setDelta(aNode, n, assoc.weight(aNode, n)/assoc.size(aNode, n)
+												*( assoc.weight(aNode, 0) + assoc.weight(wngb, 0) + 2.0f*assoc.weight(aNode, n) )
+												/( assoc.size(aNode, 0) + assoc.size(wngb, 0) + 2.0f*assoc.size(aNode, n) ));
 												
 						// use the same criterion than for stopping? makes sense, but slows down the process
 						/*
@@ -565,18 +526,18 @@ public class GancProfileClustering {
 					
 					/// probably not needed
 					// recompute the degree? (for averaged links)
-					aNode.get(0).delta = aNode.get(0).weight/aNode.get(0).size;
-					for (int n=1; n<aNode.size(); n++) {
-						aNode.get(0).delta += aNode.get(n).weight/aNode.get(n).size/(aNode.size()-1.0f);
+					assoc.setDelta(aNode, 0, assoc.weight(aNode, 0)/assoc.size(aNode, 0));
+					for (int n=1; n<assoc.length(aNode); n++) {
+						assoc.setDelta(aNode, 0, assoc.delta(aNode, 0) + assoc.weight(aNode, n)/assoc.size(aNode, n)/(assoc.length(aNode)-1.0f));
 					}
 					/*
 					cost[iter] = 	- 0.5f*bNode.get(0).weight/bNode.get(0).size/bNode.get(0).delta
 									- 0.5f*pNode.get(0).weight/pNode.get(0).size/pNode.get(0).delta
 									+ aNode.get(0).weight/aNode.get(0).size/aNode.get(0).delta;
 					*/
-					self[iter] = 	bNode.get(nbest).weight/bNode.get(nbest).size * aNode.get(0).weight/aNode.get(0).size;
-					other[iter] = (1.0f-bNode.get(nbest).weight/bNode.get(nbest).size) * bNode.get(0).weight/bNode.get(0).size
-																							* pNode.get(0).weight/pNode.get(0).size;
+					self[iter] = 	assoc.weight(bNode, nbest)/assoc.size(bNode, nbest) * assoc.weight(aNode, 0)/assoc.size(aNode, 0);
+					other[iter] = (1.0f-assoc.weight(bNode, nbest)/assoc.size(bNode, nbest)) * assoc.weight(bNode, 0)/assoc.size(bNode, 0)
+																							* assoc.weight(pNode, 0)/assoc.size(pNode, 0);
 					cost[iter] = self[iter]-other[iter];
 					/*
 					// update the association cost
@@ -615,14 +576,14 @@ public class GancProfileClustering {
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+maxtree.getCurrentSize()+"|"
-																	+bNode.size()+", "+pNode.size()+")");		
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");		
 																	
 				   if (verbose) if (self[iter]-other[iter]<0 && first) {
 				   	   System.out.println(iter+" / "+nclusters+": c= "+(self[iter]-other[iter])
 																	+", s= "+self[iter]
 																	+", o= "+other[iter]
 																	+" ("+maxtree.getCurrentSize()+"|"
-																	+bNode.size()+", "+pNode.size()+")");	
+																	+assoc.length(bNode)+", "+assoc.length(pNode)+")");	
 					   first=false;
 				   }								
 					/*						   
@@ -655,10 +616,9 @@ public class GancProfileClustering {
 					}
 					*/
 					// add the new values to list, binary tree
-					assoc.add(id, aNode);
 					active.set(id, true);
 					
-					if (aNode.size()>1) {
+					if (assoc.length(aNode)>1) {
 						int best=1;
 						/*
 						float bestscore = 2.0f*aNode.get(1).weight/aNode.get(1).delta
@@ -674,25 +634,25 @@ public class GancProfileClustering {
 							}
 						}
 						*/
-						for (int b=2;b<aNode.size();b++) {
-							if (aNode.get(b).delta>aNode.get(best).delta) best = b;
+						for (int b=2;b<assoc.length(aNode);b++) {
+							if (assoc.delta(aNode, b)>assoc.delta(aNode, best)) best = b;
 						}
-						maxtree.addValue(aNode.get(best).delta, id, best);
+						maxtree.addValue(assoc.delta(aNode, best), id, best);
 
-						if (debug) if (aNode.get(best).delta>1) {
+						if (debug) if (assoc.delta(aNode, best)>1) {
 							System.out.println(nclusters+": c= "+cost[iter]+" ("
-																	+bNode.get(0).delta+", "
-																	+bNode.get(0).weight+", "
-																	+bNode.get(0).size+" | "
-																	+pNode.get(0).delta+", "
-																	+pNode.get(0).weight+", "
-																	+pNode.get(0).size+" | "
-																	+aNode.get(0).delta+", "
-																	+aNode.get(0).weight+", "
-																	+aNode.get(0).size+")");					   
+																	+assoc.delta(bNode, 0)+", "
+																	+assoc.weight(bNode, 0)+", "
+																	+assoc.size(bNode, 0)+" | "
+																	+assoc.delta(pNode, 0)+", "
+																	+assoc.weight(pNode, 0)+", "
+																	+assoc.size(pNode, 0)+" | "
+																	+assoc.delta(aNode, 0)+", "
+																	+assoc.weight(aNode, 0)+", "
+																	+assoc.size(aNode, 0)+")");					   
 							
-							for (int n=1; n<aNode.size(); n++) {
-								System.out.print("<"+aNode.get(n).delta+", "+aNode.get(n).weight+", "+aNode.get(n).size+">");
+							for (int n=1; n<assoc.length(aNode); n++) {
+								System.out.print("<"+assoc.delta(aNode, n)+", "+assoc.weight(aNode, n)+", "+assoc.size(aNode, n)+">");
 							}
 							System.out.print("\n");
 						}
@@ -706,16 +666,12 @@ public class GancProfileClustering {
 					assoc.set(lbest, tag);
 					assoc.set(lpair, tag);
 					*/
-					assoc.get(lbest).clear();
-					assoc.get(lpair).clear();
-					assoc.get(lbest).add(0, new Triple(id));
-					assoc.get(lpair).add(0, new Triple(id));
-					assoc.get(lbest).trimToSize();
-					assoc.get(lpair).trimToSize();
+					assoc.redirect(lbest, id, 1.0f);
+					assoc.redirect(lpair, id, 1.0f);
 					
 					// for debug
-					assoc.get(lbest).get(0).id = id;
-					assoc.get(lpair).get(0).id = id;
+					assoc.setId(lbest, 0, id);
+					assoc.setId(lpair, 0, id);
 					
 					
 					// de-activate the labels
@@ -801,8 +757,8 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id!=lb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)!=lb) {
+					lb = assoc.id(lb, 0);
 				}
 				clustering[xyz] = lb;
 			}
@@ -817,9 +773,9 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				tmp[xyz] = lb;
 			}
@@ -849,9 +805,9 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				tmp[x][y][z] = lb;
 			}
@@ -881,11 +837,11 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc.get(lb).get(0).delta;
+				tmp[xyz] = assoc.delta(lb, 0);
 			}
 		}
 		return tmp;
@@ -898,11 +854,11 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc.get(lb).get(0).weight;
+				tmp[xyz] = assoc.weight(lb, 0);
 			}
 		}
 		return tmp;
@@ -915,11 +871,11 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[x][y][z] = assoc.get(lb).get(0).weight/assoc.get(lb).get(0).size;
+				tmp[x][y][z] = assoc.weight(lb, 0)/assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -932,11 +888,11 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
-				tmp[xyz] = assoc.get(lb).get(0).size;
+				tmp[xyz] = assoc.size(lb, 0);
 			}
 		}
 		return tmp;
@@ -949,13 +905,13 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float w = 1e9f;
-				for (int l=1;l<assoc.get(lb).size();l++) {
-					w = Numerics.min(w, assoc.get(lb).get(l).weight/assoc.get(lb).get(l).size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[xyz] = w;
@@ -971,13 +927,13 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float w = 1e9f;
-				for (int l=1;l<assoc.get(lb).size();l++) {
-					w = Numerics.min(w, assoc.get(lb).get(l).weight/assoc.get(lb).get(l).size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[x][y][z] = w;
@@ -1000,8 +956,8 @@ public class GancProfileClustering {
 				}
 				*/
 				float w = 1e9f;
-				for (int l=1;l<assoc.get(lb).size();l++) {
-					w = Numerics.min(w, assoc.get(lb).get(l).weight/assoc.get(lb).get(l).size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.min(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				if (w==1e9f) w = 0.0f;
 				tmp[x][y][z] = w;
@@ -1016,13 +972,13 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float w = -1e9f;
-				for (int l=1;l<assoc.get(lb).size();l++) {
-					w = Numerics.max(w, assoc.get(lb).get(l).weight/assoc.get(lb).get(l).size);
+				for (int l=1;l<assoc.length(lb);l++) {
+					w = Numerics.max(w, assoc.weight(lb, l)/assoc.size(lb, l));
 				}
 				tmp[xyz] = w;
 			}
@@ -1037,13 +993,13 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float d = 1e9f;
-				for (int l=1;l<assoc.get(lb).size();l++) {
-					d = Numerics.min(d, assoc.get(lb).get(l).delta);
+				for (int l=1;l<assoc.length(lb);l++) {
+					d = Numerics.min(d, assoc.delta(lb, l));
 				}
 				tmp[xyz] = d;
 			}
@@ -1057,13 +1013,13 @@ public class GancProfileClustering {
 			int xyz = x + nx*y + nx*ny*z;
 			if (mask[xyz]) {
 				int lb = labeling[xyz];
-				while (assoc.get(lb).get(0).id>0 && assoc.get(lb).get(0).id!=lb 
-						&& !active.get(lb) && assoc.get(lb).get(0).id<2*nlb-maxlb) {
-					lb = assoc.get(lb).get(0).id;
+				while (assoc.id(lb, 0)>0 && assoc.id(lb, 0)!=lb 
+						&& !active.get(lb) && assoc.id(lb, 0)<2*nlb-maxlb) {
+					lb = assoc.id(lb, 0);
 				}
 				float d = -1e9f;
-				for (int l=1;l<assoc.get(lb).size();l++) {
-					d = Numerics.max(d, assoc.get(lb).get(l).delta);
+				for (int l=1;l<assoc.length(lb);l++) {
+					d = Numerics.max(d, assoc.delta(lb, l));
 				}
 				tmp[xyz] = d;
 			}
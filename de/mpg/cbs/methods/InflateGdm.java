@@ -75,6 +75,10 @@ public class InflateGdm {
 	private float		landmineDist = 5.0f;
 	private	float		narrowBandDist = landmineDist+1.8f;	
 	
+	// distance computation: fast marching (default) or multi-threaded fast sweeping
+	private	boolean		fastSweeping = false;
+	private	int			nthreads = 1;
+	
 	// internal variables for computations
 	int	xyz, xyzmx, xyzmy, xyzmz, xyzpx, xyzpy, xyzpz;
 	int xyzpxpy, xyzpypz, xyzpzpx, xyzmxmy, xyzmymz, xyzmzmx;
@@ -271,6 +275,12 @@ public class InflateGdm {
 
 	public final float[] getLevelSet() { return levelset; }
 	
+	/** use the fast sweeping distance computation rather than fast marching; nt_ threads are used for the distances and the levelset smoothing */
+	public final void setFastSweeping(boolean fs_, int nt_) {
+		fastSweeping = fs_;
+		nthreads = Numerics.max(1, nt_);
+	}
+	
 	public final byte[] getSegmentation() { return segmentation; }
     
 	public final float[] exportSegmentation() {
@@ -301,7 +311,7 @@ public class InflateGdm {
     
     public final void smoothLevelset(float scale) {
     	trglevelset = ImageFilters.separableMaskedConvolution(trglevelset, mask, nx, ny, nz, 
-    															ImageFilters.separableGaussianKernel(scale,scale,scale));
+    															ImageFilters.separableGaussianKernel(scale,scale,scale), nthreads);
     		
     	return;
     }
@@ -323,6 +333,10 @@ public class InflateGdm {
       *		perform joint reinitialization for all labels 
       */
      public final void fastMarchingReinitialization(boolean narrowBandOnly) {
+     	if (fastSweeping) {
+     		fastSweepingReinitialization(narrowBandOnly);
+     		return;
+     	}
         // computation variables
         boolean[] processed = new boolean[nx*ny*nz]; // note: using a byte instead of boolean for the second pass
 		float[] nbdist = new float[6];
@@ -401,6 +415,37 @@ public class InflateGdm {
        return;
      }
 
+     /**
+      *		same reinitialization, using the multi-threaded fast sweeping method
+      */
+     private final void fastSweepingReinitialization(boolean narrowBandOnly) {
+        if (debug) BasicInfo.displayMessage("fast sweeping\n");		
+        
+		boolean[] object = new boolean[nx*ny*nz];
+		for (int xyz = 0; xyz<nx*ny*nz; xyz++) object[xyz] = (segmentation[xyz]==OBJ);
+		
+		float stopdist = Numerics.INF;
+		if (narrowBandOnly) stopdist = narrowBandDist+SQR2;
+		
+		float[] dist = ObjectTransforms.fastSweepingDistance(levelset, object, mask, stopdist, nx, ny, nz, nthreads);
+		
+		// unreached points keep their previous values, as in fast marching
+		float maxdist = 0.0f;
+		for (int xyz = 0; xyz<nx*ny*nz; xyz++) if (mask[xyz] && dist[xyz]<=stopdist) {
+			if (object[xyz]) levelset[xyz] = -dist[xyz];
+			else levelset[xyz] = dist[xyz];
+			if (dist[xyz]>maxdist) maxdist = dist[xyz];
+		}
+		// make sure the outside is set to max distance
+		for (int xyz = 0; xyz<nx*ny*nz; xyz++) if (!mask[xyz]) {
+			levelset[xyz] = maxdist;
+		}
+		
+		if (debug) BasicInfo.displayMessage("done\n");		
+		
+       return;
+     }
+
 	/**
      * the Fast marching distance computation 
      * (!assumes a 6D array with opposite coordinates stacked one after the other)
@@ -3,6 +3,8 @@ package de.mpg.cbs.methods;
 import java.util.*;
 import java.io.*;
 
+import de.mpg.cbs.utilities.*;
+
 import edu.jhu.ece.iacl.jist.structures.geom.EmbeddedSurface;
 
 /**
@@ -28,24 +30,23 @@ public class MarchingCubes {
 			{ 6, 4, 2, 0, 7, 5, 3, 1 }, { 5, 7, 1, 3, 4, 6, 0, 2 },
 			{ 6, 2, 7, 3, 4, 0, 5, 1 } };
 
-	private static final int HASHBIT = 5;
-
-	private static final int HASHSIZE = (1 << (3 * HASHBIT)); /*
-															 * hash table size
-															 * (32768)
-															 */
-
-	private static final int MASK = ((1 << HASHBIT) - 1);
-
-	public int HASH(int i, int j, int k) {
-		return ((((((k) & MASK) << HASHBIT) | ((j) & MASK)) << HASHBIT) | ((i) & MASK));
-	}
-
-	private EdgeIndex[] edgelist;
+	/*
+	 * Edge-to-vertex map: vertex ids (or -1) of the edges along X,Y,Z starting from each grid point
+	 * of the two planes of the current cubes (z=zcur first, then z=zcur+1)
+	 */
+	private int[] edges;
+	private int zcur;
 
-	private ArrayList<Point3d> verts;
+	/* vertex coordinates and triangle vertex ids, in growing arrays */
+	private float[] verts;
+	private int nverts;
+	private int[] tris;
+	private int ntris;
 
-	private ArrayList<TriangleIndex> trilist;
+	/* cube buffers */
+	private Corner[] corners;
+	private int[] stdbuf = new int[1];
+	private int[] revbuf = new int[1];
 
 	private int digitalConnectivityRule;
 	public static final int CONNECT_6_18 = 1;
@@ -68,18 +69,6 @@ public class MarchingCubes {
 		nz = nz_;
 	}
 
-	public ArrayList<EdgeIndex> getEdges() {
-		ArrayList<EdgeIndex> edges = new ArrayList<EdgeIndex>();
-		for (EdgeIndex e : edgelist) {
-			while (e != null) {
-				edges.add(e);
-				e = e.next;
-			}
-		}
-		return edges;
-	}
-
-
 	/**
 	 * Iso-surface generation with smaller perturbation of the surface than
 	 * original version because the perturbation amount produces a noticeable
@@ -98,7 +87,8 @@ public class MarchingCubes {
 	
 		this.digitalConnectivityRule = conn;
 		this.isoLevel = Lev;
-		verts = new ArrayList<Point3d>();
+		verts = new float[3*1024];
+		nverts = 0;
 		int i, j, k;
 		float tmp;
 		for (i = 0; i < nx; i++) {
@@ -133,17 +123,28 @@ public class MarchingCubes {
 
 		if (debug) System.out.println("cubes");
 	
-		edgelist = new EdgeIndex[2 * HASHSIZE];
-		trilist = new ArrayList<TriangleIndex>();
+		tris = new int[3*1024];
+		ntris = 0;
+		corners = new Corner[8];
+		for (i = 0; i < corners.length; i++)
+			corners[i] = new Corner();
+		int nplane = 3*nx*ny;
+		edges = new int[2*nplane];
+		Arrays.fill(edges, -1);
 		int x, y, z;
 		
 		for (z = 0; z<nz-1; z++) {
+			zcur = z;
 			for (y = 0; y<ny-1; y++) {
 				for (x = 0; x<nx-1; x++) {
 					docube(x, y, z);
 				}
 			}
+			// shift up: the edges along Z of the next plane are not set yet
+			System.arraycopy(edges, nplane, edges, 0, nplane);
+			Arrays.fill(edges, nplane, 2*nplane, -1);
 		}
+		edges = null;
 		
 		if (debug) System.out.println("done");
 	
@@ -160,12 +161,30 @@ public class MarchingCubes {
 			this.direction = direction;
 	}
 
+	/**
+	 * Export the mesh in binary VTK or compressed GIfTI, depending on the file
+	 * extension (.vtk or .gii). The mesh is kept, unlike with exportVtkMesh.
+	 */
+	public void exportMesh(String filename) throws IOException {
+		System.out.println("export to "+filename);
+		int[] triangles = new int[3*ntris];
+		for (int t=0;t<ntris;t++) {
+			if (direction == COUNTER_CLOCKWISE) {
+				triangles[3*t] = tris[3*t+2];
+				triangles[3*t+1] = tris[3*t+1];
+				triangles[3*t+2] = tris[3*t];
+			} else {
+				triangles[3*t] = tris[3*t];
+				triangles[3*t+1] = tris[3*t+1];
+				triangles[3*t+2] = tris[3*t+2];
+			}
+		}
+		new MeshFile(Arrays.copyOf(verts, 3*nverts), triangles).write(filename);
+	}
+
 	public void exportVtkMesh(String filename, PrintWriter pw) {
 		System.out.println("export to "+filename);
-		if (verts.size() > 0) {
-			Point3d[] points = new Point3d[verts.size()];
-			verts.toArray(points);
-			
+		if (nverts > 0) {
 			// open the file to write
 			try {
 				//File f = new File(filename);
@@ -176,17 +195,17 @@ public class MarchingCubes {
 						+"ASCII\n"
 						+"DATASET POLYDATA\n");
 				
-				pw.write("POINTS "+points.length+" float\n");
-				for(Point3d pt:points){
-					pw.write((float)pt.x+" "+(float)pt.y+" "+(float)pt.z+"\n");
+				pw.write("POINTS "+nverts+" float\n");
+				for (int v=0;v<nverts;v++) {
+					pw.write(verts[3*v]+" "+verts[3*v+1]+" "+verts[3*v+2]+"\n");
 				}
-				pw.write("POLYGONS "+trilist.size()+" "+4*trilist.size()+"\n");
-				for (TriangleIndex tri : trilist) {
+				pw.write("POLYGONS "+ntris+" "+4*ntris+"\n");
+				for (int t=0;t<ntris;t++) {
 					// write the triangles
 					if (direction == COUNTER_CLOCKWISE) {
-						pw.write("3 "+tri.vid3+" "+tri.vid2+" "+tri.vid1+"\n");
+						pw.write("3 "+tris[3*t+2]+" "+tris[3*t+1]+" "+tris[3*t]+"\n");
 					} else {
-						pw.write("3 "+tri.vid1+" "+tri.vid2+" "+tri.vid3+"\n");
+						pw.write("3 "+tris[3*t]+" "+tris[3*t+1]+" "+tris[3*t+2]+"\n");
 					}
 				}
 				// close the file to write
@@ -198,10 +217,7 @@ public class MarchingCubes {
 			}			
 		}
 				
-		edgelist = null;
-		trilist.clear();
-		trilist = null;
-		verts.clear();
+		tris = null;
 		verts = null;
 		data = null;
 		System.gc();
@@ -226,12 +242,12 @@ public class MarchingCubes {
 
 	{
 		int idx;
-		int[] std = new int[] { 0 }; /* Index and standard index */
+		int[] std = stdbuf; /* Index and standard index */
 		int perm; /* Used permutation */
-		int[] rev = new int[] { 0 }; /*
-									 * Indicates whether <idx> was inverted
-									 * before rotation
-									 */
+		int[] rev = revbuf; /*
+							 * Indicates whether <idx> was inverted
+							 * before rotation
+							 */
 
 		idx = levelindex(x, y, z);
 		if (idx == 0 || idx == 255) /* Inside || Outside */
@@ -241,100 +257,17 @@ public class MarchingCubes {
 		standardtriangles(permute(perm, std[0]), perm, rev[0], x, y, z);
 	}
 	
-	private static class Point3d {
-		public double x, y, z;
-	}
-
 	public static class Corner {
 		public int i, j, k;
 
 		public double value;
 	}
 
-	public static class EdgeIndex {
-		public int i1, j1, k1;
-
-		public int i2, j2, k2;
-
-		public int vid;
-
-		public EdgeIndex next;
-
-		public EdgeIndex(int i1, int j1, int k1, int i2, int j2, int k2,
-				int vid, EdgeIndex next) {
-			this.i1 = i1;
-			this.j1 = j1;
-			this.k1 = k1;
-			this.i2 = i2;
-			this.j2 = j2;
-			this.k2 = k2;
-			this.vid = vid;
-		}
-	}
-
-	public static class TriangleIndex {
-		public int vid1, vid2, vid3;
-	}
-
-	void setedge(EdgeIndex[] table, int i1, int j1, int k1, int i2, int j2,
-			int k2, int vid)
-	/* Set vertex id for edge */
-	{
-		int index;
-		if (i1 > i2 || (i1 == i2 && (j1 > j2 || (j1 == j2 && k1 > k2)))) {
-
-			int t = i1;
-			i1 = i2;
-			i2 = t;
-
-			t = j1;
-			j1 = j2;
-			j2 = t;
-
-			t = k1;
-			k1 = k2;
-			k2 = t;
-		}
-		index = HASH(i1, j1, k1) + HASH(i2, j2, k2);
-		EdgeIndex new1 = new EdgeIndex(i1, j1, k1, i2, j2, k2, vid,
-				table[index]);
-		new1.next = table[index];
-		table[index] = new1;
-	}
-
-	private int getedge(EdgeIndex[] table, int i1, int j1, int k1, int i2,
-			int j2, int k2)
-	/* Return vertex id for edge; return -1 if not set */
-	/*
-	 * Each vertex is distinguished by the edge it lies on; thus several
-	 * vertices with different ID may have exactly the same coordinates if they
-	 * lie on a same grid point. Hence, function value equals to iso-value is
-	 * intolerable! Although we can remove triangle with two or more vertices of
-	 * same coords, the comparison (of double-type values) will take time.
-	 */
-	{
-		EdgeIndex q;
-		if (i1 > i2 || (i1 == i2 && (j1 > j2 || (j1 == j2 && k1 > k2)))) {
-			int t = i1;
-			i1 = i2;
-			i2 = t;
-			t = j1;
-			j1 = j2;
-			j2 = t;
-			t = k1;
-			k1 = k2;
-			k2 = t;
-		}
-		;
-
-		q = table[HASH(i1, j1, k1) + HASH(i2, j2, k2)];
-		for (; q != null; q = q.next) {
-			if (q.i1 == i1 && q.j1 == j1 && q.k1 == k1 && q.i2 == i2
-					&& q.j2 == j2 && q.k2 == k2) {
-				return q.vid;
-			}
-		}
-		return -1;
+	/* Return the position of the edge c1-c2 (neighbors along one axis) in the edge map */
+	private final int edgeslot(Corner c1, Corner c2) {
+		Corner c = (c1.i+c1.j+c1.k < c2.i+c2.j+c2.k) ? c1 : c2;
+		int axis = (c1.i!=c2.i) ? 0 : (c1.j!=c2.j) ? 1 : 2;
+		return 3*(c.i+nx*c.j+nx*ny*(c.k-zcur))+axis;
 	}
 
 	private int vertid(Corner c1, Corner c2)
@@ -343,26 +276,12 @@ public class MarchingCubes {
 	 * different sign return saved index if any; else compute vertex and save
 	 */
 	{
-		Point3d v = new Point3d();
-		Point3d a = new Point3d(), b = new Point3d();
-		int vid = getedge(edgelist, c1.i, c1.j, c1.k, c2.i, c2.j, c2.k);
-		// System.out.printf("getid %d %d %d %d\n",vid,c1.i,c1.j,c1.k);
-		if (vid != -1) {
-			return vid; /* previously computed */
+		int slot = edgeslot(c1, c2);
+		if (edges[slot] != -1) {
+			return edges[slot]; /* previously computed */
 		}
-		a.x = c1.i;
-		a.y = c1.j;
-		a.z = c1.k;
-
-		b.x = c2.i;
-		b.y = c2.j;
-		b.z = c2.k;
-		interpolate(a, b, c1.value, c2.value, v); /* position */
-		// System.out.format("(%6.2f,%6.2f,%6.2f) %6.2f (%6.2f,%6.2f,%6.2f) %6.2f (%6.2f,%6.2f,%6.2f)\n",a.x,a.y,a.z,c1.value,b.x,b.y,b.z,c2.value,v.x,v.y,v.z);
-
-		addtovertices(verts, v); /* save vertex */
-		vid = verts.size() - 1;
-		setedge(edgelist, c1.i, c1.j, c1.k, c2.i, c2.j, c2.k, vid);
+		int vid = directvid(c1, c2);
+		edges[slot] = vid;
 		return vid;
 	}
 
@@ -372,18 +291,9 @@ public class MarchingCubes {
 	 * list
 	 */
 	{
-		Point3d v = new Point3d();
-		Point3d a = new Point3d(), b = new Point3d();
-		int vid;
-		a.x = c1.i;
-		a.y = c1.j;
-		a.z = c1.k;
-		b.x = c2.i;
-		b.y = c2.j;
-		b.z = c2.k;
-		interpolate(a, b, c1.value, c2.value, v); /* position */
-		vid = directadd(verts, v); /* save vertex */
-		return vid;
+		if (3*nverts+3 > verts.length) verts = Arrays.copyOf(verts, 2*verts.length);
+		interpolate(c1, c2, c1.value, c2.value, verts, 3*nverts); /* position */
+		return nverts++;
 	}
 
 	int asym(Corner c1, Corner c2, Corner c3, Corner c4)
@@ -579,79 +489,35 @@ public class MarchingCubes {
 	 * asymb.y) / 2; v.z = (asyma.z + asymb.z) / 2; } else interpolate(asyma,
 	 * asymb, va, vb, v); return v; }
 	 */
-	void addtovertices(ArrayList<Point3d> vertices, Point3d v)
-	/* Add v to the list of vertices */
-	{
-		// System.out.println("ADD 1 "+v);
-		vertices.add(v);
-	}
-
-	private int directadd(ArrayList<Point3d> vertices, Point3d v)
-	/* Directly add a new vertex to the list of vertices */
-	{
-		// System.out.println("ADD 2 "+v);
-		vertices.add(v);
-		return vertices.size() - 1;
-	}
-
-	void interpolate(Point3d p1, Point3d p2, double v1, double v2,
-			Point3d newp)
+	void interpolate(Corner p1, Corner p2, double v1, double v2,
+			float[] newp, int offset)
 	/*
 	 * From two points of differing sign, interpolate to surface crossing;
-	 * linear interpolation is applied
+	 * linear interpolation is applied (the point is written in newp[offset..offset+2])
 	 */
 	{
-		int i = 0;
-		Point3d pos = new Point3d(), neg = new Point3d();
+		Corner pos, neg;
 		double tmp;
 		if (v1 < 0) {
-			pos.x = p2.x;
-			pos.y = p2.y;
-			pos.z = p2.z;
-			neg.x = p1.x;
-			neg.y = p1.y;
-			neg.z = p1.z;
+			pos = p2;
+			neg = p1;
 		} else {
-			pos.x = p1.x;
-			pos.y = p1.y;
-			pos.z = p1.z;
-			neg.x = p2.x;
-			neg.y = p2.y;
-			neg.z = p2.z;
+			pos = p1;
+			neg = p2;
 			tmp = v1;
 			v1 = v2;
 			v2 = tmp;
 		}
 
+		newp[offset] = 0.0f;
+		newp[offset+1] = 0.0f;
+		newp[offset+2] = 0.0f;
 		tmp = v2 - v1;
 		if (tmp == 0)
 			return;
-		newp.x = (float) ((neg.x * v2 - pos.x * v1) / tmp);
-		newp.y = (float) ((neg.y * v2 - pos.y * v1) / tmp);
-		newp.z = (float) ((neg.z * v2 - pos.z * v1) / tmp);
-		/*
-		 * if (inner != null) { float v2i = inner.getFloat((int) pos.x, (int)
-		 * pos.y, (int) pos.z) - isoLevel; float v1i = inner.getFloat((int)
-		 * neg.x, (int) neg.y, (int) neg.z) - isoLevel; tmp = v2i - v1i; if (tmp
-		 * == 0) return; if (pos.x != neg.x && (newp.x - neg.x) * tmp + v1i < 0)
-		 * { newp.x = (float) ((neg.x * v2i - pos.x * v1i) / tmp); } if (pos.y
-		 * != neg.y && (newp.y - neg.y) * tmp + v1i < 0) { newp.y = (float)
-		 * ((neg.y * v2i - pos.y * v1i) / tmp); } if (pos.z != neg.z && (newp.z
-		 * - neg.z) * tmp + v1i < 0) { newp.z = (float) ((neg.z * v2i - pos.z *
-		 * v1i) / tmp); } }
-		 * 
-		 * if (outer != null) {
-		 * 
-		 * float v2o = outer.getFloat((int) pos.x, (int) pos.y, (int) pos.z) -
-		 * isoLevel; float v1o = outer.getFloat((int) neg.x, (int) neg.y, (int)
-		 * neg.z) - isoLevel; tmp = v2o - v1o; if (tmp == 0) return; if (pos.x
-		 * != neg.x && (newp.x - neg.x) * tmp + v1o > 0) { newp.x = (float)
-		 * ((neg.x * v2o - pos.x * v1o) / tmp); } else if (pos.y != neg.y &&
-		 * (newp.y - neg.y) * tmp + v1o > 0) { newp.y = (float) ((neg.y * v2o -
-		 * pos.y * v1o) / tmp); } else if (pos.z != neg.z && (newp.z - neg.z) *
-		 * tmp + v1o > 0) { newp.z = (float) ((neg.z * v2o - pos.z * v1o) /
-		 * tmp); } }
-		 */
+		newp[offset] = (float) ((neg.i * v2 - pos.i * v1) / tmp);
+		newp[offset+1] = (float) ((neg.j * v2 - pos.j * v1) / tmp);
+		newp[offset+2] = (float) ((neg.k * v2 - pos.k * v1) / tmp);
 	}
 
 	private static final float EPS = 1E-3f;
@@ -660,20 +526,19 @@ public class MarchingCubes {
 	/* Add new triangle to the list of triangles */
 	/* If rev is TRUE, the order of the three vertices are reversed */
 	{
-		int i;
-		TriangleIndex tri = new TriangleIndex(); /* *triangles; */
+		if (3*ntris+3 > tris.length) tris = Arrays.copyOf(tris, 2*tris.length);
 
 		if (rev == 0) {
-			tri.vid1 = vid1;
-			tri.vid2 = vid2;
-			tri.vid3 = vid3;
+			tris[3*ntris] = vid1;
+			tris[3*ntris+1] = vid2;
+			tris[3*ntris+2] = vid3;
 		} else {
-			tri.vid1 = vid3;
-			tri.vid2 = vid2;
-			tri.vid3 = vid1;
+			tris[3*ntris] = vid3;
+			tris[3*ntris+1] = vid2;
+			tris[3*ntris+2] = vid1;
 		}
 		// System.out.format("ADD TRIANGLE %d %d %d\n",vid1,vid2,vid3);
-		trilist.add(tri);
+		ntris++;
 	}
 
 	int levelindex(int x, int y, int z)
@@ -1062,7 +927,6 @@ public class MarchingCubes {
 																	 * Vertex
 																	 * ID's
 																	 */
-		Point3d V0;
 		// int n;
 		int subcase;
 		int alphab;
@@ -1071,9 +935,6 @@ public class MarchingCubes {
 															 * ambiguous faces
 															 */
 
-		Corner[] corners = new Corner[8];
-		for (int i = 0; i < corners.length; i++)
-			corners[i] = new Corner();
 		corners[0].i = x;
 		corners[0].j = y;
 		corners[0].k = z;
@@ -67,7 +67,7 @@ public class OctreeMultiClusterSimplification {
 	private static final boolean	debug = false;
 	private static final boolean	verbose = true;	
 	
-	public OctreeMultiClusterSimplification(float[][] image, boolean[] mask, float[][] imgdev, int nix, int niy, int niz, int nit, float[] stdev, float devfactor, float thres, String metrictype, String varup, int clustsize, int conn_) {
+	public OctreeMultiClusterSimplification(TimeSeries4D image, boolean[] mask, TimeSeries4D imgdev, int nix, int niy, int niz, int nit, float[] stdev, float devfactor, float thres, String metrictype, String varup, int clustsize, int conn_) {
 		
 		nt = nit;
 		
@@ -171,17 +171,21 @@ public class OctreeMultiClusterSimplification {
 		sqd[0] = new float[nx[0]*ny[0]*nz[0]][nt];
 		npt[0] = new int[nx[0]*ny[0]*nz[0]];
 		valid[0] = new BitSet(nx[0]*ny[0]*nz[0]);
+		float[] dev = new float[nt];
 		for (int x=0;x<nx[0];x++) for (int y=0;y<ny[0];y++) for (int z=0;z<nz[0];z++) {
 			int xyz = x+nx[0]*y+nx[0]*ny[0]*z;
 			if (mask[xyz]) {
-				for (int t=0;t<nt;t++) sum[0][xyz][t] = image[xyz][t];
+				image.getSeries(xyz, sum[0][xyz]);
 				valid[0].set(xyz, true);
 			} else {
 				for (int t=0;t<nt;t++) sum[0][xyz][t] = 0.0f;
 				valid[0].set(xyz, false);
 			}
 			if (imgdev==null) for (int t=0;t<nt;t++) sqd[0][xyz][t] = 0.0f;
-			else for (int t=0;t<nt;t++) sqd[0][xyz][t] = Numerics.square(devfactor*imgdev[xyz][t]);
+			else {
+				imgdev.getSeries(xyz, dev);
+				for (int t=0;t<nt;t++) sqd[0][xyz][t] = Numerics.square(devfactor*dev[t]);
+			}
 			npt[0][xyz] = 1;
 		}
 	}
@@ -1039,7 +1043,7 @@ public class OctreeMultiClusterSimplification {
 		return lbls;
 	}
 
-	public final float[][][] exportProbaAtLevel(int l, float[][] img) {
+	public final float[][][] exportProbaAtLevel(int l, TimeSeries4D img) {
 		float[][][] probas = new float[nx[l]][ny[l]][nz[l]];
 		
 		for (int x=0;x<nx[l];x++) for (int y=0;y<ny[l];y++) for (int z=0;z<nz[l];z++) {
@@ -1048,7 +1052,7 @@ public class OctreeMultiClusterSimplification {
 				int xyz0 = x*CL[l] + nx[0]*y*CL[l] + nx[0]*ny[0]*z*CL[l];
 				probas[x][y][z] = 1.0f;
 				for (int t=0;t<nt;t++) {
-					probas[x][y][z] *= (float)FastMath.exp( - 0.5*(img[xyz0][t]-sum[l][xyz][t]/npt[l][xyz])
+					probas[x][y][z] *= (float)FastMath.exp( - 0.5*(img.get(xyz0,t)-sum[l][xyz][t]/npt[l][xyz])
 																	/Numerics.max( (sqd[l][xyz][t]/Numerics.max(1,npt[l][xyz]-1)), sigma2[t]) );
 				}
 			}
@@ -1,6 +1,8 @@
 package de.mpg.cbs.methods;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
 //import gov.nih.mipav.view.*;
 //import gov.nih.mipav.model.file.FileInfoBase;
@@ -29,6 +31,12 @@ public class SimpleShapeAtlas2 {
 	
 	private		String				atlasFile;			// the atlas file
 	
+	// binary atlas: index of the data blocks, loaded on demand
+	private		long[]				shapeOffset = null;	// offset of each shape image (-1 if none)
+	private		long[]				mapOffset = null;	// offset of each intensity map
+	private static final String		BINARYTAG = "CBSATLS2";
+	private static final int		BINARYVERSION = 1;
+	
 	// atlas quantities
 	private 	int 				nix,niy,niz; 			// image dimensions
 	private 	float 				rix,riy,riz; 			// image resolutions
@@ -117,6 +125,7 @@ public class SimpleShapeAtlas2 {
 	 *	<p>
 	 *	The atlas files follow a certain template; 
 	 *  the separator between numbers is a tab, not a space.
+	 *	Binary atlas files (see writeBinaryAtlas) are also accepted.
 	 */
 	public SimpleShapeAtlas2(String fileobjName) {
 		
@@ -158,7 +167,108 @@ public class SimpleShapeAtlas2 {
 		
 		//intensity = new float[nobj][];
 	}
-	
+
+	/**
+	 *	constructor: copy of an existing atlas.
+	 *	<p>
+	 *	The data modified when fitting the atlas to an image (shapes, intensity priors,
+	 *	transforms) is duplicated, the rest is shared with the original. Shapes and intensity
+	 *	maps of a binary atlas not loaded yet are not loaded here: the copy reads them
+	 *	from the atlas file on first use, as the original does.
+	 */
+	public SimpleShapeAtlas2(SimpleShapeAtlas2 ref) {
+		synchronized (ref) {
+			nobj = ref.nobj;
+			objName = ref.objName;
+			objLabel = ref.objLabel;
+			objType = ref.objType;
+			atlasFile = ref.atlasFile;
+			shapeOffset = ref.shapeOffset;
+			mapOffset = ref.mapOffset;
+
+			nix = ref.nix; niy = ref.niy; niz = ref.niz;
+			rix = ref.rix; riy = ref.riy; riz = ref.riz;
+			orient = ref.orient; orix = ref.orix; oriy = ref.oriy; oriz = ref.oriz;
+			x0i = ref.x0i; y0i = ref.y0i; z0i = ref.z0i;
+
+			if (ref.transform!=null) transform = ref.transform.clone();
+			if (ref.rotation!=null) rotation = copyOf(ref.rotation);
+			if (ref.shapeTransform!=null) shapeTransform = copyOf(ref.shapeTransform);
+			if (ref.inverseShapeTransform!=null) inverseShapeTransform = copyOf(ref.inverseShapeTransform);
+			Nd = ref.Nd;
+			maxscale = ref.maxscale;
+			scalingFactor = ref.scalingFactor;
+			transformModel = ref.transformModel;
+			transformMode = ref.transformMode;
+
+			if (ref.shape!=null) shape = copyOf(ref.shape);
+			if (ref.shapeFile!=null) shapeFile = ref.shapeFile.clone();
+			nax = ref.nax; nay = ref.nay; naz = ref.naz;
+			rax = ref.rax; ray = ref.ray; raz = ref.raz;
+			x0a = ref.x0a; y0a = ref.y0a; z0a = ref.z0a;
+			shapeScale = ref.shapeScale;
+			objLabelSamples = ref.objLabelSamples;
+			minx = ref.minx; miny = ref.miny; minz = ref.minz;
+			maxx = ref.maxx; maxy = ref.maxy; maxz = ref.maxz;
+			registeredShape = ref.registeredShape;
+
+			// the template is replaced rather than modified
+			template = ref.template;
+			templateFile = ref.templateFile;
+			ntx = ref.ntx; nty = ref.nty; ntz = ref.ntz;
+			rtx = ref.rtx; rty = ref.rty; rtz = ref.rtz;
+			x0t = ref.x0t; y0t = ref.y0t; z0t = ref.z0t;
+
+			if (ref.intensity!=null) intensity = copyOf(ref.intensity);
+			nintensity = ref.nintensity;
+			intensityName = ref.intensityName;
+			if (ref.intensityMap!=null) {
+				intensityMap = new float[ref.intensityMap.length][][];
+				for (int ni=0;ni<intensityMap.length;ni++) if (ref.intensityMap[ni]!=null) intensityMap[ni] = copyOf(ref.intensityMap[ni]);
+			}
+			normalizeQuantitativeContrasts = ref.normalizeQuantitativeContrasts;
+			regularizationFactor = ref.regularizationFactor;
+		}
+		XP = new float[3];
+	}
+
+	private static final float[][] copyOf(float[][] array) {
+		float[][] copy = new float[array.length][];
+		for (int n=0;n<array.length;n++) if (array[n]!=null) copy[n] = array[n].clone();
+		return copy;
+	}
+
+	/**
+	 *	shared atlases: when enabled, each atlas file is loaded once and
+	 *	load() returns copies of it (see the copy constructor)
+	 */
+	private static boolean sharedAtlases = false;
+	private static final HashMap<String,SimpleShapeAtlas2> registry = new HashMap<String,SimpleShapeAtlas2>();
+
+	public static final void setSharedAtlases(boolean val) {
+		synchronized (registry) {
+			sharedAtlases = val;
+			if (!val) registry.clear();
+		}
+	}
+
+	/**
+	 *	load an atlas file, or copy the already loaded one if atlases are shared
+	 */
+	public static final SimpleShapeAtlas2 load(String fileobjName) {
+		SimpleShapeAtlas2 atlas;
+		synchronized (registry) {
+			if (!sharedAtlases) return new SimpleShapeAtlas2(fileobjName);
+			String key = new File(fileobjName).getAbsolutePath();
+			atlas = registry.get(key);
+			if (atlas==null) {
+				atlas = new SimpleShapeAtlas2(fileobjName);
+				registry.put(key, atlas);
+			}
+		}
+		return new SimpleShapeAtlas2(atlas);
+	}
+
 	/** clean-up: destroy membership and centroid arrays */
 	public final void finalize() {
 		shape = null;
@@ -181,8 +291,14 @@ public class SimpleShapeAtlas2 {
 	final public byte[] 	getTemplate() { return template; }
 	final public void 	setTemplate(byte[] tpl) { template = tpl; }
 	
-	final public float[] 	getShape(int n) { return shape[n]; }
-	final public float[][] 	getShapes() { return shape; }
+	final public float[] 	getShape(int n) { 
+		if (shape[n]==null && shapeOffset!=null && shapeOffset[n]>=0) loadBinaryShape(n);
+		return shape[n]; 
+	}
+	final public float[][] 	getShapes() { 
+		loadAllShapes();
+		return shape; 
+	}
 	
 	final public float[] 		getTransform() { 		
 		return transform; 
@@ -254,7 +370,7 @@ public class SimpleShapeAtlas2 {
 		return ori;
 	}
 	final public boolean hasTopology() { return template!=null; }
-	final public boolean hasShape(int id) { return shape[id]!=null; }
+	final public boolean hasShape(int id) { return shape[id]!=null || (shapeOffset!=null && shapeOffset[id]>=0); }
 	
 	final public float[][] 	getIntensityPriors(String[] modality, int nc) {
 		float[][]	prior = new float[nc][nobj];
@@ -267,6 +383,7 @@ public class SimpleShapeAtlas2 {
 	}
 
 	final public float[][] 	getMap(int modal) {
+		if (intensityMap[modal]==null) loadBinaryMap(modal);
 		return intensityMap[modal];
 	}
 
@@ -275,6 +392,7 @@ public class SimpleShapeAtlas2 {
 	}
 
 	final public void 	setMap(int modal, int n, int t, float val) {
+		if (intensityMap[modal]==null) loadBinaryMap(modal);
 		intensityMap[modal][n][t] = val;
 	}
 
@@ -307,6 +425,7 @@ public class SimpleShapeAtlas2 {
 	 *  set image-related information for segmentation
 	 */
 	final public void adjustAtlasScale(float[][] image, int nimg) {
+		loadAllShapes();
 		// compute the brain size on the image and the atlas; update atlas scale to match
 		double[] imgmax = new double[nimg];
 		double[] imgmin = new double[nimg];
@@ -356,6 +475,7 @@ public class SimpleShapeAtlas2 {
 	 *  generate atlas image from information
 	 */
     final public byte[] generateTransformedClassification() {
+		loadAllShapes();
 		float dist,max,count,val;
 		byte best;
 		byte[] img = new byte[nix*niy*niz];
@@ -382,6 +502,7 @@ public class SimpleShapeAtlas2 {
 	 *  generate atlas image from information
 	 */
     final public int[] generateTransformedClassificationLabeling() {
+		loadAllShapes();
 		float dist,max,count,val;
 		int best=0;
 		int[] img = new int[nix*niy*niz];
@@ -409,6 +530,7 @@ public class SimpleShapeAtlas2 {
 	 *  generate atlas image from information
 	 */
     final public float[] generateTransformedClassificationFloat() {
+		loadAllShapes();
 		float dist,max,count,val;
 		int best=0;
 		float[] img = new float[nix*niy*niz];
@@ -436,6 +558,7 @@ public class SimpleShapeAtlas2 {
 	 *  generate atlas image from information
 	 */
     final public float[][] generateTransformedShapes() {
+		loadAllShapes();
 		float[][] img = new float[nobj][nix*niy*niz];
 		float[] XP=new float[3];
 		
@@ -455,11 +578,12 @@ public class SimpleShapeAtlas2 {
     final public float[] generateTransformedShape(int k) {
 		float[] img = new float[nix*niy*niz];
 		float[] XP=new float[3];
+		float[] shapek = getShape(k);
 		
 		for (int x=0;x<nix;x++) for (int y=0;y<niy;y++) for (int z=0;z<niz;z++) {
 			imageToShapeCoordinates(XP, x,y,z);
 			
-			img[x+y*nix+z*nix*niy] = ImageInterpolation.linearInterpolation(shape[k],0.0f,XP[0],XP[1],XP[2],nax,nay,naz);	
+			img[x+y*nix+z*nix*niy] = ImageInterpolation.linearInterpolation(shapek,0.0f,XP[0],XP[1],XP[2],nax,nay,naz);	
 		}
 		return img;
 	}
@@ -483,6 +607,7 @@ public class SimpleShapeAtlas2 {
 	 *  generate atlas image from information
 	 */
     final public float[] generateTransformedObject(String type) {
+		loadAllShapes();
 		float[] img = new float[nix*niy*niz];
 		float[] XP=new float[3];
 		int xyz;
@@ -695,6 +820,10 @@ public class SimpleShapeAtlas2 {
 	 */
 	final public void loadAtlas(String fileobjName) {
 		if (verbose) System.out.println("loading atlas file: "+fileobjName);
+		if (isBinaryAtlas(fileobjName)) {
+			loadBinaryAtlas(fileobjName);
+			return;
+		}
 		try {
             File f = new File(fileobjName);
 			String dir = f.getParent();
@@ -937,6 +1066,255 @@ public class SimpleShapeAtlas2 {
 		if (debug) BasicInfo.displayMessage("initialisation\n");
 	}
 
+	/** check for the binary atlas tag */
+	private final boolean isBinaryAtlas(String fileobjName) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileobjName))) {
+			byte[] tag = new byte[BINARYTAG.length()];
+			in.readFully(tag);
+			return BINARYTAG.equals(new String(tag, "US-ASCII"));
+		} catch (IOException e) {
+			// includes files shorter than the tag (EOFException)
+			return false;
+		}
+	}
+	
+	/** 
+	 *	load the atlas index from a binary file. 
+	 *  Shapes and intensity maps are read on first use
+	 */
+	private final void loadBinaryAtlas(String fileobjName) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileobjName)));
+			in.skipBytes(BINARYTAG.length());
+			int version = in.readInt();
+			if (version!=BINARYVERSION) {
+				System.out.println("unsupported binary atlas version: "+version);
+				in.close();
+				return;
+			}
+			long data = in.readLong();
+			
+			// structures
+			nobj = in.readInt();
+			objName = new String[nobj];
+			objLabel = new byte[nobj];
+			objType = new String[nobj];
+			for (int n=0;n<nobj;n++) {
+				objName[n] = in.readUTF();
+				objLabel[n] = in.readByte();
+				objType[n] = in.readUTF();
+			}
+			shape = new float[nobj][];
+			minx = new int[nobj];
+			miny = new int[nobj];
+			minz = new int[nobj];
+			maxx = new int[nobj];
+			maxy = new int[nobj];
+			maxz = new int[nobj];
+			shapeFile = new String[nobj];
+			shapeOffset = new long[nobj];
+			registeredShape = new boolean[nobj];
+			regularizationFactor = new float[nobj];
+			for (int n=0;n<nobj;n++) registeredShape[n] = in.readBoolean();
+			for (int n=0;n<nobj;n++) regularizationFactor[n] = in.readFloat();
+			if (verbose) System.out.println(displayNames());
+			
+			// topology template
+			long templateOffset = -1;
+			if (in.readBoolean()) {
+				ntx = in.readInt(); nty = in.readInt(); ntz = in.readInt();
+				rtx = in.readFloat(); rty = in.readFloat(); rtz = in.readFloat();
+				x0t = ntx/2.0f;
+				y0t = nty/2.0f;
+				z0t = ntz/2.0f;
+				templateOffset = data + in.readLong();
+			}
+			
+			// shapes
+			objLabelSamples = in.readInt();
+			nax = in.readInt(); nay = in.readInt(); naz = in.readInt();
+			rax = in.readFloat(); ray = in.readFloat(); raz = in.readFloat();
+			x0a = nax/2.0f;
+			y0a = nay/2.0f;
+			z0a = naz/2.0f;
+			for (int n=0;n<nobj;n++) {
+				long offset = in.readLong();
+				if (offset>=0) shapeOffset[n] = data + offset;
+				else shapeOffset[n] = -1;
+				minx[n] = 0; miny[n] = 0; minz[n] = 0;
+				maxx[n] = nax; maxy[n] = nay; maxz[n] = naz;
+			}
+			
+			// intensity priors: the first value of each map is kept in the index
+			nintensity = in.readInt();
+			intensity = new float[nintensity][nobj];
+			intensityMap = new float[nintensity][][];
+			intensityName = new String[nintensity];
+			mapOffset = new long[nintensity];
+			for (int ni=0;ni<nintensity;ni++) {
+				intensityName[ni] = in.readUTF();
+				for (int n=0;n<nobj;n++) intensity[ni][n] = in.readFloat();
+				mapOffset[ni] = data + in.readLong();
+			}
+			in.close();
+			atlasFile = fileobjName;
+			
+			if (templateOffset>=0) {
+				template = new byte[ntx*nty*ntz];
+				mapAtlasData(templateOffset, template.length).get(template);
+				templateFile = fileobjName;
+			}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+		if (verbose) {
+			System.out.println(displayRegisteredShapes());
+			System.out.println(displayRegularizationFactor());
+			BasicInfo.displayMessage("Atlas loaded: ");
+			BasicInfo.displayMessage(displayNames());	
+			BasicInfo.displayMessage(displayIntensityNames()+"\n");	
+		}
+	}
+	
+	private final ByteBuffer mapAtlasData(long offset, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(atlasFile, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private final synchronized void loadBinaryShape(int n) {
+		if (shape[n]!=null) return;
+		try {
+			float[] img = new float[nax*nay*naz];
+			mapAtlasData(shapeOffset[n], 4L*img.length).asFloatBuffer().get(img);
+			shape[n] = img;
+			shapeFile[n] = atlasFile;
+			if (debug) System.out.print("Shape: "+objName[n]+"\n");
+		} catch (IOException e) {
+			System.out.println("i/o pb: "+e.getMessage());
+		}
+	}
+	
+	private final void loadAllShapes() {
+		if (shapeOffset!=null) for (int n=0;n<nobj;n++) if (shape[n]==null && shapeOffset[n]>=0) loadBinaryShape(n);
+	}
+	
+	private final synchronized void loadBinaryMap(int ni) {
+		if (intensityMap[ni]!=null || mapOffset==null) return;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(atlasFile, "r");
+			try {
+				raf.seek(mapOffset[ni]);
+				float[][] map = new float[nobj][];
+				for (int n=0;n<nobj;n++) {
+					int count = raf.readInt();
+					if (count>=0) {
+						map[n] = new float[count];
+						for (int t=0;t<count;t++) map[n][t] = raf.readFloat();
+					}
+				}
+				intensityMap[ni] = map;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			System.out.println("i/o pb: "+e.getMessage());
+		}
+	}
+	
+	/** 
+	 *	save the atlas into a single binary file: an index with the structure information and
+	 *	intensity priors, followed by the template, shape and intensity map data (Java byte order)
+	 */
+	final public void writeBinaryAtlas(String fileobjName) throws IOException {
+		loadAllShapes();
+		for (int ni=0;ni<nintensity;ni++) if (intensityMap[ni]==null) loadBinaryMap(ni);
+		
+		// index, with data offsets counted from the end of the index
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(index);
+		long offset = 0;
+		out.writeInt(nobj);
+		for (int n=0;n<nobj;n++) {
+			out.writeUTF(objName[n]);
+			out.writeByte(objLabel[n]);
+			out.writeUTF(objType[n]);
+		}
+		for (int n=0;n<nobj;n++) out.writeBoolean(registeredShape[n]);
+		for (int n=0;n<nobj;n++) out.writeFloat(regularizationFactor[n]);
+		out.writeBoolean(template!=null);
+		if (template!=null) {
+			out.writeInt(ntx); out.writeInt(nty); out.writeInt(ntz);
+			out.writeFloat(rtx); out.writeFloat(rty); out.writeFloat(rtz);
+			out.writeLong(offset);
+			offset += template.length;
+		}
+		out.writeInt(objLabelSamples);
+		out.writeInt(nax); out.writeInt(nay); out.writeInt(naz);
+		out.writeFloat(rax); out.writeFloat(ray); out.writeFloat(raz);
+		for (int n=0;n<nobj;n++) {
+			if (shape[n]!=null) {
+				out.writeLong(offset);
+				offset += 4L*shape[n].length;
+			} else {
+				out.writeLong(-1);
+			}
+		}
+		out.writeInt(nintensity);
+		for (int ni=0;ni<nintensity;ni++) {
+			out.writeUTF(intensityName[ni]);
+			for (int n=0;n<nobj;n++) out.writeFloat(intensity[ni][n]);
+			out.writeLong(offset);
+			for (int n=0;n<nobj;n++) {
+				offset += 4;
+				if (intensityMap[ni][n]!=null) offset += 4L*intensityMap[ni][n].length;
+			}
+		}
+		out.close();
+		
+		// data blocks
+		DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileobjName), 1<<16));
+		try {
+			file.writeBytes(BINARYTAG);
+			file.writeInt(BINARYVERSION);
+			file.writeLong(BINARYTAG.length()+4+8+index.size());
+			index.writeTo(file);
+			if (template!=null) file.write(template);
+			for (int n=0;n<nobj;n++) if (shape[n]!=null) {
+				for (int xyz=0;xyz<shape[n].length;xyz++) file.writeFloat(shape[n][xyz]);
+			}
+			for (int ni=0;ni<nintensity;ni++) for (int n=0;n<nobj;n++) {
+				if (intensityMap[ni][n]!=null) {
+					file.writeInt(intensityMap[ni][n].length);
+					for (int t=0;t<intensityMap[ni][n].length;t++) file.writeFloat(intensityMap[ni][n][t]);
+				} else {
+					file.writeInt(-1);
+				}
+			}
+		} finally {
+			file.close();
+		}
+	}
+	
+	/** 
+	 *	convert a text atlas (and its raw images) into a binary atlas file
+	 */
+	public static final void convertAtlas(String textAtlas, String binaryAtlas) throws IOException {
+		SimpleShapeAtlas2 atlas = new SimpleShapeAtlas2(textAtlas);
+		atlas.writeBinaryAtlas(binaryAtlas);
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length!=2) {
+			System.out.println("usage: SimpleShapeAtlas2 brain-atlas.txt brain-atlas.bin");
+			return;
+		}
+		convertAtlas(args[0], args[1]);
+	}
+	
 	public int contrastId(String type) {
 		for (int n=0;n<nintensity;n++) {
 			if (type.equalsIgnoreCase(intensityName[n])) return n;
@@ -1024,6 +1402,7 @@ public class SimpleShapeAtlas2 {
 	}
 					
     public final void alignObjectCenter(float[] img, String type) {
+		loadAllShapes();
     	float xi = 0.0f, yi = 0.0f, zi = 0.0f, wi = 0.0f;
     	float xs = 0.0f, ys = 0.0f, zs = 0.0f, ws = 0.0f;
     	int xyz;
@@ -1068,6 +1447,7 @@ public class SimpleShapeAtlas2 {
     	return;
     }
     public final float[] generateObjectImage(String type) {
+		loadAllShapes();
     	float[] img = new float[nax*nay*naz];
     	boolean[] isobj = new boolean[nobj];
     	int xyz;
@@ -1084,6 +1464,7 @@ public class SimpleShapeAtlas2 {
     	return img;
     }
     public final float[] generateObjectSegmentation(String type) {
+		loadAllShapes();
     	float[] img = new float[nax*nay*naz];
     	boolean[] isobj = new boolean[nobj];
     	int xyz;
@@ -1106,6 +1487,7 @@ public class SimpleShapeAtlas2 {
     	return img;
     }
     public final float[] generateObjectSegmentation(String ptype, String ntype) {
+		loadAllShapes();
     	float[] img = new float[nax*nay*naz];
     	boolean[] ispobj = new boolean[nobj];
     	boolean[] isnobj = new boolean[nobj];
@@ -1134,6 +1516,7 @@ public class SimpleShapeAtlas2 {
     	return img;
     }
     public final float[] generateDifferentialObjectSegmentation(String ptype, String ntype) {
+		loadAllShapes();
     	float[] img = new float[nax*nay*naz];
     	boolean[] ispobj = new boolean[nobj];
     	boolean[] isnobj = new boolean[nobj];
@@ -1165,6 +1548,7 @@ public class SimpleShapeAtlas2 {
 	 *  generate atlas image from information
 	 */
     final public byte[] generateTransformedRestrictedClassification(String ptype, String ntype) {
+		loadAllShapes();
 		float dist,max,count,val;
 		byte best;
 		byte[] img = new byte[nix*niy*niz];
@@ -1189,6 +1573,7 @@ public class SimpleShapeAtlas2 {
 		return img;
 	}
     public final float[] generateObjectSegmentation(String type1, String type2, String type3) {
+		loadAllShapes();
     	float[] img = new float[nax*nay*naz];
     	boolean[] isobj1 = new boolean[nobj];
     	boolean[] isobj2 = new boolean[nobj];
@@ -1301,6 +1686,7 @@ public class SimpleShapeAtlas2 {
 	}
 	
 	public final void updateNonRigidTransform(BasicDemonsWarping warp) {
+		loadAllShapes();
 		float[][] deformed = new float[nobj][nax*nay*naz];
 		
 		int xyz;
@@ -1329,11 +1715,33 @@ public class SimpleShapeAtlas2 {
 		precomputeTransformMatrix(1.0f);	
 		precomputeInverseTransformMatrix(1.0f);	
 	}		
+
+	/**
+	 *	move the mapping from an image subsampled by the given factor (block averages, see ImageInterpolation.subsample)
+	 *	to the full resolution image of dimensions nix_,niy_,niz_, keeping the current transform
+	 */
+	public final void refineImageSampling(int factor, int nix_, int niy_, int niz_) {
+		// the subsampled voxel x is centered on the full resolution voxel factor*x+(factor-1)/2
+		x0i = factor*x0i + 0.5f*(factor-1);
+		y0i = factor*y0i + 0.5f*(factor-1);
+		z0i = factor*z0i + 0.5f*(factor-1);
+		// the orientation signs are kept
+		rix /= factor; riy /= factor; riz /= factor;
+		nix = nix_; niy = niy_; niz = niz_;
+
+		if (verbose) {
+			System.out.print("refined dimensions: "+nix+", "+niy+", "+niz+"\n");
+			System.out.print("refined resolutions: "+rix+", "+riy+", "+riz+"\n");
+		}
+		transformModel = new ParametricTransform("rigid", x0i,y0i,z0i, rix,riy,riz, nix,niy,niz, x0t,y0t,z0t, rtx,rty,rtz, ntx,nty,ntz);
+		refreshShapeMapping();
+	}
 	
 	/** 
 	 *	normalizes the priors into memberships
 	 */
 	public final void normalizeShapePriors() {
+		loadAllShapes();
 		for (int x=0;x<nax;x++) for (int y=0;y<nay;y++) for (int z=0;z<naz;z++) {
             float sum=0.0f;
 			for (int k=0;k<nobj;k++) {
@@ -1408,6 +1816,7 @@ public class SimpleShapeAtlas2 {
 	/** display the atlas data */
 	final public String displayMapIntensity(int modal) {
 		String output = displayContrastName(modal)+" Intensity Prior \n";
+		if (intensityMap[modal]==null) loadBinaryMap(modal);
 		
 		for (int n=0;n<nobj;n++) {
 			output += objName[n]+" : ";
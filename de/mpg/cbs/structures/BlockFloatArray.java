@@ -0,0 +1,192 @@
+package de.mpg.cbs.structures;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *
+ *  Multi-level float arrays over a 3D image, stored densely or in cubic bricks.
+ *	<p>
+ *	With sparse storage, the image is divided into bricks of 2^BRICKBITS voxels along each axis,
+ *	only allocated when a value different from the fill value is written into them, so that data
+ *	concentrated in a narrow band (e.g. MGDM functions near boundaries) takes memory proportional
+ *	to the number of bricks the band crosses. Bricks can be allocated from several threads: the brick
+ *	tables are atomic, so that a brick is only seen by other threads once it is filled.
+ *	<p>
+ *	With dense storage each level is a single plain array, allocated on the first write
+ *	(or by reserve(), before writing from several threads).
+ */
+
+public class BlockFloatArray {
+
+	private float[][]		dense;		// dense[level][index], or null with sparse storage
+	private AtomicReferenceArray<float[]>[]	bricks;		// bricks[level].get(brick)[offset], with sparse storage
+	private int			nlevels;
+	private int			length;
+	private int			nxy;		// voxels in a z plane
+	private int			nbxy;		// bricks in a layer of bricks
+	private int[]		planebrick;	// brick and in-brick offset of each in-plane position: brick<<PLANEBITS | offset
+	private float		fill;		// value of unallocated bricks
+
+	/** brick size for sparse storage: 2^BRICKBITS voxels along each axis */
+	public static final int	BRICKBITS = 3;
+	private static final int	BRICK = 1<<BRICKBITS;
+	private static final int	PLANEBITS = 2*BRICKBITS;
+	private static final int	PLANEMASK = (1<<PLANEBITS)-1;
+	private static final int	BRICKSIZE = 1<<(3*BRICKBITS);
+
+	/**
+	 *	sparse storage for images of dimensions nx,ny,nz (index x+nx*y+nx*ny*z), in bricks of BRICKSIZE values
+	 */
+	public BlockFloatArray(int nlevels_, int nx, int ny, int nz, float fill_) {
+		nlevels = nlevels_;
+		length = nx*ny*nz;
+		fill = fill_;
+		nxy = nx*ny;
+		int nbx = (nx+BRICK-1)>>>BRICKBITS;
+		int nby = (ny+BRICK-1)>>>BRICKBITS;
+		int nbz = (nz+BRICK-1)>>>BRICKBITS;
+		nbxy = nbx*nby;
+		planebrick = new int[nxy];
+		for (int x=0;x<nx;x++) for (int y=0;y<ny;y++) {
+			int brick = (x>>>BRICKBITS) + nbx*(y>>>BRICKBITS);
+			int offset = (x&(BRICK-1)) | ((y&(BRICK-1))<<BRICKBITS);
+			planebrick[x+nx*y] = (brick<<PLANEBITS) | offset;
+		}
+		bricks = brickTables(nlevels, nbxy*nbz);
+	}
+
+	/**
+	 *	dense storage: one zero-initialized array per level
+	 */
+	public BlockFloatArray(int nlevels_, int length_) {
+		nlevels = nlevels_;
+		length = length_;
+		fill = 0.0f;
+		dense = new float[nlevels][];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static final AtomicReferenceArray<float[]>[] brickTables(int nlevels, int nbricks) {
+		AtomicReferenceArray<float[]>[] tables = (AtomicReferenceArray<float[]>[])new AtomicReferenceArray<?>[nlevels];
+		for (int l=0;l<nlevels;l++) tables[l] = new AtomicReferenceArray<float[]>(nbricks);
+		return tables;
+	}
+
+	public final float get(int lvl, int id) {
+		if (dense!=null) {
+			float[] level = dense[lvl];
+			if (level==null) return fill;
+			else return level[id];
+		}
+		int z = id/nxy;
+		int code = planebrick[id-z*nxy];
+		float[] brick = bricks[lvl].get((code>>>PLANEBITS) + nbxy*(z>>>BRICKBITS));
+		if (brick==null) return fill;
+		else return brick[(code&PLANEMASK) | ((z&(BRICK-1))<<PLANEBITS)];
+	}
+
+	public final void set(int lvl, int id, float val) {
+		if (dense!=null) {
+			float[] level = dense[lvl];
+			if (level==null) {
+				if (val==fill) return;
+				level = allocateLevel(lvl);
+			}
+			level[id] = val;
+			return;
+		}
+		int z = id/nxy;
+		int code = planebrick[id-z*nxy];
+		int b = (code>>>PLANEBITS) + nbxy*(z>>>BRICKBITS);
+		float[] brick = bricks[lvl].get(b);
+		if (brick==null) {
+			if (val==fill) return;
+			brick = allocate(lvl, b);
+		}
+		brick[(code&PLANEMASK) | ((z&(BRICK-1))<<PLANEBITS)] = val;
+	}
+
+	/** make sure the level (dense) or the brick (sparse) holding index id is allocated (to write from several threads) */
+	public final void reserve(int lvl, int id) {
+		if (dense!=null) {
+			if (dense[lvl]==null) allocateLevel(lvl);
+			return;
+		}
+		int z = id/nxy;
+		int b = (planebrick[id-z*nxy]>>>PLANEBITS) + nbxy*(z>>>BRICKBITS);
+		if (bricks[lvl].get(b)==null) allocate(lvl, b);
+	}
+
+	private final synchronized float[] allocateLevel(int lvl) {
+		if (dense[lvl]==null) dense[lvl] = new float[length];
+		return dense[lvl];
+	}
+
+	/** fills a new brick, then publishes it unless another thread did first */
+	private final float[] allocate(int lvl, int b) {
+		float[] brick = new float[BRICKSIZE];
+		if (fill!=0.0f) Arrays.fill(brick, fill);
+		if (bricks[lvl].compareAndSet(b, null, brick)) return brick;
+		else return bricks[lvl].get(b);
+	}
+
+	public final boolean isDense() { return dense!=null; }
+	public final int getLevels() { return nlevels; }
+	public final int getLength() { return length; }
+
+	/**
+	 *	number of consecutive indices covering whole layers of bricks (sparse storage),
+	 *	so that slabs of layers never share a brick; 1 for dense storage
+	 */
+	public final int getLayerSize() { return isDense() ? 1 : BRICK*nxy; }
+
+	/** keep only the first n levels */
+	public final void truncate(int n) {
+		if (isDense()) dense = Arrays.copyOf(dense, n);
+		else bricks = Arrays.copyOf(bricks, n);
+		nlevels = n;
+	}
+
+	/** release the bricks which only contain the fill value (sparse storage only) */
+	public final void trim() {
+		if (isDense()) return;
+		for (int l=0;l<nlevels;l++) for (int b=0;b<bricks[l].length();b++) if (bricks[l].get(b)!=null) {
+			float[] brick = bricks[l].get(b);
+			boolean empty = true;
+			for (int n=0;n<brick.length && empty;n++) if (brick[n]!=fill) empty = false;
+			if (empty) bricks[l].set(b, null);
+		}
+	}
+
+	/** level lvl as a single array: the stored array if dense, a copy otherwise */
+	public final float[] toArray(int lvl) {
+		if (isDense()) {
+			reserve(lvl, 0);
+			return dense[lvl];
+		}
+		float[] array = new float[length];
+		for (int id=0;id<length;id++) array[id] = get(lvl, id);
+		return array;
+	}
+
+	/** all levels as arrays: the stored arrays if dense, copies otherwise */
+	public final float[][] toArray() {
+		float[][] array = new float[nlevels][];
+		for (int l=0;l<nlevels;l++) array[l] = toArray(l);
+		return array;
+	}
+
+	/** number of allocated values, over all levels */
+	public final long allocated() {
+		long size = 0;
+		for (int l=0;l<nlevels;l++) {
+			if (isDense()) {
+				if (dense[l]!=null) size += dense[l].length;
+			} else {
+				for (int b=0;b<bricks[l].length();b++) if (bricks[l].get(b)!=null) size += BRICKSIZE;
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,192 @@
+package de.mpg.cbs.structures;
+
+import java.util.*;
+
+/**
+ *
+ *  Adjacency lists for agglomerative clustering, stored as parallel primitive columns.
+ *	<p>
+ *	Each node owns a row of consecutive entries (id, weight, delta, size) in a shared pool,
+ *	CSR-style, instead of an array of small objects. New rows (e.g. merged clusters) are
+ *	appended at the end of the pool and can be trimmed in place once their final length is known;
+ *	merged rows are collapsed in place to a single entry pointing to the new cluster.
+ *	The space left by discarded rows is reclaimed by sliding the live rows down when the pool is full,
+ *	so the pool only grows when it is mostly used.
+ */
+
+public class ClusterAdjacency {
+
+	private int[]		start;		// first entry of each row in the pool
+	private int[]		length;		// number of entries in each row (0 if none)
+
+	private int[]		ids;
+	private float[]		weights;
+	private float[]		deltas;
+	private float[]		sizes;
+
+	private int			top;		// end of the allocated part of the pool
+	private int			used;		// number of entries in live rows
+
+	private int[]		order;		// rows in allocation order (i.e. increasing start), for compaction
+	private int[]		rank;		// position of each row in the order list (-1 if none)
+	private int			norder;
+
+	/**
+	 *	adjacency lists for nnodes nodes, with an initial pool of capacity entries
+	 */
+	public ClusterAdjacency(int nnodes, int capacity) {
+		start = new int[nnodes];
+		length = new int[nnodes];
+		rank = new int[nnodes];
+		Arrays.fill(rank, -1);
+		order = new int[Math.max(16, nnodes/2)];
+		norder = 0;
+
+		capacity = Math.max(16, capacity);
+		ids = new int[capacity];
+		weights = new float[capacity];
+		deltas = new float[capacity];
+		sizes = new float[capacity];
+		top = 0;
+		used = 0;
+	}
+
+	public void finalize() {
+		start = null;
+		length = null;
+		ids = null;
+		weights = null;
+		deltas = null;
+		sizes = null;
+		order = null;
+		rank = null;
+	}
+
+	public final int length(int node) { return length[node]; }
+
+	public final int id(int node, int n) { return ids[start[node]+n]; }
+	public final float weight(int node, int n) { return weights[start[node]+n]; }
+	public final float delta(int node, int n) { return deltas[start[node]+n]; }
+	public final float size(int node, int n) { return sizes[start[node]+n]; }
+
+	public final void setId(int node, int n, int val) { ids[start[node]+n] = val; }
+	public final void setWeight(int node, int n, float val) { weights[start[node]+n] = val; }
+	public final void setDelta(int node, int n, float val) { deltas[start[node]+n] = val; }
+	public final void setSize(int node, int n, float val) { sizes[start[node]+n] = val; }
+
+	public final void set(int node, int n, int id, float weight, float delta, float size) {
+		int e = start[node]+n;
+		ids[e] = id;
+		weights[e] = weight;
+		deltas[e] = delta;
+		sizes[e] = size;
+	}
+
+	/** total number of entries in the pool (live or not) */
+	public final int capacity() { return ids.length; }
+
+	/** number of entries in live rows */
+	public final int used() { return used; }
+
+	/**
+	 *	create a new row of len entries for the node, at the end of the pool.
+	 *	Any previous row of the node is discarded, and the entries are not initialized.
+	 *	Note: this may move the other rows, so pool offsets must not be kept across calls.
+	 */
+	public final void allocate(int node, int len) {
+		release(node);
+		if (top+len>ids.length) makeRoom(len);
+		if (norder==order.length) compactOrder();
+
+		start[node] = top;
+		length[node] = len;
+		top += len;
+		used += len;
+		rank[node] = norder;
+		order[norder] = node;
+		norder++;
+	}
+
+	/**
+	 *	shorten the row of the node to its first len entries, in place
+	 *	(the space is given back directly if the row is the last one allocated)
+	 */
+	public final void trim(int node, int len) {
+		if (len>=length[node]) return;
+		if (start[node]+length[node]==top) top = start[node]+len;
+		used -= length[node]-len;
+		length[node] = len;
+	}
+
+	/**
+	 *	collapse the row of the node in place into a single entry pointing to another node
+	 */
+	public final void redirect(int node, int id, float weight) {
+		trim(node, 1);
+		set(node, 0, id, weight, 0.0f, 1.0f);
+	}
+
+	/**
+	 *	remove the row of the node
+	 */
+	public final void release(int node) {
+		if (length[node]>0) {
+			trim(node, 0);
+		}
+		rank[node] = -1;
+	}
+
+	private final void makeRoom(int len) {
+		compact();
+		// grow only when compaction does not leave at least a quarter of the pool free
+		if (ids.length-top-len<ids.length/4) {
+			int capacity = Math.max(ids.length+ids.length/2, top+len+(top+len)/2);
+			ids = Arrays.copyOf(ids, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+			deltas = Arrays.copyOf(deltas, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+		}
+	}
+
+	/**
+	 *	slide all live rows to the beginning of the pool, keeping their order
+	 */
+	public final void compact() {
+		int newtop = 0;
+		int n = 0;
+		for (int k=0;k<norder;k++) {
+			int node = order[k];
+			if (rank[node]==k) {
+				int len = length[node];
+				if (start[node]!=newtop && len>0) {
+					System.arraycopy(ids, start[node], ids, newtop, len);
+					System.arraycopy(weights, start[node], weights, newtop, len);
+					System.arraycopy(deltas, start[node], deltas, newtop, len);
+					System.arraycopy(sizes, start[node], sizes, newtop, len);
+				}
+				start[node] = newtop;
+				newtop += len;
+				rank[node] = n;
+				order[n] = node;
+				n++;
+			}
+		}
+		norder = n;
+		top = newtop;
+	}
+
+	private final void compactOrder() {
+		int n = 0;
+		for (int k=0;k<norder;k++) {
+			int node = order[k];
+			if (rank[node]==k) {
+				rank[node] = n;
+				order[n] = node;
+				n++;
+			}
+		}
+		norder = n;
+		if (norder>order.length/2) order = Arrays.copyOf(order, 2*order.length);
+	}
+
+}
@@ -5,11 +5,21 @@ import java.util.*;
 import java.util.zip.*;
 import java.lang.*;
 import java.net.URL;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 
 /**
  *
  *  This class handles a LUT for critical points in 3D topology
  *	with the connectivity from a given filename
+ *	<p>
+ *	Compressed LUTs are shared by all instances in the JVM: the first call to
+ *	loadCompressedPattern() decompresses the table into a bit-packed cache file
+ *	(in the directory given by the cbstools.lutcache system property, or the
+ *	.cbstools/lutcache directory of the user), which is then memory-mapped read-only. 
+ *	Later loads, also from other JVMs, only map the cache file, once its header
+ *	and checksum have been verified. The cache files are identified by the name, size
+ *	and checksum of the compressed LUT, so that updated LUTs are not shadowed by old caches.
  *	
  *	@version    June 2005
  *	@author     Pierre-Louis Bazin
@@ -49,12 +59,19 @@ public class CriticalPointLUT {
 	private static final int MAX = 200;
 
 	private BitSet 		isRegular;
+	private ByteBuffer	sharedTable = null;	// bit-packed table shared across instances (read-only)
 	
 	private	String		filename;			// file to open
 	private	String		filepath = null;	// root directory for the file
 	
 	private static final boolean	debug = true;
 	
+	// process-wide registry of the loaded compressed tables
+	private static final HashMap<String,ByteBuffer> registry = new HashMap<String,ByteBuffer>();
+	private static final String CACHEPROPERTY = "cbstools.lutcache";
+	private static final int	CACHEMAGIC = 0x43504c31;	// "CPL1"
+	private static final int	CACHEHEADER = 24;			// magic, table size, key hash, checksum
+	
 	public CriticalPointLUT(String filename_, int size) {
 		isRegular = new BitSet(size);
 		filename = filename_;
@@ -68,17 +85,32 @@ public class CriticalPointLUT {
 	
 	public void finalize() {
 		isRegular = null;
+		sharedTable = null;
 	}
 	
 	/**
-	 *  add a new value
+	 *  add a new value (the shared table is copied first, if used)
 	 */
-	public final void set(int ind, boolean val) { isRegular.set(ind, val); }
+	public final void set(int ind, boolean val) { 
+		if (sharedTable!=null) {
+			isRegular = new BitSet(B26);
+			for (int n=0;n<B26;n++) if (getShared(n)) isRegular.set(n);
+			sharedTable = null;
+		}
+		isRegular.set(ind, val); 
+	}
 	
 	/**
 	 *  get a value
 	 */
-	 public final boolean get(int ind) { return isRegular.get(ind); }
+	 public final boolean get(int ind) { 
+	 	 if (sharedTable!=null) return getShared(ind);
+	 	 else return isRegular.get(ind); 
+	 }
+	 
+	 private final boolean getShared(int ind) {
+	 	 return (sharedTable.get(ind>>>3) & (1<<(ind&7)))!=0;
+	 }
 	
 	 /** translate a pattern into the key number */
 	 public final int keyFromPattern(byte[][][] img, int x, int y, int z) {
@@ -367,57 +399,200 @@ public class CriticalPointLUT {
 	 }
 	 
 	 public final boolean loadCompressedPattern() {
-		 /*
-		 URL res = null;
-		 try {
-			res = CriticalPointLUT.class.getResource( filename );
-		 } catch (Exception e) {
-			System.err.println("error:");
-            System.err.println(e.getMessage()+ "\n");
+		 String key;
+		 if (filepath==null) key = "resource:"+filename;
+		 else key = new File(filepath+filename).getAbsolutePath();
+		 
+		 synchronized (registry) {
+			 ByteBuffer table = registry.get(key);
+			 if (table==null) {
+				 // the cache file is tied to the content of the compressed LUT, not only to its name
+				 String signature = sourceSignature();
+				 if (signature==null) {
+					 isRegular = null;
+					 return false;
+				 }
+				 table = loadSharedTable(key+signature);
+				 if (table==null) {
+					 isRegular = null;
+					 return false;
+				 }
+				 registry.put(key, table);
+			 }
+			 sharedTable = table;
+			 isRegular = null;
+			 return true;
 		 }
-		 */
-		 //String current = System.getProperty("user.dir");
-		 //System.out.println("path: "+current);
-		 //System.setProperty("user.dir", res.getPath());
-		 //System.out.println("pattern path: "+System.getProperty("user.dir"));
+	 }
+	 
+	 /** map the bit-packed cache file of the table, creating it from the compressed LUT if needed */
+	 private final ByteBuffer loadSharedTable(String key) {
+		 String cachedir = cacheDirectory();
+		 String basename = new File(filename).getName();
+		 if (basename.endsWith(".gz")) basename = basename.substring(0,basename.length()-3);
+		 File cache = new File(cachedir, basename+"-"+Integer.toHexString(key.hashCode())+".bits");
+		 long keyhash = keyHash(key);
+		 
+		 if (cache.isFile() && cache.length()==CACHEHEADER+B26/8) {
+			 ByteBuffer table = mapCacheFile(cache, keyhash);
+			 if (table!=null) return table;
+			 System.out.println("LUT cache file "+cache.getPath()+" is invalid: rebuilding it");
+		 }
+		 // decompress the original LUT
+		 byte[] packed = new byte[B26/8];
 		 try {
-			 //File f = new File( res.getFile() );
-			 //File f = new File( filename );
-			 //FileInputStream fis = new FileInputStream( f );
-			 //if (debug) System.out.println("Opening LUT: "+res.toString());
-			 //FileInputStream fis = new FileInputStream( res.getPath() );
-			 //FileInputStream fis = res.openStream();
 			 InputStream fis;
 			 if (filepath==null) fis = CriticalPointLUT.class.getResourceAsStream( filename );
 			 else fis = new FileInputStream( filepath+filename );
+			 if (fis==null) throw new FileNotFoundException(filename);
 			 System.out.println("Opening LUT: "+fis.toString());
 			 System.out.flush();
-			 GZIPInputStream gzfis = new GZIPInputStream(fis, B26);
-			 //GZIPInputStream gzfis = new GZIPInputStream(res.openStream(), B26);
-			 byte[] list = new byte[B26];
-			
-			 gzfis.read(list, 0, B26);
-			 gzfis.close();
+			 GZIPInputStream gzfis = new GZIPInputStream(fis, 1<<16);
+			 byte[] list = new byte[1<<16];
 			 int N = 0;
-			 for (int n=0;n<B26;n++) {
-				 isRegular.set( n, (list[n]==1) );
-				 if (list[n]==1) N++;
+			 int n = 0;
+			 while (n<B26) {
+				 int len = gzfis.read(list, 0, Math.min(list.length, B26-n));
+				 if (len<0) break;
+				 for (int l=0;l<len;l++,n++) if (list[l]==1) {
+					 packed[n>>>3] |= (byte)(1<<(n&7));
+					 N++;
+				 }
 			 }
+			 gzfis.close();
+			 if (n<B26) throw new EOFException("LUT is truncated: "+n+" values out of "+B26);
 			 if (debug) System.out.println("Simple points: "+N);
-			 
-			 list = null;
-			 return true;
 		 } catch (FileNotFoundException e) {
 			 System.out.println("File not found:");
 			 System.out.println(e.getMessage());
-			 isRegular = null;
-			 return false;
+			 return null;
 		 } catch (IOException e ) {
 			 System.out.println("i/o exception:");
 			 System.out.println(e.getMessage());
-			 isRegular = null;
-			 return false;
+			 return null;
+		 }
+		 // write the cache file (through a temporary file, in case other processes do the same)
+		 try {
+			 File dir = createCacheDirectory(cachedir);
+			 File tmp = File.createTempFile(basename, ".tmp", dir);
+			 DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmp));
+			 dos.writeInt(CACHEMAGIC);
+			 dos.writeInt(B26/8);
+			 dos.writeLong(keyhash);
+			 dos.writeLong(checksum(ByteBuffer.wrap(packed)));
+			 dos.write(packed);
+			 dos.close();
+			 // replace any invalid cache file
+			 if (!tmp.renameTo(cache)) {
+				 cache.delete();
+				 if (!tmp.renameTo(cache)) tmp.delete();
+			 }
+			 if (cache.isFile() && cache.length()==CACHEHEADER+B26/8) {
+				 ByteBuffer table = mapCacheFile(cache, keyhash);
+				 if (table!=null) return table;
+			 }
+		 } catch (IOException e) {
+			 System.out.println("LUT cache not available in "+cachedir+": "+e.getMessage());
+		 }
+		 // no cache: keep the table in memory
+		 return ByteBuffer.wrap(packed).asReadOnlyBuffer();
+	 }
+	 
+	 /** size and CRC32 checksum of the compressed LUT, or null if it cannot be read */
+	 private final String sourceSignature() {
+		 try {
+			 InputStream fis;
+			 if (filepath==null) fis = CriticalPointLUT.class.getResourceAsStream( filename );
+			 else fis = new FileInputStream( filepath+filename );
+			 if (fis==null) throw new FileNotFoundException(filename);
+			 CRC32 crc = new CRC32();
+			 long size = 0;
+			 try {
+				 byte[] chunk = new byte[1<<16];
+				 int len;
+				 while ((len=fis.read(chunk))>0) {
+					 crc.update(chunk, 0, len);
+					 size += len;
+				 }
+			 } finally {
+				 fis.close();
+			 }
+			 return ":"+size+":"+Long.toHexString(crc.getValue());
+		 } catch (FileNotFoundException e) {
+			 System.out.println("File not found:");
+			 System.out.println(e.getMessage());
+			 return null;
+		 } catch (IOException e ) {
+			 System.out.println("i/o exception:");
+			 System.out.println(e.getMessage());
+			 return null;
+		 }
+	 }
+	 
+	 /** map the table of a cache file, or return null if its header or checksum do not match */
+	 private static final ByteBuffer mapCacheFile(File cache, long keyhash) {
+		 try {
+			 RandomAccessFile raf = new RandomAccessFile(cache, "r");
+			 try {
+				 if (raf.readInt()!=CACHEMAGIC || raf.readInt()!=B26/8 || raf.readLong()!=keyhash) return null;
+				 long sum = raf.readLong();
+				 FileChannel channel = raf.getChannel();
+				 ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, CACHEHEADER, B26/8);
+				 if (checksum(table)!=sum) return null;
+				 // the mapping stays valid after closing the file
+				 return table;
+			 } finally {
+				 raf.close();
+			 }
+		 } catch (IOException e) {
+			 System.out.println("i/o exception:");
+			 System.out.println(e.getMessage());
+			 return null;
+		 }
+	 }
+	 
+	 /** 
+	  *	directory of the cache files: the cbstools.lutcache system property if set, 
+	  *	or .cbstools/lutcache in the home directory of the user (not shared with other users)
+	  */
+	 public static final String cacheDirectory() {
+		 return System.getProperty(CACHEPROPERTY, System.getProperty("user.home")+File.separator+".cbstools"+File.separator+"lutcache");
+	 }
+	 
+	 /** the cache directory, created if needed with access for its owner only */
+	 public static final File createCacheDirectory(String cachedir) {
+		 File dir = new File(cachedir);
+		 if (!dir.isDirectory()) {
+			 dir.mkdirs();
+			 // private to the user
+			 dir.setReadable(false, false); dir.setReadable(true, true);
+			 dir.setWritable(false, false); dir.setWritable(true, true);
+			 dir.setExecutable(false, false); dir.setExecutable(true, true);
+		 }
+		 return dir;
+	 }
+	 
+	 /** CRC32 checksum of the table (from its position to its limit, which are left unchanged) */
+	 private static final long checksum(ByteBuffer table) {
+		 CRC32 crc = new CRC32();
+		 ByteBuffer view = table.duplicate();
+		 byte[] chunk = new byte[1<<16];
+		 while (view.hasRemaining()) {
+			 int len = Math.min(chunk.length, view.remaining());
+			 view.get(chunk, 0, len);
+			 crc.update(chunk, 0, len);
+		 }
+		 return crc.getValue();
+	 }
+	 
+	 /** 64-bit FNV-1a hash of the table key */
+	 private static final long keyHash(String key) {
+		 long hash = 0xcbf29ce484222325L;
+		 for (int n=0;n<key.length();n++) {
+			 hash ^= key.charAt(n);
+			 hash *= 0x100000001b3L;
 		 }
+		 return hash;
 	 }
 	 
 	 public final String getFilename() {
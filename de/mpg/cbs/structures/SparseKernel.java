@@ -0,0 +1,191 @@
+package de.mpg.cbs.structures;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ *
+ *  Sparse smoothing kernel, stored as a CSR matrix of weights.
+ *	<p>
+ *	Row r holds the entries [start[r],start[r+1]) of the column and weight arrays; columns
+ *	index the same point list as the rows, so that applying the kernel to a series of values per point
+ *	is a sparse matrix times dense matrix product. Kernels can be saved to and reloaded from a file,
+ *	identified by a key computed by the caller from the kernel parameters. The file header holds
+ *	a CRC32 checksum of the kernel data, verified on reading.
+ */
+
+public class SparseKernel {
+
+	private int			nrows;
+	private int[]		start;		// first entry of each row, and total number of entries in start[nrows]
+	private int[]		columns;
+	private float[]		weights;
+	private long		key;		// identifier of the kernel parameters
+
+	private static final int	MAGIC = 0x43534b32;	// "CSK2"
+	private static final int	HEADER = 24;
+	private static final int	WINDOW = 16*1024*1024;
+
+	public SparseKernel(int[] start_, int[] columns_, float[] weights_, long key_) {
+		nrows = start_.length-1;
+		start = start_;
+		columns = columns_;
+		weights = weights_;
+		key = key_;
+	}
+
+	public void finalize() {
+		start = null;
+		columns = null;
+		weights = null;
+	}
+
+	public final int getRows() { return nrows; }
+	public final int getEntries() { return start[nrows]; }
+	public final long getKey() { return key; }
+
+	public final int rowStart(int r) { return start[r]; }
+	public final int rowEnd(int r) { return start[r+1]; }
+	public final int column(int n) { return columns[n]; }
+	public final float weight(int n) { return weights[n]; }
+
+	/**
+	 *	kernel product for rows [r0,r1): dst[r*nt+t] = sum_n weight(n) src[column(n)*nt+t],
+	 *	for series of nt values per point, stored point by point
+	 */
+	public final void multiply(float[] src, float[] dst, int nt, int r0, int r1) {
+		double[] sum = new double[nt];
+		for (int r=r0;r<r1;r++) {
+			for (int t=0;t<nt;t++) sum[t] = 0.0;
+			for (int n=start[r];n<start[r+1];n++) {
+				double w = weights[n];
+				int c = columns[n]*nt;
+				for (int t=0;t<nt;t++) sum[t] += w*src[c+t];
+			}
+			for (int t=0;t<nt;t++) dst[r*nt+t] = (float)sum[t];
+		}
+	}
+
+	/**
+	 *	save the kernel to a file
+	 */
+	public final void write(File file) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		FileChannel channel = fos.getChannel();
+		try {
+			ByteBuffer window = ByteBuffer.allocateDirect(WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+			window.putInt(MAGIC);
+			window.putLong(key);
+			window.putInt(nrows);
+			window.putInt(start[nrows]);
+			window.putInt(0);	// checksum, written last
+			flush(window, channel, null);
+			CRC32 crc = new CRC32();
+			int nint = WINDOW/4;
+			for (int n=0;n<=nrows;) {
+				int len = Math.min(nint, nrows+1-n);
+				window.asIntBuffer().put(start, n, len);
+				window.position(4*len);
+				n += len;
+				flush(window, channel, crc);
+			}
+			for (int n=0;n<start[nrows];) {
+				int len = Math.min(nint, start[nrows]-n);
+				window.asIntBuffer().put(columns, n, len);
+				window.position(4*len);
+				n += len;
+				flush(window, channel, crc);
+			}
+			for (int n=0;n<start[nrows];) {
+				int len = Math.min(nint, start[nrows]-n);
+				window.asFloatBuffer().put(weights, n, len);
+				window.position(4*len);
+				n += len;
+				flush(window, channel, crc);
+			}
+			window.putInt((int)crc.getValue());
+			window.flip();
+			while (window.hasRemaining()) channel.write(window, HEADER-4+window.position());
+		} finally {
+			channel.close();
+			fos.close();
+		}
+	}
+
+	/**
+	 *	load a kernel from a file, or return null if the file is missing, invalid, or does not match the key
+	 */
+	public static final SparseKernel read(File file, long key) {
+		if (!file.isFile() || file.length()<HEADER) return null;
+		try {
+			FileInputStream fis = new FileInputStream(file);
+			FileChannel channel = fis.getChannel();
+			try {
+				ByteBuffer window = ByteBuffer.allocateDirect(WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+				window.limit(HEADER);
+				fill(window, channel);
+				if (window.getInt()!=MAGIC || window.getLong()!=key) return null;
+				int rows = window.getInt();
+				int nnz = window.getInt();
+				int sum = window.getInt();
+				if (rows<0 || nnz<0 || file.length()!=HEADER+4L*(rows+1)+8L*nnz) return null;
+
+				int[] start = new int[rows+1];
+				int[] columns = new int[nnz];
+				float[] weights = new float[nnz];
+				CRC32 crc = new CRC32();
+				int nint = WINDOW/4;
+				for (int n=0;n<=rows;) {
+					int len = Math.min(nint, rows+1-n);
+					window.clear(); window.limit(4*len);
+					fill(window, channel);
+					crc.update(window.duplicate());
+					window.asIntBuffer().get(start, n, len);
+					n += len;
+				}
+				for (int n=0;n<nnz;) {
+					int len = Math.min(nint, nnz-n);
+					window.clear(); window.limit(4*len);
+					fill(window, channel);
+					crc.update(window.duplicate());
+					window.asIntBuffer().get(columns, n, len);
+					n += len;
+				}
+				for (int n=0;n<nnz;) {
+					int len = Math.min(nint, nnz-n);
+					window.clear(); window.limit(4*len);
+					fill(window, channel);
+					crc.update(window.duplicate());
+					window.asFloatBuffer().get(weights, n, len);
+					n += len;
+				}
+				if ((int)crc.getValue()!=sum || start[rows]!=nnz) return null;
+				return new SparseKernel(start, columns, weights, key);
+			} finally {
+				channel.close();
+				fis.close();
+			}
+		} catch (IOException e) {
+			System.out.println("i/o exception:");
+			System.out.println(e.getMessage());
+			return null;
+		}
+	}
+
+	private static final void flush(ByteBuffer window, FileChannel channel, CRC32 crc) throws IOException {
+		window.flip();
+		if (crc!=null) crc.update(window.duplicate());
+		while (window.hasRemaining()) channel.write(window);
+		window.clear();
+	}
+
+	private static final void fill(ByteBuffer window, FileChannel channel) throws IOException {
+		while (window.hasRemaining()) {
+			if (channel.read(window)<0) throw new EOFException("truncated kernel file");
+		}
+		window.flip();
+	}
+}
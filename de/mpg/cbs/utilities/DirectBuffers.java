@@ -0,0 +1,155 @@
+package de.mpg.cbs.utilities;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ *
+ *  This class converts image arrays to and from NIO buffers, for passing volumes
+ *	across language bridges (JCC / Python) without element-by-element copies.
+ *	<p>
+ *	Buffers given as inputs are read from their position to their limit: heap buffers wrapping
+ *	a full array are used directly, others are copied once in bulk. Buffers returned as outputs
+ *	are direct, in native byte order, so that they can be mapped by the caller without conversion.
+ *	<p>
+ *	The native address of a direct buffer lets the caller map it in place (e.g. as a numpy array
+ *	through ctypes, see python/cbstools.py): inputs can then be written directly into a buffer from {@link #allocate(long)}
+ *	and outputs read from the returned buffers without any copy on the caller side.
+ *	<p>
+ *	Algorithms producing outputs for a bridge own their output buffers: they are allocated once,
+ *	reused when the size does not change, and returned as is by the getters. A java buffer holds
+ *	at most 2 GB: larger sizes are rejected with an IllegalArgumentException rather than overflowing.
+ */
+
+public class DirectBuffers {
+
+	// no data: used as a library of functions
+
+	/** largest size of a direct buffer, in bytes */
+	public static final long MAXBYTES = Integer.MAX_VALUE;
+	
+	/** direct byte buffer of the given size in bytes, in native order */
+	public static final ByteBuffer allocate(long nbytes) {
+		if (nbytes<0 || nbytes>MAXBYTES) 
+			throw new IllegalArgumentException("direct buffers are limited to "+MAXBYTES+" bytes ("+nbytes+" bytes requested)");
+		return ByteBuffer.allocateDirect((int)nbytes).order(ByteOrder.nativeOrder());
+	}
+	
+	/** true if a direct buffer of the given size in bytes can be allocated */
+	public static final boolean fits(long nbytes) {
+		return (nbytes>=0 && nbytes<=MAXBYTES);
+	}
+	
+	/** direct float buffer of the given length: the previous buffer if it has the same capacity, a new one otherwise */
+	public static final FloatBuffer floatBuffer(long length, FloatBuffer previous) {
+		if (previous!=null && previous.isDirect() && previous.capacity()==length) {
+			previous.clear();
+			return previous;
+		}
+		return allocate(4L*length).asFloatBuffer();
+	}
+	
+	/** direct int buffer of the given length: the previous buffer if it has the same capacity, a new one otherwise */
+	public static final IntBuffer intBuffer(long length, IntBuffer previous) {
+		if (previous!=null && previous.isDirect() && previous.capacity()==length) {
+			previous.clear();
+			return previous;
+		}
+		return allocate(4L*length).asIntBuffer();
+	}
+	
+	/** direct byte buffer of the given length: the previous buffer if it has the same capacity, a new one otherwise */
+	public static final ByteBuffer byteBuffer(long length, ByteBuffer previous) {
+		if (previous!=null && previous.isDirect() && previous.capacity()==length) {
+			previous.clear();
+			return previous;
+		}
+		return allocate(length);
+	}
+
+	/** 
+	 *	native address of a direct buffer. On java 9+ the address is only readable when the java.nio 
+	 *	package is opened (--add-opens=java.base/java.nio=ALL-UNNAMED): an IllegalStateException
+	 *	is thrown otherwise, and an IllegalArgumentException if the buffer is not direct
+	 */
+	public static final long address(Buffer buffer) {
+		if (buffer==null || !buffer.isDirect()) 
+			throw new IllegalArgumentException("only direct buffers have a native address");
+		try {
+			Field field = Buffer.class.getDeclaredField("address");
+			field.setAccessible(true);
+			return field.getLong(buffer);
+		} catch (Exception e) {
+			// InaccessibleObjectException on java 9+ is a RuntimeException: caught here as well
+			throw new IllegalStateException("cannot read the address of direct buffers ("+e+"): "
+											+"run java with --add-opens=java.base/java.nio=ALL-UNNAMED", e);
+		}
+	}
+
+	/** image array from a float buffer (shared if the buffer wraps a full array) */
+	public static final float[] toFloatArray(FloatBuffer buffer) {
+		if (buffer==null) return null;
+		if (buffer.hasArray() && buffer.arrayOffset()==0 && buffer.position()==0
+			&& buffer.remaining()==buffer.array().length) return buffer.array();
+		float[] array = new float[buffer.remaining()];
+		buffer.duplicate().get(array);
+		return array;
+	}
+
+	/** image array from a byte buffer holding float values in the buffer's byte order */
+	public static final float[] toFloatArray(ByteBuffer buffer) {
+		if (buffer==null) return null;
+		return toFloatArray(buffer.duplicate().order(buffer.order()).asFloatBuffer());
+	}
+
+	/** image array from an int buffer (shared if the buffer wraps a full array) */
+	public static final int[] toIntArray(IntBuffer buffer) {
+		if (buffer==null) return null;
+		if (buffer.hasArray() && buffer.arrayOffset()==0 && buffer.position()==0
+			&& buffer.remaining()==buffer.array().length) return buffer.array();
+		int[] array = new int[buffer.remaining()];
+		buffer.duplicate().get(array);
+		return array;
+	}
+
+	/** image array from a byte buffer (shared if the buffer wraps a full array) */
+	public static final byte[] toByteArray(ByteBuffer buffer) {
+		if (buffer==null) return null;
+		if (buffer.hasArray() && buffer.arrayOffset()==0 && buffer.position()==0
+			&& buffer.remaining()==buffer.array().length) return buffer.array();
+		byte[] array = new byte[buffer.remaining()];
+		buffer.duplicate().get(array);
+		return array;
+	}
+
+	/** direct float buffer holding a copy of the image array (written into the previous buffer if it has the same capacity) */
+	public static final FloatBuffer toFloatBuffer(float[] array, FloatBuffer previous) {
+		if (array==null) return null;
+		FloatBuffer buffer = floatBuffer(array.length, previous);
+		buffer.put(array);
+		buffer.rewind();
+		return buffer;
+	}
+
+	/** direct int buffer holding a copy of the image array (written into the previous buffer if it has the same capacity) */
+	public static final IntBuffer toIntBuffer(int[] array, IntBuffer previous) {
+		if (array==null) return null;
+		IntBuffer buffer = intBuffer(array.length, previous);
+		buffer.put(array);
+		buffer.rewind();
+		return buffer;
+	}
+
+	/** direct byte buffer holding a copy of the image array (written into the previous buffer if it has the same capacity) */
+	public static final ByteBuffer toByteBuffer(byte[] array, ByteBuffer previous) {
+		if (array==null) return null;
+		ByteBuffer buffer = byteBuffer(array.length, previous);
+		buffer.put(array);
+		buffer.rewind();
+		return buffer;
+	}
+}
@@ -487,6 +487,36 @@ public class Interface {
 		return image;
 	}
 
+    public static final TimeSeries4D getTimeSeries4D(ParamVolume input) {
+		// import the image data as time-major series outside of the heap,
+		// reading the values directly from the input (no 4D array copy)
+		ImageData inImg = input.getImageData();
+		int nx = inImg.getRows();
+		int ny = inImg.getCols();
+		int nz = inImg.getSlices();
+		int nt = inImg.getComponents();
+
+		TimeSeries4D series;
+		try {
+			series = new TimeSeries4D(nx, ny, nz, nt);
+		} catch (OutOfMemoryError e) {
+			// not enough direct memory: use a temporary memory-mapped file instead
+			try {
+				series = new TimeSeries4D(nx, ny, nz, nt, null);
+			} catch (IOException io) {
+				throw new RuntimeException("cannot map the time series: "+io.getMessage(), io);
+			}
+		}
+		float[] buffer = new float[nt];
+		for (int z=0;z<nz;z++) for (int y=0;y<ny;y++) for (int x=0;x<nx;x++) {
+			int xyz = x+nx*y+nx*ny*z;
+			if (nt>1) for (int t=0;t<nt;t++) buffer[t] = inImg.getFloat(x,y,z,t);
+			else buffer[0] = inImg.getFloat(x,y,z);
+			series.setSeries(xyz, buffer);
+		}
+		return series;
+	}
+
     public static final byte[] getUByteImage3D(ParamVolume input) {
 		if (input.getImageData()!=null) {  	
 			// import the image data into 1D arrays
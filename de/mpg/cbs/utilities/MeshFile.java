@@ -0,0 +1,677 @@
+package de.mpg.cbs.utilities;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ *
+ *  This class reads and writes triangle meshes in VTK legacy (.vtk) and GIfTI (.gii) formats,
+ *	directly from and into flat arrays.
+ *	<p>
+ *	Points are stored as x,y,z triplets, triangles as triplets of point ids, and the optional
+ *	per-vertex data as nv x ncomp values, vertex by vertex (e.g. a time series on the surface).
+ *	The data is streamed through a single byte window: VTK files are written in big-endian binary
+ *	by default (ASCII files can still be read and written), GIfTI files as gzipped base64
+ *	(base64 and ASCII encodings are also read). External GIfTI data files are not supported.
+ */
+
+public class MeshFile {
+
+	// size of the read and write window
+	private static final int WINDOW = 1<<20;
+	private static final int NONE = -2;
+
+	private float[] points;
+	private int[] triangles;
+	private float[] values = null;
+	private int ncomp = 0;
+	private String valuename = "values";
+
+	// compression of written .gii files
+	private int ziplevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 *	mesh from point and triangle lists (not copied)
+	 */
+	public MeshFile(float[] points_, int[] triangles_) {
+		points = points_;
+		triangles = triangles_;
+	}
+
+	/**
+	 *	read a mesh file (.vtk or .gii)
+	 */
+	public MeshFile(String filename) throws IOException {
+		if (filename.endsWith(".vtk")) readVtk(filename);
+		else if (filename.endsWith(".gii")) readGifti(filename);
+		else throw new IOException("unknown mesh format: "+filename);
+	}
+
+	// accessors
+
+	public final float[] getPoints() { return points; }
+	public final int[] getTriangles() { return triangles; }
+	public final int getVertices() { return points.length/3; }
+	public final int getTriangleCount() { return triangles.length/3; }
+
+	/** per-vertex values, ncomp values per vertex (null if none) */
+	public final float[] getValues() { return values; }
+	public final int getComponents() { return ncomp; }
+	public final String getValueName() { return valuename; }
+
+	public final void setValues(float[] val, int comp) {
+		if (val!=null && val.length!=comp*getVertices())
+			throw new IllegalArgumentException("values: "+val.length+" for "+getVertices()+" vertices and "+comp+" components");
+		values = val;
+		ncomp = (val==null) ? 0 : comp;
+	}
+	public final void setValueName(String val) { valuename = val.replace(' ','_'); }
+
+	public final void setCompression(int level) { ziplevel = level; }
+
+	// writing
+
+	/** write the mesh in binary VTK or compressed GIfTI, from the file name */
+	public final void write(String filename) throws IOException {
+		if (filename.endsWith(".vtk")) writeVtk(filename, true);
+		else if (filename.endsWith(".gii")) writeGifti(filename, true);
+		else throw new IOException("unknown mesh format: "+filename);
+	}
+
+	/**
+	 *	write a VTK legacy polydata file, in big-endian binary or in ASCII
+	 */
+	public final void writeVtk(String filename, boolean binary) throws IOException {
+		int nv = getVertices();
+		int nt = getTriangleCount();
+		Output out = new Output(new FileOutputStream(filename), ByteOrder.BIG_ENDIAN);
+		try {
+			out.text("# vtk DataFile Version 2.0\nCBS Tools mesh\n"+(binary ? "BINARY" : "ASCII")+"\nDATASET POLYDATA\n");
+			out.text("POINTS "+nv+" float\n");
+			out.floats(points, 0, 3*nv, 1, 3, binary);
+			out.text("\nPOLYGONS "+nt+" "+4*nt+"\n");
+			out.polygons(triangles, nt, binary);
+			if (ncomp>0) {
+				out.text("\nPOINT_DATA "+nv+"\n");
+				if (ncomp<=4) out.text("SCALARS "+valuename+" float "+ncomp+"\nLOOKUP_TABLE default\n");
+				else out.text("FIELD FieldData 1\n"+valuename+" "+ncomp+" "+nv+" float\n");
+				out.floats(values, 0, ncomp*nv, 1, ncomp, binary);
+			}
+			out.text("\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 *	write a GIfTI file, with gzipped base64 or plain base64 data arrays.
+	 *	The values are stored as one data array per component
+	 */
+	public final void writeGifti(String filename, boolean compressed) throws IOException {
+		int nv = getVertices();
+		int nt = getTriangleCount();
+		String encoding = compressed ? "GZipBase64Binary" : "Base64Binary";
+		int level = compressed ? ziplevel : NONE;
+		Output out = new Output(new FileOutputStream(filename), ByteOrder.LITTLE_ENDIAN);
+		try {
+			out.text("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+"<!DOCTYPE GIFTI SYSTEM \"http://www.nitrc.org/frs/download.php/115/gifti.dtd\">\n"
+					+"<GIFTI Version=\"1.0\" NumberOfDataArrays=\""+(2+ncomp)+"\">\n"
+					+"<MetaData/>\n<LabelTable/>\n");
+
+			out.text(dataArrayTag("NIFTI_INTENT_POINTSET", "NIFTI_TYPE_FLOAT32", 2, nv, 3, encoding)
+					+"<MetaData/>\n"
+					+"<CoordinateSystemTransformMatrix>\n"
+					+"<DataSpace><![CDATA[NIFTI_XFORM_UNKNOWN]]></DataSpace>\n"
+					+"<TransformedSpace><![CDATA[NIFTI_XFORM_UNKNOWN]]></TransformedSpace>\n"
+					+"<MatrixData>1 0 0 0 0 1 0 0 0 0 1 0 0 0 0 1</MatrixData>\n"
+					+"</CoordinateSystemTransformMatrix>\n"
+					+"<Data>");
+			out.encoded(points, null, 0, 3*nv, 1, level);
+			out.text("</Data>\n</DataArray>\n");
+
+			out.text(dataArrayTag("NIFTI_INTENT_TRIANGLE", "NIFTI_TYPE_INT32", 2, nt, 3, encoding)
+					+"<MetaData/>\n<Data>");
+			out.encoded(null, triangles, 0, 3*nt, 1, level);
+			out.text("</Data>\n</DataArray>\n");
+
+			String intent = (ncomp>1) ? "NIFTI_INTENT_TIME_SERIES" : "NIFTI_INTENT_SHAPE";
+			for (int c=0;c<ncomp;c++) {
+				out.text(dataArrayTag(intent, "NIFTI_TYPE_FLOAT32", 1, nv, 0, encoding)
+						+"<MetaData>\n<MD><Name><![CDATA[Name]]></Name><Value><![CDATA["+valuename+"]]></Value></MD>\n</MetaData>\n"
+						+"<Data>");
+				out.encoded(values, null, c, nv, ncomp, level);
+				out.text("</Data>\n</DataArray>\n");
+			}
+			out.text("</GIFTI>\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static final String dataArrayTag(String intent, String type, int ndim, int dim0, int dim1, String encoding) {
+		return "<DataArray Intent=\""+intent+"\" DataType=\""+type+"\" ArrayIndexingOrder=\"RowMajorOrder\""
+				+" Dimensionality=\""+ndim+"\" Dim0=\""+dim0+"\""+(ndim>1 ? " Dim1=\""+dim1+"\"" : "")
+				+" Encoding=\""+encoding+"\" Endian=\"LittleEndian\" ExternalFileName=\"\" ExternalFileOffset=\"\">\n";
+	}
+
+	// reading
+
+	private final void readVtk(String filename) throws IOException {
+		Input in = new Input(new FileInputStream(filename), ByteOrder.BIG_ENDIAN);
+		try {
+			String line = in.line();
+			if (line==null || !line.startsWith("# vtk")) throw new IOException("not a VTK legacy file: "+filename);
+			in.line();
+			boolean binary = in.line().trim().equalsIgnoreCase("BINARY");
+
+			ArrayList<float[]> arrays = new ArrayList<float[]>();
+			ArrayList<Integer> comps = new ArrayList<Integer>();
+			int nv = 0;
+			String[] key;
+			while ( (key=in.keywords())!=null ) {
+				if (key[0].equals("DATASET")) {
+					if (!key[1].equals("POLYDATA")) throw new IOException("unsupported VTK dataset: "+key[1]);
+				} else if (key[0].equals("POINTS")) {
+					nv = Integer.parseInt(key[1]);
+					points = new float[3*nv];
+					in.values(points, 3*nv, key[2], binary);
+				} else if (key[0].equals("POLYGONS")) {
+					triangles = triangulate(in.ints(Integer.parseInt(key[2]), binary), Integer.parseInt(key[1]));
+				} else if (key[0].equals("VERTICES") || key[0].equals("LINES") || key[0].equals("TRIANGLE_STRIPS")) {
+					in.ints(Integer.parseInt(key[2]), binary);
+				} else if (key[0].equals("POINT_DATA")) {
+					nv = Integer.parseInt(key[1]);
+				} else if (key[0].equals("SCALARS")) {
+					int comp = (key.length>3) ? Integer.parseInt(key[3]) : 1;
+					float[] val = new float[comp*nv];
+					in.keywords();	// LOOKUP_TABLE
+					in.values(val, comp*nv, key[2], binary);
+					if (arrays.size()==0) valuename = key[1];
+					arrays.add(val);
+					comps.add(comp);
+				} else if (key[0].equals("NORMALS") || key[0].equals("VECTORS")) {
+					in.values(new float[3*nv], 3*nv, key[2], binary);
+				} else if (key[0].equals("FIELD")) {
+					int narray = Integer.parseInt(key[2]);
+					for (int a=0;a<narray;a++) {
+						String[] field = in.keywords();
+						int comp = Integer.parseInt(field[1]);
+						int ntuple = Integer.parseInt(field[2]);
+						float[] val = new float[comp*ntuple];
+						in.values(val, comp*ntuple, field[3], binary);
+						if (ntuple==nv) {
+							if (arrays.size()==0) valuename = field[0];
+							arrays.add(val);
+							comps.add(comp);
+						}
+					}
+				} else if (key[0].equals("CELL_DATA")) {
+					// cell data is not kept, and may only be followed by more cell or point data
+					break;
+				}
+			}
+			if (points==null || triangles==null) throw new IOException("no polygonal mesh in "+filename);
+			gatherValues(arrays, comps, getVertices());
+		} finally {
+			in.close();
+		}
+	}
+
+	private final void readGifti(String filename) throws IOException {
+		Input in = new Input(new FileInputStream(filename), ByteOrder.LITTLE_ENDIAN);
+		try {
+			ArrayList<float[]> arrays = new ArrayList<float[]>();
+			ArrayList<Integer> comps = new ArrayList<Integer>();
+			HashMap<String,String> attr;
+			while ( (attr=in.nextElement("DataArray"))!=null ) {
+				if (attr.get("ExternalFileName")!=null && attr.get("ExternalFileName").length()>0)
+					throw new IOException("external GIfTI data files are not supported");
+				int ndim = Integer.parseInt(attr.get("Dimensionality"));
+				int dim0 = Integer.parseInt(attr.get("Dim0"));
+				int dim1 = (ndim>1) ? Integer.parseInt(attr.get("Dim1")) : 1;
+				for (int d=2;d<ndim;d++) dim1 *= Integer.parseInt(attr.get("Dim"+d));
+				boolean colmajor = "ColumnMajorOrder".equals(attr.get("ArrayIndexingOrder"));
+				String intent = attr.get("Intent");
+				String type = attr.get("DataType");
+				ByteOrder order = "BigEndian".equals(attr.get("Endian")) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+				if (in.nextElement("Data")==null) throw new IOException("missing data in "+filename);
+				InputStream data = in.dataStream();
+				String encoding = attr.get("Encoding");
+				// the inflater holds native memory until it is ended
+				Inflater inflater = null;
+				if (encoding.equals("GZipBase64Binary")) {
+					inflater = new Inflater();
+					data = new InflaterInputStream(Base64.getMimeDecoder().wrap(data), inflater, 1<<16);
+				} else if (encoding.equals("Base64Binary")) {
+					data = Base64.getMimeDecoder().wrap(data);
+				} else if (!encoding.equals("ASCII")) {
+					throw new IOException("unsupported GIfTI encoding: "+encoding);
+				}
+				try {
+					int length = dim0*dim1;
+					if (intent.equals("NIFTI_INTENT_TRIANGLE")) {
+						int[] tri = new int[length];
+						if (encoding.equals("ASCII")) asciiValues(data, null, tri, length);
+						else binaryValues(data, order, type, null, tri, length);
+						triangles = colmajor ? transpose(tri, dim0, dim1) : tri;
+					} else {
+						float[] val = new float[length];
+						if (encoding.equals("ASCII")) asciiValues(data, val, null, length);
+						else binaryValues(data, order, type, val, null, length);
+						if (colmajor) val = transpose(val, dim0, dim1);
+						if (intent.equals("NIFTI_INTENT_POINTSET")) {
+							points = val;
+						} else {
+							arrays.add(val);
+							comps.add(dim1);
+						}
+					}
+					// skip the rest of the encoded data, if any
+					while (data.read()>-1);
+				} finally {
+					if (inflater!=null) inflater.end();
+				}
+			}
+			if (points==null || triangles==null) throw new IOException("no surface mesh in "+filename);
+			gatherValues(arrays, comps, getVertices());
+		} finally {
+			in.close();
+		}
+	}
+
+	/** split polygons (count, id1, id2, ...) into triangle fans */
+	private static final int[] triangulate(int[] poly, int npoly) throws IOException {
+		int ntri = 0;
+		for (int p=0, n=0;p<npoly;p++) {
+			ntri += Numerics.max(0, poly[n]-2);
+			n += poly[n]+1;
+		}
+		int[] tri = new int[3*ntri];
+		int t = 0;
+		for (int p=0, n=0;p<npoly;p++) {
+			for (int k=2;k<poly[n];k++) {
+				tri[t++] = poly[n+1];
+				tri[t++] = poly[n+k];
+				tri[t++] = poly[n+k+1];
+			}
+			n += poly[n]+1;
+		}
+		return tri;
+	}
+
+	/** interleave the per-vertex arrays into nv x ncomp values */
+	private final void gatherValues(ArrayList<float[]> arrays, ArrayList<Integer> comps, int nv) {
+		ncomp = 0;
+		for (int a=0;a<arrays.size();a++) ncomp += comps.get(a);
+		if (ncomp==0) {
+			values = null;
+			return;
+		}
+		if (arrays.size()==1) {
+			values = arrays.get(0);
+			return;
+		}
+		values = new float[ncomp*nv];
+		int c0 = 0;
+		for (int a=0;a<arrays.size();a++) {
+			float[] val = arrays.get(a);
+			int comp = comps.get(a);
+			for (int v=0;v<nv;v++) for (int c=0;c<comp;c++) values[v*ncomp+c0+c] = val[v*comp+c];
+			c0 += comp;
+		}
+	}
+
+	private static final float[] transpose(float[] val, int dim0, int dim1) {
+		float[] res = new float[val.length];
+		for (int i=0;i<dim0;i++) for (int j=0;j<dim1;j++) res[i*dim1+j] = val[j*dim0+i];
+		return res;
+	}
+
+	private static final int[] transpose(int[] val, int dim0, int dim1) {
+		int[] res = new int[val.length];
+		for (int i=0;i<dim0;i++) for (int j=0;j<dim1;j++) res[i*dim1+j] = val[j*dim0+i];
+		return res;
+	}
+
+	/** decode binary GIfTI data into either fval or ival */
+	private static final void binaryValues(InputStream data, ByteOrder order, String type, float[] fval, int[] ival, int length) throws IOException {
+		int esize;
+		if (type.equals("NIFTI_TYPE_UINT8")) esize = 1;
+		else if (type.equals("NIFTI_TYPE_INT32") || type.equals("NIFTI_TYPE_FLOAT32")) esize = 4;
+		else if (type.equals("NIFTI_TYPE_FLOAT64")) esize = 8;
+		else throw new IOException("unsupported GIfTI data type: "+type);
+
+		int chunk = Numerics.max(1, Numerics.min(length, WINDOW/esize));
+		byte[] bytes = new byte[chunk*esize];
+		ByteBuffer window = ByteBuffer.wrap(bytes).order(order);
+		for (int offset=0;offset<length;offset+=chunk) {
+			int nelem = Numerics.min(chunk, length-offset);
+			int nbytes = nelem*esize;
+			for (int n=0;n<nbytes;) {
+				int len = data.read(bytes, n, nbytes-n);
+				if (len<0) throw new EOFException("GIfTI data shorter than its dimensions");
+				n += len;
+			}
+			window.clear();
+			for (int n=0;n<nelem;n++) {
+				double val;
+				if (esize==1) val = window.get()&0xFF;
+				else if (type.equals("NIFTI_TYPE_INT32")) val = window.getInt();
+				else if (esize==4) val = window.getFloat();
+				else val = window.getDouble();
+				if (fval!=null) fval[offset+n] = (float)val;
+				else ival[offset+n] = (int)val;
+			}
+		}
+	}
+
+	/** parse ASCII GIfTI data into either fval or ival */
+	private static final void asciiValues(InputStream data, float[] fval, int[] ival, int length) throws IOException {
+		StringBuilder token = new StringBuilder();
+		int n = 0;
+		int b = data.read();
+		while (n<length) {
+			while (b>-1 && Character.isWhitespace(b)) b = data.read();
+			if (b<0) throw new EOFException("GIfTI data shorter than its dimensions");
+			token.setLength(0);
+			while (b>-1 && !Character.isWhitespace(b)) {
+				token.append((char)b);
+				b = data.read();
+			}
+			if (fval!=null) fval[n] = Float.parseFloat(token.toString());
+			else ival[n] = (int)Double.parseDouble(token.toString());
+			n++;
+		}
+	}
+
+	/**
+	 *	buffered writing through a byte window, for text, binary arrays and encoded GIfTI arrays
+	 */
+	private static class Output {
+		private OutputStream stream;
+		private WritableByteChannel channel;
+		private ByteBuffer window;
+
+		Output(OutputStream stream_, ByteOrder order) {
+			stream = stream_;
+			channel = Channels.newChannel(stream);
+			window = ByteBuffer.allocate(WINDOW).order(order);
+		}
+
+		final void text(String txt) throws IOException {
+			byte[] bytes = txt.getBytes("UTF-8");
+			for (int n=0;n<bytes.length;) {
+				if (!window.hasRemaining()) flush();
+				int len = Numerics.min(bytes.length-n, window.remaining());
+				window.put(bytes, n, len);
+				n += len;
+			}
+		}
+
+		final void flush() throws IOException {
+			window.flip();
+			while (window.hasRemaining()) channel.write(window);
+			window.clear();
+		}
+
+		final void close() throws IOException {
+			flush();
+			channel.close();
+		}
+
+		/** write count values of val from offset with a given stride, perline values per text line */
+		final void floats(float[] val, int offset, int count, int stride, int perline, boolean binary) throws IOException {
+			if (binary) {
+				for (int n=0;n<count;) {
+					if (window.remaining()<4) flush();
+					int len = Numerics.min(count-n, window.remaining()/4);
+					if (stride==1) {
+						window.asFloatBuffer().put(val, offset+n, len);
+						window.position(window.position()+4*len);
+					} else {
+						for (int k=0;k<len;k++) window.putFloat(val[offset+(n+k)*stride]);
+					}
+					n += len;
+				}
+			} else {
+				StringBuilder line = new StringBuilder();
+				for (int n=0;n<count;n++) {
+					line.append(val[offset+n*stride]);
+					if ((n+1)%perline==0 || n==count-1) {
+						line.append('\n');
+						text(line.toString());
+						line.setLength(0);
+					} else {
+						line.append(' ');
+					}
+				}
+			}
+		}
+
+		/** VTK polygon list: 3 id1 id2 id3 for each triangle */
+		final void polygons(int[] tri, int nt, boolean binary) throws IOException {
+			for (int t=0;t<nt;t++) {
+				if (binary) {
+					if (window.remaining()<16) flush();
+					window.putInt(3);
+					window.putInt(tri[3*t]);
+					window.putInt(tri[3*t+1]);
+					window.putInt(tri[3*t+2]);
+				} else {
+					text("3 "+tri[3*t]+" "+tri[3*t+1]+" "+tri[3*t+2]+"\n");
+				}
+			}
+		}
+
+		/** base64 encoding of count float or int values, zipped at the given level (or not if NONE) */
+		final void encoded(float[] fval, int[] ival, int offset, int count, int stride, int level) throws IOException {
+			flush();
+			OutputStream raw = new FilterOutputStream(stream) {
+				public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+				// the file stream stays open when the encoders are closed
+				public void close() throws IOException { flush(); }
+			};
+			OutputStream base64 = Base64.getEncoder().wrap(raw);
+			OutputStream data = base64;
+			// the deflater holds native memory until it is ended
+			Deflater deflater = null;
+			if (level!=NONE) {
+				deflater = new Deflater(level);
+				data = new DeflaterOutputStream(base64, deflater, 1<<16);
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(WINDOW).order(window.order());
+				for (int n=0;n<count;) {
+					buffer.clear();
+					int len = Numerics.min(count-n, WINDOW/4);
+					for (int k=0;k<len;k++) {
+						if (fval!=null) buffer.putFloat(fval[offset+(n+k)*stride]);
+						else buffer.putInt(ival[offset+(n+k)*stride]);
+					}
+					data.write(buffer.array(), 0, 4*len);
+					n += len;
+				}
+				data.close();
+			} finally {
+				if (deflater!=null) deflater.end();
+			}
+		}
+	}
+
+	/**
+	 *	buffered reading through a byte window, for text lines, binary arrays, and GIfTI elements
+	 */
+	private static class Input {
+		private ReadableByteChannel channel;
+		private ByteBuffer window;
+		private boolean eof = false;
+
+		Input(InputStream stream, ByteOrder order) {
+			channel = Channels.newChannel(stream);
+			window = ByteBuffer.allocate(WINDOW).order(order);
+			window.limit(0);
+		}
+
+		final void close() throws IOException {
+			channel.close();
+		}
+
+		/** make at least n bytes available, if the file has them */
+		final boolean fill(int n) throws IOException {
+			if (window.remaining()>=n) return true;
+			window.compact();
+			while (!eof && window.position()<n) {
+				if (channel.read(window)<0) eof = true;
+			}
+			window.flip();
+			return window.remaining()>=n;
+		}
+
+		final int read() throws IOException {
+			if (!fill(1)) return -1;
+			return window.get()&0xFF;
+		}
+
+		final String line() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b = read();
+			if (b<0) return null;
+			while (b>-1 && b!='\n') {
+				if (b!='\r') line.append((char)b);
+				b = read();
+			}
+			return line.toString();
+		}
+
+		/** next non-empty line, split into words (null at the end of the file) */
+		final String[] keywords() throws IOException {
+			String line;
+			while ( (line=line())!=null ) {
+				line = line.trim();
+				if (line.length()>0) return line.split("\\s+");
+			}
+			return null;
+		}
+
+		final String token() throws IOException {
+			int b = read();
+			while (b>-1 && Character.isWhitespace(b)) b = read();
+			if (b<0) throw new EOFException("unexpected end of file");
+			StringBuilder token = new StringBuilder();
+			while (b>-1 && !Character.isWhitespace(b)) {
+				token.append((char)b);
+				b = read();
+			}
+			return token.toString();
+		}
+
+		/** count values of a VTK type (float or double) into val */
+		final void values(float[] val, int count, String type, boolean binary) throws IOException {
+			boolean dbl = type.equals("double");
+			if (!dbl && !type.equals("float")) throw new IOException("unsupported VTK data type: "+type);
+			if (!binary) {
+				for (int n=0;n<count;n++) val[n] = Float.parseFloat(token());
+			} else if (dbl) {
+				for (int n=0;n<count;n++) {
+					if (!fill(8)) throw new EOFException("unexpected end of file");
+					val[n] = (float)window.getDouble();
+				}
+			} else {
+				for (int n=0;n<count;) {
+					if (!fill(4)) throw new EOFException("unexpected end of file");
+					int len = Numerics.min(count-n, window.remaining()/4);
+					window.asFloatBuffer().get(val, n, len);
+					window.position(window.position()+4*len);
+					n += len;
+				}
+			}
+		}
+
+		final int[] ints(int count, boolean binary) throws IOException {
+			int[] val = new int[count];
+			if (!binary) {
+				for (int n=0;n<count;n++) val[n] = Integer.parseInt(token());
+			} else {
+				for (int n=0;n<count;) {
+					if (!fill(4)) throw new EOFException("unexpected end of file");
+					int len = Numerics.min(count-n, window.remaining()/4);
+					window.asIntBuffer().get(val, n, len);
+					window.position(window.position()+4*len);
+					n += len;
+				}
+			}
+			return val;
+		}
+
+		/** skip to the next opening tag of the given element and return its attributes (null if none left) */
+		final HashMap<String,String> nextElement(String name) throws IOException {
+			int b;
+			while ( (b=read())>-1 ) {
+				if (b!='<') continue;
+				StringBuilder tag = new StringBuilder();
+				b = read();
+				while (b>-1 && b!='>' && !Character.isWhitespace(b) && b!='/') {
+					tag.append((char)b);
+					b = read();
+				}
+				if (!tag.toString().equals(name)) continue;
+				// attributes, up to the end of the tag
+				HashMap<String,String> attr = new HashMap<String,String>();
+				StringBuilder key = new StringBuilder();
+				while (b>-1 && b!='>') {
+					if (b=='=') {
+						int quote = read();
+						while (quote>-1 && quote!='"' && quote!='\'') quote = read();
+						StringBuilder val = new StringBuilder();
+						b = read();
+						while (b>-1 && b!=quote) {
+							val.append((char)b);
+							b = read();
+						}
+						attr.put(key.toString().trim(), val.toString());
+						key.setLength(0);
+					} else if (!Character.isWhitespace(b) && b!='/') {
+						key.append((char)b);
+					}
+					b = read();
+				}
+				return attr;
+			}
+			return null;
+		}
+
+		/** the content of the current element, up to the next tag */
+		final InputStream dataStream() {
+			return new InputStream() {
+				private boolean end = false;
+				public int read() throws IOException {
+					if (end || !fill(1)) return -1;
+					if (window.get(window.position())=='<') {
+						end = true;
+						return -1;
+					}
+					return window.get()&0xFF;
+				}
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (len==0) return 0;
+					if (end || !fill(1)) return -1;
+					int n = Numerics.min(len, window.remaining());
+					int p = window.position();
+					for (int k=0;k<n;k++) if (window.get(p+k)=='<') {
+						n = k;
+						end = true;
+					}
+					if (n==0) return -1;
+					window.get(b, off, n);
+					return n;
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,548 @@
+package de.mpg.cbs.utilities;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+/**
+ *
+ *  This class reads and writes NIfTI-1 and NIfTI-2 images directly into flat arrays.
+ *	<p>
+ *	Unlike NiftiInterface, no MIPAV ModelImage is built: the voxel data is decoded
+ *	straight into the float[], int[] or byte[] arrays (x fastest, then y, z, t)
+ *	used by the core classes. Uncompressed files (.nii, .hdr/.img) are memory-mapped,
+ *	gzipped files (.nii.gz) are decompressed through a single direct buffer window,
+ *	so no intermediate copy of the full image is made. Compressed outputs are
+ *	written with a ParallelGzipOutputStream.
+ *	Data scaling (scl_slope, scl_inter) is applied on float reads only.
+ */
+
+public class NiftiFile {
+
+	/** NIfTI data types */
+	public static final short UINT8 = 2;
+	public static final short INT16 = 4;
+	public static final short INT32 = 8;
+	public static final short FLOAT32 = 16;
+	public static final short FLOAT64 = 64;
+	public static final short INT8 = 256;
+	public static final short UINT16 = 512;
+	public static final short UINT32 = 768;
+	public static final short INT64 = 1024;
+
+	private static final int HDR1 = 348;
+	private static final int HDR2 = 540;
+
+	// size of the mapped regions and decompression window
+	private static final int MAPCHUNK = 1<<28;
+	private static final int WINDOW = 1<<24;
+
+	// header values
+	private int version = 1;
+	private ByteOrder order = ByteOrder.nativeOrder();
+	private long[] dim = new long[8];
+	private double[] pixdim = new double[8];
+	private short datatype = FLOAT32;
+	private short bitpix = 32;
+	private long voxoffset = 0;
+	private double sclslope = 1.0;
+	private double sclinter = 0.0;
+	private int xyztunits = 2+8;	// mm, s
+	private int intentcode = 0;
+	private int qformcode = 0;
+	private int sformcode = 0;
+	private double[] quatern = new double[3];
+	private double[] qoffset = new double[3];
+	private double[][] srow = new double[3][4];
+	private String descrip = "";
+
+	// data location
+	private File datafile = null;
+	private boolean compressed = false;
+
+	// compression of written .nii.gz files
+	private int gziplevel = Deflater.DEFAULT_COMPRESSION;
+	private int gzipthreads = ParallelLoops.availableThreads();
+
+	/**
+	 *	open an existing file and read its header
+	 */
+	public NiftiFile(String filename) throws IOException {
+		File file = new File(filename);
+		String name = file.getName();
+		compressed = name.endsWith(".gz");
+
+		InputStream in = openStream(file, compressed);
+		try {
+			readHeader(in);
+		} finally {
+			in.close();
+		}
+		if (name.endsWith(".hdr") || name.endsWith(".hdr.gz")) {
+			datafile = new File(file.getParentFile(), name.replace(".hdr",".img"));
+		} else {
+			datafile = file;
+		}
+	}
+
+	/**
+	 *	new header with the geometry of an existing one (no data attached)
+	 */
+	public NiftiFile(NiftiFile ref) {
+		order = ref.order;
+		dim = ref.dim.clone();
+		pixdim = ref.pixdim.clone();
+		xyztunits = ref.xyztunits;
+		qformcode = ref.qformcode;
+		sformcode = ref.sformcode;
+		quatern = ref.quatern.clone();
+		qoffset = ref.qoffset.clone();
+		for (int n=0;n<3;n++) srow[n] = ref.srow[n].clone();
+		descrip = ref.descrip;
+	}
+
+	/**
+	 *	new header with given dimensions and resolutions (no orientation information)
+	 */
+	public NiftiFile(int[] dims, float[] res) {
+		setDimensions(dims);
+		pixdim[0] = 1.0;
+		for (int n=0;n<res.length && n<7;n++) pixdim[n+1] = res[n];
+	}
+
+	// header accessors
+
+	/** image dimensions: nx, ny, nz */
+	public final int[] getDimensions() {
+		return new int[]{(int)Math.max(1L,dim[1]), (int)Math.max(1L,dim[2]), (int)Math.max(1L,dim[3])};
+	}
+	/** number of volumes (product of all dimensions beyond the third) */
+	public final int getTimePoints() {
+		long nt = 1;
+		for (int n=4;n<=dim[0] && n<8;n++) nt *= Math.max(1L,dim[n]);
+		return (int)nt;
+	}
+	/** voxel sizes: rx, ry, rz */
+	public final float[] getResolutions() { return new float[]{(float)pixdim[1], (float)pixdim[2], (float)pixdim[3]}; }
+	public final float getTimeResolution() { return (float)pixdim[4]; }
+	public final short getDataType() { return datatype; }
+	public final int getVersion() { return version; }
+	public final int getQformCode() { return qformcode; }
+	public final int getSformCode() { return sformcode; }
+	/** quaternion parameters: b, c, d, qfac */
+	public final double[] getQuaternion() { return new double[]{quatern[0], quatern[1], quatern[2], pixdim[0]}; }
+	public final double[] getQoffset() { return qoffset.clone(); }
+	/** sform matrix as three rows of four values */
+	public final double[][] getSform() { return new double[][]{srow[0].clone(), srow[1].clone(), srow[2].clone()}; }
+	public final float getScaleSlope() { return (float)sclslope; }
+	public final float getScaleIntercept() { return (float)sclinter; }
+	public final String getDescription() { return descrip; }
+
+	/** sets nx, ny, nz and optionally nt */
+	public final void setDimensions(int[] dims) {
+		dim = new long[8];
+		int nd = 0;
+		for (int n=0;n<dims.length && n<7;n++) {
+			dim[n+1] = dims[n];
+			if (dims[n]>1 || n<3) nd = n+1;
+		}
+		for (int n=nd+1;n<8;n++) dim[n] = 1;
+		dim[0] = nd;
+	}
+	public final void setResolutions(float[] res) { for (int n=0;n<res.length && n<7;n++) pixdim[n+1] = res[n]; }
+	public final void setQform(int code, double[] quat, double[] offset) {
+		qformcode = code;
+		for (int n=0;n<3;n++) quatern[n] = quat[n];
+		if (quat.length>3) pixdim[0] = (quat[3]<0) ? -1.0 : 1.0;
+		for (int n=0;n<3;n++) qoffset[n] = offset[n];
+	}
+	public final void setSform(int code, double[][] rows) {
+		sformcode = code;
+		for (int n=0;n<3;n++) for (int m=0;m<4;m++) srow[n][m] = rows[n][m];
+	}
+	public final void setDescription(String val) { descrip = val; }
+	/** compression level (0 to 9, -1 for default) and number of threads used when writing .nii.gz files */
+	public final void setCompression(int level, int nthreads) { gziplevel = level; gzipthreads = nthreads; }
+
+	// reading
+
+	/** all voxels as floats, with data scaling applied */
+	public final float[] readFloatImage() throws IOException {
+		float[] image = new float[checkedLength(0, numberOfVoxels())];
+		readData(0, image.length, image);
+		return image;
+	}
+	/** volume t of a 4D image as floats, with data scaling applied */
+	public final float[] readFloatVolume(int t) throws IOException {
+		int nxyz = volumeSize();
+		float[] image = new float[nxyz];
+		readData((long)t*nxyz, nxyz, image);
+		return image;
+	}
+	/** voxels [first, first+buffer.length) as floats, with data scaling applied, into an existing buffer */
+	public final void readFloatImage(float[] buffer, long first) throws IOException {
+		readData(first, buffer.length, buffer);
+	}
+	/** all voxels as integers (no data scaling) */
+	public final int[] readIntImage() throws IOException {
+		int[] image = new int[checkedLength(0, numberOfVoxels())];
+		readData(0, image.length, image);
+		return image;
+	}
+	/** all voxels as bytes (no data scaling) */
+	public final byte[] readByteImage() throws IOException {
+		byte[] image = new byte[checkedLength(0, numberOfVoxels())];
+		readData(0, image.length, image);
+		return image;
+	}
+
+	// writing
+
+	/** write the image as FLOAT32 (.nii or .nii.gz, from the file name) */
+	public final void writeImage(String filename, float[] image) throws IOException {
+		setDataType(FLOAT32);
+		writeData(filename, image, image.length);
+	}
+	/** write the image as INT32 (.nii or .nii.gz, from the file name) */
+	public final void writeImage(String filename, int[] image) throws IOException {
+		setDataType(INT32);
+		writeData(filename, image, image.length);
+	}
+	/** write the image as UINT8 (.nii or .nii.gz, from the file name) */
+	public final void writeImage(String filename, byte[] image) throws IOException {
+		setDataType(UINT8);
+		writeData(filename, image, image.length);
+	}
+
+	private final void setDataType(short type) {
+		datatype = type;
+		bitpix = (short)(8*elementSize(type));
+		sclslope = 1.0;
+		sclinter = 0.0;
+	}
+
+	private final long numberOfVoxels() {
+		long nvox = 1;
+		for (int n=1;n<=dim[0] && n<8;n++) nvox *= Math.max(1L,dim[n]);
+		return nvox;
+	}
+
+	private final int volumeSize() {
+		int[] d = getDimensions();
+		return d[0]*d[1]*d[2];
+	}
+
+	private final int checkedLength(long first, long count) throws IOException {
+		if (count>Integer.MAX_VALUE) throw new IOException("image too large for a single array: "+count+" voxels");
+		if (first<0 || first+count>numberOfVoxels()) throw new IOException("voxels "+first+" to "+(first+count)+" out of image range");
+		return (int)count;
+	}
+
+	private static final int elementSize(short type) {
+		switch (type) {
+			case UINT8:
+			case INT8: return 1;
+			case INT16:
+			case UINT16: return 2;
+			case INT32:
+			case UINT32:
+			case FLOAT32: return 4;
+			case INT64:
+			case FLOAT64: return 8;
+			default: return 0;
+		}
+	}
+
+	private static final InputStream openStream(File file, boolean gzip) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (gzip) return new GZIPInputStream(in, 1<<16);
+		else return new BufferedInputStream(in, 1<<16);
+	}
+
+	private static final void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		while (length>0) {
+			int len = in.read(buffer, offset, length);
+			if (len<0) throw new EOFException("unexpected end of file");
+			offset += len;
+			length -= len;
+		}
+	}
+
+	private final void readHeader(InputStream in) throws IOException {
+		byte[] start = new byte[4];
+		readFully(in, start, 0, 4);
+		ByteBuffer size = ByteBuffer.wrap(start);
+		int sizeof = size.order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+		if (sizeof==HDR1 || sizeof==HDR2) {
+			order = ByteOrder.LITTLE_ENDIAN;
+		} else {
+			sizeof = size.order(ByteOrder.BIG_ENDIAN).getInt(0);
+			if (sizeof==HDR1 || sizeof==HDR2) order = ByteOrder.BIG_ENDIAN;
+			else throw new IOException("not a NIfTI file (header size "+sizeof+")");
+		}
+		byte[] raw = new byte[sizeof];
+		System.arraycopy(start, 0, raw, 0, 4);
+		readFully(in, raw, 4, sizeof-4);
+		ByteBuffer hdr = ByteBuffer.wrap(raw).order(order);
+
+		if (sizeof==HDR1) {
+			version = 1;
+			for (int n=0;n<8;n++) dim[n] = hdr.getShort(40+2*n);
+			intentcode = hdr.getShort(68);
+			datatype = hdr.getShort(70);
+			bitpix = hdr.getShort(72);
+			for (int n=0;n<8;n++) pixdim[n] = hdr.getFloat(76+4*n);
+			voxoffset = (long)hdr.getFloat(108);
+			sclslope = hdr.getFloat(112);
+			sclinter = hdr.getFloat(116);
+			xyztunits = hdr.get(123);
+			descrip = readString(raw, 148, 80);
+			qformcode = hdr.getShort(252);
+			sformcode = hdr.getShort(254);
+			for (int n=0;n<3;n++) quatern[n] = hdr.getFloat(256+4*n);
+			for (int n=0;n<3;n++) qoffset[n] = hdr.getFloat(268+4*n);
+			for (int n=0;n<3;n++) for (int m=0;m<4;m++) srow[n][m] = hdr.getFloat(280+16*n+4*m);
+		} else {
+			version = 2;
+			datatype = hdr.getShort(12);
+			bitpix = hdr.getShort(14);
+			for (int n=0;n<8;n++) dim[n] = hdr.getLong(16+8*n);
+			for (int n=0;n<8;n++) pixdim[n] = hdr.getDouble(104+8*n);
+			voxoffset = hdr.getLong(168);
+			sclslope = hdr.getDouble(176);
+			sclinter = hdr.getDouble(184);
+			descrip = readString(raw, 240, 80);
+			qformcode = hdr.getInt(344);
+			sformcode = hdr.getInt(348);
+			for (int n=0;n<3;n++) quatern[n] = hdr.getDouble(352+8*n);
+			for (int n=0;n<3;n++) qoffset[n] = hdr.getDouble(376+8*n);
+			for (int n=0;n<3;n++) for (int m=0;m<4;m++) srow[n][m] = hdr.getDouble(400+32*n+8*m);
+			xyztunits = hdr.getInt(500);
+			intentcode = hdr.getInt(504);
+		}
+		if (dim[0]<1 || dim[0]>7) throw new IOException("invalid number of dimensions: "+dim[0]);
+		if (elementSize(datatype)==0) throw new IOException("unsupported NIfTI data type: "+datatype);
+		if (pixdim[0]==0) pixdim[0] = 1.0;
+	}
+
+	private static final String readString(byte[] raw, int offset, int length) {
+		int len = 0;
+		while (len<length && raw[offset+len]!=0) len++;
+		try {
+			return new String(raw, offset, len, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			return "";
+		}
+	}
+
+	/** decode count voxels starting at voxel first into the target array */
+	private final void readData(long first, int count, Object target) throws IOException {
+		checkedLength(first, count);
+		int esize = elementSize(datatype);
+		long position = voxoffset + first*esize;
+		long length = (long)count*esize;
+		int offset = 0;
+
+		if (!compressed) {
+			RandomAccessFile raf = new RandomAccessFile(datafile, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size()<position+length) throw new EOFException("file too short for the image data: "+datafile.getName());
+				while (length>0) {
+					long chunk = Numerics.min(length, (long)MAPCHUNK);
+					ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, chunk).order(order);
+					int nelem = (int)(chunk/esize);
+					convert(buffer, target, offset, nelem);
+					offset += nelem;
+					position += chunk;
+					length -= chunk;
+				}
+			} finally {
+				raf.close();
+			}
+		} else {
+			InputStream in = openStream(datafile, true);
+			try {
+				long skip = position;
+				while (skip>0) {
+					long len = in.skip(skip);
+					if (len<=0) {
+						if (in.read()<0) throw new EOFException("file too short for the image data: "+datafile.getName());
+						len = 1;
+					}
+					skip -= len;
+				}
+				ReadableByteChannel channel = Channels.newChannel(in);
+				ByteBuffer window = ByteBuffer.allocateDirect((int)Numerics.min((long)WINDOW, length)).order(order);
+				while (length>0) {
+					window.limit((int)Numerics.min((long)window.capacity(), length));
+					while (window.hasRemaining()) {
+						if (channel.read(window)<0) throw new EOFException("file too short for the image data: "+datafile.getName());
+					}
+					window.flip();
+					int nelem = window.remaining()/esize;
+					convert(window, target, offset, nelem);
+					offset += nelem;
+					length -= (long)nelem*esize;
+					window.clear();
+				}
+			} finally {
+				in.close();
+			}
+		}
+		if (target instanceof float[] && sclslope!=0 && (sclslope!=1.0 || sclinter!=0.0)) {
+			float[] image = (float[])target;
+			float slope = (float)sclslope;
+			float inter = (float)sclinter;
+			for (int n=0;n<count;n++) image[n] = image[n]*slope + inter;
+		}
+	}
+
+	private final void convert(ByteBuffer buffer, Object target, int offset, int nelem) {
+		if (target instanceof float[]) convert(buffer, (float[])target, offset, nelem);
+		else if (target instanceof int[]) convert(buffer, (int[])target, offset, nelem);
+		else convert(buffer, (byte[])target, offset, nelem);
+	}
+
+	private final void convert(ByteBuffer buffer, float[] target, int offset, int nelem) {
+		switch (datatype) {
+			case UINT8: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.get()&0xff; break;
+			case INT8: 		for (int n=0;n<nelem;n++) target[offset+n] = buffer.get(); break;
+			case INT16: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getShort(); break;
+			case UINT16: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getShort()&0xffff; break;
+			case INT32: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getInt(); break;
+			case UINT32: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getInt()&0xffffffffL; break;
+			case INT64: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getLong(); break;
+			case FLOAT32: 	buffer.asFloatBuffer().get(target, offset, nelem);
+							buffer.position(buffer.position()+4*nelem); break;
+			case FLOAT64: 	for (int n=0;n<nelem;n++) target[offset+n] = (float)buffer.getDouble(); break;
+		}
+	}
+
+	private final void convert(ByteBuffer buffer, int[] target, int offset, int nelem) {
+		switch (datatype) {
+			case UINT8: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.get()&0xff; break;
+			case INT8: 		for (int n=0;n<nelem;n++) target[offset+n] = buffer.get(); break;
+			case INT16: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getShort(); break;
+			case UINT16: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getShort()&0xffff; break;
+			case INT32: 	buffer.asIntBuffer().get(target, offset, nelem);
+							buffer.position(buffer.position()+4*nelem); break;
+			case UINT32: 	for (int n=0;n<nelem;n++) target[offset+n] = buffer.getInt(); break;
+			case INT64: 	for (int n=0;n<nelem;n++) target[offset+n] = (int)buffer.getLong(); break;
+			case FLOAT32: 	for (int n=0;n<nelem;n++) target[offset+n] = Numerics.round(buffer.getFloat()); break;
+			case FLOAT64: 	for (int n=0;n<nelem;n++) target[offset+n] = Numerics.round(buffer.getDouble()); break;
+		}
+	}
+
+	private final void convert(ByteBuffer buffer, byte[] target, int offset, int nelem) {
+		switch (datatype) {
+			case UINT8:
+			case INT8: 		buffer.get(target, offset, nelem); break;
+			case INT16:
+			case UINT16: 	for (int n=0;n<nelem;n++) target[offset+n] = (byte)buffer.getShort(); break;
+			case INT32:
+			case UINT32: 	for (int n=0;n<nelem;n++) target[offset+n] = (byte)buffer.getInt(); break;
+			case INT64: 	for (int n=0;n<nelem;n++) target[offset+n] = (byte)buffer.getLong(); break;
+			case FLOAT32: 	for (int n=0;n<nelem;n++) target[offset+n] = (byte)Numerics.round(buffer.getFloat()); break;
+			case FLOAT64: 	for (int n=0;n<nelem;n++) target[offset+n] = (byte)Numerics.round(buffer.getDouble()); break;
+		}
+	}
+
+	/** build the header: NIfTI-1 when all dimensions fit, NIfTI-2 otherwise */
+	private final ByteBuffer buildHeader() {
+		boolean large = false;
+		for (int n=1;n<8;n++) if (dim[n]>Short.MAX_VALUE) large = true;
+
+		ByteBuffer hdr;
+		if (!large) {
+			version = 1;
+			voxoffset = HDR1+4;
+			hdr = ByteBuffer.allocate((int)voxoffset).order(order);
+			hdr.putInt(0, HDR1);
+			hdr.put(38, (byte)'r');
+			for (int n=0;n<8;n++) hdr.putShort(40+2*n, (short)dim[n]);
+			hdr.putShort(68, (short)intentcode);
+			hdr.putShort(70, datatype);
+			hdr.putShort(72, bitpix);
+			for (int n=0;n<8;n++) hdr.putFloat(76+4*n, (float)pixdim[n]);
+			hdr.putFloat(108, voxoffset);
+			hdr.putFloat(112, (float)sclslope);
+			hdr.putFloat(116, (float)sclinter);
+			hdr.put(123, (byte)xyztunits);
+			writeString(hdr, descrip, 148, 80);
+			hdr.putShort(252, (short)qformcode);
+			hdr.putShort(254, (short)sformcode);
+			for (int n=0;n<3;n++) hdr.putFloat(256+4*n, (float)quatern[n]);
+			for (int n=0;n<3;n++) hdr.putFloat(268+4*n, (float)qoffset[n]);
+			for (int n=0;n<3;n++) for (int m=0;m<4;m++) hdr.putFloat(280+16*n+4*m, (float)srow[n][m]);
+			writeString(hdr, "n+1", 344, 4);
+		} else {
+			version = 2;
+			voxoffset = HDR2+4;
+			hdr = ByteBuffer.allocate((int)voxoffset).order(order);
+			hdr.putInt(0, HDR2);
+			byte[] magic = new byte[]{'n','+','2',0,'\r','\n',(byte)0x1a,'\n'};
+			for (int n=0;n<8;n++) hdr.put(4+n, magic[n]);
+			hdr.putShort(12, datatype);
+			hdr.putShort(14, bitpix);
+			for (int n=0;n<8;n++) hdr.putLong(16+8*n, dim[n]);
+			for (int n=0;n<8;n++) hdr.putDouble(104+8*n, pixdim[n]);
+			hdr.putLong(168, voxoffset);
+			hdr.putDouble(176, sclslope);
+			hdr.putDouble(184, sclinter);
+			writeString(hdr, descrip, 240, 80);
+			hdr.putInt(344, qformcode);
+			hdr.putInt(348, sformcode);
+			for (int n=0;n<3;n++) hdr.putDouble(352+8*n, quatern[n]);
+			for (int n=0;n<3;n++) hdr.putDouble(376+8*n, qoffset[n]);
+			for (int n=0;n<3;n++) for (int m=0;m<4;m++) hdr.putDouble(400+32*n+8*m, srow[n][m]);
+			hdr.putInt(500, xyztunits);
+			hdr.putInt(504, intentcode);
+		}
+		hdr.position(0);
+		return hdr;
+	}
+
+	private static final void writeString(ByteBuffer hdr, String val, int offset, int length) {
+		for (int n=0;n<val.length() && n<length-1;n++) hdr.put(offset+n, (byte)val.charAt(n));
+	}
+
+	private final void writeData(String filename, Object image, int length) throws IOException {
+		int nxyz = volumeSize();
+		if (length%nxyz!=0) throw new IOException("image length "+length+" is not a multiple of the volume size "+nxyz);
+		if (length/nxyz!=getTimePoints()) {
+			int[] d = getDimensions();
+			setDimensions(new int[]{d[0], d[1], d[2], length/nxyz});
+		}
+		ByteBuffer hdr = buildHeader();
+
+		OutputStream out = new FileOutputStream(filename);
+		if (filename.endsWith(".gz")) out = new ParallelGzipOutputStream(new BufferedOutputStream(out, 1<<16), gziplevel, gzipthreads);
+		WritableByteChannel channel = Channels.newChannel(out);
+		try {
+			while (hdr.hasRemaining()) channel.write(hdr);
+
+			int esize = elementSize(datatype);
+			int chunk = Numerics.max(1, Numerics.min(length, WINDOW/esize));
+			ByteBuffer window = ByteBuffer.allocateDirect(chunk*esize).order(order);
+			for (int offset=0;offset<length;offset+=chunk) {
+				int nelem = Numerics.min(chunk, length-offset);
+				window.clear();
+				if (image instanceof float[]) {
+					window.asFloatBuffer().put((float[])image, offset, nelem);
+				} else if (image instanceof int[]) {
+					window.asIntBuffer().put((int[])image, offset, nelem);
+				} else {
+					window.put((byte[])image, offset, nelem);
+				}
+				window.position(0);
+				window.limit(nelem*esize);
+				while (window.hasRemaining()) channel.write(window);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package de.mpg.cbs.utilities;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ *
+ *  This class writes a gzip stream, compressing blocks of data on several threads.
+ *	<p>
+ *	As in pigz, the data is cut into blocks which are deflated independently
+ *	(with the end of the previous block as dictionary) and terminated by a sync flush,
+ *	so that the blocks concatenate into a single standard deflate stream.
+ *	The CRC and the gzip header and trailer are computed in order by the writing thread,
+ *	so the output is a regular single-member .gz file readable by any gzip decoder.
+ */
+
+public class ParallelGzipOutputStream extends OutputStream {
+
+	private static final int BLOCK = 1<<20;
+	private static final int DICT = 1<<15;
+
+	private OutputStream out;
+	private int level;
+	private ExecutorService pool;
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private int maxpending;
+
+	private byte[] block;
+	private int blocksize = 0;
+	private byte[] previous = null;
+
+	private CRC32 crc = new CRC32();
+	private long total = 0;
+	private boolean closed = false;
+
+	/**
+	 *	gzip stream with the given compression level (0 to 9) on nthreads threads
+	 */
+	public ParallelGzipOutputStream(OutputStream out_, int level_, int nthreads) throws IOException {
+		out = out_;
+		level = level_;
+		if (level<Deflater.NO_COMPRESSION || level>Deflater.BEST_COMPRESSION) level = Deflater.DEFAULT_COMPRESSION;
+		nthreads = Numerics.max(1, nthreads);
+		pool = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gzip");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		maxpending = 2*nthreads;
+		block = new byte[BLOCK];
+
+		// gzip header: deflate, no flags, no time stamp, unknown OS
+		out.write(new byte[]{(byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff});
+	}
+
+	/**
+	 *	gzip stream with the default compression level, on all available processors
+	 */
+	public ParallelGzipOutputStream(OutputStream out_) throws IOException {
+		this(out_, Deflater.DEFAULT_COMPRESSION, ParallelLoops.availableThreads());
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (closed) throw new IOException("stream closed");
+		while (length>0) {
+			int len = Numerics.min(length, BLOCK-blocksize);
+			System.arraycopy(data, offset, block, blocksize, len);
+			blocksize += len;
+			offset += len;
+			length -= len;
+			if (blocksize==BLOCK) submitBlock(false);
+		}
+	}
+
+	/** note: flushing does not end the current block, to keep blocks of full size */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			submitBlock(true);
+			while (!pending.isEmpty()) writeNextBlock();
+
+			// gzip trailer: CRC32 and size mod 2^32, little endian
+			long value = crc.getValue();
+			byte[] trailer = new byte[8];
+			for (int n=0;n<4;n++) trailer[n] = (byte)(value>>>(8*n));
+			for (int n=0;n<4;n++) trailer[4+n] = (byte)(total>>>(8*n));
+			out.write(trailer);
+		} finally {
+			closed = true;
+			pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	private final void submitBlock(final boolean last) throws IOException {
+		final byte[] data = block;
+		final int size = blocksize;
+		final byte[] dict = previous;
+		crc.update(data, 0, size);
+		total += size;
+
+		if (pending.size()>=maxpending) writeNextBlock();
+		pending.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return deflateBlock(data, size, dict, last);
+			}
+		}));
+		previous = data;
+		if (!last) {
+			block = new byte[BLOCK];
+			blocksize = 0;
+		}
+	}
+
+	private final void writeNextBlock() throws IOException {
+		try {
+			out.write(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("compression failed", e.getCause());
+		}
+	}
+
+	private final byte[] deflateBlock(byte[] data, int size, byte[] dict, boolean last) {
+		Deflater deflater = new Deflater(level, true);
+		if (dict!=null) deflater.setDictionary(dict, BLOCK-DICT, DICT);
+		deflater.setInput(data, 0, size);
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream(size/2+64);
+		byte[] buffer = new byte[1<<16];
+		if (last) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+				result.write(buffer, 0, len);
+			}
+		} else {
+			int len;
+			// a sync flush is complete once it leaves room in the output buffer
+			do {
+				len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				result.write(buffer, 0, len);
+			} while (len==buffer.length);
+		}
+		deflater.end();
+		return result.toByteArray();
+	}
+
+	/**
+	 *	compress an existing file into a .gz file
+	 */
+	public static final void compressFile(String input, String output, int level, int nthreads) throws IOException {
+		InputStream in = new FileInputStream(input);
+		OutputStream gz = new ParallelGzipOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1<<16), level, nthreads);
+		try {
+			byte[] buffer = new byte[BLOCK];
+			int len;
+			while ((len=in.read(buffer))>=0) gz.write(buffer, 0, len);
+		} finally {
+			in.close();
+			gz.close();
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package de.mpg.cbs.utilities;
+
+/**
+ *
+ *  This class runs simple loops over index ranges on several threads.
+ *	<p>
+ *	The range [start,end) is split into contiguous slabs, one per thread,
+ *	so that loops over xyz (or narrow band) indices are processed
+ *	as blocks of consecutive z planes. Each slab is given its thread number,
+ *	to be used for selecting per-thread computation buffers.
+ *	The call returns only when all slabs are processed.
+ */
+
+public class ParallelLoops {
+
+	/** the task to run on each slab [start,end) */
+	public static abstract class Slab {
+		public abstract void run(int start, int end, int thread);
+	}
+
+	/**
+	 *	number of threads to use by default (all available processors)
+	 */
+	public static final int availableThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 *	number of slabs actually used for a given range and number of threads
+	 */
+	public static final int numberOfSlabs(int start, int end, int nthreads) {
+		return Numerics.max(1, Numerics.min(nthreads, end-start));
+	}
+
+	/**
+	 *	first index of slab t out of ns over [start,end)
+	 */
+	public static final int slabStart(int start, int end, int ns, int t) {
+		return start + (int)( (long)(end-start)*t/ns );
+	}
+
+	/**
+	 *	process [start,end) on nthreads threads (runs in the calling thread if nthreads<=1)
+	 */
+	public static final void forEachSlab(final int start, final int end, int nthreads, final Slab task) {
+		final int ns = numberOfSlabs(start, end, nthreads);
+		if (ns==1) {
+			task.run(start, end, 0);
+			return;
+		}
+		final Throwable[] error = new Throwable[1];
+		Thread[] workers = new Thread[ns-1];
+		for (int t=1;t<ns;t++) {
+			final int id = t;
+			workers[t-1] = new Thread() {
+				public void run() {
+					try {
+						task.run(slabStart(start,end,ns,id), slabStart(start,end,ns,id+1), id);
+					} catch (Throwable e) {
+						synchronized (error) { if (error[0]==null) error[0] = e; }
+					}
+				}
+			};
+			workers[t-1].start();
+		}
+		// the calling thread takes the first slab
+		try {
+			task.run(slabStart(start,end,ns,0), slabStart(start,end,ns,1), 0);
+		} catch (Throwable e) {
+			synchronized (error) { if (error[0]==null) error[0] = e; }
+		}
+		for (int t=1;t<ns;t++) {
+			try {
+				workers[t-1].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted while waiting for slab "+t, e);
+			}
+		}
+		if (error[0]!=null) {
+			if (error[0] instanceof RuntimeException) throw (RuntimeException)error[0];
+			if (error[0] instanceof Error) throw (Error)error[0];
+			throw new RuntimeException(error[0]);
+		}
+	}
+
+}
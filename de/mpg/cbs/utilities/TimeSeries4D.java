@@ -0,0 +1,195 @@
+package de.mpg.cbs.utilities;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ *  This class stores 4D time series outside of the Java heap, time-major:
+ *	the nt values of each voxel are contiguous, and voxels follow the usual xyz = x + nx*y + nx*ny*z order.
+ *	<p>
+ *	The data is split into chunks of whole series (at most 1GB each), held either in direct buffers
+ *	or in a memory-mapped file, so that runs bigger than the heap (or than the memory) can be processed.
+ *	Series are best read in voxel order, one chunk after the other; absolute accesses are safe
+ *	on several threads as long as they do not write the same voxels.
+ */
+
+public class TimeSeries4D {
+
+	private static final long CHUNK = 1L<<30;
+
+	private int nx, ny, nz, nt;
+	private int nxyz;
+	private int chunkvoxels;			// number of series per chunk
+	private FloatBuffer[] chunks;
+	private File mapfile = null;
+	private boolean temporary = false;
+
+	/**
+	 *	series stored in direct buffers
+	 */
+	public TimeSeries4D(int nx_, int ny_, int nz_, int nt_) {
+		init(nx_, ny_, nz_, nt_);
+		for (int c=0;c<chunks.length;c++) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(4*chunkLength(c));
+			buffer.order(ByteOrder.nativeOrder());
+			chunks[c] = buffer.asFloatBuffer();
+		}
+	}
+
+	/**
+	 *	series stored in a memory-mapped file (a temporary file if filename is null)
+	 */
+	public TimeSeries4D(int nx_, int ny_, int nz_, int nt_, String filename) throws IOException {
+		init(nx_, ny_, nz_, nt_);
+		if (filename==null) {
+			mapfile = File.createTempFile("timeseries", ".raw");
+			mapfile.deleteOnExit();
+			temporary = true;
+		} else {
+			mapfile = new File(filename);
+		}
+		RandomAccessFile file = new RandomAccessFile(mapfile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			long position = 0;
+			for (int c=0;c<chunks.length;c++) {
+				long size = 4L*chunkLength(c);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+				buffer.order(ByteOrder.nativeOrder());
+				chunks[c] = buffer.asFloatBuffer();
+				position += size;
+			}
+		} finally {
+			// the mappings stay valid after closing the file
+			file.close();
+		}
+	}
+
+	private final void init(int nx_, int ny_, int nz_, int nt_) {
+		nx = nx_;
+		ny = ny_;
+		nz = nz_;
+		nt = Numerics.max(1, nt_);
+		nxyz = nx*ny*nz;
+		chunkvoxels = (int)Math.max(1L, Math.min((long)nxyz, CHUNK/(4L*nt)));
+		chunks = new FloatBuffer[Numerics.max(1, (nxyz+chunkvoxels-1)/chunkvoxels)];
+	}
+
+	/** number of floats in chunk c */
+	private final int chunkLength(int c) {
+		return Numerics.max(1, Numerics.min(chunkvoxels, nxyz-c*chunkvoxels))*nt;
+	}
+
+	/**
+	 *	release the buffers (and the temporary file, if any)
+	 */
+	public final void close() {
+		chunks = null;
+		if (temporary && mapfile!=null) mapfile.delete();
+		mapfile = null;
+	}
+
+	public final int getRows() { return nx; }
+	public final int getCols() { return ny; }
+	public final int getSlices() { return nz; }
+	public final int getTimePoints() { return nt; }
+	public final int getVoxels() { return nxyz; }
+
+	/** number of chunks, and range [first,last) of the voxels stored in each of them */
+	public final int getChunks() { return chunks.length; }
+	public final int chunkFirstVoxel(int c) { return c*chunkvoxels; }
+	public final int chunkLastVoxel(int c) { return Numerics.min(nxyz, (c+1)*chunkvoxels); }
+
+	public final float get(int xyz, int t) {
+		return chunks[xyz/chunkvoxels].get((xyz%chunkvoxels)*nt+t);
+	}
+
+	public final void set(int xyz, int t, float val) {
+		chunks[xyz/chunkvoxels].put((xyz%chunkvoxels)*nt+t, val);
+	}
+
+	/** copy the series of voxel xyz into series[0..nt-1] */
+	public final void getSeries(int xyz, float[] series) {
+		FloatBuffer buffer = chunks[xyz/chunkvoxels].duplicate();
+		buffer.position((xyz%chunkvoxels)*nt);
+		buffer.get(series, 0, nt);
+	}
+
+	public final void setSeries(int xyz, float[] series) {
+		FloatBuffer buffer = chunks[xyz/chunkvoxels].duplicate();
+		buffer.position((xyz%chunkvoxels)*nt);
+		buffer.put(series, 0, nt);
+	}
+
+	/**
+	 *	copy the series of voxels [xyz,xyz+count) into block, one after the other
+	 */
+	public final void getBlock(int xyz, int count, float[] block) {
+		int offset = 0;
+		while (count>0) {
+			int c = xyz/chunkvoxels;
+			int len = Numerics.min(count, chunkLastVoxel(c)-xyz);
+			FloatBuffer buffer = chunks[c].duplicate();
+			buffer.position((xyz%chunkvoxels)*nt);
+			buffer.get(block, offset, len*nt);
+			xyz += len;
+			count -= len;
+			offset += len*nt;
+		}
+	}
+
+	public final void setBlock(int xyz, int count, float[] block) {
+		int offset = 0;
+		while (count>0) {
+			int c = xyz/chunkvoxels;
+			int len = Numerics.min(count, chunkLastVoxel(c)-xyz);
+			FloatBuffer buffer = chunks[c].duplicate();
+			buffer.position((xyz%chunkvoxels)*nt);
+			buffer.put(block, offset, len*nt);
+			xyz += len;
+			count -= len;
+			offset += len*nt;
+		}
+	}
+
+	/** copy the volume at time t into vol[xyz] (strided access, to use sparingly) */
+	public final void getVolume(int t, float[] vol) {
+		for (int xyz=0;xyz<nxyz;xyz++) vol[xyz] = get(xyz, t);
+	}
+
+	public final void setVolume(int t, float[] vol) {
+		for (int xyz=0;xyz<nxyz;xyz++) set(xyz, t, vol[xyz]);
+	}
+
+	/** scalar product of the series of two voxels */
+	public final double dot(int xyz1, int xyz2) {
+		FloatBuffer b1 = chunks[xyz1/chunkvoxels];
+		FloatBuffer b2 = chunks[xyz2/chunkvoxels];
+		int o1 = (xyz1%chunkvoxels)*nt;
+		int o2 = (xyz2%chunkvoxels)*nt;
+		double prod = 0.0;
+		for (int t=0;t<nt;t++) prod += b1.get(o1+t)*b2.get(o2+t);
+		return prod;
+	}
+
+	/**
+	 *	load the series from a NIfTI file, a few volumes at a time
+	 *	(the series are written in contiguous runs of volumes)
+	 */
+	public final void readNifti(NiftiFile nifti) throws IOException {
+		int nblock = Numerics.max(1, Numerics.min(nt, 16));
+		float[][] vols = new float[nblock][];
+		for (int t0=0;t0<nt;t0+=nblock) {
+			int nb = Numerics.min(nblock, nt-t0);
+			for (int b=0;b<nb;b++) vols[b] = nifti.readFloatVolume(t0+b);
+			for (int xyz=0;xyz<nxyz;xyz++) {
+				FloatBuffer buffer = chunks[xyz/chunkvoxels];
+				int offset = (xyz%chunkvoxels)*nt+t0;
+				for (int b=0;b<nb;b++) buffer.put(offset+b, vols[b][xyz]);
+			}
+		}
+	}
+
+}
@@ -10,7 +10,7 @@ cd /home/user/Code/github/cbstools-public/
 
 # include ONLY the classes to manipulate via python (the other ones are handled within Java, which simplifies the dependencies
 rm -f cbstools.jar
-jar cvf cbstools.jar de/mpg/cbs/core/*/*.class
+jar cvf cbstools.jar de/mpg/cbs/core/*/*.class ca/concordia/qpi/*/*.class
 
 # all the used libraries must be included in the python distribution...
 rm -f cbstools-lib.jar
@@ -26,6 +26,7 @@ export PYTHONPATH=$PYTHONPATH:/home/user/Code/github/cbstools-public/python
 #python -m jcc --jar cbstools.jar --include cbstools-lib.jar --include /home/pilou/Code/cbs/bazin/lib/commons-math3-3.5.jar --python cbstools --version 3.1.0 --build --classpath $CLASSPATH --maxheap 5000M --install --install-dir /home/pilou/Code/github/cbstools/python/
 
 # no need for extra dependencies if all the code is included as jars (makes it independent from external installations, but requires to port or include all dependencies...)
-python -m jcc --jar cbstools.jar --include cbstools-lib.jar --include lib/commons-math3-3.5.jar --include lib/Jama-mipav.jar --python cbstoolsjcc --version 3.1.0.1 --build --maxheap 5000M --install --install-dir /home/pilou/Code/github/cbstools-public/python/
+# java.nio is exported so that the direct buffer setters/getters (FloatBuffer, IntBuffer, ByteBuffer) are wrapped
+python -m jcc --jar cbstools.jar --include cbstools-lib.jar --include lib/commons-math3-3.5.jar --include lib/Jama-mipav.jar --package java.nio --python cbstoolsjcc --version 3.1.0.1 --build --maxheap 5000M --install --install-dir /home/pilou/Code/github/cbstools-public/python/
 
 
@@ -7,6 +7,7 @@ steele{AT}cbs{dot}mpg{dot}de
 """
 
 import numpy as np
+import ctypes
 from os.path import sep as pathsep
 import sys
 
@@ -20,20 +21,85 @@ from defaults import * #ATLAS_DIR and TOPOLOGY_LUT_DIR
 def normalise(img_d):
     return (img_d - np.min(img_d))/np.max(img_d)
 
-def setup_JVM(JVM_initialheap = '4000M', JVM_maxheap = '4000M'):
+# lets DirectBuffers.address() read the address of direct buffers on java 9+ (ignored by java 8)
+JVM_NIO_ARGS = '-XX:+IgnoreUnrecognizedVMOptions,--add-opens=java.base/java.nio=ALL-UNNAMED'
+
+def setup_JVM(JVM_initialheap = '4000M', JVM_maxheap = '4000M', JVM_args = None):
     """
     initialise the JVM and set all of the base with reasonable defaults for memory
     :param JVM_initialheap:
     :param JVM_maxheap:
+    :param JVM_args: extra JVM options, comma separated; JVM_NIO_ARGS are always added
+                     so that volumes are shared through direct buffers (see _direct_buffers)
     :return:
     """
+    if JVM_args is None:
+        JVM_args = JVM_NIO_ARGS
+    else:
+        JVM_args = JVM_NIO_ARGS+','+JVM_args
     try:
-        res=cj.initVM(initialheap=JVM_initialheap,maxheap=JVM_maxheap)
+        res=cj.initVM(initialheap=JVM_initialheap,maxheap=JVM_maxheap,vmargs=JVM_args)
         print(res)
         print("Java virtual machine successfully started.")
     except ValueError:
         print("A java virtual machine is already running.")
 
+_DIRECT_BUFFERS = None
+
+def _direct_buffers():
+    """
+    check whether direct buffers of the JVM can be mapped in place by numpy
+    (requires the java.nio package to be opened on java 9+, see setup_JVM);
+    otherwise a warning is printed once and volumes are copied through java arrays
+    """
+    global _DIRECT_BUFFERS
+    if _DIRECT_BUFFERS is None:
+        try:
+            cj.DirectBuffers.address(cj.DirectBuffers.allocate(4))
+            _DIRECT_BUFFERS = True
+        except cj.JavaError as e:
+            print("Direct buffers not available, volumes are copied: "+str(e))
+            _DIRECT_BUFFERS = False
+    return _DIRECT_BUFFERS
+
+def _to_java_float(d):
+    """
+    pass a volume to the JVM as a float buffer: the data is written once, in Fortran order,
+    into a direct buffer mapped by numpy, without element-by-element conversion
+    :param d: numpy volume
+    :return: FloatBuffer, or float JArray if direct buffers cannot be mapped
+    """
+    if not _direct_buffers() or not cj.DirectBuffers.fits(4*d.size):
+        return cj.JArray('float')((d.flatten('F')).astype(float))
+    buf = cj.DirectBuffers.allocate(4*d.size)
+    raw = (ctypes.c_byte*(4*d.size)).from_address(cj.DirectBuffers.address(buf))
+    view = np.frombuffer(raw, dtype=np.float32)
+    view[:] = np.ravel(d, order='F')
+    return buf.asFloatBuffer()
+
+def _from_java(buffer_getter, array_getter, dtype, shape):
+    """
+    retrieve a volume from the JVM: the direct buffer returned by buffer_getter is wrapped by numpy
+    without copy, and kept alive as long as the returned array. The buffer is owned by the java object
+    and reused by its next execution: copy the array if it must outlive it
+    :param buffer_getter: method returning a direct buffer (e.g. mgdm.getSegmentedBrainBuffer)
+    :param array_getter: method returning the java array, used if direct buffers cannot be mapped
+    :param dtype: numpy type of the buffer elements
+    :param shape: volume shape, the data is in Fortran order
+    :return: numpy volume
+    """
+    if not _direct_buffers():
+        return np.reshape(np.array(array_getter(), dtype=dtype), shape, 'F')
+    try:
+        buf = buffer_getter()
+    except cj.JavaError:
+        # outputs over the direct buffer size limit are only available as arrays
+        return np.reshape(np.array(array_getter(), dtype=dtype), shape, 'F')
+    nbytes = buf.capacity()*np.dtype(dtype).itemsize
+    raw = (ctypes.c_byte*nbytes).from_address(cj.DirectBuffers.address(buf))
+    raw._jbuffer = buf
+    return np.reshape(np.frombuffer(raw, dtype=dtype), shape, 'F')
+
 
 def ExtractBrainRegion():
     pass
@@ -114,6 +180,7 @@ def MGDMBrainSegmentation(input_filename_type_list, output_dir = None, num_steps
 
     #now we setup the mgdm specfic settings
     mgdm = cj.BrainMgdmMultiSegmentation2()
+    mgdm.setDirectBufferOutputs(_direct_buffers())
     mgdm.setAtlasFile(atlas)
     mgdm.setTopologyLUTdirectory(topology_lut_dir)
 
@@ -186,16 +253,16 @@ def MGDMBrainSegmentation(input_filename_type_list, output_dir = None, num_steps
             d_shape = np.array(d.shape)
             out_root_fname = os.path.basename(fname)[0:os.path.basename(fname).find('.')] #assumes no periods in filename, :-/
 
-            mgdm.setContrastImage1(cj.JArray('float')((d.flatten('F')).astype(float)))
+            mgdm.setContrastImage1(_to_java_float(d))
             mgdm.setContrastType1(type)
         elif idx+1 == 2:
-            mgdm.setContrastImage2(cj.JArray('float')((d.flatten('F')).astype(float)))
+            mgdm.setContrastImage2(_to_java_float(d))
             mgdm.setContrastType2(type)
         elif idx + 1 == 3:
-            mgdm.setContrastImage3(cj.JArray('float')((d.flatten('F')).astype(float)))
+            mgdm.setContrastImage3(_to_java_float(d))
             mgdm.setContrastType3(type)
         elif idx + 1 == 4:
-            mgdm.setContrastImage4(cj.JArray('float')((d.flatten('F')).astype(float)))
+            mgdm.setContrastImage4(_to_java_float(d))
             mgdm.setContrastType4(type)
     try:
         print("Executing MGDM on your inputs")
@@ -206,9 +273,9 @@ def MGDMBrainSegmentation(input_filename_type_list, output_dir = None, num_steps
 
         # outputs
         # reshape fortran stype to convert back to the format the nibabel likes
-        seg_im = np.reshape(np.array(mgdm.getSegmentedBrainImage(), dtype=np.uint32), d_shape,'F')
-        lbl_im = np.reshape(np.array(mgdm.getPosteriorMaximumLabels4D(), dtype=np.uint32), d_shape, 'F')
-        ids_im = np.reshape(np.array(mgdm.getSegmentedIdsImage(), dtype=np.uint32), d_shape, 'F')
+        seg_im = _from_java(mgdm.getSegmentedBrainBuffer, mgdm.getSegmentedBrainImage, np.uint32, d_shape)
+        lbl_im = _from_java(mgdm.getPosteriorMaximumLabels4DBuffer, mgdm.getPosteriorMaximumLabels4D, np.uint8, d_shape).astype(np.uint32)
+        ids_im = _from_java(mgdm.getSegmentedIdsBuffer, mgdm.getSegmentedIdsImage, np.uint8, d_shape).astype(np.uint32)
 
         # fix orientation back to the input orientation :-/ not really working
         # seg_im = apply_orientation(seg_im, ornt_chng) # this takes care of the orientations between mipav and input
@@ -311,6 +378,7 @@ def MGDMBrainSegmentation_v2(con1_files, con1_type, con2_files=None, con2_type=N
 
     #now we setup the mgdm specfic settings
     mgdm = cj.BrainMgdmMultiSegmentation2()
+    mgdm.setDirectBufferOutputs(_direct_buffers())
     mgdm.setAtlasFile(atlas)
     mgdm.setTopologyLUTdirectory(topology_lut_dir)
 
@@ -368,23 +436,23 @@ def MGDMBrainSegmentation_v2(con1_files, con1_type, con2_files=None, con2_type=N
         # keep the shape and affine from the first image for saving
         d_shape = np.array(d.shape)
         out_root_fname = os.path.basename(fname)[0:os.path.basename(fname).find('.')]  # assumes no periods in filename, :-/
-        mgdm.setContrastImage1(cj.JArray('float')((d.flatten('F')).astype(float)))
+        mgdm.setContrastImage1(_to_java_float(d))
         mgdm.setContrastType1(type)
 
         if con2_files is not None: #only bother with the other contrasts if something is in the one before it
             print(con2_type + ":\t" + con2_files[idx].split(pathsep)[-1])
             d, a = niiLoad(con2_files[idx], return_header=False)
-            mgdm.setContrastImage2(cj.JArray('float')((d.flatten('F')).astype(float)))
+            mgdm.setContrastImage2(_to_java_float(d))
             mgdm.setContrastType2(con2_type)
             if con3_files is not None:
                 print(con3_type + ":\t" + con3_files[idx].split(pathsep)[-1])
                 d, a = niiLoad(con3_files[idx], return_header=False)
-                mgdm.setContrastImage3(cj.JArray('float')((d.flatten('F')).astype(float)))
+                mgdm.setContrastImage3(_to_java_float(d))
                 mgdm.setContrastType3(con3_type)
                 if con4_files is not None:
                     print(con4_type + ":\t" + con4_files[idx].split(pathsep)[-1])
                     d, a = niiLoad(con4_files[idx], return_header=False)
-                    mgdm.setContrastImage4(cj.JArray('float')((d.flatten('F')).astype(float)))
+                    mgdm.setContrastImage4(_to_java_float(d))
                     mgdm.setContrastType4(con4_type)
         try:
             print("Executing MGDM on your inputs")
@@ -395,9 +463,9 @@ def MGDMBrainSegmentation_v2(con1_files, con1_type, con2_files=None, con2_type=N
 
             # outputs
             # reshape fortran stype to convert back to the format the nibabel likes
-            seg_im = np.reshape(np.array(mgdm.getSegmentedBrainImage(), dtype=np.uint32), d_shape,'F')
-            lbl_im = np.reshape(np.array(mgdm.getPosteriorMaximumLabels4D(), dtype=np.uint32), d_shape, 'F')
-            ids_im = np.reshape(np.array(mgdm.getSegmentedIdsImage(), dtype=np.uint32), d_shape, 'F')
+            seg_im = _from_java(mgdm.getSegmentedBrainBuffer, mgdm.getSegmentedBrainImage, np.uint32, d_shape)
+            lbl_im = _from_java(mgdm.getPosteriorMaximumLabels4DBuffer, mgdm.getPosteriorMaximumLabels4D, np.uint8, d_shape).astype(np.uint32)
+            ids_im = _from_java(mgdm.getSegmentedIdsBuffer, mgdm.getSegmentedIdsImage, np.uint8, d_shape).astype(np.uint32)
 
             # filenames for saving
             if file_suffix is not None:
@@ -428,6 +496,107 @@ def MGDMBrainSegmentation_v2(con1_files, con1_type, con2_files=None, con2_type=N
 
     return out_files_seg, out_files_lbl, out_files_ids
 
+def MultiSubjectBatch(manifest_file, output_dir, atlas_file=None, chain='skullstrip,mgdm,extract,cruise',
+                      contrasts=[('t1map','T1MAP7T')], region='left_cerebrum', topology='wcs',
+                      topology_lut_dir=None, num_steps=5, threads=None):
+    """
+    Run a chain of modules on all subjects of a manifest, one at a time, within the current JVM,
+    loading the atlas and topology LUTs only once (see PipelineMultiSubjectBatch)
+
+    :param manifest_file:           tab-separated file: a header line "subject<tab>inv2<tab>t1map...", then one line per subject
+    :param output_dir:              Directory to place the outputs (<subject>_<stage>-<output>.nii.gz)
+    :param atlas_file:              Atlas file full path and filename
+    :param chain:                   Comma-separated stages among skullstrip, mgdm, extract, cruise
+    :param contrasts:               List of (manifest column, MGDM contrast type) pairs
+    :param region:                  Region extracted for CRUISE (see ExtractBrainRegion)
+    :param topology:                Topology setting {'wcs', 'no'} ('no' for no topology)
+    :param topology_lut_dir:        Directory for topology files
+    :param num_steps:               Number of steps for MGDM
+    :param threads:                 Number of threads per subject (default: all processors)
+    :return: processed, failed      lists of subject ids
+    """
+    import os
+    if atlas_file is None:
+        atlas_file = os.path.join(ATLAS_DIR, DEFAULT_ATLAS)
+    if topology_lut_dir is None:
+        topology_lut_dir = TOPOLOGY_LUT_DIR
+
+    batch = cj.PipelineMultiSubjectBatch()
+    batch.setManifestFile(manifest_file)
+    batch.setOutputDirectory(output_dir)
+    batch.setAtlasFile(atlas_file)
+    batch.setTopologyLUTdirectory(topology_lut_dir)
+    batch.setModuleChain(chain)
+    batch.setMgdmContrasts(cj.JArray('string')([c[0] for c in contrasts]),
+                           cj.JArray('string')([c[1] for c in contrasts]))
+    batch.setExtractedRegion(region)
+    batch.setTopology(topology)
+    batch.setMgdmSteps(num_steps)
+    if threads is not None:
+        batch.setNumberOfThreads(threads)
+    batch.execute()
+
+    return list(batch.getProcessedSubjects()), list(batch.getFailedSubjects())
+
+def MultiscaleVesselFiltering(input_file, output_dir=None, intensity='bright', filter_shape='RRF',
+                              threshold=0.5, scale_step=1.0, scale_number=4, propagation='diffusion',
+                              diffusion_factor=0.5, max_diff=0.001, max_iter=100, prior_file=None,
+                              invert_prior=False, threads=None):
+    """
+    Segment vessels at multiple scales with the multiscale vessel filter
+
+    :param input_file:              Input image full path and filename
+    :param output_dir:              Directory to place the outputs (default: the input directory)
+    :param intensity:               Vessel intensities {'bright', 'dark'}
+    :param filter_shape:            Shape filter {'RRF', 'Hessian'}
+    :param threshold:               Probability threshold
+    :param scale_step:              Scale step
+    :param scale_number:            Number of scales
+    :param propagation:             Propagation model {'diffusion', 'belief'}
+    :param diffusion_factor:        Diffusion factor
+    :param max_diff:                Maximum difference to stop the propagation
+    :param max_iter:                Maximum number of propagation iterations
+    :param prior_file:              Optional vessel location prior full path and filename
+    :param invert_prior:            Invert the location prior
+    :param threads:                 Number of threads for the propagation (default: 1)
+    :return: output file names      segmented vessels, probability, scale, diameter
+    """
+    import os
+    if output_dir is None:
+        output_dir = os.path.dirname(input_file)
+    d, d_aff, d_head = niiLoad(input_file, return_header=True)
+    res = [a1.item() for a1 in d_head.get_zooms()]
+
+    vessel = cj.MultiscaleVesselFilter()
+    vessel.setInputImage(cj.JArray('float')((d.flatten('F')).astype(float)))
+    vessel.setDimensions(d.shape[0], d.shape[1], d.shape[2])
+    vessel.setResolutions(res[0], res[1], res[2])
+    vessel.setStructureIntensity(intensity)
+    vessel.setFilterShape(filter_shape)
+    vessel.setThreshold(threshold)
+    vessel.setScaleStep(scale_step)
+    vessel.setScaleNumber(scale_number)
+    vessel.setPropagationModel(propagation)
+    vessel.setDiffusionFactor(diffusion_factor)
+    vessel.setMaxDiff(max_diff)
+    vessel.setMaxItr(max_iter)
+    if prior_file is not None:
+        p = niiLoad(prior_file)[0]
+        vessel.setPriorImage(cj.JArray('float')((p.flatten('F')).astype(float)))
+        vessel.setInvertPrior(invert_prior)
+    if threads is not None:
+        vessel.setNumberOfThreads(threads)
+    vessel.execute()
+
+    basename = os.path.basename(input_file).split('.')[0]
+    out_files = []
+    for name, getter in [('seg', vessel.getSegmentedVesselImage), ('proba', vessel.getProbabilityImage),
+                         ('scale', vessel.getScaleImage), ('diameter', vessel.getDiameterImage)]:
+        out = np.reshape(np.array(getter(), dtype=np.float32), d.shape, 'F')
+        out_files.append(niiSave(os.path.join(output_dir, basename + '_vessel-' + name + '.nii.gz'),
+                                 out, d_aff, header=d_head, data_type='float32'))
+    return out_files
+
 def compare_atlas_segs_priors(seg_file_orig,seg_file_new,atlas_file_orig=None,atlas_file_new=None,
                               metric_contrast_name=None,background_idx=1,seg_null_value=0):
     """